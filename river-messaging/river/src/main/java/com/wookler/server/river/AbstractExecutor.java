@@ -19,12 +19,16 @@ package com.wookler.server.river;
 import com.wookler.server.common.Configurable;
 import com.wookler.server.common.EProcessState;
 import com.wookler.server.common.ProcessState;
+import com.wookler.server.common.StateException;
+import com.wookler.server.common.config.CParam;
 import com.wookler.server.common.config.CPath;
 
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -37,13 +41,18 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 @CPath(path = "executor")
 public abstract class AbstractExecutor<M> implements Configurable, Runnable {
+    private static final Logger log = LoggerFactory.getLogger(AbstractExecutor.class);
+
     /** List of configured processors */
     protected List<Processor<M>> processors = new ArrayList<Processor<M>>();
     /** Executor process state */
     protected ProcessState state = new ProcessState();
     /** Executor read write lock */
     protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    /** default executor thread sleep time */
+    /**
+     * default executor thread sleep time, max time to wait for new messages
+     * if the queue is empty
+     */
     protected long sleeptime = 100;
     /** executor name (same as subscriber name) */
     protected String name;
@@ -53,6 +62,32 @@ public abstract class AbstractExecutor<M> implements Configurable, Runnable {
     protected long queueTimeout;
     /** subscriber associated with this executor */
     private Subscriber<M> subscriber;
+    /** config param : adapt the batch size and read timeout, default = false */
+    @CParam(name = "executor.batch.adaptive", required = false)
+    protected boolean adaptiveBatch = false;
+    /** config param : min adaptive batch size, default = 1 */
+    @CParam(name = "executor.batch.size.min", required = false)
+    protected int minBatchSize = 1;
+    /**
+     * config param : max adaptive batch size, default = 0 (subscriber batch
+     * size)
+     */
+    @CParam(name = "executor.batch.size.max", required = false)
+    protected int maxBatchSize = 0;
+    /** config param : min adaptive read timeout, default = 1 */
+    @CParam(name = "executor.batch.timeout.min", required = false)
+    protected long minQueueTimeout = 1;
+    /** config param : target processing time per batch, default = 100 */
+    @CParam(name = "executor.batch.latency.target", required = false)
+    protected long latencyTarget = 100;
+    /** adaptive batch controller, created on first read */
+    private volatile AdaptiveBatchController controller = null;
+    /**
+     * reusable batch views passed along the processor chain, a view is taken
+     * for each batch and returned once the chain is done. Not thread local,
+     * batches may be processed by a new (virtual) thread each time.
+     */
+    private final ConcurrentLinkedQueue<MessageBatch<M>> batches = new ConcurrentLinkedQueue<MessageBatch<M>>();
 
     /**
      * Set the message batch size
@@ -200,6 +235,203 @@ public abstract class AbstractExecutor<M> implements Configurable, Runnable {
         return null;
     }
 
+    /**
+     * Get the adaptive batch controller, if adaptive batching is enabled.
+     *
+     * @return - Batch controller or NULL if not enabled.
+     */
+    public AdaptiveBatchController controller() {
+        if (adaptiveBatch && controller == null) {
+            synchronized (this) {
+                if (controller == null)
+                    controller = new AdaptiveBatchController(name, batchSize, minBatchSize,
+                            (maxBatchSize > 0 ? maxBatchSize : batchSize), minQueueTimeout,
+                            queueTimeout, latencyTarget);
+            }
+        }
+        return controller;
+    }
+
+    /**
+     * Read the next message batch for the subscriber. If adaptive batching is
+     * enabled, the batch size and read timeout are set by the batch
+     * controller.
+     *
+     * @return - Message batch, NULL/empty if no messages were read.
+     * @throws MessageQueueException
+     */
+    protected List<Message<M>> read() throws MessageQueueException {
+        AdaptiveBatchController c = controller();
+        int size = (c != null ? c.batchSize() : batchSize);
+        long timeout = (c != null ? c.timeout() : queueTimeout);
+
+        List<Message<M>> messages = null;
+        lock.readLock().lock();
+        try {
+            // read the message batch from the queue
+            messages = subscriber.batch(size, timeout);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (c != null)
+            c.read(size, (messages != null ? messages.size() : 0));
+        return messages;
+    }
+
+    /**
+     * Execute the processors for the messages passed. The processors that are
+     * configured are executed sequentially one after another. Exception
+     * handling depends on the type of exception encountered and the type
+     * processor configured. Refer to {@link ProcessingException} and
+     * {@link NonFatalProcessorException} for more details. If ack is set to
+     * true and async flag is set to false, then the message batch is
+     * acknowledged after all the processors are executed successfully.
+     * 
+     *
+     * @param messages
+     *            - List of messages.
+     * @throws ProcessingException
+     *             the processing exception
+     * @throws NonFatalProcessorException
+     *             the non fatal processor exception
+     */
+    public void execute(final List<Message<M>> messages) throws ProcessingException,
+            NonFatalProcessorException {
+        // invoke the ack, only if async flag is set to false. Check to
+        // determine whether the ack flag is actually configured or not
+        // is done inside the ack() call.
+        if (process(messages) && !subscriber().subscriberAsyncAck()) {
+            ack(messages);
+        }
+    }
+
+    /**
+     * Execute the processor chain for the messages passed, without acking the
+     * messages.
+     *
+     * @param messages
+     *            - List of messages.
+     * @return - Processor chain executed? (false if no processors are
+     *         configured)
+     * @throws ProcessingException
+     *             the processing exception
+     * @throws NonFatalProcessorException
+     *             the non fatal processor exception
+     */
+    protected boolean process(final List<Message<M>> messages) throws ProcessingException,
+            NonFatalProcessorException {
+        try {
+            ProcessState.check(state, EProcessState.Running, getClass());
+            if (processors == null || processors.isEmpty())
+                return false;
+            long startt = System.currentTimeMillis();
+            // The processors filter the batch view in place, the message list
+            // is not copied between the processor stages.
+            MessageBatch<M> batch = batches.poll();
+            if (batch == null)
+                batch = new MessageBatch<M>();
+            batch.reset(messages);
+            try {
+                for (Processor<M> p : processors) {
+                    try {
+                        p.execute(batch);
+
+                        // If the last processor did not return
+                        // any messages, then stop the chain.
+                        if (batch.isEmpty())
+                            break;
+                    } catch (NonFatalProcessorException nfe) {
+                        // NonFatalProcessor Exception raised will
+                        // cause the processor chain to terminate
+                        // if the process instance has set
+                        // ignore getError to false (Messages will still
+                        // be acked). Else the
+                        // current execution loop will
+                        // terminate and the messages will not be
+                        // acked by the subscribers
+                        if (p.ignoreException()) {
+                            log.error(String
+                                    .format("Processor getError : [%s] : [%s]. Ignore exception is set to true. Messages will be acked",
+                                            p.getClass().getCanonicalName(),
+                                            nfe.getLocalizedMessage()));
+                            break;
+                        } else {
+                            throw nfe;
+                        }
+                    } catch (ProcessingException pe) {
+                        // processing exception will cause the current processor
+                        // chain to terminate
+                        // and the exception will be propagated further causing
+                        // the subscriber
+                        // loop to terminate
+                        throw pe;
+                    } catch (Throwable te) {
+                        // any other exception will be suppressed
+                        log.error(String.format("Processor getError : [%s] : [%s]", p.getClass()
+                                .getCanonicalName(), te.getLocalizedMessage()));
+                    }
+                }
+            } finally {
+                batch.clear();
+                batches.offer(batch);
+            }
+            AdaptiveBatchController c = controller();
+            if (c != null)
+                c.processed(messages.size(), System.currentTimeMillis() - startt);
+            return true;
+        } catch (StateException se) {
+            exception(se);
+            throw new ProcessingException("Execution failed. Executor is not running. [setState="
+                    + state.getState().name() + "]");
+        }
+    }
+
+    /**
+     * Ack the processed message batch with the subscriber. Runs of messages
+     * with consecutive positions in a block (set on the message header when
+     * read) are acked as block ranges, messages without a block position are
+     * acked by message ID.
+     *
+     * @param messages
+     *            - List of processed messages.
+     * @throws ProcessingException
+     *             the processing exception
+     */
+    protected void ack(final List<Message<M>> messages) throws ProcessingException {
+        try {
+            List<String> acks = null;
+            String blockid = null;
+            long from = -1;
+            long to = -1;
+            for (Message<M> m : messages) {
+                Message.Header h = m.header();
+                if (h.blockid() == null || h.blockindex() < 0) {
+                    if (acks == null)
+                        acks = new ArrayList<String>();
+                    acks.add(h.id());
+                    continue;
+                }
+                if (h.blockid().equals(blockid) && h.blockindex() == to + 1) {
+                    to = h.blockindex();
+                    continue;
+                }
+                if (blockid != null)
+                    subscriber().ack(blockid, from, to);
+                blockid = h.blockid();
+                from = to = h.blockindex();
+            }
+            if (blockid != null)
+                subscriber().ack(blockid, from, to);
+            if (acks != null) {
+                subscriber().ack(acks);
+            }
+        } catch (MessageQueueException se) {
+            exception(se);
+            throw new ProcessingException("Execution failed. Executor is not running. [setState="
+                    + state.getState().name() + "]");
+        }
+    }
+
     /**
      * Start the executor processor.
      * 
@@ -214,4 +446,99 @@ public abstract class AbstractExecutor<M> implements Configurable, Runnable {
      *             the processing exception
      */
     public abstract void check() throws ProcessingException;
+
+    /**
+     * Gets the adaptive batch flag.
+     *
+     * @return the adaptiveBatch
+     */
+    public boolean isAdaptiveBatch() {
+        return adaptiveBatch;
+    }
+
+    /**
+     * Sets the adaptive batch flag.
+     *
+     * @param adaptiveBatch
+     *            the adaptiveBatch to set
+     */
+    public void setAdaptiveBatch(boolean adaptiveBatch) {
+        this.adaptiveBatch = adaptiveBatch;
+    }
+
+    /**
+     * Gets the min adaptive batch size.
+     *
+     * @return the minBatchSize
+     */
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    /**
+     * Sets the min adaptive batch size.
+     *
+     * @param minBatchSize
+     *            the minBatchSize to set
+     */
+    public void setMinBatchSize(int minBatchSize) {
+        this.minBatchSize = minBatchSize;
+    }
+
+    /**
+     * Gets the max adaptive batch size.
+     *
+     * @return the maxBatchSize
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the max adaptive batch size.
+     *
+     * @param maxBatchSize
+     *            the maxBatchSize to set
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets the min adaptive read timeout.
+     *
+     * @return the minQueueTimeout
+     */
+    public long getMinQueueTimeout() {
+        return minQueueTimeout;
+    }
+
+    /**
+     * Sets the min adaptive read timeout.
+     *
+     * @param minQueueTimeout
+     *            the minQueueTimeout to set
+     */
+    public void setMinQueueTimeout(long minQueueTimeout) {
+        this.minQueueTimeout = minQueueTimeout;
+    }
+
+    /**
+     * Gets the target processing time per batch.
+     *
+     * @return the latencyTarget
+     */
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    /**
+     * Sets the target processing time per batch.
+     *
+     * @param latencyTarget
+     *            the latencyTarget to set
+     */
+    public void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = latencyTarget;
+    }
 }
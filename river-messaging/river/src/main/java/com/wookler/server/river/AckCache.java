@@ -12,9 +12,16 @@
  */
 package com.wookler.server.river;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.wookler.server.common.AbstractCounter;
@@ -22,8 +29,12 @@ import com.wookler.server.common.Average;
 import com.wookler.server.common.Configurable;
 import com.wookler.server.common.Count;
 import com.wookler.server.common.LockTimeoutException;
+import com.wookler.server.common.ConfigurationException;
+import com.wookler.server.common.config.CParam;
 import com.wookler.server.common.config.CPath;
+import com.wookler.server.common.utils.LogUtils;
 import com.wookler.server.common.utils.Monitoring;
+import com.wookler.server.river.AckCacheStructs.MessageAckRange;
 import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
 import com.wookler.server.river.AckCacheStructs.StructSubscriberConfig;
 
@@ -50,10 +61,17 @@ public abstract class AckCache<M> implements Configurable {
         public static final String MONITOR_COUNTER_RESEND = "resend";
         public static final String MONITOR_COUNTER_ADDS = "adds";
         public static final String MONITOR_COUNTER_REMOVES = "remove";
+        public static final String MONITOR_COUNTER_TIMEOUTS = "timeouts";
+        public static final String MONITOR_COUNTER_MISSES = "misses";
 
         public static final int RETRY_COUNT = 3;
     }
 
+    /**
+     * Executor driving the ack timers of all the caches, single thread.
+     */
+    private static ScheduledExecutorService tickerPool = null;
+
     /** Counters at ack cache level */
     private HashMap<String, String[]> counters = new HashMap<String, String[]>();
     /** The message queue associated with this instance of ack cache */
@@ -67,6 +85,28 @@ public abstract class AckCache<M> implements Configurable {
     protected ReentrantLock ackLock = new ReentrantLock();
     /** resend lock */
     protected ReentrantLock resendLock = new ReentrantLock();
+    /** ack journal base directory, the journal is disabled if not set */
+    @CParam(name = "ack.journal.directory", required = false)
+    protected File journalDirectory = null;
+    /** ack journal file size, default = 16MB */
+    @CParam(name = "ack.journal.size", required = false)
+    protected int journalSize = AckJournal.Constants.DEFAULT_JOURNAL_SIZE;
+    /** force the ack journal to disk after each batch, default = false */
+    @CParam(name = "ack.journal.sync", required = false)
+    protected boolean journalSync = false;
+    /** ack timer tick (ms), default = 100 */
+    @CParam(name = "ack.timer.tick", required = false)
+    protected long timerTick = AckTimerWheel.Constants.DEFAULT_TICK;
+    /** ack timer wheel size (number of ticks), default = 512 */
+    @CParam(name = "ack.timer.wheel.size", required = false)
+    protected int timerWheelSize = AckTimerWheel.Constants.DEFAULT_WHEEL_SIZE;
+    /** durable ack journal, NULL if disabled */
+    protected AckJournal journal = null;
+    /**
+     * records pending ack replayed from the journal, by subscriber. Restored
+     * for resend when the subscriber is added.
+     */
+    protected Map<String, List<MessageAckRecord>> replayed = null;
 
     /**
      * Set the associated message queue.
@@ -104,6 +144,434 @@ public abstract class AckCache<M> implements Configurable {
         return this;
     }
 
+    /**
+     * Get the ack journal base directory
+     *
+     * @return the journalDirectory
+     */
+    public File getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * Set the ack journal base directory
+     *
+     * @param journalDirectory
+     *            the journalDirectory to set
+     */
+    public void setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Get the ack journal file size
+     *
+     * @return the journalSize
+     */
+    public int getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * Set the ack journal file size
+     *
+     * @param journalSize
+     *            the journalSize to set
+     */
+    public void setJournalSize(int journalSize) {
+        this.journalSize = journalSize;
+    }
+
+    /**
+     * Get the ack journal sync flag
+     *
+     * @return the journalSync
+     */
+    public boolean isJournalSync() {
+        return journalSync;
+    }
+
+    /**
+     * Set the ack journal sync flag
+     *
+     * @param journalSync
+     *            the journalSync to set
+     */
+    public void setJournalSync(boolean journalSync) {
+        this.journalSync = journalSync;
+    }
+
+    /**
+     * Get the ack timer tick
+     *
+     * @return the ack timer tick (ms)
+     */
+    public long getTimerTick() {
+        return timerTick;
+    }
+
+    /**
+     * Set the ack timer tick
+     *
+     * @param timerTick
+     *            the ack timer tick (ms)
+     */
+    public void setTimerTick(long timerTick) {
+        this.timerTick = timerTick;
+    }
+
+    /**
+     * Get the ack timer wheel size
+     *
+     * @return the ack timer wheel size
+     */
+    public int getTimerWheelSize() {
+        return timerWheelSize;
+    }
+
+    /**
+     * Set the ack timer wheel size
+     *
+     * @param timerWheelSize
+     *            the ack timer wheel size
+     */
+    public void setTimerWheelSize(int timerWheelSize) {
+        this.timerWheelSize = timerWheelSize;
+    }
+
+    /**
+     * Open the ack journal, if configured. The records pending ack at the last
+     * shutdown are replayed from the journal.
+     *
+     * @throws ConfigurationException
+     */
+    protected void openJournal() throws ConfigurationException {
+        if (journalDirectory == null)
+            return;
+        try {
+            journal = new AckJournal(new File(journalDirectory, queue.getName()), journalSize,
+                    journalSync);
+            replayed = journal.open();
+            LogUtils.debug(getClass(), String.format(
+                    "Opened ack journal. [queue=%s][subscribers with pending acks=%d]",
+                    queue.getName(), replayed.size()));
+        } catch (IOException e) {
+            throw new ConfigurationException("Error opening ack journal. [queue="
+                    + queue.getName() + "]", e);
+        }
+    }
+
+    /**
+     * Append the staged journal entries, journal errors are logged.
+     */
+    protected void flushJournal() {
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException e) {
+                LogUtils.stacktrace(getClass(), e);
+                LogUtils.error(getClass(), "Error writing ack journal. [queue=" + queue.getName()
+                        + "] : " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Check if the messages pending ACK are journaled, pending messages are
+     * then restored for resend on restart.
+     *
+     * @return - Journal enabled?
+     */
+    public boolean journaled() {
+        return journal != null;
+    }
+
+    /**
+     * Close the ack journal.
+     */
+    protected void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Get the executor driving the ack timers, shared by all the caches and
+     * created on first use.
+     *
+     * @return - Ticker executor.
+     */
+    protected static synchronized ScheduledExecutorService tickerPool() {
+        if (tickerPool == null) {
+            tickerPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RIVER_ACK_TIMER");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return tickerPool;
+    }
+
+    /**
+     * Notify the queue of messages acked by the subscriber.
+     *
+     * @param subscriber
+     *            the subscriber name
+     * @param count
+     *            the number of messages acked
+     */
+    protected void acked(String subscriber, int count) {
+        if (queue != null && count > 0)
+            queue.acked(subscriber, count);
+    }
+
+    /**
+     * Notify the queue that the messages read by the subscriber have been
+     * added to the ack cache.
+     *
+     * @param subscriber
+     *            the subscriber name
+     */
+    protected void delivered(String subscriber) {
+        if (queue != null)
+            queue.delivered(subscriber);
+    }
+
+    /**
+     * Stage a contiguous range of messages added to the ack cache as pending
+     * to the ack journal, if enabled.
+     *
+     * @param range
+     *            the delivered range
+     */
+    protected void journalPending(MessageAckRange range) {
+        if (journal != null)
+            journal.pending(range.subscriber, range.blockId, range.fromIndex, range.toIndex);
+    }
+
+    /**
+     * Stage the acks of the messages pending ack in the index range to the ack
+     * journal, if enabled. Called before the range is cleared from the
+     * tracker.
+     *
+     * @param pending
+     *            the tracker of the messages pending ack
+     * @param subscriber
+     *            the subscriber name
+     * @param blockid
+     *            the block id
+     * @param fromIndex
+     *            the first acked index
+     * @param toIndex
+     *            the last acked index
+     * @throws IOException
+     */
+    protected void journalAcked(AckTracker pending, String subscriber, String blockid,
+            long fromIndex, long toIndex) throws IOException {
+        if (journal == null)
+            return;
+        for (AckTracker.Range r : pending.unacked(subscriber, blockid, fromIndex, toIndex)) {
+            journal.acked(subscriber, blockid, r.from(), r.to());
+        }
+    }
+
+    /**
+     * Queue the messages of a timed out delivery that are still pending ack
+     * for resend. The delivered range is intersected with the pending bitmap,
+     * messages that are already waiting for resend are skipped.
+     *
+     * @param pending
+     *            the tracker of the messages pending ack
+     * @param resends
+     *            the tracker of the messages waiting for resend
+     * @param range
+     *            the timed out delivery
+     * @param queue
+     *            the resend queue of the subscriber
+     * @return the number of messages queued for resend
+     */
+    protected static int expired(AckTracker pending, AckTracker resends, MessageAckRange range,
+            Queue<MessageAckRange> queue) {
+        int count = 0;
+        for (AckTracker.Range r : pending.unacked(range.subscriber, range.blockId,
+                range.fromIndex, range.toIndex)) {
+            long start = -1;
+            for (long index = r.from(); index <= r.to() + 1; index++) {
+                if (index <= r.to() && resends.pending(range.subscriber, range.blockId, index)) {
+                    if (start < 0)
+                        start = index;
+                } else if (start >= 0) {
+                    queue.offer(new MessageAckRange(range.subscriber, range.blockId, start,
+                            index - 1));
+                    count += (int) (index - start);
+                    start = -1;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Claim up to count messages waiting for resend, from the head of the
+     * resend queue. Queued ranges are checked against the resend tracker, the
+     * messages acked or resent since they were queued are skipped. The claimed
+     * messages are cleared from the resend tracker.
+     *
+     * @param resends
+     *            the tracker of the messages waiting for resend
+     * @param queue
+     *            the resend queue of the subscriber
+     * @param count
+     *            the maximum number of messages to claim
+     * @param claimed
+     *            the list to add the claimed ranges to
+     * @return the number of messages claimed
+     */
+    protected static int claim(AckTracker resends, Queue<MessageAckRange> queue, int count,
+            List<MessageAckRange> claimed) {
+        int size = 0;
+        while (size < count) {
+            MessageAckRange r = queue.peek();
+            if (r == null)
+                break;
+            long next = r.toIndex + 1;
+            for (AckTracker.Range w : resends.unacked(r.subscriber, r.blockId, r.fromIndex,
+                    r.toIndex)) {
+                long to = Math.min(w.to(), w.from() + (count - size) - 1);
+                resends.ack(r.subscriber, r.blockId, w.from(), to);
+                claimed.add(new MessageAckRange(r.subscriber, r.blockId, w.from(), to));
+                size += (int) (to - w.from() + 1);
+                if (size >= count) {
+                    next = to + 1;
+                    break;
+                }
+            }
+            if (next > r.toIndex)
+                queue.poll();
+            else
+                r.fromIndex = next;
+        }
+        return size;
+    }
+
+    /**
+     * Restore the messages pending ack replayed from the ack journal. The
+     * messages are marked pending and waiting for resend, and queued for
+     * resend as contiguous ranges.
+     *
+     * @param pending
+     *            the tracker of the messages pending ack
+     * @param resends
+     *            the tracker of the messages waiting for resend
+     * @param recs
+     *            the replayed records
+     * @param queue
+     *            the resend queue of the subscriber
+     * @return the number of messages restored
+     */
+    protected static int restore(AckTracker pending, AckTracker resends,
+            List<MessageAckRecord> recs, Queue<MessageAckRange> queue) {
+        MessageAckRange range = null;
+        int count = 0;
+        for (MessageAckRecord rec : recs) {
+            if (!pending.pending(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex()))
+                continue;
+            resends.pending(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex());
+            count++;
+            if (range != null && range.blockId.equals(rec.getBlockId())
+                    && range.toIndex + 1 == rec.getBlockIndex()) {
+                range.toIndex++;
+            } else {
+                if (range != null)
+                    queue.offer(range);
+                range = new MessageAckRange(rec.getSubscriber(), rec.getBlockId(),
+                        rec.getBlockIndex(), rec.getBlockIndex());
+            }
+        }
+        if (range != null)
+            queue.offer(range);
+        return count;
+    }
+
+    /**
+     * Read the claimed messages for resend from the queue.
+     *
+     * @param claimed
+     *            the claimed ranges
+     * @return the messages to be resent, NULL if none
+     * @throws MessageQueueException
+     */
+    protected List<Message<M>> resend(List<MessageAckRange> claimed) throws MessageQueueException {
+        if (claimed.isEmpty())
+            return null;
+        HashMap<String, List<MessageAckRecord>> blocks = new HashMap<>();
+        for (MessageAckRange r : claimed) {
+            List<MessageAckRecord> recs = blocks.get(r.blockId);
+            if (recs == null) {
+                recs = new ArrayList<>();
+                blocks.put(r.blockId, recs);
+            }
+            for (long index = r.fromIndex; index <= r.toIndex; index++) {
+                MessageAckRecord rec = new MessageAckRecord();
+                rec.setSubscriber(r.subscriber);
+                rec.setBlockId(r.blockId);
+                rec.setBlockIndex(index);
+                recs.add(rec);
+            }
+        }
+        List<Message<M>> messages = new ArrayList<>();
+        for (String b : blocks.keySet()) {
+            List<Message<M>> ms = queue.readForResend(b, blocks.get(b));
+            if (ms != null && !ms.isEmpty()) {
+                messages.addAll(ms);
+            }
+        }
+        if (!messages.isEmpty()) {
+            incrementCounter(Constants.MONITOR_COUNTER_RESEND, messages.size());
+            return messages;
+        }
+        return null;
+    }
+
+    /**
+     * Resolve the message IDs to their block positions, using the message ID
+     * indexes of the queue store. Messages that are not found are not acked,
+     * they stay pending (and are resent on ack timeout), the misses are
+     * logged and counted.
+     *
+     * @param messageids
+     *            the message IDs
+     * @return the message ack records with the block positions set
+     * @throws MessageQueueException
+     */
+    protected List<MessageAckRecord> locate(List<String> messageids) throws MessageQueueException {
+        List<MessageAckRecord> recs = new ArrayList<>(messageids.size());
+        String missed = null;
+        int misses = 0;
+        for (String mid : messageids) {
+            MessageAckRecord rec = new MessageAckRecord();
+            if (queue.locate(mid, rec)) {
+                rec.setMessageId(mid);
+                recs.add(rec);
+            } else {
+                if (missed == null)
+                    missed = mid;
+                misses++;
+            }
+        }
+        if (misses > 0) {
+            incrementCounter(Constants.MONITOR_COUNTER_MISSES, misses);
+            LogUtils.warn(getClass(), String.format(
+                    "Acked messages not found, not acked. [queue=%s][count=%d][first=%s]",
+                    queue.getName(), misses, missed));
+        }
+        return recs;
+    }
+
     /**
      * Increment the specified counter by specified value
      *
@@ -121,7 +589,8 @@ public abstract class AckCache<M> implements Configurable {
 
     /**
      * Register all counters at ack cache level (resend count, ack cache add,
-     * ack cache remove, number of acks)
+     * ack cache remove, number of acks, ack timeouts, acked messages not
+     * found)
      */
     protected void registerCounters() {
 
@@ -146,6 +615,18 @@ public abstract class AckCache<M> implements Configurable {
             counters.put(Constants.MONITOR_COUNTER_REMOVES,
                     new String[] { c.namespace(), c.name() });
         }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + queue.getName(),
+                Constants.MONITOR_COUNTER_TIMEOUTS, Count.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_TIMEOUTS,
+                    new String[] { c.namespace(), c.name() });
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + queue.getName(),
+                Constants.MONITOR_COUNTER_MISSES, Count.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_MISSES,
+                    new String[] { c.namespace(), c.name() });
+        }
     }
 
     /**
@@ -172,6 +653,51 @@ public abstract class AckCache<M> implements Configurable {
     public abstract void ack(String subscriber, List<String> messageids)
             throws MessageQueueException, LockTimeoutException;
 
+    /**
+     * Ack the range of messages in the specified block.
+     *
+     * @param subscriber
+     *            - Subscriber ID
+     * @param blockid
+     *            - Block ID.
+     * @param fromIndex
+     *            - First block index to ack.
+     * @param toIndex
+     *            - Last block index to ack (inclusive).
+     * @return - Number of messages that were pending ACK.
+     * @throws MessageQueueException
+     */
+    public abstract int ack(String subscriber, String blockid, long fromIndex, long toIndex)
+            throws MessageQueueException, LockTimeoutException;
+
+    /**
+     * Get the ranges of messages pending ACK for the subscriber in the
+     * specified block.
+     *
+     * @param subscriber
+     *            - Subscriber ID
+     * @param blockid
+     *            - Block ID.
+     * @return - Unacked index ranges.
+     * @throws MessageQueueException
+     */
+    public abstract List<AckTracker.Range> unacked(String subscriber, String blockid)
+            throws MessageQueueException, LockTimeoutException;
+
+    /**
+     * Get the lowest index pending ACK for the subscriber in the specified
+     * block, all the messages before it have been acked.
+     *
+     * @param subscriber
+     *            - Subscriber ID
+     * @param blockid
+     *            - Block ID.
+     * @return - Lowest pending index, -1 if none are pending.
+     * @throws MessageQueueException
+     */
+    public abstract long lowWatermark(String subscriber, String blockid)
+            throws MessageQueueException, LockTimeoutException;
+
     /**
      * Add the specified message to the ACK pending cache.
      *
@@ -235,6 +235,36 @@ public class AckCacheStructs {
         public long count = 0;
     }
 
+    /**
+     * MessageAckRange is a contiguous range of messages of a
+     * {@link MessageBlock} delivered to a subscriber, or queued to be resent
+     * to it. Ack timeouts and resends are tracked per range, the ack state of
+     * the individual messages is kept by the {@link AckTracker}.
+     */
+    public static final class MessageAckRange {
+        /** subscriber name */
+        public String subscriber;
+        /** Message block id */
+        public String blockId;
+        /** first block index of the range */
+        public long fromIndex;
+        /** last block index of the range (inclusive) */
+        public long toIndex;
+
+        public MessageAckRange(String subscriber, String blockId, long fromIndex, long toIndex) {
+            this.subscriber = subscriber;
+            this.blockId = blockId;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        public String toString() {
+            return "MessageAckRange [subscriber=" + subscriber + ", blockId=" + blockId
+                    + ", fromIndex=" + fromIndex + ", toIndex=" + toIndex + "]";
+        }
+    }
+
     /**
      * StructSubscriberConfig represents the {@link Subscriber} related configs
      * that are useful for allocating ack cache. This corresponds to storing the
@@ -42,4 +42,14 @@ public interface AckHandler {
      * @throws MessageQueueException
      */
     public void ack(List<String> messageids) throws MessageQueueException;
+
+    /**
+     * Ack for the range of messages in a block.
+     *
+     * @param blockid    - Block ID.
+     * @param fromIndex  - First block index.
+     * @param toIndex    - Last block index (inclusive).
+     * @throws MessageQueueException
+     */
+    public void ack(String blockid, long fromIndex, long toIndex) throws MessageQueueException;
 }
@@ -0,0 +1,449 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.river.AckCacheStructs.AckState;
+import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
+
+/**
+ * Durable journal of the ack state transitions of an {@link AckCache}. Pending
+ * and acked transitions of contiguous ranges of a block are staged and
+ * appended in batches to a memory-mapped journal file, the journal survives a
+ * process crash without being forced to disk (unless sync is enabled).
+ * <p/>
+ * Journal entry : [payload size (int)][CRC32C of the payload (int)][payload],
+ * payload : [range marker (short)][subscriber size (short)][subscriber
+ * (UTF-8)][block id size (short)][block id (UTF-8)][from index (long)][to index
+ * (long)][acked (byte)]. Entries of older journals have a payload of
+ * [subscriber size (short)][subscriber (UTF-8)][{@link
+ * AckRecordProto.AckRecord}], and are still replayed. A zero size or CRC
+ * mismatch marks the end of the journal.
+ * <p/>
+ * The entries still pending ack are tracked as bitmaps by subscriber and
+ * block. The journal is compacted on open and whenever it is full, only the
+ * ranges still pending ack are retained.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class AckJournal {
+    public static final class Constants {
+        /** journal file name */
+        public static final String JOURNAL_FILE = "acks.journal";
+        /** default journal file size */
+        public static final int DEFAULT_JOURNAL_SIZE = 16 * 1024 * 1024;
+
+        private static final String JOURNAL_TEMP_EXT = ".tmp";
+        private static final int ENTRY_HEADER_SIZE = 8;
+        /** first short of the range entry payloads */
+        private static final int RANGE_ENTRY = 0xFFFF;
+    }
+
+    /** journal file */
+    private File file;
+    /** minimum journal file size */
+    private int size;
+    /** force the journal to disk after each batch? */
+    private boolean sync;
+    /** mapped journal file, NULL if not open */
+    private MappedByteBuffer buffer = null;
+    /** batch of entries staged for append */
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    /** messages pending ack, by subscriber and block */
+    private AckTracker live = new AckTracker();
+
+    /**
+     * Create a journal handle for the specified directory.
+     *
+     * @param directory
+     *            - Journal directory.
+     * @param size
+     *            - Journal file size.
+     * @param sync
+     *            - Force the journal to disk after each batch?
+     */
+    public AckJournal(File directory, int size, boolean sync) {
+        this.file = new File(directory, Constants.JOURNAL_FILE);
+        this.size = (size > 0 ? size : Constants.DEFAULT_JOURNAL_SIZE);
+        this.sync = sync;
+    }
+
+    /**
+     * Open the journal, replaying and compacting an existing journal.
+     *
+     * @return - Records pending ack (block positions), by subscriber.
+     * @throws IOException
+     */
+    public synchronized Map<String, List<MessageAckRecord>> open() throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Error creating journal directory. [path="
+                    + dir.getAbsolutePath() + "]");
+        live = new AckTracker();
+        if (file.exists())
+            replay();
+        compact();
+
+        Map<String, List<MessageAckRecord>> pending = new HashMap<String, List<MessageAckRecord>>();
+        for (String subscriber : live.subscribers()) {
+            List<MessageAckRecord> recs = new ArrayList<MessageAckRecord>();
+            for (String blockid : live.pendingBlocks(subscriber)) {
+                for (AckTracker.Range r : live.unacked(subscriber, blockid)) {
+                    for (long index = r.from(); index <= r.to(); index++) {
+                        MessageAckRecord rec = new MessageAckRecord();
+                        rec.setSubscriber(subscriber);
+                        rec.setBlockId(blockid);
+                        rec.setBlockIndex(index);
+                        rec.setAcked(AckState.USED);
+                        recs.add(rec);
+                    }
+                }
+            }
+            if (!recs.isEmpty())
+                pending.put(subscriber, recs);
+        }
+        return pending;
+    }
+
+    /**
+     * Close the journal, appending any staged entries.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            try {
+                flush();
+            } catch (IOException e) {
+                LogUtils.warn(getClass(), "Error flushing ack journal. [file="
+                        + file.getAbsolutePath() + "] : " + e.getLocalizedMessage());
+            }
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Stage a message pending ack.
+     *
+     * @param rec
+     *            - Message ack record.
+     */
+    public void pending(MessageAckRecord rec) {
+        pending(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex(),
+                rec.getBlockIndex());
+    }
+
+    /**
+     * Stage a range of messages pending ack. Nothing is staged if all the
+     * messages are already pending in the journal.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param fromIndex
+     *            - First block record index.
+     * @param toIndex
+     *            - Last block record index (inclusive).
+     */
+    public synchronized void pending(String subscriber, String blockid, long fromIndex,
+            long toIndex) {
+        boolean added = false;
+        for (long index = fromIndex; index <= toIndex; index++) {
+            if (live.pending(subscriber, blockid, index))
+                added = true;
+        }
+        if (added)
+            stage(payload(subscriber, blockid, fromIndex, toIndex, false));
+    }
+
+    /**
+     * Stage a message ack.
+     *
+     * @param rec
+     *            - Message ack record.
+     */
+    public void acked(MessageAckRecord rec) {
+        acked(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex(), rec.getBlockIndex());
+    }
+
+    /**
+     * Stage the ack of a message, by block position. Nothing is staged if
+     * the message is not pending in the journal.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param index
+     *            - Block record index.
+     */
+    public void acked(String subscriber, String blockid, long index) {
+        acked(subscriber, blockid, index, index);
+    }
+
+    /**
+     * Stage the ack of a range of messages. Nothing is staged if none of the
+     * messages are pending in the journal.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param fromIndex
+     *            - First block record index.
+     * @param toIndex
+     *            - Last block record index (inclusive).
+     */
+    public synchronized void acked(String subscriber, String blockid, long fromIndex,
+            long toIndex) {
+        if (live.ack(subscriber, blockid, fromIndex, toIndex) > 0)
+            stage(payload(subscriber, blockid, fromIndex, toIndex, true));
+    }
+
+    /**
+     * Append the staged entries to the journal. The journal is compacted if
+     * the batch does not fit.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (buffer == null || batch.size() == 0)
+            return;
+        if (batch.size() > buffer.remaining()) {
+            // The live entries include the staged batch.
+            batch.reset();
+            compact();
+            return;
+        }
+        buffer.put(batch.toByteArray());
+        batch.reset();
+        if (sync)
+            buffer.force();
+    }
+
+    private void stage(byte[] payload) {
+        int crc = RecordFormat.crc32c(payload, 0, payload.length);
+        writeInt(batch, payload.length);
+        writeInt(batch, crc);
+        batch.write(payload, 0, payload.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private byte[] payload(String subscriber, String blockid, long fromIndex, long toIndex,
+            boolean acked) {
+        byte[] s = subscriber.getBytes(StandardCharsets.UTF_8);
+        byte[] b = blockid.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + 2 + s.length + 2 + b.length + 8 + 8 + 1);
+        payload.putShort((short) Constants.RANGE_ENTRY);
+        payload.putShort((short) s.length).put(s);
+        payload.putShort((short) b.length).put(b);
+        payload.putLong(fromIndex).putLong(toIndex);
+        payload.put((byte) (acked ? 1 : 0));
+        return payload.array();
+    }
+
+    /**
+     * Apply a journal entry to the live state.
+     *
+     * @param payload
+     *            - Entry payload.
+     * @throws IOException
+     *             - Invalid entry.
+     */
+    private void apply(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        try {
+            int length = in.getShort() & 0xFFFF;
+            if (length != Constants.RANGE_ENTRY) {
+                apply(record(payload, length));
+                return;
+            }
+            String subscriber = string(in);
+            String blockid = string(in);
+            long from = in.getLong();
+            long to = in.getLong();
+            if (from < 0 || to < from)
+                throw new IOException("Invalid range. [from=" + from + "][to=" + to + "]");
+            if (in.get() != 0) {
+                live.ack(subscriber, blockid, from, to);
+            } else {
+                for (long index = from; index <= to; index++) {
+                    live.pending(subscriber, blockid, index);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated entry.", e);
+        }
+    }
+
+    private void apply(MessageAckRecord rec) {
+        if (rec.getAcked() == AckState.ACKED)
+            live.ack(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex());
+        else
+            live.pending(rec.getSubscriber(), rec.getBlockId(), rec.getBlockIndex());
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] data = new byte[length];
+        in.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse an entry of an older journal, written per message.
+     */
+    private MessageAckRecord record(byte[] payload, int length)
+            throws InvalidProtocolBufferException {
+        if (length + 2 > payload.length)
+            throw new InvalidProtocolBufferException("Invalid subscriber size. [size=" + length
+                    + "]");
+        String subscriber = new String(payload, 2, length, StandardCharsets.UTF_8);
+        AckRecordProto.AckRecord ar = AckRecordProto.AckRecord.PARSER.parseFrom(payload,
+                2 + length, payload.length - 2 - length);
+
+        MessageAckRecord rec = new MessageAckRecord();
+        rec.setSubscriber(subscriber);
+        rec.setMessageId(ar.getMessageId());
+        rec.setBlockId(ar.getBlockId());
+        rec.setBlockIndex(ar.getBlockIndex());
+        rec.setSendTimestamp(ar.getSendTimestamp());
+        rec.setAcked(ar.getAcked() ? AckState.ACKED : AckState.USED);
+        return rec;
+    }
+
+    /**
+     * Replay the journal entries to rebuild the entries pending ack. Replay
+     * stops at the first invalid (partially written) entry.
+     *
+     * @throws IOException
+     */
+    private void replay() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = 0;
+            try {
+                while (in.remaining() > Constants.ENTRY_HEADER_SIZE) {
+                    int length = in.getInt();
+                    int crc = in.getInt();
+                    if (length <= 0 || length > in.remaining())
+                        break;
+                    byte[] payload = new byte[length];
+                    in.get(payload);
+                    if (RecordFormat.crc32c(payload, 0, length) != crc) {
+                        LogUtils.warn(getClass(), "Ack journal entry checksum mismatch. [file="
+                                + file.getAbsolutePath() + "][entry=" + count + "]");
+                        break;
+                    }
+                    try {
+                        apply(payload);
+                    } catch (IOException e) {
+                        LogUtils.warn(getClass(), "Invalid ack journal entry. [file="
+                                + file.getAbsolutePath() + "][entry=" + count + "] : "
+                                + e.getLocalizedMessage());
+                        break;
+                    }
+                    count++;
+                }
+            } catch (BufferUnderflowException e) {
+                // Partially written entry, end of journal.
+            }
+            LogUtils.debug(getClass(), String.format(
+                    "Replayed ack journal. [file=%s][entries=%d]", file.getAbsolutePath(),
+                    count));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rewrite the journal with the ranges pending ack and map it for append.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream o = batch;
+        batch = data;
+        try {
+            for (String subscriber : live.subscribers()) {
+                for (String blockid : live.pendingBlocks(subscriber)) {
+                    for (AckTracker.Range r : live.unacked(subscriber, blockid)) {
+                        stage(payload(subscriber, blockid, r.from(), r.to(), false));
+                    }
+                }
+            }
+        } finally {
+            batch = o;
+        }
+        // Leave at least half of the journal free for appends.
+        long fsize = size;
+        while (fsize < 2L * data.size())
+            fsize *= 2;
+
+        File temp = new File(file.getAbsolutePath() + Constants.JOURNAL_TEMP_EXT);
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(fsize);
+            MappedByteBuffer out = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fsize);
+            out.put(data.toByteArray());
+            out.force();
+        } finally {
+            raf.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fsize);
+            buffer.position(data.size());
+        } finally {
+            // The mapping remains valid after the channel is closed.
+            raf.close();
+        }
+    }
+}
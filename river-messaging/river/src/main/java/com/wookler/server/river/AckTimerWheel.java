@@ -0,0 +1,222 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel used to expire the messages pending ack. The wheel is an
+ * array of buckets, each covering one tick; a timeout is hashed to the bucket
+ * of its deadline tick and carries the number of wheel rotations remaining.
+ * Schedule and cancel are O(1), each tick only visits the timeouts of a single
+ * bucket.
+ * <p/>
+ * The wheel is not thread safe, callers are expected to synchronize access
+ * (ack cache lock). The wheel does not run a thread of its own, it is advanced
+ * by calling {@link #expire(long, List)} from a ticker.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class AckTimerWheel<T> {
+    public static final class Constants {
+        /** default tick duration (ms) */
+        public static final long DEFAULT_TICK = 100;
+        /** default number of buckets */
+        public static final int DEFAULT_WHEEL_SIZE = 512;
+    }
+
+    /**
+     * Handle of a scheduled timeout.
+     */
+    public static final class Timeout<T> {
+        /** timed value */
+        private T value;
+        /** deadline (ms) */
+        private long deadline;
+        /** wheel rotations remaining before expiry */
+        private long rounds;
+        /** bucket index, -1 if not scheduled */
+        private int bucket = -1;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the timed value
+         */
+        public T value() {
+            return value;
+        }
+
+        /**
+         * @return the deadline (ms)
+         */
+        public long deadline() {
+            return deadline;
+        }
+
+        /**
+         * @return is the timeout still scheduled?
+         */
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    /** tick duration (ms) */
+    private long tick;
+    /** bucket index mask, wheel size - 1 */
+    private int mask;
+    /** bucket list heads */
+    private Timeout<T>[] buckets;
+    /** wheel start time (ms) */
+    private long start;
+    /** next tick to be processed */
+    private long ticks = 0;
+    /** number of scheduled timeouts */
+    private int size = 0;
+
+    /**
+     * Create a timer wheel.
+     *
+     * @param tick
+     *            - Tick duration (ms).
+     * @param wheelSize
+     *            - Number of buckets, rounded up to a power of 2.
+     * @param start
+     *            - Wheel start time (ms).
+     */
+    @SuppressWarnings("unchecked")
+    public AckTimerWheel(long tick, int wheelSize, long start) {
+        this.tick = (tick > 0 ? tick : Constants.DEFAULT_TICK);
+        int s = 1;
+        while (s < wheelSize)
+            s <<= 1;
+        this.mask = s - 1;
+        this.buckets = (Timeout<T>[]) new Timeout<?>[s];
+        this.start = start;
+    }
+
+    /**
+     * @return the tick duration (ms)
+     */
+    public long tick() {
+        return tick;
+    }
+
+    /**
+     * @return the number of scheduled timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedule a timeout. Deadlines are rounded up to the tick.
+     *
+     * @param value
+     *            - Timed value.
+     * @param deadline
+     *            - Deadline (ms).
+     * @return - Timeout handle.
+     */
+    public Timeout<T> schedule(T value, long deadline) {
+        Timeout<T> t = new Timeout<T>(value, deadline);
+        long target = (deadline - start + tick - 1) / tick;
+        if (target < ticks)
+            target = ticks;
+        t.rounds = (target - ticks) / buckets.length;
+        t.bucket = (int) (target & mask);
+
+        t.next = buckets[t.bucket];
+        if (t.next != null)
+            t.next.prev = t;
+        buckets[t.bucket] = t;
+        size++;
+        return t;
+    }
+
+    /**
+     * Cancel a scheduled timeout.
+     *
+     * @param t
+     *            - Timeout handle.
+     * @return - Was scheduled?
+     */
+    public boolean cancel(Timeout<T> t) {
+        if (t == null || t.bucket < 0)
+            return false;
+        unlink(t);
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the specified time, collecting the values of the
+     * expired timeouts.
+     *
+     * @param now
+     *            - Current time (ms).
+     * @param expired
+     *            - List to add the expired values to.
+     * @return - Number of expired timeouts.
+     */
+    public int expire(long now, List<T> expired) {
+        int count = 0;
+        while (start + ticks * tick <= now) {
+            Timeout<T> t = buckets[(int) (ticks & mask)];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                if (t.rounds <= 0) {
+                    unlink(t);
+                    expired.add(t.value);
+                    count++;
+                } else {
+                    t.rounds--;
+                }
+                t = next;
+            }
+            ticks++;
+            if (size == 0) {
+                // Nothing scheduled, skip the idle ticks.
+                long current = (now - start) / tick + 1;
+                if (current > ticks)
+                    ticks = current;
+            }
+        }
+        return count;
+    }
+
+    private void unlink(Timeout<T> t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            buckets[t.bucket] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        t.bucket = -1;
+        size--;
+    }
+}
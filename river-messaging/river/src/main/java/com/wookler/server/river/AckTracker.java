@@ -0,0 +1,425 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact tracker of the messages pending ack. The pending messages of each
+ * (subscriber, block) are kept as a bitmap over the block record indexes,
+ * offset to the lowest pending index, along with a pending count per block.
+ * Acks can be applied to index ranges and the unacked ranges of a block can be
+ * enumerated for resend.
+ * <p/>
+ * Updates are not thread safe, callers are expected to synchronize access (ack
+ * cache lock). {@link #hasPendingAcks(String)} can be called without holding
+ * the lock.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class AckTracker {
+    /**
+     * Inclusive range of block record indexes.
+     */
+    public static final class Range {
+        /** first index */
+        private long from;
+        /** last index */
+        private long to;
+
+        public Range(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return the first index
+         */
+        public long from() {
+            return from;
+        }
+
+        /**
+         * @return the last index
+         */
+        public long to() {
+            return to;
+        }
+
+        /**
+         * @return the number of indexes in the range
+         */
+        public long size() {
+            return (to - from + 1);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + from + ", " + to + "]";
+        }
+    }
+
+    /**
+     * Pending bitmap of a (subscriber, block), bit 0 of the first word is the
+     * index base.
+     */
+    private static final class BlockBitmap {
+        /** index of the first bit, multiple of 64 */
+        private long base;
+        /** bitmap words */
+        private long[] words;
+        /** number of bits set */
+        private int count = 0;
+
+        private BlockBitmap(long index) {
+            base = index & ~63L;
+            words = new long[1];
+        }
+
+        private boolean get(long index) {
+            if (index < base)
+                return false;
+            long w = (index - base) >>> 6;
+            if (w >= words.length)
+                return false;
+            return (words[(int) w] & (1L << (index & 63))) != 0;
+        }
+
+        private boolean set(long index) {
+            if (index < base) {
+                long nbase = index & ~63L;
+                int shift = (int) ((base - nbase) >>> 6);
+                long[] nwords = new long[words.length + shift];
+                System.arraycopy(words, 0, nwords, shift, words.length);
+                words = nwords;
+                base = nbase;
+            }
+            long w = (index - base) >>> 6;
+            if (w >= words.length) {
+                int size = words.length;
+                while (size <= w)
+                    size *= 2;
+                long[] nwords = new long[size];
+                System.arraycopy(words, 0, nwords, 0, words.length);
+                words = nwords;
+            }
+            long bit = 1L << (index & 63);
+            if ((words[(int) w] & bit) != 0)
+                return false;
+            words[(int) w] |= bit;
+            count++;
+            return true;
+        }
+
+        private int clear(long from, long to) {
+            if (to < base || count == 0)
+                return 0;
+            if (from < base)
+                from = base;
+            long last = base + ((long) words.length << 6) - 1;
+            if (to > last)
+                to = last;
+            int cleared = 0;
+            for (long index = from; index <= to;) {
+                int w = (int) ((index - base) >>> 6);
+                int lo = (int) (index & 63);
+                int hi = (to - (index - lo) >= 63 ? 63 : (int) (to & 63));
+                long mask = (hi == 63 ? -1L : (1L << (hi + 1)) - 1) & (-1L << lo);
+                cleared += Long.bitCount(words[w] & mask);
+                words[w] &= ~mask;
+                index = index - lo + 64;
+            }
+            count -= cleared;
+            trim();
+            return cleared;
+        }
+
+        /**
+         * Drop the leading empty words, once they make up half of the bitmap.
+         */
+        private void trim() {
+            int lead = 0;
+            while (lead < words.length && words[lead] == 0)
+                lead++;
+            if (lead == 0 || lead < (words.length >>> 1) || lead == words.length)
+                return;
+            long[] nwords = new long[words.length - lead];
+            System.arraycopy(words, lead, nwords, 0, nwords.length);
+            words = nwords;
+            base += ((long) lead << 6);
+        }
+
+        private long first() {
+            for (int w = 0; w < words.length; w++) {
+                if (words[w] != 0)
+                    return base + ((long) w << 6) + Long.numberOfTrailingZeros(words[w]);
+            }
+            return -1;
+        }
+
+        private List<Range> ranges(long from, long to) {
+            List<Range> ranges = new ArrayList<Range>();
+            if (from < base)
+                from = base;
+            long last = base + ((long) words.length << 6) - 1;
+            if (to > last)
+                to = last;
+            long start = -1;
+            for (long index = from; index <= to;) {
+                int w = (int) ((index - base) >>> 6);
+                int bit = (int) (index & 63);
+                long word = (start < 0 ? words[w] : ~words[w]) >>> bit;
+                if (word == 0) {
+                    index = index - bit + 64;
+                    continue;
+                }
+                index += Long.numberOfTrailingZeros(word);
+                if (index > to)
+                    break;
+                if (start < 0) {
+                    start = index;
+                } else {
+                    ranges.add(new Range(start, index - 1));
+                    start = -1;
+                }
+            }
+            if (start >= 0)
+                ranges.add(new Range(start, to));
+            return ranges;
+        }
+    }
+
+    /** pending bitmaps, by subscriber and block id */
+    private HashMap<String, HashMap<String, BlockBitmap>> bitmaps = new HashMap<String, HashMap<String, BlockBitmap>>();
+    /**
+     * number of messages pending ack, by block id. Blocks without pending acks
+     * are removed.
+     */
+    private ConcurrentHashMap<String, int[]> blocks = new ConcurrentHashMap<String, int[]>();
+
+    /**
+     * Mark a delivered message as pending ack.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param index
+     *            - Block record index.
+     * @return - Newly marked as pending?
+     */
+    public boolean pending(String subscriber, String blockid, long index) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb == null) {
+            sb = new HashMap<String, BlockBitmap>();
+            bitmaps.put(subscriber, sb);
+        }
+        BlockBitmap b = sb.get(blockid);
+        if (b == null) {
+            b = new BlockBitmap(index);
+            sb.put(blockid, b);
+        }
+        if (!b.set(index))
+            return false;
+        int[] c = blocks.get(blockid);
+        if (c == null) {
+            c = new int[1];
+            blocks.put(blockid, c);
+        }
+        c[0]++;
+        return true;
+    }
+
+    /**
+     * Ack a message.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param index
+     *            - Block record index.
+     * @return - Was pending ack?
+     */
+    public boolean ack(String subscriber, String blockid, long index) {
+        return (ack(subscriber, blockid, index, index) > 0);
+    }
+
+    /**
+     * Ack a range of messages.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param fromIndex
+     *            - First block record index.
+     * @param toIndex
+     *            - Last block record index (inclusive).
+     * @return - Number of messages that were pending ack.
+     */
+    public int ack(String subscriber, String blockid, long fromIndex, long toIndex) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb == null)
+            return 0;
+        BlockBitmap b = sb.get(blockid);
+        if (b == null)
+            return 0;
+        int cleared = b.clear(fromIndex, toIndex);
+        if (b.count == 0)
+            sb.remove(blockid);
+        if (cleared > 0) {
+            int[] c = blocks.get(blockid);
+            if (c != null) {
+                c[0] -= cleared;
+                if (c[0] <= 0)
+                    blocks.remove(blockid);
+            }
+        }
+        return cleared;
+    }
+
+    /**
+     * Check if a message is pending ack.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param index
+     *            - Block record index.
+     * @return - Is pending?
+     */
+    public boolean isPending(String subscriber, String blockid, long index) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb == null)
+            return false;
+        BlockBitmap b = sb.get(blockid);
+        return (b != null && b.get(index));
+    }
+
+    /**
+     * Check if any subscriber has messages pending ack in the block.
+     *
+     * @param blockid
+     *            - Block id.
+     * @return - Has pending acks?
+     */
+    public boolean hasPendingAcks(String blockid) {
+        return blocks.containsKey(blockid);
+    }
+
+    /**
+     * Get the number of messages pending ack in the block, across all the
+     * subscribers.
+     *
+     * @param blockid
+     *            - Block id.
+     * @return - Pending count.
+     */
+    public int pendingCount(String blockid) {
+        int[] c = blocks.get(blockid);
+        return (c != null ? c[0] : 0);
+    }
+
+    /**
+     * Get the lowest index pending ack for the subscriber in the block, all
+     * the messages before it have been acked.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @return - Lowest pending index, -1 if none are pending.
+     */
+    public long lowWatermark(String subscriber, String blockid) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb != null) {
+            BlockBitmap b = sb.get(blockid);
+            if (b != null)
+                return b.first();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the subscribers with messages pending ack.
+     *
+     * @return - Subscriber names.
+     */
+    public List<String> subscribers() {
+        return new ArrayList<String>(bitmaps.keySet());
+    }
+
+    /**
+     * Get the blocks with messages pending ack for the subscriber.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Block ids.
+     */
+    public List<String> pendingBlocks(String subscriber) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb != null)
+            return new ArrayList<String>(sb.keySet());
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Get the ranges of messages pending ack for the subscriber in the block.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @return - Unacked ranges, in index order.
+     */
+    public List<Range> unacked(String subscriber, String blockid) {
+        return unacked(subscriber, blockid, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the ranges of messages pending ack for the subscriber within an
+     * index range of the block. Only the bitmap words covering the range are
+     * visited.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block id.
+     * @param fromIndex
+     *            - First block record index.
+     * @param toIndex
+     *            - Last block record index (inclusive).
+     * @return - Unacked ranges, in index order.
+     */
+    public List<Range> unacked(String subscriber, String blockid, long fromIndex, long toIndex) {
+        HashMap<String, BlockBitmap> sb = bitmaps.get(subscriber);
+        if (sb != null) {
+            BlockBitmap b = sb.get(blockid);
+            if (b != null)
+                return b.ranges(fromIndex, toIndex);
+        }
+        return new ArrayList<Range>();
+    }
+}
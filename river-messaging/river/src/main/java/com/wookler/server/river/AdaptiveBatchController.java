@@ -0,0 +1,189 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import com.wookler.server.common.AbstractCounter;
+import com.wookler.server.common.Gauge;
+import com.wookler.server.common.utils.Monitoring;
+
+/**
+ * AIMD controller for the read batch size and the queue read timeout of an
+ * executor.
+ * <ul>
+ * <li>Full batches signal a backlog: the batch size is increased additively,
+ * by a quarter of the initial batch size, as long as the processing latency is
+ * within the target, and the read timeout is dropped to the min (reads do not
+ * wait on a backlog anyway).</li>
+ * <li>Batches processed slower than the latency target halve the batch size.</li>
+ * <li>Empty reads signal an idle queue: the read timeout is doubled, up to the
+ * configured queue timeout, to reduce idle wakeups.</li>
+ * </ul>
+ * The controller starts at the configured batch size, the current batch size
+ * and timeout are exposed as gauges.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class AdaptiveBatchController {
+    public static final class Constants {
+        public static final String MONITOR_NAMESPACE = "river.counters.executor";
+        public static final String MONITOR_COUNTER_BATCHSIZE = "batch.size";
+        public static final String MONITOR_COUNTER_TIMEOUT = "batch.timeout";
+    }
+
+    /** min batch size */
+    private final int minSize;
+    /** max batch size */
+    private final int maxSize;
+    /** min read timeout */
+    private final long minTimeout;
+    /** max read timeout */
+    private final long maxTimeout;
+    /** target processing latency per batch */
+    private final long latencyTarget;
+    /** additive batch size increment */
+    private final int increment;
+    /** current batch size */
+    private volatile int batchSize;
+    /** current read timeout */
+    private volatile long timeout;
+    /** counter names : batch size */
+    private String[] sizeCounter = null;
+    /** counter names : read timeout */
+    private String[] timeoutCounter = null;
+
+    /**
+     * Create a new batch controller. The controller starts at the initial batch
+     * size and the max timeout.
+     *
+     * @param name
+     *            - Executor name, used for the counters.
+     * @param initialSize
+     *            - Initial batch size.
+     * @param minSize
+     *            - Min batch size.
+     * @param maxSize
+     *            - Max batch size.
+     * @param minTimeout
+     *            - Min read timeout.
+     * @param maxTimeout
+     *            - Max read timeout.
+     * @param latencyTarget
+     *            - Target processing latency per batch.
+     */
+    public AdaptiveBatchController(String name, int initialSize, int minSize, int maxSize,
+            long minTimeout, long maxTimeout, long latencyTarget) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.minTimeout = Math.max(1, minTimeout);
+        this.maxTimeout = Math.max(this.minTimeout, maxTimeout);
+        this.latencyTarget = latencyTarget;
+        this.batchSize = Math.min(Math.max(initialSize, this.minSize), this.maxSize);
+        this.increment = Math.max(this.minSize, this.batchSize / 4);
+        this.timeout = this.maxTimeout;
+
+        AbstractCounter c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name,
+                Constants.MONITOR_COUNTER_BATCHSIZE, Gauge.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            sizeCounter = new String[] { c.namespace(), c.name() };
+            Monitoring.set(c.namespace(), c.name(), batchSize);
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name,
+                Constants.MONITOR_COUNTER_TIMEOUT, Gauge.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            timeoutCounter = new String[] { c.namespace(), c.name() };
+            Monitoring.set(c.namespace(), c.name(), timeout);
+        }
+    }
+
+    /**
+     * Get the current batch size.
+     *
+     * @return - Batch size.
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Get the current read timeout.
+     *
+     * @return - Read timeout.
+     */
+    public long timeout() {
+        return timeout;
+    }
+
+    /**
+     * Update the controller with the result of a batch read.
+     *
+     * @param requested
+     *            - Batch size requested.
+     * @param count
+     *            - Number of messages read.
+     */
+    public synchronized void read(int requested, int count) {
+        if (count <= 0) {
+            timeout(Math.min(timeout * 2, maxTimeout));
+        } else if (count >= requested) {
+            timeout(minTimeout);
+            size(Math.min(batchSize + increment, maxSize));
+        }
+    }
+
+    /**
+     * Update the controller with the processing time of a batch.
+     *
+     * @param count
+     *            - Number of messages processed.
+     * @param elapsed
+     *            - Processing time (in milliseconds).
+     */
+    public synchronized void processed(int count, long elapsed) {
+        if (elapsed > latencyTarget) {
+            size(Math.max(batchSize / 2, minSize));
+        }
+    }
+
+    /**
+     * Set the current batch size and update the gauge.
+     *
+     * @param size
+     *            - New batch size.
+     */
+    private void size(int size) {
+        if (size != batchSize) {
+            if (sizeCounter != null)
+                Monitoring.set(sizeCounter[0], sizeCounter[1], size);
+            batchSize = size;
+        }
+    }
+
+    /**
+     * Set the current read timeout and update the gauge.
+     *
+     * @param value
+     *            - New read timeout.
+     */
+    private void timeout(long value) {
+        if (value != timeout) {
+            if (timeoutCounter != null)
+                Monitoring.set(timeoutCounter[0], timeoutCounter[1], value);
+            timeout = value;
+        }
+    }
+}
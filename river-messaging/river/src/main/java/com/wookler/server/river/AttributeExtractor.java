@@ -0,0 +1,39 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+/**
+ * Interface to be implemented to extract the record attributes (ex. key,
+ * type, tags) of a message. The attributes are stored beside the message
+ * payload and can be used by subscribers to filter records without reading the
+ * payload (see {@link Subscriber#attributes()}).
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public interface AttributeExtractor<M> {
+    /**
+     * Get the record attributes for the specified message.
+     *
+     * @param message
+     *            - Message to extract the attributes from.
+     * @param key
+     *            - Message key the message is added with, can be NULL.
+     * @return - Record attributes, NULL if none.
+     */
+    public RecordAttributes attributes(Message<M> message, String key);
+}
@@ -0,0 +1,428 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import com.wookler.server.common.utils.LogUtils;
+
+/**
+ * Append-only manifest of the blocks of a message store. Block lifecycle
+ * events (create, seal, unload, backup, GC) are appended to the manifest file
+ * in the store directory, so that the block chain can be rebuilt on restart by
+ * replaying the manifest instead of scanning and opening the block files.
+ * <p/>
+ * Each event is written as a single line: [EVENT] [BLOCK ID] [TIMESTAMP]
+ * followed by the last written index and the sequence range for seal events.
+ * A partially written last line (crash during append) is ignored on replay.
+ * The manifest is compacted every time it is opened.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class BlockManifest {
+    public static final class Constants {
+        /** manifest file name, within the store directory */
+        public static final String MANIFEST_FILE = "blocks.manifest";
+        private static final String MANIFEST_TEMP_EXT = ".tmp";
+        private static final String SEPARATOR = " ";
+    }
+
+    /**
+     * Block lifecycle events recorded in the manifest.
+     */
+    public static enum EBlockEvent {
+        /** block has been created */
+        CREATE,
+        /** block has been closed for writes (RW -> RO) */
+        SEAL,
+        /** block has been unloaded */
+        UNLOAD,
+        /** block has been backed up */
+        BACKUP,
+        /** block has been removed */
+        GC
+    }
+
+    /**
+     * Manifest entry of a live block.
+     */
+    public static final class Entry {
+        /** block id */
+        private String id;
+        /** block create time */
+        private long createtime;
+        /** has the block been sealed? */
+        private boolean sealed = false;
+        /** last index written to the block, -1 if empty */
+        private long lastIndex = -1;
+        /** first record sequence in the block, -1 if empty */
+        private long firstSequence = -1;
+        /** last record sequence in the block, -1 if empty */
+        private long lastSequence = -1;
+
+        private Entry(String id, long createtime) {
+            this.id = id;
+            this.createtime = createtime;
+        }
+
+        /**
+         * @return the block id
+         */
+        public String id() {
+            return id;
+        }
+
+        /**
+         * @return the block create time
+         */
+        public long createtime() {
+            return createtime;
+        }
+
+        /**
+         * @return has the block been sealed?
+         */
+        public boolean sealed() {
+            return sealed;
+        }
+
+        /**
+         * @return the last index written to the block
+         */
+        public long lastIndex() {
+            return lastIndex;
+        }
+
+        /**
+         * @return the first record sequence in the block
+         */
+        public long firstSequence() {
+            return firstSequence;
+        }
+
+        /**
+         * @return the last record sequence in the block
+         */
+        public long lastSequence() {
+            return lastSequence;
+        }
+    }
+
+    /** manifest file */
+    private File file;
+    /** append stream, NULL if not open */
+    private FileOutputStream out = null;
+    /** live block entries */
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Create a manifest handle for the specified store directory.
+     *
+     * @param directory
+     *            - Message store directory.
+     */
+    public BlockManifest(File directory) {
+        this.file = new File(directory, Constants.MANIFEST_FILE);
+    }
+
+    /**
+     * Check if the manifest file exists.
+     *
+     * @return - Exists?
+     */
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Open the manifest for append. An existing manifest is replayed and
+     * compacted.
+     *
+     * @return - Live block entries, sorted by block id.
+     * @throws IOException
+     */
+    public synchronized List<Entry> open() throws IOException {
+        entries.clear();
+        if (file.exists())
+            replay();
+        compact();
+        out = new FileOutputStream(file, true);
+
+        List<Entry> list = new ArrayList<Entry>(entries.values());
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Long.compare(Long.parseLong(e1.id), Long.parseLong(e2.id));
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Close the manifest.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LogUtils.warn(getClass(), "Error closing block manifest. [file="
+                        + file.getAbsolutePath() + "]");
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Record the creation of a new block.
+     *
+     * @param id
+     *            - Block id.
+     * @param createtime
+     *            - Block create time.
+     */
+    public synchronized void created(String id, long createtime) {
+        Entry e = new Entry(id, createtime);
+        entries.put(id, e);
+        append(EBlockEvent.CREATE, id, createtime, null, true);
+    }
+
+    /**
+     * Record a block being closed for writes.
+     *
+     * @param id
+     *            - Block id.
+     * @param lastIndex
+     *            - Last index written to the block.
+     * @param firstSequence
+     *            - First record sequence.
+     * @param lastSequence
+     *            - Last record sequence.
+     */
+    public synchronized void sealed(String id, long lastIndex, long firstSequence,
+            long lastSequence) {
+        Entry e = entries.get(id);
+        if (e == null) {
+            // Blocks recovered from a store without a manifest.
+            e = new Entry(id, System.currentTimeMillis());
+            entries.put(id, e);
+            append(EBlockEvent.CREATE, id, e.createtime, null, false);
+        }
+        e.sealed = true;
+        e.lastIndex = lastIndex;
+        e.firstSequence = firstSequence;
+        e.lastSequence = lastSequence;
+        append(EBlockEvent.SEAL, id, System.currentTimeMillis(), e, true);
+    }
+
+    /**
+     * Record a block being unloaded.
+     *
+     * @param id
+     *            - Block id.
+     */
+    public synchronized void unloaded(String id) {
+        if (entries.containsKey(id))
+            append(EBlockEvent.UNLOAD, id, System.currentTimeMillis(), null, false);
+    }
+
+    /**
+     * Record a block being backed up.
+     *
+     * @param id
+     *            - Block id.
+     */
+    public synchronized void backedup(String id) {
+        if (entries.containsKey(id))
+            append(EBlockEvent.BACKUP, id, System.currentTimeMillis(), null, false);
+    }
+
+    /**
+     * Record a block being removed.
+     *
+     * @param id
+     *            - Block id.
+     */
+    public synchronized void removed(String id) {
+        if (entries.remove(id) != null)
+            append(EBlockEvent.GC, id, System.currentTimeMillis(), null, true);
+    }
+
+    /**
+     * Append an event to the manifest. Manifest write errors are logged, the
+     * store falls back to a full block recovery for blocks missing in the
+     * manifest.
+     *
+     * @param event
+     *            - Block event.
+     * @param id
+     *            - Block id.
+     * @param timestamp
+     *            - Event timestamp.
+     * @param e
+     *            - Block entry (seal events).
+     * @param sync
+     *            - Sync the manifest to disk?
+     */
+    private void append(EBlockEvent event, String id, long timestamp, Entry e, boolean sync) {
+        if (out == null)
+            return;
+        try {
+            out.write(line(event, id, timestamp, e).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (sync)
+                out.getFD().sync();
+        } catch (IOException ex) {
+            LogUtils.warn(getClass(), String.format(
+                    "Error writing block manifest. [event=%s][block=%s] : %s", event.name(), id,
+                    ex.getLocalizedMessage()));
+        }
+    }
+
+    private String line(EBlockEvent event, String id, long timestamp, Entry e) {
+        StringBuilder b = new StringBuilder();
+        b.append(event.name()).append(Constants.SEPARATOR).append(id)
+                .append(Constants.SEPARATOR).append(timestamp);
+        if (e != null) {
+            b.append(Constants.SEPARATOR).append(e.lastIndex).append(Constants.SEPARATOR)
+                    .append(e.firstSequence).append(Constants.SEPARATOR)
+                    .append(e.lastSequence);
+        }
+        return b.append('\n').toString();
+    }
+
+    /**
+     * Replay the manifest events to rebuild the live block entries.
+     *
+     * @throws IOException
+     */
+    private void replay() throws IOException {
+        boolean torn = torn();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            String next = reader.readLine();
+            int lineno = 0;
+            while ((line = next) != null) {
+                lineno++;
+                next = reader.readLine();
+                if (next == null && torn) {
+                    LogUtils.warn(getClass(), String.format(
+                            "Ignoring partially written manifest entry. [file=%s][line=%d]",
+                            file.getAbsolutePath(), lineno));
+                    break;
+                }
+                String[] parts = line.trim().split(Constants.SEPARATOR);
+                try {
+                    EBlockEvent event = EBlockEvent.valueOf(parts[0]);
+                    String id = parts[1];
+                    long timestamp = Long.parseLong(parts[2]);
+                    Long.parseLong(id);
+                    switch (event) {
+                    case CREATE:
+                        entries.put(id, new Entry(id, timestamp));
+                        break;
+                    case SEAL:
+                        Entry e = entries.get(id);
+                        if (e != null) {
+                            e.lastIndex = Long.parseLong(parts[3]);
+                            e.firstSequence = Long.parseLong(parts[4]);
+                            e.lastSequence = Long.parseLong(parts[5]);
+                            e.sealed = true;
+                        }
+                        break;
+                    case GC:
+                        entries.remove(id);
+                        break;
+                    default:
+                        break;
+                    }
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+                    LogUtils.warn(getClass(), String.format(
+                            "Ignoring invalid manifest entry. [file=%s][line=%d]",
+                            file.getAbsolutePath(), lineno));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Check if the last manifest line has been partially written, every
+     * complete entry is terminated by a new line.
+     *
+     * @return - Is the last line torn?
+     * @throws IOException
+     */
+    private boolean torn() throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            if (f.length() == 0)
+                return false;
+            f.seek(f.length() - 1);
+            return f.read() != '\n';
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Rewrite the manifest with only the live block entries.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        File temp = new File(file.getAbsolutePath() + Constants.MANIFEST_TEMP_EXT);
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            for (Entry e : entries.values()) {
+                fos.write(line(EBlockEvent.CREATE, e.id, e.createtime, null).getBytes(
+                        StandardCharsets.UTF_8));
+                if (e.sealed)
+                    fos.write(line(EBlockEvent.SEAL, e.id, e.createtime, e).getBytes(
+                            StandardCharsets.UTF_8));
+            }
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (file.exists() && !file.delete())
+            throw new IOException("Error replacing block manifest. [file=" + file.getAbsolutePath()
+                    + "]");
+        if (!temp.renameTo(file))
+            throw new IOException("Error replacing block manifest. [file=" + file.getAbsolutePath()
+                    + "]");
+    }
+}
@@ -12,26 +12,27 @@
  */
 package com.wookler.server.river;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 
 import com.google.common.base.Preconditions;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 import com.wookler.server.common.ConfigurationException;
 import com.wookler.server.common.LockTimeoutException;
 import com.wookler.server.common.Reusable;
 import com.wookler.server.common.ReusableObjectFactory;
 import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
 import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.river.AckCacheStructs.MessageAckRange;
 import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
-import com.wookler.server.river.AckCacheStructs.StructMessageBlockAcks;
 import com.wookler.server.river.AckCacheStructs.StructSubscriberConfig;
 
 /**
@@ -45,34 +46,35 @@ import com.wookler.server.river.AckCacheStructs.StructSubscriberConfig;
  * the actual messages. These pointers are used to traverse the
  * {@link MessageQueue} to get the actual message at the time of resend.
  * <p>
- * Appropriate information pertaining {@link MessageBlock} is maintained (number
- * of pending messages per block) which are useful for checking GC criteria.
+ * The messages pending ack are tracked per subscriber and {@link MessageBlock}
+ * as a bitmap over the block indexes ({@link AckTracker}), the bitmap is the
+ * only per-message ack state. Ack timeouts and resends are kept per
+ * contiguous range of delivered messages ({@link MessageAckRange}), acking a
+ * message or a range of messages only clears the bitmap.
  * <p>
- * The message pointers are maintained as {@link MessageAckRecord} which is
- * wrapped inside a {@link Reusable} interface. The associated
+ * The {@link MessageAckRecord}s handed out by {@link #allocateAckCache} are
+ * only used to carry the message pointers into the cache and are returned to
+ * the free pool once the messages are added. The associated
  * {@link ReusableObjectFactory} lets these {@link MessageAckRecord} to be
- * re-used rather than creating and disposing each time. This helps in
- * overcoming GC overheads as the {@link MessageAckRecord}s are short-lived
- * objects.
+ * re-used rather than creating and disposing each time.
  * <p>
  * *****************************************************************************
  * 
  * <p>
  * The high-level logic supported by this ack cache is as follows:
  * <p>
- * For each subscriber that has ack configured, a {@link Cache} instance is
- * defined which is responsible for holding the unACKed messages. Whenever a
- * guaranteed {@link Subscriber} reads a message/message batch from the
- * {@link MessageQueue}, these messages are added to the ack cache.
+ * Whenever a guaranteed {@link Subscriber} reads a message/message batch from
+ * the {@link MessageQueue}, these messages are marked pending in the ack
+ * tracker and the ack timeout of each contiguous range of the batch is
+ * scheduled on a hashed timer wheel ({@link AckTimerWheel}).
  * <p>
- * The cache has a {@link RemovalListener} defined which is responsible for
- * evicting unACKed messages that have been in the cache beyond a threshold.
+ * The timer wheel is advanced by a ticker thread, shared by all the ack caches.
+ * When a range times out, the messages in it still pending ack are marked as
+ * waiting for resend and the range is queued to the resend queue of the
+ * subscriber. Queued ranges are checked against the tracker when they are
+ * resent, so acks never have to search the resend queue.
  * <p>
- * When the messages are evicted due to timeout, they are added in the
- * resendCache. This resendCache is used for re-sending the messages at a later
- * point of time.
- * <p>
- * When the messages are ACKed, they are removed from the ackCache.
+ * When the messages are ACKed, they are cleared from the ack tracker.
  * <p>
  * *****************************************************************************
  * 
@@ -83,105 +85,175 @@ import com.wookler.server.river.AckCacheStructs.StructSubscriberConfig;
  */
 public class BlockingAckCache<M> extends AckCache<M> {
     /**
-     * ackCache map consisting of subscriber name and {@link Cache} instance for
-     * each subscriber that has ack configured. {@link Cache} consists of record
-     * id as key and {@link MessageAckRecord} as value
+     * Tracker of the messages pending ack, by subscriber and
+     * {@link MessageBlock}. Used to ack ranges of messages and to check if a
+     * message block has messages pending ack.
      */
-    private HashMap<String, Cache<String, MessageAckRecord>> ackCaches = new HashMap<>();
+    private AckTracker tracker = new AckTracker();
     /**
-     * Resend cache map consisting of subscriber name and a list that contains
-     * the {@link MessageAckRecord}s to be resent
+     * Tracker of the messages pending ack that have timed out and are waiting
+     * to be resent, by subscriber and {@link MessageBlock}.
      */
-    private HashMap<String, LinkedList<MessageAckRecord>> resendCaches = new HashMap<>();
+    private AckTracker resends = new AckTracker();
+    /** ack timeouts of the delivered message ranges */
+    private AckTimerWheel<MessageAckRange> timer;
+    /** scheduled ticker task, advances the timer wheel */
+    private ScheduledFuture<?> ticker = null;
     /**
-     * map of {@link MessageBlock} id and {@link StructMessageBlockAcks}. This
-     * map is used to keep track of count of messages that are pending ack in a
-     * particular message block
+     * Resend cache map consisting of subscriber name and the queue of the
+     * message ranges to be resent
      */
-    private HashMap<String, StructMessageBlockAcks> blockMap = new HashMap<>();
+    private HashMap<String, ArrayDeque<MessageAckRange>> resendCaches = new HashMap<>();
     /**
      * map of subscriber name and {@link ReusableObjectFactory} instance
      * indicating the free objects per subscriber. These free objects indicate
      * {@link MessageAckRecord} that are wrapped with the {@link Reusable}
-     * interface so that they can be reused and thus avoid GC overheads. The
-     * reuse is beneficial because {@link MessageAckRecord} are typically
-     * short-lived objects (relevant till the ack is pending)
+     * interface so that they can be reused and thus avoid GC overheads.
      */
     private HashMap<String, ReusableObjectFactory<MessageAckRecord>> freeObjects = new HashMap<>();
 
     /**
-     * Register counters
+     * Register counters, open the ack journal, if configured, and start the
+     * ack timer.
      * 
      * @see com.wookler.server.common.Configurable#configure(com.wookler.server.
      *      common .config.ConfigNode)
      */
     @Override
     public void configure(ConfigNode config) throws ConfigurationException {
+        ConfigUtils.parse(config, this);
         registerCounters();
+        openJournal();
+
+        timer = new AckTimerWheel<>(timerTick, timerWheelSize, System.currentTimeMillis());
+        ticker = tickerPool().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, timer.tick(), timer.tick(), TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Dispose the ackCache. Invalidate all messages in the Cache.
+     * Dispose the ackCache. Stop the ack timer and clear all messages in the
+     * cache.
      * 
      * @see com.wookler.server.common.Configurable#dispose()
      */
     @Override
     public void dispose() {
-        if (ackCaches != null && !ackCaches.isEmpty()) {
-            for (String k : ackCaches.keySet()) {
-                Cache<String, MessageAckRecord> cache = ackCaches.get(k);
-                if (cache != null) {
-                    cache.invalidateAll();
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        resendCaches.clear();
+        closeJournal();
+    }
+
+    /**
+     * Advance the ack timer and move the timed out messages to the resend
+     * queues. Called by the ticker thread.
+     */
+    private void expire() {
+        try {
+            if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                try {
+                    List<MessageAckRange> expired = new ArrayList<>();
+                    if (timer.expire(System.currentTimeMillis(), expired) > 0) {
+                        expireLocked(expired);
+                    }
+                } finally {
+                    ackLock.unlock();
                 }
+            } else {
+                LogUtils.warn(getClass(), "Timeout getting ack cache lock for ack timer.");
             }
-            ackCaches.clear();
+        } catch (Throwable t) {
+            // Keep the ticker scheduled.
+            LogUtils.stacktrace(getClass(), t);
+            LogUtils.error(getClass(), "Error expiring messages pending ack : "
+                    + t.getLocalizedMessage());
         }
     }
 
     /**
-     * Ack the message specified by messageid by the subscriber. This
-     * corresponds to seting the AckState to ACKED, and invalidating the message
-     * from the cache. The count for the {@link MessageBlock} that contains this
-     * message is decremented
+     * Queue the messages of the timed out ranges, that are still pending ack,
+     * for resend. The timed out messages remain pending in the ack tracker,
+     * the block is not a candidate for GC till the resent messages are acked.
+     * <p>
+     * The resend lock is taken before any message is moved. If the lock
+     * cannot be acquired, the ranges are rescheduled for the next tick.
+     *
+     * @param expired
+     *            the timed out ranges
+     * @throws Exception
+     */
+    private void expireLocked(List<MessageAckRange> expired) throws Exception {
+        if (!resendLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            long deadline = System.currentTimeMillis() + timer.tick();
+            for (MessageAckRange range : expired) {
+                timer.schedule(range, deadline);
+            }
+            LogUtils.warn(getClass(), "Timeout getting resend cache lock, timed out messages "
+                    + "rescheduled. [ranges=" + expired.size() + "]");
+            return;
+        }
+        try {
+            for (MessageAckRange range : expired) {
+                ArrayDeque<MessageAckRange> resend = resendCaches.get(range.subscriber);
+                if (resend == null)
+                    continue;
+                int count = expired(tracker, resends, range, resend);
+                if (count > 0) {
+                    subscribers.get(range.subscriber).usedSize -= count;
+                    incrementCounter(Constants.MONITOR_COUNTER_TIMEOUTS, count);
+                }
+            }
+        } finally {
+            resendLock.unlock();
+        }
+    }
+
+    /**
+     * Ack the range of messages of the subscriber in the specified block. The
+     * pending bits are cleared from the ack tracker, the timeouts of the
+     * delivered ranges and the queued resends are not searched, they are
+     * checked against the tracker when they fire.
      *
      * @param subscriber
      *            the subscriber name
-     * @param messageid
-     *            the messageid denotes the message to be acked
-     * @return the {@link MessageAckRecord} corresponding to the ACKed message
-     * @throws MessageQueueException
-     *             the message queue exception
+     * @param blockid
+     *            the block id
+     * @param fromIndex
+     *            the first acked index
+     * @param toIndex
+     *            the last acked index
+     * @return the number of messages that were pending ack
+     * @throws Exception
      */
-    private MessageAckRecord ackLocked(String subscriber, String messageid)
-            throws MessageQueueException {
-        if (!ackCaches.containsKey(subscriber))
+    private int ackLocked(String subscriber, String blockid, long fromIndex, long toIndex)
+            throws Exception {
+        journalAcked(tracker, subscriber, blockid, fromIndex, toIndex);
+        int acked = tracker.ack(subscriber, blockid, fromIndex, toIndex);
+        if (acked > 0) {
+            // messages waiting for resend are no longer counted as used.
+            int waiting = resends.ack(subscriber, blockid, fromIndex, toIndex);
+            subscribers.get(subscriber).usedSize -= (acked - waiting);
+            incrementCounter(Constants.MONITOR_COUNTER_REMOVES, acked);
+        }
+        return acked;
+    }
+
+    private void checkSubscriber(String subscriber) throws MessageQueueException {
+        if (!resendCaches.containsKey(subscriber))
             throw new MessageQueueException("No registered subscriber with ID. [id=" + subscriber
                     + "]");
-        Cache<String, MessageAckRecord> cache = ackCaches.get(subscriber);
-        MessageAckRecord rec = cache.getIfPresent(messageid);
-        if (rec != null) {
-            rec.setAcked(AckCacheStructs.AckState.ACKED);
-            cache.invalidate(messageid);
-
-            StructMessageBlockAcks ba = blockMap.get(rec.getBlockId());
-            if (ba == null) {
-                ba = new StructMessageBlockAcks();
-                ba.blockId = rec.getBlockId();
-                blockMap.put(ba.blockId, ba);
-            }
-            ba.count--;
-            ba.timestamp = System.currentTimeMillis();
-
-            incrementCounter(Constants.MONITOR_COUNTER_REMOVES, 1);
-            return rec;
-        }
-        return null;
     }
 
     /**
-     * Ack the message specified by the message id. This corresponds to removing
-     * the {@link MessageAckRecord} from the cache and freeing the corresponding
-     * object for reuse.
+     * Ack the message specified by the message id. The message is located in
+     * the queue store by the message id index, before the ack cache lock is
+     * taken, and cleared from the ack tracker.
      * 
      * @see com.wookler.server.river.AckCache#ack(java.lang.String,
      *      java.lang.String)
@@ -189,38 +261,15 @@ public class BlockingAckCache<M> extends AckCache<M> {
     @Override
     public boolean ack(String subscriber, String messageid) throws MessageQueueException,
             LockTimeoutException {
-        try {
-            if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                try {
-                    incrementCounter(Constants.MONITOR_COUNTER_ACKS, 1);
-                    MessageAckRecord rec = ackLocked(subscriber, messageid);
-                    if (rec != null) {
-                        ReusableObjectFactory<MessageAckRecord> fo = freeObjects.get(subscriber);
-                        if (fo != null) {
-                            fo.free(rec);
-                        }
-                        StructSubscriberConfig c = subscribers.get(subscriber);
-                        c.usedSize--;
-                    }
-                } finally {
-                    ackLock.unlock();
-                }
-            } else
-                throw new LockTimeoutException("ACK-CACHE-LOCK",
-                        "Timeout trying to acquire lock for acking.");
-        } catch (LockTimeoutException e) {
-            throw e;
-        } catch (Exception e) {
-            LogUtils.stacktrace(getClass(), e);
-            throw new MessageQueueException("Error while acking.", e);
-        }
-        return false;
+        Preconditions.checkArgument(!StringUtils.isEmpty(messageid));
+        incrementCounter(Constants.MONITOR_COUNTER_ACKS, 1);
+        return (ackLocated(subscriber, locate(Collections.singletonList(messageid))) > 0);
     }
 
     /**
-     * Ack the messages specified by the message id list. This corresponds to
-     * removing the {@link MessageAckRecord}s from the cache and freeing the
-     * corresponding objects for reuse.
+     * Ack the messages specified by the message id list. The messages are
+     * located in the queue store by the message id index, before the ack cache
+     * lock is taken, and cleared from the ack tracker.
      * 
      * @see com.wookler.server.river.AckCache#ack(java.lang.String,
      *      java.util.List)
@@ -230,33 +279,31 @@ public class BlockingAckCache<M> extends AckCache<M> {
             LockTimeoutException {
         Preconditions.checkArgument(!StringUtils.isEmpty(subscriber));
         Preconditions.checkArgument(messageids != null && !messageids.isEmpty());
+        incrementCounter(Constants.MONITOR_COUNTER_ACKS, messageids.size());
+        ackLocated(subscriber, locate(messageids));
+    }
+
+    private int ackLocated(String subscriber, List<MessageAckRecord> recs) throws MessageQueueException,
+            LockTimeoutException {
         try {
             if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                int acked = 0;
                 try {
-                    incrementCounter(Constants.MONITOR_COUNTER_ACKS, messageids.size());
-                    List<MessageAckRecord> recs = new LinkedList<>();
-                    for (String mid : messageids) {
-                        MessageAckRecord rec = ackLocked(subscriber, mid);
-                        if (rec != null) {
-                            rec.clear();
-                            recs.add(rec);
-                        }
-                    }
-                    if (!recs.isEmpty()) {
-                        ReusableObjectFactory<MessageAckRecord> fo = freeObjects.get(subscriber);
-                        if (fo != null)
-                            fo.free(recs);
-                        StructSubscriberConfig c = subscribers.get(subscriber);
-                        c.usedSize -= recs.size();
+                    checkSubscriber(subscriber);
+                    for (MessageAckRecord rec : recs) {
+                        acked += ackLocked(subscriber, rec.getBlockId(), rec.getBlockIndex(),
+                                rec.getBlockIndex());
                     }
-
                 } finally {
                     ackLock.unlock();
                 }
+                flushJournal();
+                acked(subscriber, acked);
+                return acked;
             } else
                 throw new LockTimeoutException("ACK-CACHE-LOCK",
                         "Timeout trying to acquire lock for acking.");
-        } catch (LockTimeoutException e) {
+        } catch (LockTimeoutException | MessageQueueException e) {
             throw e;
         } catch (Exception e) {
             LogUtils.stacktrace(getClass(), e);
@@ -265,79 +312,35 @@ public class BlockingAckCache<M> extends AckCache<M> {
     }
 
     /**
-     * Add the {@link MessageAckRecord} to ack cache corresponding to the
-     * subscriber. This corresponds to adding the message ack record to the
-     * cache and incrementing the count for the corresponding
-     * {@link MessageBlock} in the blockMap.
-     *
-     * @param subscriber
-     *            the subscriber name
-     * @param rec
-     *            the {@link MessageAckRecord} to be added to the cache
-     * @param updateBlockMap
-     *            whether the blockMap needs to be updated (new message = true,
-     *            resend message = false)
-     * @throws MessageQueueException
-     *             the message queue exception
-     */
-    private void addLocked(String subscriber, MessageAckRecord rec, boolean updateBlockMap)
-            throws MessageQueueException {
-        Cache<String, MessageAckRecord> cache = ackCaches.get(subscriber);
-        if (cache == null)
-            throw new MessageQueueException("No subscriber registered with ID. [id=" + subscriber
-                    + "]");
-        cache.put(rec.getMessageId(), rec);
-        // update the blockMap only if the flag is true (only for new messages)
-        if (updateBlockMap) {
-            StructMessageBlockAcks ba = blockMap.get(rec.getBlockId());
-            if (ba == null) {
-                ba = new StructMessageBlockAcks();
-                ba.blockId = rec.getBlockId();
-                blockMap.put(ba.blockId, ba);
-            }
-            ba.count++;
-            ba.timestamp = System.currentTimeMillis();
-        }
-        incrementCounter(Constants.MONITOR_COUNTER_ADDS, 1);
-    }
-
-    /**
-     * Update the {@link MessageAckRecord} with the information from the message
-     * object and add the {@link MessageAckRecord} to ack cache corresponding to
-     * the subscriber. This corresponds to adding the message ack record to the
-     * cache and incrementing the count for the corresponding
-     * {@link MessageBlock} in the blockMap.
+     * Ack the range of messages in the specified block. Only the pending bits
+     * are cleared from the tracker, O(bitmap words in the range).
      * 
-     * @see com.wookler.server.river.AckCache#add(java.lang.String,
-     *      com.wookler.server.river.Message)
+     * @see com.wookler.server.river.AckCache#ack(java.lang.String,
+     *      java.lang.String, long, long)
      */
     @Override
-    public void add(String subscriber, Message<M> message, MessageAckRecord rec, int resendCount)
+    public int ack(String subscriber, String blockid, long fromIndex, long toIndex)
             throws MessageQueueException, LockTimeoutException {
         Preconditions.checkArgument(!StringUtils.isEmpty(subscriber));
-        Preconditions.checkArgument(message != null);
-        Preconditions.checkArgument(rec != null);
+        Preconditions.checkArgument(!StringUtils.isEmpty(blockid));
+        Preconditions.checkArgument(fromIndex >= 0 && toIndex >= fromIndex);
         try {
             if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                int acked = 0;
                 try {
-                    rec.setAcked(AckCacheStructs.AckState.USED);
-                    rec.setBlockId(message.header().blockid());
-                    rec.setBlockIndex(message.header().blockindex());
-                    rec.setMessageId(message.header().id());
-                    rec.setSendTimestamp(message.header().sendtime());
-                    rec.setSubscriber(subscriber);
-                    boolean updateBlockMap = true;
-                    if (resendCount == 1) {
-                        updateBlockMap = false;
-                    }
-                    addLocked(subscriber, rec, updateBlockMap);
+                    checkSubscriber(subscriber);
+                    acked = ackLocked(subscriber, blockid, fromIndex, toIndex);
+                    incrementCounter(Constants.MONITOR_COUNTER_ACKS, acked);
                 } finally {
                     ackLock.unlock();
                 }
+                flushJournal();
+                acked(subscriber, acked);
+                return acked;
             } else
                 throw new LockTimeoutException("ACK-CACHE-LOCK",
                         "Timeout trying to acquire lock for acking.");
-        } catch (LockTimeoutException e) {
+        } catch (LockTimeoutException | MessageQueueException e) {
             throw e;
         } catch (Exception e) {
             LogUtils.stacktrace(getClass(), e);
@@ -346,12 +349,28 @@ public class BlockingAckCache<M> extends AckCache<M> {
     }
 
     /**
-     * For each message in the list, update the {@link MessageAckRecord} handles
-     * with the information from the message object and add the
-     * {@link MessageAckRecord} handles to ack cache corresponding to the
-     * subscriber. This corresponds to adding the message ack records to the
-     * cache and incrementing the counts for the corresponding
-     * {@link MessageBlock} in the blockMap.
+     * Add the message to the ack cache of the subscriber.
+     * 
+     * @see com.wookler.server.river.AckCache#add(java.lang.String,
+     *      com.wookler.server.river.Message)
+     */
+    @Override
+    public void add(String subscriber, Message<M> message, MessageAckRecord rec, int resendCount)
+            throws MessageQueueException, LockTimeoutException {
+        Preconditions.checkArgument(message != null);
+        Preconditions.checkArgument(rec != null);
+        add(subscriber, Collections.singletonList(message), Collections.singletonList(rec),
+                resendCount);
+    }
+
+    /**
+     * Add the messages to the ack cache of the subscriber. The first
+     * resendCount messages are resent messages, which have been claimed (and
+     * their timeouts scheduled) by {@link #getMessagesForResend(String, int)}.
+     * New messages are marked pending in the ack tracker and the timeout of
+     * each contiguous range of new messages is scheduled. Messages that are no
+     * longer pending or already in flight do not use ack cache space. The
+     * records are returned to the free pool.
      * 
      * @see com.wookler.server.river.AckCache#add(java.lang.String,
      *      java.util.List)
@@ -367,14 +386,14 @@ public class BlockingAckCache<M> extends AckCache<M> {
         try {
             if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
                 try {
-                    int ii = -1;
-                    int r = resendCount;
-                    // In the messages list, the first r messages correspond to
-                    // the resend messages, remaining (size - r) messages
-                    // correspond to new messages
-                    for (ii = 0; ii < messages.size(); ii++) {
-                        Message<M> message = messages.get(ii);
-                        MessageAckRecord rec = recs.get(ii);
+                    checkSubscriber(subscriber);
+                    StructSubscriberConfig c = subscribers.get(subscriber);
+                    long deadline = System.currentTimeMillis() + c.ackTimeout;
+                    MessageAckRange range = null;
+                    Iterator<MessageAckRecord> riter = recs.iterator();
+                    int ii = 0;
+                    for (Message<M> message : messages) {
+                        MessageAckRecord rec = riter.next();
                         if (rec.getAcked() != AckCacheStructs.AckState.FREE) {
                             throw new MessageQueueException("Ack state is not free. Record: "
                                     + rec.toString());
@@ -385,30 +404,52 @@ public class BlockingAckCache<M> extends AckCache<M> {
                         rec.setMessageId(message.header().id());
                         rec.setSendTimestamp(message.header().sendtime());
                         rec.setSubscriber(subscriber);
-                        // blockMap should be updated with the count only for
-                        // new messages that are received. If the messages are
-                        // being
-                        // resent, the the blockMap already holds the count.
-                        boolean updateBlockMap = true;
-                        if (r > 0) {
-                            updateBlockMap = false;
+
+                        boolean inflight = false;
+                        boolean schedule = false;
+                        if (ii < resendCount) {
+                            // resent messages are already tracked, scheduled
+                            // and journaled as pending.
+                            inflight = tracker.isPending(subscriber, rec.getBlockId(),
+                                    rec.getBlockIndex());
+                        } else if (tracker.pending(subscriber, rec.getBlockId(),
+                                rec.getBlockIndex())) {
+                            inflight = schedule = true;
+                        } else {
+                            // message read again while waiting for resend.
+                            inflight = schedule = (resends.ack(subscriber, rec.getBlockId(),
+                                    rec.getBlockIndex()));
                         }
-                        addLocked(subscriber, rec, updateBlockMap);
-                        // decrement the resend count after each message is
-                        // added
-                        r--;
-                    }
-                    if (ii < recs.size()) {
-                        ReusableObjectFactory<MessageAckRecord> fo = freeObjects.get(subscriber);
-                        for (int jj = ii; jj < recs.size(); jj++) {
-                            if (fo != null) {
-                                fo.free(recs.get(jj));
+                        if (!inflight)
+                            c.usedSize--;
+                        if (schedule) {
+                            if (range != null && range.blockId.equals(rec.getBlockId())
+                                    && range.toIndex + 1 == rec.getBlockIndex()) {
+                                range.toIndex++;
+                            } else {
+                                if (range != null) {
+                                    journalPending(range);
+                                    timer.schedule(range, deadline);
+                                }
+                                range = new MessageAckRange(subscriber, rec.getBlockId(),
+                                        rec.getBlockIndex(), rec.getBlockIndex());
                             }
                         }
+                        ii++;
                     }
+                    if (range != null) {
+                        journalPending(range);
+                        timer.schedule(range, deadline);
+                    }
+                    // release the records that were not used.
+                    c.usedSize -= (recs.size() - messages.size());
+                    free(subscriber, recs);
+                    incrementCounter(Constants.MONITOR_COUNTER_ADDS, messages.size());
                 } finally {
                     ackLock.unlock();
                 }
+                flushJournal();
+                delivered(subscriber);
             } else
                 throw new LockTimeoutException("ACK-CACHE-LOCK",
                         "Timeout trying to acquire lock for acking.");
@@ -420,6 +461,15 @@ public class BlockingAckCache<M> extends AckCache<M> {
         }
     }
 
+    private void free(String subscriber, List<MessageAckRecord> recs) {
+        ReusableObjectFactory<MessageAckRecord> fo = freeObjects.get(subscriber);
+        for (MessageAckRecord rec : recs) {
+            rec.clear();
+        }
+        if (fo != null)
+            fo.free(recs);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -428,17 +478,14 @@ public class BlockingAckCache<M> extends AckCache<M> {
      */
     @Override
     public boolean hasMessagesForResend(String subscriber) throws MessageQueueException {
-        if (resendCaches.containsKey(subscriber)) {
-            LinkedList<MessageAckRecord> cache = resendCaches.get(subscriber);
-            if (!cache.isEmpty()) {
-                return true;
-            }
-        }
-        return false;
+        ArrayDeque<MessageAckRange> cache = resendCaches.get(subscriber);
+        return (cache != null && !cache.isEmpty());
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Claim the messages waiting for resend and read them from the queue. The
+     * timeouts of the claimed messages are scheduled when they are claimed, so
+     * messages that fail to be resent time out again.
      * 
      * @see
      * com.wookler.server.river.AckCache#getMessagesForResend(java.lang.String)
@@ -447,58 +494,34 @@ public class BlockingAckCache<M> extends AckCache<M> {
     public List<Message<M>> getMessagesForResend(String subscriber, int batchSize)
             throws MessageQueueException, LockTimeoutException {
         try {
-            if (resendCaches.containsKey(subscriber)) {
-                List<MessageAckRecord> records = null;
-                LinkedList<MessageAckRecord> cache = resendCaches.get(subscriber);
-                if (!cache.isEmpty()) {
-                    if (resendLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            ArrayDeque<MessageAckRange> cache = resendCaches.get(subscriber);
+            if (cache == null || cache.isEmpty())
+                return null;
+            List<MessageAckRange> claimed = new ArrayList<>();
+            if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                try {
+                    if (resendLock.tryLock(AckCache.Constants.LOCK_TIMEOUT,
+                            TimeUnit.MILLISECONDS)) {
                         try {
-                            int s = batchSize;
-                            if (s > cache.size()) {
-                                s = cache.size();
-                            }
-                            if (s > 0) {
-                                records = new LinkedList<>();
-                                for (int ii = 0; ii < s; ii++) {
-                                    MessageAckRecord r = cache.pop();
-                                    records.add(r);
-                                }
-                            }
-
-                            if (records != null && !records.isEmpty()) {
-                                HashMap<String, LinkedList<MessageAckRecord>> rMap = new HashMap<>();
-                                for (MessageAckRecord rec : records) {
-                                    LinkedList<MessageAckRecord> l = null;
-                                    if (rMap.containsKey(rec.getBlockId())) {
-                                        l = rMap.get(rec.getBlockId());
-                                    } else {
-                                        l = new LinkedList<>();
-                                        rMap.put(rec.getBlockId(), l);
-                                    }
-                                    l.add(rec);
-                                }
-                                List<Message<M>> messages = new LinkedList<>();
-                                for (String b : rMap.keySet()) {
-                                    LinkedList<MessageAckRecord> l = rMap.get(b);
-                                    List<Message<M>> ms = queue.readForResend(
-                                            l.get(0).getBlockId(), l);
-                                    if (!ms.isEmpty()) {
-                                        messages.addAll(ms);
-                                    }
-                                }
-                                if (!messages.isEmpty()) {
-                                    incrementCounter(Constants.MONITOR_COUNTER_RESEND,
-                                            messages.size());
-                                    return messages;
-                                }
-                            }
+                            claim(resends, cache, batchSize, claimed);
                         } finally {
                             resendLock.unlock();
                         }
                     }
+                    long deadline = System.currentTimeMillis()
+                            + subscribers.get(subscriber).ackTimeout;
+                    for (MessageAckRange range : claimed) {
+                        timer.schedule(range, deadline);
+                    }
+                } finally {
+                    ackLock.unlock();
                 }
-            }
-            return null;
+            } else
+                throw new LockTimeoutException("ACK-CACHE-LOCK",
+                        "Timeout trying to acquire lock for resend.");
+            return resend(claimed);
+        } catch (LockTimeoutException e) {
+            throw e;
         } catch (Exception e) {
             LogUtils.stacktrace(getClass(), e);
             throw new MessageQueueException("Error getting messages for resend.", e);
@@ -512,13 +535,58 @@ public class BlockingAckCache<M> extends AckCache<M> {
      */
     @Override
     public boolean hasPendingAcks(String blockid) {
-        if (blockMap.containsKey(blockid)) {
-            StructMessageBlockAcks b = blockMap.get(blockid);
-            if (b != null) {
-                return b.count > 0;
-            }
+        return tracker.hasPendingAcks(blockid);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.wookler.server.river.AckCache#unacked(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    public List<AckTracker.Range> unacked(String subscriber, String blockid)
+            throws MessageQueueException, LockTimeoutException {
+        try {
+            if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                try {
+                    return tracker.unacked(subscriber, blockid);
+                } finally {
+                    ackLock.unlock();
+                }
+            } else
+                throw new LockTimeoutException("ACK-CACHE-LOCK",
+                        "Timeout trying to acquire lock for acking.");
+        } catch (LockTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            LogUtils.stacktrace(getClass(), e);
+            throw new MessageQueueException("Error getting unacked messages.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.wookler.server.river.AckCache#lowWatermark(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    public long lowWatermark(String subscriber, String blockid) throws MessageQueueException,
+            LockTimeoutException {
+        try {
+            if (ackLock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                try {
+                    return tracker.lowWatermark(subscriber, blockid);
+                } finally {
+                    ackLock.unlock();
+                }
+            } else
+                throw new LockTimeoutException("ACK-CACHE-LOCK",
+                        "Timeout trying to acquire lock for acking.");
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while getting the ack watermark.", e);
         }
-        return false;
     }
 
     /*
@@ -530,77 +598,22 @@ public class BlockingAckCache<M> extends AckCache<M> {
      */
     @Override
     public AckCache<M> addSubscriber(Subscriber<M> subscriber) {
+        if (resendCaches.containsKey(subscriber.name)) {
+            LogUtils.warn(getClass(), "Subscriber already registered, ack state retained. "
+                    + "[subscriber=" + subscriber.name + "]");
+            return this;
+        }
         super.addSubscriber(subscriber);
-        StructSubscriberConfig c = subscribers.get(subscriber.name);
-        // configure the removal listener on the ack cache
-        RemovalListener<String, MessageAckRecord> evictionListener = new RemovalListener<String, MessageAckRecord>() {
-            public void onRemoval(RemovalNotification<String, MessageAckRecord> kv) {
-                /**
-                 * IMPORTANT : The record that is being evicted from the
-                 * ackCache indicates that the timeout happened before the ack
-                 * was received. So in order for the messages to be resent at a
-                 * later point of time, we need to add the MessageAckRecord to
-                 * the resendCache. A deep copy of the MessageAckRecord is made,
-                 * since the MessageAckRecord that is obtained from the ackCache
-                 * is part of ReusableObjectFactory. So once the record is
-                 * evicted from the ackCache, it is returned back to the pool to
-                 * be used later. So a deep copy is made not to lose the info
-                 * pertaining to unacked messages. While the message is being
-                 * evicted from the ackCache, the blockMap is not decremented
-                 * for count. This is done because the blockMap count is used to
-                 * decide if a block is a candidate for gc. The block which has
-                 * pending unacked messages should never be GCed. At the time of
-                 * add(), the block count is not incremented for messages that
-                 * are being resent (if we do not take care of this, it will
-                 * result in double counting, and the blocks will never be GCed.
-                 * On the other hand, if we decrement the count here, then we
-                 * would GC a block prematurely).
-                 **/
-                if (kv.wasEvicted() && kv.getValue().getAcked() == AckCacheStructs.AckState.USED) {
-                    LinkedList<MessageAckRecord> records = resendCaches.get(kv.getValue()
-                            .getSubscriber());
-                    if (records != null) {
-                        try {
-                            if (resendLock.tryLock(AckCache.Constants.LOCK_TIMEOUT,
-                                    TimeUnit.MILLISECONDS)) {
-                                try {
-                                    // deep copy
-                                    records.add(new MessageAckRecord(kv.getValue()));
-                                } finally {
-                                    resendLock.unlock();
-                                }
-                            } else {
-                                LogUtils.error(getClass(), "Timeout getting resend cache lock.");
-                            }
-                        } catch (Exception e) {
-                            LogUtils.stacktrace(getClass(), e);
-                            throw new RuntimeException("Error handling cache eviction", e);
-                        }
-                    }
-                    // return the MessageAckRecord back to the pool for reuse
-                    ReusableObjectFactory<MessageAckRecord> fo = freeObjects.get(kv.getValue()
-                            .getSubscriber());
-                    if (fo != null) {
-                        MessageAckRecord rec = kv.getValue();
-                        rec.clear();
-                        fo.free(rec);
-                    }
-                }
-            }
-        };
-        // create the cache instance and add it to ack cache map
-        Cache<String, MessageAckRecord> cache = CacheBuilder.newBuilder().maximumSize(c.maxSize)
-                .expireAfterWrite(c.ackTimeout, TimeUnit.MILLISECONDS)
-                .removalListener(evictionListener).build();
-        ackCaches.put(subscriber.name(), cache);
-
-        // configure the resend list for this subscriber and add it to resend
+
+        // configure the resend queue for this subscriber and add it to resend
         // caches map
-        LinkedList<MessageAckRecord> resend = new LinkedList<>();
+        ArrayDeque<MessageAckRange> resend = new ArrayDeque<>();
         resendCaches.put(subscriber.name, resend);
+        restore(subscriber.name, resend);
 
-        // allocate some free objects for storing message ack records for this
-        // subscriber and update the freeObjects map
+        // allocate some free objects for carrying the message ack records for
+        // this subscriber and update the freeObjects map
+        StructSubscriberConfig c = subscribers.get(subscriber.name);
         ReusableObjectFactory<MessageAckRecord> factory = new ReusableObjectFactory<MessageAckRecord>(
                 (int) c.maxSize, new AckCacheStructs.ReusableAckRecord());
         freeObjects.put(subscriber.name, factory);
@@ -608,6 +621,28 @@ public class BlockingAckCache<M> extends AckCache<M> {
         return this;
     }
 
+    /**
+     * Restore the messages pending ack at the last shutdown, replayed from the
+     * ack journal. The messages are queued for resend and marked pending in
+     * the ack tracker, so that the blocks are not GC'd.
+     *
+     * @param subscriber
+     *            the subscriber name
+     * @param resend
+     *            the resend queue of the subscriber
+     */
+    private void restore(String subscriber, ArrayDeque<MessageAckRange> resend) {
+        if (replayed == null)
+            return;
+        List<MessageAckRecord> recs = replayed.remove(subscriber);
+        if (recs == null || recs.isEmpty())
+            return;
+        int count = restore(tracker, resends, recs, resend);
+        LogUtils.debug(getClass(), String.format(
+                "Restored messages pending ack for resend. [subscriber=%s][count=%d]",
+                subscriber, count));
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -616,7 +651,7 @@ public class BlockingAckCache<M> extends AckCache<M> {
      */
     @Override
     public List<MessageAckRecord> allocateAckCache(String subscriber, int count) {
-        if (ackCaches.containsKey(subscriber)) {
+        if (resendCaches.containsKey(subscriber)) {
             StructSubscriberConfig c = subscribers.get(subscriber);
             int rem = c.maxSize - c.usedSize;
             if (rem > count)
@@ -637,7 +672,7 @@ public class BlockingAckCache<M> extends AckCache<M> {
      */
     @Override
     public int canAllocateAckCache(String subscriber, int count) {
-        if (ackCaches.containsKey(subscriber)) {
+        if (resendCaches.containsKey(subscriber)) {
             StructSubscriberConfig c = subscribers.get(subscriber);
             int rem = c.maxSize - c.usedSize;
             if (rem > count)
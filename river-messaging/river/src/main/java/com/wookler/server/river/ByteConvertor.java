@@ -19,9 +19,17 @@
 package com.wookler.server.river;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import com.wookler.server.common.utils.LogUtils;
 
+import net.openhft.lang.io.RandomDataOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
 /**
  * Abstract base class to be implemented to handle message records
  * transformations. Data transformations are in the byte format to be saved into
@@ -34,6 +42,21 @@ import com.wookler.server.common.utils.LogUtils;
  * @created 12/08/14
  */
 public abstract class ByteConvertor<M> {
+    /** MessageProto header field tag */
+    private static final int TAG_HEADER = (MessageBuf.MessageProto.HEADER_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    /** MessageProto data field tag */
+    private static final int TAG_DATA = (MessageBuf.MessageProto.DATA_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    /** HeaderProto id field tag */
+    private static final int TAG_HEADER_ID = (MessageBuf.HeaderProto.ID_FIELD_NUMBER << 3)
+            | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    /** HeaderProto timestamp field tag */
+    private static final int TAG_HEADER_TIMESTAMP =
+            (MessageBuf.HeaderProto.TIMESTAMP_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+
+    /** per thread buffer, used to stage records read from a record view */
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
 
     /**
      * Exception type escalated as part of conversion of message into byte array
@@ -96,6 +119,126 @@ public abstract class ByteConvertor<M> {
         }
     }
 
+    /**
+     * Read the record from a leased record view and transform into the desired
+     * message format. The record is staged in a reusable per thread buffer and
+     * parsed in place, the payload is handed to
+     * {@link #message(byte[], int, int)} without intermediate copies.
+     *
+     * @param view
+     *            - Leased record view.
+     * @return - Message
+     * @throws ConversionException
+     *             the conversion exception
+     */
+    public Message<M> read(RecordView view) throws ConversionException {
+        int size = view.size();
+        byte[] buff = buffers.get();
+        if (buff == null || buff.length < size) {
+            buff = new byte[size];
+            buffers.set(buff);
+        }
+        view.read(0, buff, 0, size);
+
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(buff, 0, size);
+            Message<M> message = new Message<M>();
+            boolean header = false;
+            M d = null;
+            while (true) {
+                int tag = input.readTag();
+                if (tag == 0)
+                    break;
+                if (tag == TAG_HEADER) {
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    header(input, message);
+                    input.popLimit(limit);
+                    header = true;
+                } else if (tag == TAG_DATA) {
+                    int length = input.readRawVarint32();
+                    int offset = input.getTotalBytesRead();
+                    if (length < 0 || offset + length > size)
+                        throw new ConversionException(String.format(
+                                "Invalid message. Truncated data. [length=%d][size=%d]",
+                                length, size));
+                    d = message(buff, offset, length);
+                    input.skipRawBytes(length);
+                } else if (!input.skipField(tag)) {
+                    break;
+                }
+            }
+            if (!header)
+                throw new ConversionException("Invalid message. Message header not found.");
+            if (d == null)
+                throw new ConversionException(
+                        "Invalid message. Data serializer returned null message.");
+            message.data(d);
+
+            return message;
+        } catch (IOException e) {
+            throw new ConversionException("Error de-serializing to ProtoBuf.", e);
+        }
+    }
+
+    /**
+     * Read the message ID from the record bytes, only the message header is
+     * parsed.
+     *
+     * @param data
+     *            - Record bytes.
+     * @return - Message ID, NULL if the record has no readable ID.
+     */
+    public static String id(byte[] data) {
+        try {
+            CodedInputStream input = CodedInputStream.newInstance(data);
+            while (true) {
+                int tag = input.readTag();
+                if (tag == 0)
+                    return null;
+                if (tag == TAG_HEADER) {
+                    input.pushLimit(input.readRawVarint32());
+                    while (true) {
+                        tag = input.readTag();
+                        if (tag == 0)
+                            return null;
+                        if (tag == TAG_HEADER_ID)
+                            return input.readString();
+                        if (!input.skipField(tag))
+                            return null;
+                    }
+                } else if (!input.skipField(tag)) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse the message header fields into the message.
+     *
+     * @param input
+     *            - Input limited to the header bytes.
+     * @param message
+     *            - Message to update.
+     * @throws IOException
+     */
+    private void header(CodedInputStream input, Message<M> message) throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0)
+                break;
+            if (tag == TAG_HEADER_ID) {
+                message.header().id(input.readString());
+            } else if (tag == TAG_HEADER_TIMESTAMP) {
+                message.header().timestamp(input.readUInt64());
+            } else if (!input.skipField(tag)) {
+                break;
+            }
+        }
+    }
+
     /**
      * Get byte transformed records to be persisted in the queues.
      *
@@ -122,6 +265,187 @@ public abstract class ByteConvertor<M> {
         return ser;
     }
 
+    /**
+     * Get a record encoder for the message. The encoder writes the message in
+     * the same wire format as {@link #write(Message)}, directly into the block
+     * excerpt, the serialized payload is the only intermediate buffer.
+     *
+     * @param message
+     *            - Message Object
+     * @return - Record encoder.
+     * @throws ConversionException
+     *             the conversion exception
+     */
+    public RecordEncoder encoder(Message<M> message) throws ConversionException {
+        return encoder(message, null);
+    }
+
+    /**
+     * Get a record encoder for the message, storing the specified attributes
+     * beside the message payload.
+     *
+     * @param message
+     *            - Message Object
+     * @param attributes
+     *            - Record attributes, can be NULL.
+     * @return - Record encoder.
+     * @throws ConversionException
+     *             the conversion exception
+     */
+    public RecordEncoder encoder(Message<M> message, RecordAttributes attributes)
+            throws ConversionException {
+        byte[] data = data(message.data());
+        if (data == null)
+            throw new ConversionException("Invalid Message records. Data serializer returned null.");
+        if (message.header().id() == null)
+            throw new ConversionException("Invalid Message header. Message ID is NULL.");
+        if (data.length > 64 * 1024) {
+            LogUtils.debug(getClass(), "Data length exceeded [" + message.data() + "]");
+        }
+        return new MessageEncoder(message.header().id(), message.header().sequence(), message
+                .header().timestamp(), data, attributes);
+    }
+
+    /**
+     * Record encoder writing the MessageProto wire format. Sizes are computed
+     * up front, so the record can be reserved in the excerpt before encoding.
+     */
+    private static final class MessageEncoder implements RecordEncoder {
+        /** message id */
+        private final String id;
+        /** queue sequence of the message id */
+        private final long sequence;
+        /** encoded (UTF-8) length of the message id */
+        private final int idLength;
+        /** message timestamp */
+        private final long timestamp;
+        /** serialized message payload */
+        private final byte[] data;
+        /** encoded size of the header */
+        private final int headerSize;
+        /** encoded size of the message */
+        private final int size;
+        /** record attributes */
+        private final RecordAttributes attributes;
+
+        private MessageEncoder(String id, long sequence, long timestamp, byte[] data,
+                RecordAttributes attributes) {
+            this.id = id;
+            this.sequence = sequence;
+            this.attributes = attributes;
+            this.idLength = utf8Length(id);
+            this.timestamp = timestamp;
+            this.data = data;
+            this.headerSize = CodedOutputStream
+                    .computeTagSize(MessageBuf.HeaderProto.ID_FIELD_NUMBER)
+                    + CodedOutputStream.computeRawVarint32Size(idLength) + idLength
+                    + CodedOutputStream.computeUInt64Size(
+                            MessageBuf.HeaderProto.TIMESTAMP_FIELD_NUMBER, timestamp);
+            this.size = CodedOutputStream
+                    .computeTagSize(MessageBuf.MessageProto.HEADER_FIELD_NUMBER)
+                    + CodedOutputStream.computeRawVarint32Size(headerSize) + headerSize
+                    + CodedOutputStream.computeTagSize(MessageBuf.MessageProto.DATA_FIELD_NUMBER)
+                    + CodedOutputStream.computeRawVarint32Size(data.length) + data.length;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void encode(RandomDataOutput out) {
+            RecordFormat.writeVarint(out, TAG_HEADER);
+            RecordFormat.writeVarint(out, headerSize);
+            RecordFormat.writeVarint(out, TAG_HEADER_ID);
+            RecordFormat.writeVarint(out, idLength);
+            writeUtf8(out, id);
+            RecordFormat.writeVarint(out, TAG_HEADER_TIMESTAMP);
+            RecordFormat.writeVarint(out, timestamp);
+            RecordFormat.writeVarint(out, TAG_DATA);
+            RecordFormat.writeVarint(out, data.length);
+            out.write(data);
+        }
+
+        @Override
+        public RecordAttributes attributes() {
+            return attributes;
+        }
+
+        @Override
+        public long idSequence() {
+            return sequence;
+        }
+
+        @Override
+        public long idTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the UTF-8 encoded length of the string.
+         *
+         * @param value
+         *            - String value.
+         * @return - Encoded length.
+         */
+        private static int utf8Length(String value) {
+            int length = 0;
+            for (int ii = 0; ii < value.length(); ii++) {
+                char c = value.charAt(ii);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && ii + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(ii + 1))) {
+                    length += 4;
+                    ii++;
+                } else if (Character.isSurrogate(c)) {
+                    length++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Write the string UTF-8 encoded, without an intermediate byte array.
+         *
+         * @param out
+         *            - Output to write to.
+         * @param value
+         *            - String value.
+         */
+        private static void writeUtf8(RandomDataOutput out, String value) {
+            for (int ii = 0; ii < value.length(); ii++) {
+                char c = value.charAt(ii);
+                if (c < 0x80) {
+                    out.writeByte(c);
+                } else if (c < 0x800) {
+                    out.writeByte(0xC0 | (c >> 6));
+                    out.writeByte(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && ii + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(ii + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++ii));
+                    out.writeByte(0xF0 | (cp >> 18));
+                    out.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                    out.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                    out.writeByte(0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogates are encoded as '?', the same as
+                    // String.getBytes().
+                    out.writeByte('?');
+                } else {
+                    out.writeByte(0xE0 | (c >> 12));
+                    out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                    out.writeByte(0x80 | (c & 0x3F));
+                }
+            }
+        }
+    }
+
     /**
      * Abstract method to serialize the message records to byte format, for
      * persistence into the queue.
@@ -144,4 +468,25 @@ public abstract class ByteConvertor<M> {
      *             the conversion exception
      */
     protected abstract M message(byte[] data) throws ConversionException;
+
+    /**
+     * De-serialize the message from a region of the specified buffer. The
+     * buffer is reused once this call returns, so implementations must not
+     * hold a reference to it. The default implementation copies the region and
+     * calls {@link #message(byte[])}, implementations can override this to
+     * de-serialize in place.
+     *
+     * @param data
+     *            - Buffer containing the message bytes.
+     * @param offset
+     *            - Start offset of the message bytes.
+     * @param length
+     *            - Length of the message bytes.
+     * @return - Converted message.
+     * @throws ConversionException
+     *             the conversion exception
+     */
+    protected M message(byte[] data, int offset, int length) throws ConversionException {
+        return message(Arrays.copyOfRange(data, offset, offset + length));
+    }
 }
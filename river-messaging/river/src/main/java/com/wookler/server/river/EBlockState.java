@@ -52,7 +52,11 @@ public enum EBlockState {
     /**
      * Block hasn't been used yet.
      */
-    Unsued;
+    Unsued,
+    /**
+     * Existing block is being recovered in the background.
+     */
+    Recovering;
 
     /**
      * Check if the specified block is available for read.
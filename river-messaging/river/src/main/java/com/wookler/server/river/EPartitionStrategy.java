@@ -0,0 +1,57 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+/**
+ * Enumeration of strategies used to select the store partition a published
+ * record is written to.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public enum EPartitionStrategy {
+    /**
+     * Partition is selected by the hash of the message key. Messages with the
+     * same key are written to the same partition and are read in publish
+     * order. Messages published without a key fall back to thread affinity.
+     */
+    KEY,
+    /**
+     * Partition is selected by the publishing thread.
+     */
+    THREAD;
+
+    /**
+     * Select the partition for the specified key.
+     *
+     * @param strategy
+     *            - Partition strategy.
+     * @param key
+     *            - Message key, can be NULL.
+     * @param partitions
+     *            - Number of partitions.
+     * @return - Selected partition index.
+     */
+    public static int select(EPartitionStrategy strategy, Object key, int partitions) {
+        if (strategy == KEY && key != null) {
+            return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+        }
+        return (int) (Thread.currentThread().getId() % partitions);
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import com.wookler.server.common.*;
+import com.wookler.server.common.config.CParam;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigPath;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.common.utils.Monitoring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Elastic Executor executes the registered {@link Processor} chain on a pool
+ * of worker threads (same as the {@link PooledExecutor}), whose size is scaled
+ * between the configured min and max bounds based on the subscriber lag and
+ * the worker utilization.
+ * <ul>
+ * <li>A worker is added if the subscriber lag (messages committed but not yet
+ * read) is above the high watermark and the workers are busy above the
+ * utilization high watermark.</li>
+ * <li>A worker is retired if the lag is below the low watermark and the worker
+ * utilization is below the utilization low watermark. Retired workers exit
+ * after completing the batch in hand.</li>
+ * </ul>
+ * The scaling condition has to hold for the configured number of consecutive
+ * checks, and no scaling is done within the cool down period after a scaling
+ * event, to prevent the pool from flapping. Pool size and lag are published as
+ * gauges, scaling events as counters.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @param <M>
+ *            the generic type
+ * @created 16/10/26
+ */
+public class ElasticExecutor<M> extends AbstractExecutor<M> {
+    private static final Logger log = LoggerFactory.getLogger(ElasticExecutor.class);
+
+    public static final class Constants {
+        public static final String MONITOR_NAMESPACE = "river.counters.executor";
+        public static final String MONITOR_COUNTER_POOLSIZE = "pool.size";
+        public static final String MONITOR_COUNTER_LAG = "lag";
+        public static final String MONITOR_COUNTER_SCALEUP = "scale.up";
+        public static final String MONITOR_COUNTER_SCALEDOWN = "scale.down";
+    }
+
+    /** config param : min number of worker threads, default = 1 */
+    @CParam(name = "executor.pool.min", required = false)
+    private int minPoolSize = 1;
+    /** config param : max number of worker threads, default = cores */
+    @CParam(name = "executor.pool.max", required = false)
+    private int maxPoolSize = Runtime.getRuntime().availableProcessors();
+    /** config param : lag (messages) above which the pool is scaled up */
+    @CParam(name = "executor.scale.lag.high", required = false)
+    private long lagHigh = 1000;
+    /** config param : lag (messages) below which the pool is scaled down */
+    @CParam(name = "executor.scale.lag.low", required = false)
+    private long lagLow = 10;
+    /** config param : worker utilization (0-1) required to scale up */
+    @CParam(name = "executor.scale.utilization.high", required = false)
+    private double utilizationHigh = 0.75;
+    /** config param : worker utilization (0-1) below which to scale down */
+    @CParam(name = "executor.scale.utilization.low", required = false)
+    private double utilizationLow = 0.25;
+    /** config param : interval between scaling checks (in milliseconds) */
+    @CParam(name = "executor.scale.interval", required = false)
+    private long scaleInterval = 1000;
+    /** config param : consecutive checks required before scaling */
+    @CParam(name = "executor.scale.checks", required = false)
+    private int scaleChecks = 3;
+    /** config param : min time between scaling events (in milliseconds) */
+    @CParam(name = "executor.scale.cooldown", required = false)
+    private long scaleCooldown = 5000;
+
+    /** active workers */
+    private List<Worker> workers = new ArrayList<Worker>();
+    /** retired workers, joined on dispose */
+    private List<Worker> retired = new ArrayList<Worker>();
+    /** thread running the scaling checks */
+    private MonitoredThread scaler = null;
+    /** sequence used to name the worker threads */
+    private AtomicInteger workerIndex = new AtomicInteger();
+    /** time spent by all workers processing batches (in nanoseconds) */
+    private AtomicLong busy = new AtomicLong();
+    /** counters for this executor */
+    private HashMap<String, String[]> counters = new HashMap<String, String[]>();
+
+    /**
+     * Worker thread -- read and process message batches until retired or the
+     * subscriber is stopped.
+     */
+    private final class Worker implements Runnable {
+        /** worker thread */
+        private MonitoredThread thread;
+        /** worker has been retired */
+        private volatile boolean retired = false;
+
+        @Override
+        public void run() {
+            try {
+                while (subscriber().state().getState() == EObjectState.Available
+                        && state.getState() == EProcessState.Running && !retired) {
+                    List<Message<M>> messages = null;
+                    // capture the queue write generation before reading, used
+                    // to wait for new messages if the batch is empty.
+                    long generation = subscriber().queue().generation();
+                    // read the message batch from the queue
+                    messages = read();
+                    try {
+                        if (messages != null && !messages.isEmpty()) {
+                            long startt = System.nanoTime();
+                            try {
+                                execute(messages);
+                            } finally {
+                                busy.addAndGet(System.nanoTime() - startt);
+                            }
+                        } else {
+                            subscriber().queue().await(generation, sleeptime);
+                        }
+                    } catch (InterruptedException ie) {
+                        log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                                .currentThread().getName()));
+                    } catch (NonFatalProcessorException nfe) {
+                        LogUtils.stacktrace(getClass(), nfe, log);
+                        log.error("Non Fatal Error in executing processor.", nfe.getMessage());
+                    }
+                }
+            } catch (MessageQueueException e) {
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message subscriber terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            } catch (ProcessingException e) {
+                exception(e);
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message subscriber terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            }
+        }
+    }
+
+    /**
+     * Start the scaler thread. Workers are started once the subscriber is
+     * available.
+     *
+     * @see com.wookler.server.river.AbstractExecutor#start()
+     */
+    @Override
+    public void start() throws ProcessingException {
+        scaler = new MonitoredThread(this, name + "_SCALER");
+        scaler.start();
+        Monitoring.register(scaler);
+    }
+
+    /**
+     * Run method -- Start the min number of workers and check the subscriber
+     * lag and the worker utilization every scale interval, adding or retiring
+     * workers as required.
+     */
+    @Override
+    public void run() {
+        try {
+            while (subscriber().state().getState() == EObjectState.Initialized) {
+                try {
+                    Thread.sleep(sleeptime);
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                    continue;
+                }
+            }
+            ObjectState.check(subscriber().state(), EObjectState.Available, getClass());
+            log.info(String.format("Message subscriber running. [name=%s]", name()));
+
+            for (int ii = 0; ii < minPoolSize; ii++) {
+                addWorker();
+            }
+
+            int upChecks = 0;
+            int downChecks = 0;
+            long lastScaled = System.currentTimeMillis();
+            long lastCheck = System.nanoTime();
+            long lastBusy = busy.get();
+            while (subscriber().state().getState() == EObjectState.Available
+                    && state.getState() == EProcessState.Running) {
+                try {
+                    Thread.sleep(scaleInterval);
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                    continue;
+                }
+                long now = System.nanoTime();
+                long b = busy.get();
+                int size = poolSize();
+                double utilization = (size > 0 ? (double) (b - lastBusy)
+                        / ((double) (now - lastCheck) * size) : 0);
+                lastCheck = now;
+                lastBusy = b;
+
+                long lag = subscriber().queue().lag(subscriber().name());
+                if (lag < 0)
+                    continue;
+                setCounter(Constants.MONITOR_COUNTER_LAG, lag);
+
+                if (lag > lagHigh && utilization >= utilizationHigh && size < maxPoolSize) {
+                    upChecks++;
+                    downChecks = 0;
+                } else if (lag < lagLow && utilization < utilizationLow && size > minPoolSize) {
+                    downChecks++;
+                    upChecks = 0;
+                } else {
+                    upChecks = 0;
+                    downChecks = 0;
+                }
+
+                if (System.currentTimeMillis() - lastScaled < scaleCooldown)
+                    continue;
+                if (upChecks >= scaleChecks) {
+                    addWorker();
+                    incrementCounter(Constants.MONITOR_COUNTER_SCALEUP, 1);
+                    LogUtils.debug(getClass(), String.format(
+                            "Scaled up executor pool. [name=%s][size=%d][lag=%d][utilization=%.2f]",
+                            name, poolSize(), lag, utilization));
+                } else if (downChecks >= scaleChecks) {
+                    retireWorker();
+                    incrementCounter(Constants.MONITOR_COUNTER_SCALEDOWN, 1);
+                    LogUtils.debug(getClass(), String.format(
+                            "Scaled down executor pool. [name=%s][size=%d][lag=%d][utilization=%.2f]",
+                            name, poolSize(), lag, utilization));
+                } else {
+                    continue;
+                }
+                upChecks = 0;
+                downChecks = 0;
+                lastScaled = System.currentTimeMillis();
+            }
+        } catch (StateException e) {
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber in invalid setState. [name=%s][error=%s]",
+                    name(), e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Get the current number of active workers.
+     *
+     * @return - Pool size.
+     */
+    public int poolSize() {
+        synchronized (workers) {
+            return workers.size();
+        }
+    }
+
+    /**
+     * Start a new worker thread.
+     */
+    private void addWorker() {
+        Worker w = new Worker();
+        w.thread = new MonitoredThread(w, name + "_EXECUTOR_" + workerIndex.getAndIncrement());
+        synchronized (workers) {
+            workers.add(w);
+        }
+        w.thread.start();
+        Monitoring.register(w.thread);
+        setCounter(Constants.MONITOR_COUNTER_POOLSIZE, poolSize());
+    }
+
+    /**
+     * Retire the last started worker. The worker exits once the batch in hand
+     * has been processed.
+     */
+    private void retireWorker() {
+        Worker w = null;
+        synchronized (workers) {
+            if (workers.isEmpty())
+                return;
+            w = workers.remove(workers.size() - 1);
+            retired.add(w);
+        }
+        w.retired = true;
+        setCounter(Constants.MONITOR_COUNTER_POOLSIZE, poolSize());
+    }
+
+    /**
+     * Check if there are pending tasks status' that need to be handled.
+     * Retired workers that have exited are unregistered.
+     *
+     * @throws ProcessingException
+     *             the processing exception
+     */
+    @Override
+    public void check() throws ProcessingException {
+        synchronized (workers) {
+            for (int ii = retired.size() - 1; ii >= 0; ii--) {
+                Worker w = retired.get(ii);
+                if (!w.thread.isAlive()) {
+                    Monitoring.unregister(w.thread);
+                    retired.remove(ii);
+                }
+            }
+        }
+    }
+
+    /**
+     * Configure the executor instance. Sample:
+     * <p/>
+     *
+     * <pre>
+     * {@code
+     *      <executor class="com.wookler.server.river.ElasticExecutor">
+     *          <params>
+     *              <param name="executor.pool.min" value="[optional: min workers, default=1]" />
+     *              <param name="executor.pool.max" value="[optional: max workers, default=cores]" />
+     *              <param name="executor.scale.lag.high" value="[optional: scale up lag, default=1000]" />
+     *              <param name="executor.scale.lag.low" value="[optional: scale down lag, default=10]" />
+     *              <param name="executor.scale.utilization.high" value="[optional: default=0.75]" />
+     *              <param name="executor.scale.utilization.low" value="[optional: default=0.25]" />
+     *              <param name="executor.scale.interval" value="[optional: check interval, default=1000]" />
+     *              <param name="executor.scale.checks" value="[optional: consecutive checks, default=3]" />
+     *              <param name="executor.scale.cooldown" value="[optional: default=5000]" />
+     *          </params>
+     *      </executor>
+     * }
+     * </pre>
+     *
+     * @param config
+     *            - Configuration node for this instance.
+     * @throws ConfigurationException
+     *             the configuration exception
+     */
+    @Override
+    public void configure(ConfigNode config) throws ConfigurationException {
+        try {
+            if (!(config instanceof ConfigPath))
+                throw new ConfigurationException(String.format(
+                        "Invalid config node type. [expected:%s][actual:%s]",
+                        ConfigPath.class.getCanonicalName(), config.getClass().getCanonicalName()));
+            LogUtils.debug(getClass(), ((ConfigPath) config).path());
+            ConfigUtils.parse(config, this);
+            if (minPoolSize <= 0 || maxPoolSize < minPoolSize)
+                throw new ConfigurationException(String.format(
+                        "Invalid executor pool bounds. [min=%d][max=%d]", minPoolSize,
+                        maxPoolSize));
+            if (lagLow > lagHigh || utilizationLow > utilizationHigh)
+                throw new ConfigurationException(String.format(
+                        "Invalid scaling watermarks. [lag=%d-%d][utilization=%.2f-%.2f]", lagLow,
+                        lagHigh, utilizationLow, utilizationHigh));
+            if (scaleInterval <= 0)
+                scaleInterval = sleeptime;
+            registerCounters();
+            LogUtils.debug(getClass(), "Configured Elastic Executor with pool size = "
+                    + minPoolSize + "-" + maxPoolSize + ". [name=" + name + "]");
+            state.setState(EProcessState.Running);
+        } catch (ConfigurationException e) {
+            exception(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Dispose this executor instance.
+     */
+    @Override
+    public void dispose() {
+        lock.writeLock().lock();
+        try {
+            if (state.getState() != EProcessState.Exception)
+                state.setState(EProcessState.Stopped);
+            if (scaler != null) {
+                try {
+                    scaler.join();
+                } catch (InterruptedException e) {
+                    LogUtils.warn(getClass(), e.getLocalizedMessage());
+                }
+                Monitoring.unregister(scaler);
+            }
+            List<Worker> all = new ArrayList<Worker>();
+            synchronized (workers) {
+                all.addAll(workers);
+                all.addAll(retired);
+                workers.clear();
+                retired.clear();
+            }
+            for (Worker w : all) {
+                try {
+                    w.thread.join();
+                } catch (InterruptedException e) {
+                    LogUtils.warn(getClass(), e.getLocalizedMessage());
+                }
+                Monitoring.unregister(w.thread);
+            }
+            if (processors != null) {
+                for (Processor<M> p : processors) {
+                    p.dispose();
+                }
+                processors.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Register the executor counters (pool size, lag and scaling events).
+     */
+    private void registerCounters() {
+        String[] gauges = { Constants.MONITOR_COUNTER_POOLSIZE, Constants.MONITOR_COUNTER_LAG };
+        for (String n : gauges) {
+            AbstractCounter c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name, n,
+                    Gauge.class, AbstractCounter.Mode.PROD);
+            if (c != null) {
+                counters.put(n, new String[] { c.namespace(), c.name() });
+            }
+        }
+        String[] names = { Constants.MONITOR_COUNTER_SCALEUP, Constants.MONITOR_COUNTER_SCALEDOWN };
+        for (String n : names) {
+            AbstractCounter c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name, n,
+                    Count.class, AbstractCounter.Mode.PROD);
+            if (c != null) {
+                counters.put(n, new String[] { c.namespace(), c.name() });
+            }
+        }
+    }
+
+    /**
+     * Set the value of the specified gauge.
+     *
+     * @param name
+     *            - Gauge key.
+     * @param value
+     *            - Gauge value.
+     */
+    private void setCounter(String name, long value) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.set(names[0], names[1], value);
+        }
+    }
+
+    /**
+     * Increment the specified counter.
+     *
+     * @param name
+     *            - Counter key.
+     * @param value
+     *            - Increment by value.
+     */
+    private void incrementCounter(String name, long value) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.increment(names[0], names[1], value);
+        }
+    }
+
+    /**
+     * Gets the min pool size.
+     *
+     * @return the minPoolSize
+     */
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    /**
+     * Sets the min pool size.
+     *
+     * @param minPoolSize
+     *            the minPoolSize to set
+     */
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    /**
+     * Gets the max pool size.
+     *
+     * @return the maxPoolSize
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the max pool size.
+     *
+     * @param maxPoolSize
+     *            the maxPoolSize to set
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Gets the scale up lag.
+     *
+     * @return the lagHigh
+     */
+    public long getLagHigh() {
+        return lagHigh;
+    }
+
+    /**
+     * Sets the scale up lag.
+     *
+     * @param lagHigh
+     *            the lagHigh to set
+     */
+    public void setLagHigh(long lagHigh) {
+        this.lagHigh = lagHigh;
+    }
+
+    /**
+     * Gets the scale down lag.
+     *
+     * @return the lagLow
+     */
+    public long getLagLow() {
+        return lagLow;
+    }
+
+    /**
+     * Sets the scale down lag.
+     *
+     * @param lagLow
+     *            the lagLow to set
+     */
+    public void setLagLow(long lagLow) {
+        this.lagLow = lagLow;
+    }
+
+    /**
+     * Gets the scale up utilization.
+     *
+     * @return the utilizationHigh
+     */
+    public double getUtilizationHigh() {
+        return utilizationHigh;
+    }
+
+    /**
+     * Sets the scale up utilization.
+     *
+     * @param utilizationHigh
+     *            the utilizationHigh to set
+     */
+    public void setUtilizationHigh(double utilizationHigh) {
+        this.utilizationHigh = utilizationHigh;
+    }
+
+    /**
+     * Gets the scale down utilization.
+     *
+     * @return the utilizationLow
+     */
+    public double getUtilizationLow() {
+        return utilizationLow;
+    }
+
+    /**
+     * Sets the scale down utilization.
+     *
+     * @param utilizationLow
+     *            the utilizationLow to set
+     */
+    public void setUtilizationLow(double utilizationLow) {
+        this.utilizationLow = utilizationLow;
+    }
+
+    /**
+     * Gets the scaling check interval.
+     *
+     * @return the scaleInterval
+     */
+    public long getScaleInterval() {
+        return scaleInterval;
+    }
+
+    /**
+     * Sets the scaling check interval.
+     *
+     * @param scaleInterval
+     *            the scaleInterval to set
+     */
+    public void setScaleInterval(long scaleInterval) {
+        this.scaleInterval = scaleInterval;
+    }
+
+    /**
+     * Gets the number of consecutive checks to scale.
+     *
+     * @return the scaleChecks
+     */
+    public int getScaleChecks() {
+        return scaleChecks;
+    }
+
+    /**
+     * Sets the number of consecutive checks to scale.
+     *
+     * @param scaleChecks
+     *            the scaleChecks to set
+     */
+    public void setScaleChecks(int scaleChecks) {
+        this.scaleChecks = scaleChecks;
+    }
+
+    /**
+     * Gets the min time between scaling.
+     *
+     * @return the scaleCooldown
+     */
+    public long getScaleCooldown() {
+        return scaleCooldown;
+    }
+
+    /**
+     * Sets the min time between scaling.
+     *
+     * @param scaleCooldown
+     *            the scaleCooldown to set
+     */
+    public void setScaleCooldown(long scaleCooldown) {
+        this.scaleCooldown = scaleCooldown;
+    }
+}
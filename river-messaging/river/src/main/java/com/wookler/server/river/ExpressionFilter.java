@@ -0,0 +1,87 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+/**
+ * Built-in {@link Filter} evaluating a {@link FilterExpression} on the message
+ * data. Sample:
+ *
+ * <pre>
+ * {@code
+ *     <query class="com.wookler.server.river.ExpressionFilter"
+ *            q="type IN ('ORDER', 'REFUND') AND amount >= 100 AND NOT customer.id MATCHES 'TEST-.*'" />
+ * }
+ * </pre>
+ *
+ * The AND/OR terms of the expression are re-ordered adaptively by their
+ * measured selectivity and cost.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class ExpressionFilter<M> implements Filter<M> {
+    /** compiled filter expression */
+    private FilterExpression expression = null;
+
+    /**
+     * Compile the specified filter expression.
+     *
+     * @param filter
+     *            - Filter expression.
+     * @return - self.
+     * @exception com.wookler.server.river.Filter.FilterException
+     */
+    @Override
+    public Filter<?> parse(String filter) throws FilterException {
+        expression = FilterExpression.compile(filter, true);
+        return this;
+    }
+
+    /**
+     * Get the filter expression string.
+     *
+     * @return - Filter expression.
+     */
+    @Override
+    public String filter() {
+        return (expression != null ? expression.expression() : null);
+    }
+
+    /**
+     * Get the compiled filter expression.
+     *
+     * @return - Filter expression, NULL if not parsed.
+     */
+    public FilterExpression expression() {
+        return expression;
+    }
+
+    /**
+     * Evaluate the filter expression on the message.
+     *
+     * @param message
+     *            - Message object to evaluate.
+     * @return - Matches?
+     * @exception com.wookler.server.river.Filter.FilterException
+     */
+    @Override
+    public boolean matches(M message) throws FilterException {
+        if (expression == null)
+            throw new FilterException("Filter expression not parsed.");
+        return expression.evaluate(message);
+    }
+}
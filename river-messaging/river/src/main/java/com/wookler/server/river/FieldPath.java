@@ -0,0 +1,241 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.wookler.server.common.utils.ReflectionUtils;
+import com.wookler.server.river.Filter.FilterException;
+
+/**
+ * Dot separated path to a value nested in a message object (ex.
+ * "order.customer.id"). Each path element is resolved to a field, a getter
+ * method or a map key. The resolved accessor is cached by the object class, so
+ * the reflective lookup is only done the first time a class is seen. Fields and
+ * getters are read through method handles, resolved once with the accessor.
+ * The path "$" refers to the message object itself.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class FieldPath {
+    public static final class Constants {
+        /** accessor handle type : (Object) Object */
+        private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class,
+                Object.class);
+        /** path referring to the message object itself */
+        public static final String PATH_SELF = "$";
+        /** path element separator */
+        public static final String PATH_SEPARATOR = ".";
+    }
+
+    /**
+     * Accessor resolved for a path element and an object class.
+     */
+    private static abstract class Accessor {
+        /** class this accessor has been resolved for */
+        private final Class<?> type;
+
+        private Accessor(Class<?> type) {
+            this.type = type;
+        }
+
+        /**
+         * Get the element value from the specified object.
+         *
+         * @param o
+         *            - Object instance, of the resolved class.
+         * @return - Element value.
+         * @throws Throwable
+         */
+        protected abstract Object get(Object o) throws Throwable;
+    }
+
+    /**
+     * Field or getter method accessor, the field getter or method is invoked
+     * through a method handle adapted to (Object) Object.
+     */
+    private static final class HandleAccessor extends Accessor {
+        private final MethodHandle handle;
+
+        private HandleAccessor(Class<?> type, MethodHandle handle) {
+            super(type);
+            this.handle = handle.asType(Constants.ACCESSOR_TYPE);
+        }
+
+        @Override
+        protected Object get(Object o) throws Throwable {
+            return handle.invokeExact(o);
+        }
+    }
+
+    /**
+     * Map key accessor.
+     */
+    private static final class MapAccessor extends Accessor {
+        private final String key;
+
+        private MapAccessor(Class<?> type, String key) {
+            super(type);
+            this.key = key;
+        }
+
+        @Override
+        protected Object get(Object o) throws Throwable {
+            return ((Map<?, ?>) o).get(key);
+        }
+    }
+
+    /** path string */
+    private final String path;
+    /** path elements, empty for the message object itself */
+    private final String[] elements;
+    /** last resolved accessor, by path element */
+    private final Accessor[] accessors;
+
+    /**
+     * Create a new field path.
+     *
+     * @param path
+     *            - Dot separated path.
+     * @throws FilterException
+     */
+    public FieldPath(String path) throws FilterException {
+        if (StringUtils.isEmpty(path))
+            throw new FilterException("Empty field path.");
+        this.path = path;
+        if (path.equals(Constants.PATH_SELF)) {
+            elements = new String[0];
+        } else {
+            elements = StringUtils.split(path, Constants.PATH_SEPARATOR);
+            for (String e : elements) {
+                if (StringUtils.isEmpty(e))
+                    throw new FilterException("Invalid field path. [path=" + path + "]");
+            }
+        }
+        accessors = new Accessor[elements.length];
+    }
+
+    /**
+     * Get the path string.
+     *
+     * @return - Path.
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * Get the number of elements in the path.
+     *
+     * @return - Path depth.
+     */
+    public int depth() {
+        return elements.length;
+    }
+
+    /**
+     * Get the value at this path from the specified object.
+     *
+     * @param o
+     *            - Message object.
+     * @return - Value, NULL if any element on the path is NULL.
+     * @throws FilterException
+     */
+    public Object get(Object o) throws FilterException {
+        Object v = o;
+        for (int ii = 0; ii < elements.length; ii++) {
+            if (v == null)
+                return null;
+            Accessor a = accessors[ii];
+            if (a == null || a.type != v.getClass()) {
+                a = resolve(v.getClass(), elements[ii]);
+                // Racy publish is fine, the accessor is immutable.
+                accessors[ii] = a;
+            }
+            try {
+                v = a.get(v);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new FilterException("Error reading field. [path=" + path + "][element="
+                        + elements[ii] + "]", t);
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Resolve the accessor for the path element on the specified class. Maps
+     * are looked up by key, else a field with the element name or a getter
+     * (getX(), isX() or x()) is used.
+     *
+     * @param type
+     *            - Object class.
+     * @param name
+     *            - Path element.
+     * @return - Accessor.
+     * @throws FilterException
+     */
+    private Accessor resolve(Class<?> type, String name) throws FilterException {
+        if (Map.class.isAssignableFrom(type))
+            return new MapAccessor(type, name);
+        Field[] fields = ReflectionUtils.getAllFields(type);
+        if (fields != null) {
+            for (Field f : fields) {
+                if (f.getName().equals(name) && !Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        f.setAccessible(true);
+                        return new HandleAccessor(type, MethodHandles.lookup().unreflectGetter(f));
+                    } catch (SecurityException | IllegalAccessException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        String[] methods = { "get" + StringUtils.capitalize(name),
+                "is" + StringUtils.capitalize(name), name };
+        for (String m : methods) {
+            try {
+                Method method = type.getMethod(m);
+                if (method.getReturnType() != void.class) {
+                    method.setAccessible(true);
+                    return new HandleAccessor(type, MethodHandles.lookup().unreflect(method));
+                }
+            } catch (NoSuchMethodException e) {
+                continue;
+            } catch (SecurityException | IllegalAccessException e) {
+                continue;
+            }
+        }
+        throw new FilterException("Field not found. [path=" + path + "][element=" + name
+                + "][class=" + type.getCanonicalName() + "]");
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
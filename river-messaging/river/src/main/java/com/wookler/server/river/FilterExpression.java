@@ -0,0 +1,1009 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.wookler.server.river.Filter.FilterException;
+
+/**
+ * Filter expression compiled to a predicate tree. Expression syntax:
+ *
+ * <pre>
+ * expression := term (OR term)*
+ * term       := factor (AND factor)*
+ * factor     := NOT factor | '(' expression ')' | predicate
+ * predicate  := path op literal
+ *             | path [NOT] IN '(' literal (',' literal)* ')'
+ *             | path [NOT] MATCHES 'regex'
+ *             | path IS [NOT] NULL
+ *             | path                   (boolean value)
+ * op         := = | == | != | &lt;&gt; | &lt; | &lt;= | &gt; | &gt;=
+ * literal    := 'string' | "string" | number | TRUE | FALSE | NULL
+ * </pre>
+ *
+ * Keywords are case insensitive, &amp;&amp;, || and ! can be used in place of
+ * AND, OR and NOT. Paths are resolved by {@link FieldPath}, "$" refers to the
+ * message itself (ex. "$ MATCHES 'ERROR.*'").
+ * <p/>
+ * Numeric values are compared as numbers, all other values are compared using
+ * their string value (the name for enums). A NULL value only matches
+ * "= NULL", "!= literal" and "NOT IN".
+ * <p/>
+ * If adaptive, the terms of each AND/OR node are periodically re-ordered by
+ * the measured cost and short-circuit rate (see {@link PredicateStats}). The
+ * terms are expected to be free of side effects.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class FilterExpression {
+    /**
+     * Estimated evaluation cost of the predicates (in nanoseconds), used to
+     * order the terms till their cost has been sampled.
+     */
+    private static final class Cost {
+        private static final double PATH_ELEMENT = 20;
+        private static final double COMPARE = 10;
+        private static final double IN = 30;
+        private static final double MATCHES = 500;
+    }
+
+    /**
+     * Predicate tree node.
+     */
+    private static abstract class Node {
+        /**
+         * Evaluate the predicate on the message object.
+         *
+         * @param data
+         *            - Message object.
+         * @return - Matches?
+         * @throws FilterException
+         */
+        protected abstract boolean evaluate(Object data) throws FilterException;
+
+        /**
+         * Get the estimated evaluation cost.
+         *
+         * @return - Cost estimate.
+         */
+        protected abstract double cost();
+    }
+
+    /**
+     * Term of an AND/OR node, with its evaluation statistics.
+     */
+    private static final class Term {
+        private final Node node;
+        private final PredicateStats stats;
+
+        private Term(Node node) {
+            this.node = node;
+            this.stats = new PredicateStats(node.cost());
+        }
+    }
+
+    /**
+     * AND/OR node, evaluated with short-circuit.
+     */
+    private static final class Junction extends Node {
+        /** AND (or OR) node */
+        private final boolean and;
+        /** re-order the terms */
+        private final boolean adaptive;
+        /** terms, in evaluation order */
+        private volatile Term[] terms;
+
+        private Junction(boolean and, List<Node> nodes, boolean adaptive) {
+            this.and = and;
+            this.adaptive = adaptive;
+            Term[] ts = new Term[nodes.size()];
+            for (int ii = 0; ii < ts.length; ii++) {
+                ts[ii] = new Term(nodes.get(ii));
+            }
+            this.terms = ts;
+        }
+
+        @Override
+        protected boolean evaluate(Object data) throws FilterException {
+            Term[] ts = terms;
+            boolean result = and;
+            for (Term t : ts) {
+                boolean r;
+                if (t.stats.sample()) {
+                    long startt = System.nanoTime();
+                    r = t.node.evaluate(data);
+                    t.stats.evaluated(r != and, System.nanoTime() - startt);
+                } else {
+                    r = t.node.evaluate(data);
+                    t.stats.evaluated(r != and);
+                }
+                // AND stops on the first false, OR on the first true.
+                if (r != and) {
+                    result = r;
+                    break;
+                }
+            }
+            if (adaptive && PredicateStats.reorder())
+                reorder();
+            return result;
+        }
+
+        /**
+         * Re-order the terms by rank. The new order is published by replacing
+         * the terms array, evaluations in progress use the previous order.
+         */
+        private synchronized void reorder() {
+            Term[] ts = terms;
+            PredicateStats[] stats = new PredicateStats[ts.length];
+            for (int ii = 0; ii < ts.length; ii++) {
+                stats[ii] = ts[ii].stats;
+            }
+            int[] order = PredicateStats.order(stats);
+            if (order != null) {
+                Term[] reordered = new Term[ts.length];
+                for (int ii = 0; ii < order.length; ii++) {
+                    reordered[ii] = ts[order[ii]];
+                }
+                terms = reordered;
+            }
+        }
+
+        @Override
+        protected double cost() {
+            double cost = 0;
+            for (Term t : terms) {
+                cost += t.node.cost();
+            }
+            return cost;
+        }
+    }
+
+    /**
+     * NOT node.
+     */
+    private static final class Not extends Node {
+        private final Node node;
+
+        private Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        protected boolean evaluate(Object data) throws FilterException {
+            return !node.evaluate(data);
+        }
+
+        @Override
+        protected double cost() {
+            return node.cost();
+        }
+    }
+
+    /**
+     * Literal value.
+     */
+    private static final class Literal {
+        /** value : String, Boolean, Number or NULL */
+        private final Object value;
+        /** string value */
+        private final String text;
+        /** is a number? */
+        private final boolean numeric;
+        /** is an integral number? */
+        private final boolean integral;
+        /** numeric value */
+        private final double number;
+        /** integral value */
+        private final long integer;
+
+        private Literal(Object value, String text) {
+            this.value = value;
+            this.text = text;
+            if (value instanceof Number) {
+                numeric = true;
+                integral = (value instanceof Long);
+                number = ((Number) value).doubleValue();
+                integer = ((Number) value).longValue();
+            } else {
+                numeric = false;
+                integral = false;
+                number = 0;
+                integer = 0;
+            }
+        }
+    }
+
+    /**
+     * Predicate on the value at a field path.
+     */
+    private static abstract class PathNode extends Node {
+        protected final FieldPath path;
+
+        private PathNode(FieldPath path) {
+            this.path = path;
+        }
+
+        @Override
+        protected boolean evaluate(Object data) throws FilterException {
+            return test(path.get(data));
+        }
+
+        /**
+         * Test the field value.
+         *
+         * @param v
+         *            - Field value.
+         * @return - Matches?
+         * @throws FilterException
+         */
+        protected abstract boolean test(Object v) throws FilterException;
+
+        @Override
+        protected double cost() {
+            return path.depth() * Cost.PATH_ELEMENT + ownCost();
+        }
+
+        /**
+         * Get the estimated cost of the test.
+         *
+         * @return - Cost estimate.
+         */
+        protected abstract double ownCost();
+    }
+
+    /**
+     * Comparison operators.
+     */
+    private static enum Op {
+        EQ, NE, LT, LE, GT, GE;
+
+        private static Op parse(String op) {
+            if (op.equals("=") || op.equals("=="))
+                return EQ;
+            if (op.equals("!=") || op.equals("<>"))
+                return NE;
+            if (op.equals("<"))
+                return LT;
+            if (op.equals("<="))
+                return LE;
+            if (op.equals(">"))
+                return GT;
+            if (op.equals(">="))
+                return GE;
+            return null;
+        }
+    }
+
+    /**
+     * Comparison with a literal.
+     */
+    private static final class Compare extends PathNode {
+        private final Op op;
+        private final Literal literal;
+
+        private Compare(FieldPath path, Op op, Literal literal) {
+            super(path);
+            this.op = op;
+            this.literal = literal;
+        }
+
+        @Override
+        protected boolean test(Object v) throws FilterException {
+            switch (op) {
+            case EQ:
+                return equal(v, literal);
+            case NE:
+                return !equal(v, literal);
+            default:
+                if (v == null || literal.value == null)
+                    return false;
+                int c = compare(v, literal);
+                switch (op) {
+                case LT:
+                    return c < 0;
+                case LE:
+                    return c <= 0;
+                case GT:
+                    return c > 0;
+                default:
+                    return c >= 0;
+                }
+            }
+        }
+
+        @Override
+        protected double ownCost() {
+            return Cost.COMPARE;
+        }
+    }
+
+    /**
+     * IN list.
+     */
+    private static final class In extends PathNode {
+        private final HashSet<Object> keys = new HashSet<Object>();
+
+        private In(FieldPath path, List<Literal> literals) {
+            super(path);
+            for (Literal l : literals) {
+                keys.add(l.numeric ? Double.valueOf(l.number) : l.text);
+            }
+        }
+
+        @Override
+        protected boolean test(Object v) throws FilterException {
+            if (v == null)
+                return false;
+            if (v instanceof Number)
+                return keys.contains(Double.valueOf(((Number) v).doubleValue()));
+            return keys.contains(text(v));
+        }
+
+        @Override
+        protected double ownCost() {
+            return Cost.IN;
+        }
+    }
+
+    /**
+     * Regular expression match, on the string value.
+     */
+    private static final class Matches extends PathNode {
+        private final Pattern pattern;
+
+        private Matches(FieldPath path, Pattern pattern) {
+            super(path);
+            this.pattern = pattern;
+        }
+
+        @Override
+        protected boolean test(Object v) throws FilterException {
+            if (v == null)
+                return false;
+            return pattern.matcher(text(v)).matches();
+        }
+
+        @Override
+        protected double ownCost() {
+            return Cost.MATCHES;
+        }
+    }
+
+    /**
+     * NULL check.
+     */
+    private static final class IsNull extends PathNode {
+        private IsNull(FieldPath path) {
+            super(path);
+        }
+
+        @Override
+        protected boolean test(Object v) throws FilterException {
+            return v == null;
+        }
+
+        @Override
+        protected double ownCost() {
+            return 1;
+        }
+    }
+
+    /**
+     * Boolean field value.
+     */
+    private static final class Truth extends PathNode {
+        private Truth(FieldPath path) {
+            super(path);
+        }
+
+        @Override
+        protected boolean test(Object v) throws FilterException {
+            if (v == null)
+                return false;
+            if (v instanceof Boolean)
+                return (Boolean) v;
+            return Boolean.parseBoolean(text(v));
+        }
+
+        @Override
+        protected double ownCost() {
+            return 1;
+        }
+    }
+
+    /**
+     * Top level constraint of an expression that can be used to look up the
+     * expression in an index. A message can only match the expression if it
+     * satisfies the constraint.
+     */
+    static final class Constraint {
+        static enum Type {
+            /** value equals one of the keys (see {@link #keys(Object)}) */
+            EQUALS,
+            /** string value starts with the prefix */
+            PREFIX,
+            /** numeric value is within the closed range [lower, upper] */
+            RANGE
+        }
+
+        private final Type type;
+        private final String path;
+        private final HashSet<Object> keys = new HashSet<Object>();
+        private String prefix = null;
+        private double lower = Double.NEGATIVE_INFINITY;
+        private double upper = Double.POSITIVE_INFINITY;
+
+        private Constraint(Type type, String path) {
+            this.type = type;
+            this.path = path;
+        }
+
+        Type type() {
+            return type;
+        }
+
+        String path() {
+            return path;
+        }
+
+        HashSet<Object> keys() {
+            return keys;
+        }
+
+        String prefix() {
+            return prefix;
+        }
+
+        double lower() {
+            return lower;
+        }
+
+        double upper() {
+            return upper;
+        }
+    }
+
+    /**
+     * Get the keys to look up the value in the {@link Constraint.Type#EQUALS}
+     * keys of a constraint.
+     *
+     * @param v
+     *            - Field value, not NULL.
+     * @return - Lookup keys.
+     */
+    static Object[] keys(Object v) {
+        if (v instanceof Number)
+            return new Object[] { Double.valueOf(((Number) v).doubleValue()), text(v) };
+        if (v instanceof Date)
+            return new Object[] { Double.valueOf(((Date) v).getTime()), text(v) };
+        return new Object[] { text(v) };
+    }
+
+    /**
+     * Get the numeric value to look up the value in the
+     * {@link Constraint.Type#RANGE} of a constraint.
+     *
+     * @param v
+     *            - Field value, not NULL.
+     * @return - Numeric value, NULL if the value is compared as a string.
+     */
+    static Double number(Object v) {
+        if (v instanceof Number)
+            return ((Number) v).doubleValue();
+        if (v instanceof Date)
+            return (double) ((Date) v).getTime();
+        return null;
+    }
+
+    /**
+     * Get the string value used for prefix matches.
+     *
+     * @param v
+     *            - Field value, not NULL.
+     * @return - String value.
+     */
+    static String string(Object v) {
+        return text(v);
+    }
+
+    /**
+     * Get the string value used for comparisons.
+     *
+     * @param v
+     *            - Field value.
+     * @return - String value.
+     */
+    private static String text(Object v) {
+        if (v instanceof Enum)
+            return ((Enum<?>) v).name();
+        return String.valueOf(v);
+    }
+
+    /**
+     * Check if the field value equals the literal.
+     *
+     * @param v
+     *            - Field value.
+     * @param l
+     *            - Literal.
+     * @return - Equal?
+     */
+    private static boolean equal(Object v, Literal l) {
+        if (l.value == null || v == null)
+            return (v == l.value);
+        if (l.numeric && (v instanceof Number || v instanceof Date))
+            return compare(v, l) == 0;
+        if (v instanceof Boolean && l.value instanceof Boolean)
+            return v.equals(l.value);
+        return text(v).equals(l.text);
+    }
+
+    /**
+     * Compare the (non-null) field value with the literal.
+     *
+     * @param v
+     *            - Field value.
+     * @param l
+     *            - Literal.
+     * @return - Comparison result.
+     */
+    private static int compare(Object v, Literal l) {
+        if (l.numeric) {
+            if (v instanceof Date)
+                return Long.compare(((Date) v).getTime(), l.integer);
+            if (v instanceof Number) {
+                if (l.integral
+                        && (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte))
+                    return Long.compare(((Number) v).longValue(), l.integer);
+                return Double.compare(((Number) v).doubleValue(), l.number);
+            }
+        }
+        return text(v).compareTo(l.text);
+    }
+
+    /**
+     * Token types.
+     */
+    private static enum TokenType {
+        IDENT, STRING, NUMBER, OP, LPAREN, RPAREN, COMMA, END
+    }
+
+    /**
+     * Expression token.
+     */
+    private static final class Token {
+        private final TokenType type;
+        private final String text;
+        private final int position;
+
+        private Token(TokenType type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        private boolean keyword(String keyword) {
+            return type == TokenType.IDENT && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /**
+     * Recursive descent parser.
+     */
+    private static final class Parser {
+        private final String expression;
+        private final boolean adaptive;
+        private final List<Token> tokens;
+        private int index = 0;
+
+        private Parser(String expression, boolean adaptive) throws FilterException {
+            this.expression = expression;
+            this.adaptive = adaptive;
+            this.tokens = tokenize(expression);
+        }
+
+        private Node parse() throws FilterException {
+            Node node = or();
+            if (peek().type != TokenType.END)
+                throw error("Unexpected token", peek());
+            return node;
+        }
+
+        private Node or() throws FilterException {
+            List<Node> nodes = new ArrayList<Node>();
+            add(nodes, and(), false);
+            while (peek().keyword("OR") || isOp(peek(), "||")) {
+                next();
+                add(nodes, and(), false);
+            }
+            return (nodes.size() == 1 ? nodes.get(0) : new Junction(false, nodes, adaptive));
+        }
+
+        private Node and() throws FilterException {
+            List<Node> nodes = new ArrayList<Node>();
+            add(nodes, not(), true);
+            while (peek().keyword("AND") || isOp(peek(), "&&")) {
+                next();
+                add(nodes, not(), true);
+            }
+            return (nodes.size() == 1 ? nodes.get(0) : new Junction(true, nodes, adaptive));
+        }
+
+        /**
+         * Add the node to the term list, flattening nested nodes of the same
+         * type so all the terms are re-ordered together.
+         */
+        private void add(List<Node> nodes, Node node, boolean and) {
+            if (node instanceof Junction && ((Junction) node).and == and) {
+                for (Term t : ((Junction) node).terms) {
+                    nodes.add(t.node);
+                }
+            } else {
+                nodes.add(node);
+            }
+        }
+
+        private Node not() throws FilterException {
+            if (peek().keyword("NOT") || isOp(peek(), "!")) {
+                next();
+                return new Not(not());
+            }
+            if (peek().type == TokenType.LPAREN) {
+                next();
+                Node node = or();
+                expect(TokenType.RPAREN);
+                return node;
+            }
+            return predicate();
+        }
+
+        private Node predicate() throws FilterException {
+            Token t = expect(TokenType.IDENT);
+            FieldPath path = new FieldPath(t.text);
+            Token n = peek();
+            if (n.type == TokenType.OP && Op.parse(n.text) != null) {
+                next();
+                return new Compare(path, Op.parse(n.text), literal());
+            }
+            boolean negate = false;
+            if (n.keyword("NOT")) {
+                next();
+                negate = true;
+                n = peek();
+            }
+            if (n.keyword("IN")) {
+                next();
+                expect(TokenType.LPAREN);
+                List<Literal> literals = new ArrayList<Literal>();
+                literals.add(literal());
+                while (peek().type == TokenType.COMMA) {
+                    next();
+                    literals.add(literal());
+                }
+                expect(TokenType.RPAREN);
+                Node node = new In(path, literals);
+                return (negate ? new Not(node) : node);
+            }
+            if (n.keyword("MATCHES")) {
+                next();
+                Token r = expect(TokenType.STRING);
+                try {
+                    Node node = new Matches(path, Pattern.compile(r.text));
+                    return (negate ? new Not(node) : node);
+                } catch (PatternSyntaxException e) {
+                    throw new FilterException("Invalid regex. [expression=" + expression + "]", e);
+                }
+            }
+            if (negate)
+                throw error("Expected IN or MATCHES", n);
+            if (n.keyword("IS")) {
+                next();
+                if (peek().keyword("NOT")) {
+                    next();
+                    negate = true;
+                }
+                if (!peek().keyword("NULL"))
+                    throw error("Expected NULL", peek());
+                next();
+                Node node = new IsNull(path);
+                return (negate ? new Not(node) : node);
+            }
+            return new Truth(path);
+        }
+
+        private Literal literal() throws FilterException {
+            Token t = next();
+            switch (t.type) {
+            case STRING:
+                return new Literal(t.text, t.text);
+            case NUMBER:
+                try {
+                    if (t.text.indexOf('.') < 0 && t.text.indexOf('e') < 0
+                            && t.text.indexOf('E') < 0)
+                        return new Literal(Long.valueOf(t.text), t.text);
+                    return new Literal(Double.valueOf(t.text), t.text);
+                } catch (NumberFormatException e) {
+                    throw error("Invalid number", t);
+                }
+            case IDENT:
+                if (t.keyword("TRUE"))
+                    return new Literal(Boolean.TRUE, "true");
+                if (t.keyword("FALSE"))
+                    return new Literal(Boolean.FALSE, "false");
+                if (t.keyword("NULL"))
+                    return new Literal(null, null);
+                throw error("Expected literal", t);
+            default:
+                throw error("Expected literal", t);
+            }
+        }
+
+        private boolean isOp(Token t, String op) {
+            return t.type == TokenType.OP && t.text.equals(op);
+        }
+
+        private Token peek() {
+            return tokens.get(index);
+        }
+
+        private Token next() {
+            Token t = tokens.get(index);
+            if (t.type != TokenType.END)
+                index++;
+            return t;
+        }
+
+        private Token expect(TokenType type) throws FilterException {
+            Token t = next();
+            if (t.type != type)
+                throw error("Expected " + type.name(), t);
+            return t;
+        }
+
+        private FilterException error(String mesg, Token t) {
+            return new FilterException(String.format("%s. [position=%d][token=%s][expression=%s]",
+                    mesg, t.position, (t.type == TokenType.END ? "<end>" : t.text), expression));
+        }
+
+        private static List<Token> tokenize(String s) throws FilterException {
+            List<Token> tokens = new ArrayList<Token>();
+            int ii = 0;
+            while (ii < s.length()) {
+                char c = s.charAt(ii);
+                if (Character.isWhitespace(c)) {
+                    ii++;
+                } else if (c == '(') {
+                    tokens.add(new Token(TokenType.LPAREN, "(", ii++));
+                } else if (c == ')') {
+                    tokens.add(new Token(TokenType.RPAREN, ")", ii++));
+                } else if (c == ',') {
+                    tokens.add(new Token(TokenType.COMMA, ",", ii++));
+                } else if (c == '\'' || c == '"') {
+                    int start = ii++;
+                    StringBuilder b = new StringBuilder();
+                    while (ii < s.length() && s.charAt(ii) != c) {
+                        char sc = s.charAt(ii++);
+                        if (sc == '\\' && ii < s.length()) {
+                            char ec = s.charAt(ii++);
+                            // Keep regex escapes, only quotes are unescaped.
+                            if (ec != '\'' && ec != '"' && ec != '\\')
+                                b.append(sc);
+                            b.append(ec);
+                        } else {
+                            b.append(sc);
+                        }
+                    }
+                    if (ii >= s.length())
+                        throw new FilterException("Unterminated string. [position=" + start
+                                + "][expression=" + s + "]");
+                    ii++;
+                    tokens.add(new Token(TokenType.STRING, b.toString(), start));
+                } else if (Character.isDigit(c)
+                        || (c == '-' && ii + 1 < s.length() && (Character.isDigit(s.charAt(ii + 1)) || s
+                                .charAt(ii + 1) == '.')) || c == '.') {
+                    int start = ii++;
+                    while (ii < s.length()) {
+                        char nc = s.charAt(ii);
+                        if (Character.isDigit(nc) || nc == '.' || nc == 'e' || nc == 'E'
+                                || ((nc == '-' || nc == '+') && (s.charAt(ii - 1) == 'e' || s
+                                        .charAt(ii - 1) == 'E')))
+                            ii++;
+                        else
+                            break;
+                    }
+                    tokens.add(new Token(TokenType.NUMBER, s.substring(start, ii), start));
+                } else if (Character.isLetter(c) || c == '_' || c == '$') {
+                    int start = ii++;
+                    while (ii < s.length()) {
+                        char nc = s.charAt(ii);
+                        if (Character.isLetterOrDigit(nc) || nc == '_' || nc == '$' || nc == '.')
+                            ii++;
+                        else
+                            break;
+                    }
+                    tokens.add(new Token(TokenType.IDENT, s.substring(start, ii), start));
+                } else {
+                    int start = ii;
+                    String op = null;
+                    if (ii + 1 < s.length()) {
+                        String two = s.substring(ii, ii + 2);
+                        if (two.equals("==") || two.equals("!=") || two.equals("<>")
+                                || two.equals("<=") || two.equals(">=") || two.equals("&&")
+                                || two.equals("||"))
+                            op = two;
+                    }
+                    if (op == null && (c == '=' || c == '<' || c == '>' || c == '!'))
+                        op = String.valueOf(c);
+                    if (op == null)
+                        throw new FilterException("Invalid character. [position=" + ii
+                                + "][expression=" + s + "]");
+                    ii += op.length();
+                    tokens.add(new Token(TokenType.OP, op, start));
+                }
+            }
+            tokens.add(new Token(TokenType.END, null, s.length()));
+            return tokens;
+        }
+    }
+
+    /** expression string */
+    private final String expression;
+    /** compiled predicate tree */
+    private final Node root;
+
+    private FilterExpression(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Compile the specified expression.
+     *
+     * @param expression
+     *            - Filter expression.
+     * @param adaptive
+     *            - Re-order the AND/OR terms by measured selectivity and cost?
+     * @return - Compiled expression.
+     * @throws FilterException
+     */
+    public static FilterExpression compile(String expression, boolean adaptive)
+            throws FilterException {
+        if (expression == null || expression.trim().isEmpty())
+            throw new FilterException("Empty filter expression.");
+        return new FilterExpression(expression, new Parser(expression, adaptive).parse());
+    }
+
+    /**
+     * Get the expression string.
+     *
+     * @return - Expression string.
+     */
+    public String expression() {
+        return expression;
+    }
+
+    /**
+     * Get the top level constraints of this expression (terms of the top
+     * level AND, or the expression itself) that can be indexed: equality, IN
+     * lists, literal prefix regex ('abc.*') and numeric ranges. Constraints
+     * are conservative, a message satisfying the constraint can still fail
+     * the expression.
+     *
+     * @return - Indexable constraints, in term order.
+     */
+    List<Constraint> constraints() {
+        List<Node> nodes = new ArrayList<Node>();
+        if (root instanceof Junction && ((Junction) root).and) {
+            for (Term t : ((Junction) root).terms) {
+                nodes.add(t.node);
+            }
+        } else {
+            nodes.add(root);
+        }
+        List<Constraint> constraints = new ArrayList<Constraint>();
+        for (Node n : nodes) {
+            if (n instanceof Compare) {
+                Compare c = (Compare) n;
+                if (c.literal.value == null)
+                    continue;
+                if (c.op == Op.EQ) {
+                    Constraint ct = new Constraint(Constraint.Type.EQUALS, c.path.path());
+                    if (c.literal.numeric)
+                        ct.keys.add(Double.valueOf(c.literal.number));
+                    ct.keys.add(c.literal.text);
+                    constraints.add(ct);
+                } else if (c.op != Op.NE && c.literal.numeric) {
+                    Constraint ct = null;
+                    for (Constraint r : constraints) {
+                        if (r.type == Constraint.Type.RANGE && r.path.equals(c.path.path())) {
+                            ct = r;
+                            break;
+                        }
+                    }
+                    if (ct == null) {
+                        ct = new Constraint(Constraint.Type.RANGE, c.path.path());
+                        constraints.add(ct);
+                    }
+                    // Bounds are kept inclusive, the strict comparison is
+                    // done by the expression.
+                    if (c.op == Op.GT || c.op == Op.GE)
+                        ct.lower = Math.max(ct.lower, c.literal.number);
+                    else
+                        ct.upper = Math.min(ct.upper, c.literal.number);
+                }
+            } else if (n instanceof In) {
+                Constraint ct = new Constraint(Constraint.Type.EQUALS, ((In) n).path.path());
+                ct.keys.addAll(((In) n).keys);
+                constraints.add(ct);
+            } else if (n instanceof Matches) {
+                String prefix = prefix(((Matches) n).pattern);
+                if (prefix != null) {
+                    Constraint ct = new Constraint(Constraint.Type.PREFIX, ((Matches) n).path
+                            .path());
+                    ct.prefix = prefix;
+                    constraints.add(ct);
+                }
+            }
+        }
+        return constraints;
+    }
+
+    /**
+     * Get the literal prefix of a regex of the form "prefix.*".
+     *
+     * @param pattern
+     *            - Regex pattern.
+     * @return - Prefix, NULL if the regex is not a literal prefix match.
+     */
+    private static String prefix(Pattern pattern) {
+        if (pattern.flags() != 0)
+            return null;
+        String r = pattern.pattern();
+        if (!r.endsWith(".*") || r.length() <= 2)
+            return null;
+        String prefix = r.substring(0, r.length() - 2);
+        for (int ii = 0; ii < prefix.length(); ii++) {
+            if (".[]{}()*+?^$|\\".indexOf(prefix.charAt(ii)) >= 0)
+                return null;
+        }
+        return prefix;
+    }
+
+    /**
+     * Evaluate the expression on the specified message object.
+     *
+     * @param data
+     *            - Message object.
+     * @return - Matches?
+     * @throws FilterException
+     */
+    public boolean evaluate(Object data) throws FilterException {
+        return root.evaluate(data);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
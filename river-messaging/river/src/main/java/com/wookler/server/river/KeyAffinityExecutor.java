@@ -0,0 +1,442 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import com.wookler.server.common.*;
+import com.wookler.server.common.config.CParam;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigPath;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.common.utils.Monitoring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key affinity executor processes messages in parallel lanes, while preserving
+ * the read order of messages with the same key. A dispatcher thread reads the
+ * message batches and hashes each message into a lane using the configured
+ * {@link KeyExtractor}. Each lane is processed by its own worker thread from a
+ * bounded queue, so messages with the same key are always processed in order
+ * by the same lane.
+ * <p/>
+ * Messages are acked as a contiguous low-watermark: a message is only acked
+ * once all the messages read before it have been processed. Messages whose
+ * processing failed are skipped by the watermark without being acked, and are
+ * resent once the ack times out.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @param <M>
+ *            the generic type
+ * @created 16/10/26
+ */
+public class KeyAffinityExecutor<M> extends AbstractExecutor<M> {
+    private static final Logger log = LoggerFactory.getLogger(KeyAffinityExecutor.class);
+
+    public static final class Constants {
+        /** default number of sub-batches queued per lane */
+        public static final int DEFAULT_LANE_QUEUE_SIZE = 16;
+    }
+
+    /**
+     * Message pending ack, in read order.
+     */
+    private static final class Pending<M> {
+        /** message read */
+        private final Message<M> message;
+        /** processing completed */
+        private volatile boolean done = false;
+        /** processing succeeded, message should be acked */
+        private volatile boolean ack = false;
+
+        private Pending(Message<M> message) {
+            this.message = message;
+        }
+    }
+
+    /** config param : number of processing lanes, default = available cores */
+    @CParam(name = "executor.lanes", required = false)
+    private int lanes = Runtime.getRuntime().availableProcessors();
+    /** config param : max sub-batches queued per lane */
+    @CParam(name = "executor.lane.queue.size", required = false)
+    private int laneQueueSize = Constants.DEFAULT_LANE_QUEUE_SIZE;
+    /** config param : message key extractor */
+    @CParam(name = "executor.key.extractor")
+    private KeyExtractor<M> extractor;
+
+    /** dispatcher and lane threads */
+    private List<MonitoredThread> threads = null;
+    /** lane queues */
+    private List<ArrayBlockingQueue<List<Pending<M>>>> queues = null;
+    /** messages pending ack, in read order */
+    private ArrayDeque<Pending<M>> window = new ArrayDeque<Pending<M>>();
+    /** ack the processed messages */
+    private boolean ackrequired = false;
+    /** dispatcher has terminated */
+    private volatile boolean dispatcherDone = false;
+
+    /**
+     * Start the dispatcher and lane threads.
+     *
+     * @see com.wookler.server.river.AbstractExecutor#start()
+     */
+    @Override
+    public void start() throws ProcessingException {
+        ackrequired = subscriber().ackrequired() && !subscriber().subscriberAsyncAck();
+        dispatcherDone = false;
+        queues = new ArrayList<ArrayBlockingQueue<List<Pending<M>>>>(lanes);
+        threads = new ArrayList<MonitoredThread>(lanes + 1);
+        threads.add(new MonitoredThread(this, name + "_DISPATCHER"));
+        for (int ii = 0; ii < lanes; ii++) {
+            ArrayBlockingQueue<List<Pending<M>>> q = new ArrayBlockingQueue<List<Pending<M>>>(
+                    laneQueueSize);
+            queues.add(q);
+            threads.add(new MonitoredThread(new Lane(q), name + "_LANE_" + ii));
+        }
+        for (MonitoredThread t : threads) {
+            t.start();
+            Monitoring.register(t);
+        }
+    }
+
+    /**
+     * Dispatcher loop -- Read the message batches for the subscriber associated
+     * with this executor and split each batch into the lanes, by message key.
+     */
+    @Override
+    public void run() {
+        try {
+            while (subscriber().state().getState() == EObjectState.Initialized) {
+                try {
+                    Thread.sleep(sleeptime);
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                    continue;
+                }
+            }
+            ObjectState.check(subscriber().state(), EObjectState.Available, getClass());
+            log.info(String.format("Message subscriber running. [name=%s]", name()));
+            while (subscriber().state().getState() == EObjectState.Available
+                    && state.getState() == EProcessState.Running) {
+                List<Message<M>> messages = null;
+                long generation = subscriber().queue().generation();
+                // read the message batch from the queue
+                messages = read();
+                try {
+                    if (messages != null && !messages.isEmpty()) {
+                        dispatch(messages);
+                    } else {
+                        subscriber().queue().await(generation, sleeptime);
+                    }
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                }
+            }
+        } catch (MessageQueueException e) {
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber terminated. [name=%s][error=%s]", name(),
+                    e.getLocalizedMessage()));
+        } catch (StateException e) {
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber in invalid setState. [name=%s][error=%s]",
+                    name(), e.getLocalizedMessage()));
+        } finally {
+            dispatcherDone = true;
+        }
+    }
+
+    /**
+     * Split the message batch into the lanes. The read order is kept within
+     * each lane. Blocks while the lane queue is full.
+     *
+     * @param messages
+     *            - Message batch.
+     * @throws InterruptedException
+     */
+    private void dispatch(List<Message<M>> messages) throws InterruptedException {
+        List<List<Pending<M>>> split = new ArrayList<List<Pending<M>>>(lanes);
+        for (int ii = 0; ii < lanes; ii++) {
+            split.add(null);
+        }
+        for (Message<M> m : messages) {
+            Pending<M> p = new Pending<M>(m);
+            int lane = lane(m);
+            if (split.get(lane) == null)
+                split.set(lane, new ArrayList<Pending<M>>());
+            split.get(lane).add(p);
+            if (ackrequired) {
+                synchronized (window) {
+                    window.addLast(p);
+                }
+            }
+        }
+        for (int ii = 0; ii < lanes; ii++) {
+            List<Pending<M>> batch = split.get(ii);
+            if (batch == null)
+                continue;
+            // wait for lane queue space, lanes stop once the executor stops.
+            while (!queues.get(ii).offer(batch, sleeptime, TimeUnit.MILLISECONDS)) {
+                if (state.getState() != EProcessState.Running)
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Get the lane for the specified message. Messages without a key are
+     * spread by the message ID.
+     *
+     * @param m
+     *            - Message.
+     * @return - Lane index.
+     */
+    private int lane(Message<M> m) {
+        Object key = extractor.key(m);
+        int hash = (key != null ? key.hashCode() : m.header().id().hashCode());
+        return (hash & Integer.MAX_VALUE) % lanes;
+    }
+
+    /**
+     * Lane worker -- process the sub-batches queued to the lane in order.
+     */
+    private final class Lane implements Runnable {
+        /** lane queue */
+        private final ArrayBlockingQueue<List<Pending<M>>> queue;
+
+        private Lane(ArrayBlockingQueue<List<Pending<M>>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!dispatcherDone || !queue.isEmpty()) {
+                    List<Pending<M>> pending = null;
+                    try {
+                        pending = queue.poll(sleeptime, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                                .currentThread().getName()));
+                        continue;
+                    }
+                    if (pending == null)
+                        continue;
+                    if (state.getState() != EProcessState.Running)
+                        break;
+                    List<Message<M>> messages = new ArrayList<Message<M>>(pending.size());
+                    for (Pending<M> p : pending) {
+                        messages.add(p.message);
+                    }
+                    boolean ack = false;
+                    try {
+                        ack = process(messages);
+                    } catch (NonFatalProcessorException nfe) {
+                        LogUtils.stacktrace(getClass(), nfe, log);
+                        log.error("Non Fatal Error in executing processor.", nfe.getMessage());
+                    } finally {
+                        for (Pending<M> p : pending) {
+                            p.ack = ack;
+                            p.done = true;
+                        }
+                    }
+                    if (ackrequired)
+                        commit();
+                }
+            } catch (ProcessingException e) {
+                exception(e);
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message subscriber terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            }
+        }
+    }
+
+    /**
+     * Advance the ack low-watermark: ack all the processed messages at the
+     * head of the read window.
+     *
+     * @throws ProcessingException
+     */
+    private void commit() throws ProcessingException {
+        List<Message<M>> acks = null;
+        synchronized (window) {
+            while (!window.isEmpty() && window.peekFirst().done) {
+                Pending<M> p = window.pollFirst();
+                if (p.ack) {
+                    if (acks == null)
+                        acks = new ArrayList<Message<M>>();
+                    acks.add(p.message);
+                }
+            }
+            // Ack under the window lock, so that acks are committed in order.
+            if (acks != null && subscriber().state().getState() == EObjectState.Available)
+                ack(acks);
+        }
+    }
+
+    /**
+     * Check if there are pending tasks status' that need to be handled.
+     *
+     * @throws ProcessingException
+     *             the processing exception
+     */
+    @Override
+    public void check() throws ProcessingException {
+        // Nothing to be done here.
+    }
+
+    /**
+     * Configure the executor instance. Sample:
+     * <p/>
+     *
+     * <pre>
+     * {@code
+     *      <executor class="com.wookler.server.river.KeyAffinityExecutor">
+     *          <params>
+     *              <param name="executor.key.extractor" value="[KeyExtractor implementation]" />
+     *              <param name="executor.lanes" value="[optional: number of lanes, default=cores]" />
+     *              <param name="executor.lane.queue.size" value="[optional: default=16]" />
+     *          </params>
+     *      </executor>
+     * }
+     * </pre>
+     *
+     * @param config
+     *            - Configuration node for this instance.
+     * @throws ConfigurationException
+     *             the configuration exception
+     */
+    @Override
+    public void configure(ConfigNode config) throws ConfigurationException {
+        try {
+            if (!(config instanceof ConfigPath))
+                throw new ConfigurationException(String.format(
+                        "Invalid config node type. [expected:%s][actual:%s]",
+                        ConfigPath.class.getCanonicalName(), config.getClass().getCanonicalName()));
+            LogUtils.debug(getClass(), ((ConfigPath) config).path());
+            ConfigUtils.parse(config, this);
+            if (lanes <= 0)
+                throw new ConfigurationException("Invalid number of lanes. [lanes=" + lanes + "]");
+            if (laneQueueSize <= 0)
+                throw new ConfigurationException("Invalid lane queue size. [size="
+                        + laneQueueSize + "]");
+            LogUtils.debug(getClass(), "Configured Key Affinity Executor with lanes = " + lanes
+                    + ". [name=" + name + "]");
+            state.setState(EProcessState.Running);
+        } catch (ConfigurationException e) {
+            exception(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Dispose this executor instance. The lanes drain the queued sub-batches
+     * before terminating.
+     */
+    @Override
+    public void dispose() {
+        lock.writeLock().lock();
+        try {
+            if (state.getState() != EProcessState.Exception)
+                state.setState(EProcessState.Stopped);
+            if (threads != null && !threads.isEmpty()) {
+                for (MonitoredThread t : threads) {
+                    try {
+                        if (t != null)
+                            t.join();
+                    } catch (InterruptedException e) {
+                        LogUtils.warn(getClass(), e.getLocalizedMessage());
+                    }
+                }
+            }
+            if (processors != null) {
+                for (Processor<M> p : processors) {
+                    p.dispose();
+                }
+                processors.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of lanes.
+     *
+     * @return the lanes
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Sets the number of lanes.
+     *
+     * @param lanes
+     *            the lanes to set
+     */
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * Gets the lane queue size.
+     *
+     * @return the laneQueueSize
+     */
+    public int getLaneQueueSize() {
+        return laneQueueSize;
+    }
+
+    /**
+     * Sets the lane queue size.
+     *
+     * @param laneQueueSize
+     *            the laneQueueSize to set
+     */
+    public void setLaneQueueSize(int laneQueueSize) {
+        this.laneQueueSize = laneQueueSize;
+    }
+
+    /**
+     * Gets the message key extractor.
+     *
+     * @return the extractor
+     */
+    public KeyExtractor<M> getExtractor() {
+        return extractor;
+    }
+
+    /**
+     * Sets the message key extractor.
+     *
+     * @param extractor
+     *            the extractor to set
+     */
+    public void setExtractor(KeyExtractor<M> extractor) {
+        this.extractor = extractor;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+/**
+ * Interface to be implemented to extract the ordering key of a message.
+ * Messages with the same key are processed in the order they were read.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public interface KeyExtractor<M> {
+    /**
+     * Get the ordering key for the specified message.
+     *
+     * @param message
+     *            - Message to extract the key from.
+     * @return - Message key, NULL if the message has no ordering requirement.
+     */
+    public Object key(Message<M> message);
+}
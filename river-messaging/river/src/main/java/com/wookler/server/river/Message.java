@@ -40,6 +40,8 @@ public class Message<M> {
         private long blockindex;
         /** message creation time */
         private long timestamp;
+        /** queue sequence of the message ID, -1 if not created by the queue */
+        private long sequence = -1;
         /** message send time */
         private long sendtime;
 
@@ -131,6 +133,28 @@ public class Message<M> {
             return timestamp;
         }
 
+        /**
+         * Set the queue sequence the message ID was created with.
+         *
+         * @param sequence
+         *            - Queue sequence.
+         * @return - Self.
+         */
+        public Header sequence(long sequence) {
+            this.sequence = sequence;
+
+            return this;
+        }
+
+        /**
+         * Get the queue sequence the message ID was created with.
+         *
+         * @return - Queue sequence, -1 if the ID was not created by the queue.
+         */
+        public long sequence() {
+            return sequence;
+        }
+
         /**
          * Set the timestamp this message was de-queued.
          *
@@ -162,6 +186,7 @@ public class Message<M> {
             Header h = new Header();
             h.id = this.id;
             h.timestamp = this.timestamp;
+            h.sequence = this.sequence;
             h.sendtime = this.sendtime;
 
             return h;
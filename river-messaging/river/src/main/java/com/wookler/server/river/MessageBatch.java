@@ -0,0 +1,220 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Reusable view of a message batch passed along a processor chain. Instead of
+ * each processor copying the surviving messages into a new list, the batch
+ * keeps a selection vector (indexes of the selected messages) over the source
+ * list and processors drop messages in place. The selection is compacted once
+ * per processor stage.
+ * <p/>
+ * The source list is never modified: messages replaced by a processor are
+ * written to an internal list, which is reused across batches. A batch
+ * instance is not thread safe and is meant to be reused by a single thread.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @param <M>
+ *            the generic type
+ * @created 16/10/26
+ */
+public class MessageBatch<M> {
+    /** messages the selection indexes point into */
+    private List<Message<M>> source = null;
+    /** copy of the source, used once messages are replaced */
+    private ArrayList<Message<M>> replaced = new ArrayList<Message<M>>();
+    /** selection vector, indexes into the source list */
+    private int[] selection = new int[0];
+    /** number of selected messages */
+    private int size = 0;
+    /** messages dropped in the current stage, by selection position */
+    private BitSet dropped = new BitSet();
+    /** have any messages been dropped in the current stage */
+    private boolean hasDropped = false;
+
+    /**
+     * Reset the batch to select all the messages in the specified list. Lists
+     * without constant time random access are copied to the internal list.
+     *
+     * @param messages
+     *            - Source list of messages.
+     * @return - Self.
+     */
+    public MessageBatch<M> reset(List<Message<M>> messages) {
+        clear();
+        source = messages;
+        if (messages != null && !(messages instanceof RandomAccess)) {
+            replaced.addAll(messages);
+            source = replaced;
+        }
+        if (messages != null) {
+            size = messages.size();
+            if (selection.length < size)
+                selection = new int[size];
+            for (int ii = 0; ii < size; ii++) {
+                selection[ii] = ii;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Clear the batch and release the references to the messages.
+     */
+    public void clear() {
+        source = null;
+        replaced.clear();
+        size = 0;
+        if (hasDropped) {
+            dropped.clear();
+            hasDropped = false;
+        }
+    }
+
+    /**
+     * Get the number of selected messages.
+     *
+     * @return - Selected count.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if no messages are selected.
+     *
+     * @return - Is empty?
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the selected message at the specified position.
+     *
+     * @param index
+     *            - Position in the selection.
+     * @return - Message.
+     */
+    public Message<M> get(int index) {
+        return source.get(selection[index]);
+    }
+
+    /**
+     * Replace the selected message at the specified position.
+     *
+     * @param index
+     *            - Position in the selection.
+     * @param message
+     *            - Replacement message.
+     */
+    public void set(int index, Message<M> message) {
+        if (source != replaced) {
+            replaced.clear();
+            replaced.addAll(source);
+            source = replaced;
+        }
+        replaced.set(selection[index], message);
+    }
+
+    /**
+     * Drop the selected message at the specified position. The message is
+     * removed from the selection when the batch is compacted, so positions
+     * remain stable during a processor stage.
+     *
+     * @param index
+     *            - Position in the selection.
+     */
+    public void drop(int index) {
+        dropped.set(index);
+        hasDropped = true;
+    }
+
+    /**
+     * Check if the message at the specified position has been dropped in the
+     * current stage.
+     *
+     * @param index
+     *            - Position in the selection.
+     * @return - Dropped?
+     */
+    public boolean isDropped(int index) {
+        return hasDropped && dropped.get(index);
+    }
+
+    /**
+     * Remove the dropped messages from the selection.
+     *
+     * @return - Number of messages dropped.
+     */
+    public int compact() {
+        if (!hasDropped)
+            return 0;
+        int count = 0;
+        for (int ii = 0; ii < size; ii++) {
+            if (!dropped.get(ii))
+                selection[count++] = selection[ii];
+        }
+        int removed = size - count;
+        size = count;
+        dropped.clear();
+        hasDropped = false;
+        return removed;
+    }
+
+    /**
+     * Replace the selection with the specified list of messages. Used to adapt
+     * processors that return a new list of messages.
+     *
+     * @param messages
+     *            - Messages to select.
+     */
+    public void retain(List<Message<M>> messages) {
+        replaced.clear();
+        if (messages != null)
+            replaced.addAll(messages);
+        source = replaced;
+        size = replaced.size();
+        if (selection.length < size)
+            selection = new int[size];
+        for (int ii = 0; ii < size; ii++) {
+            selection[ii] = ii;
+        }
+        if (hasDropped) {
+            dropped.clear();
+            hasDropped = false;
+        }
+    }
+
+    /**
+     * Copy the selected messages to a new list.
+     *
+     * @return - List of selected messages.
+     */
+    public List<Message<M>> toList() {
+        List<Message<M>> messages = new ArrayList<Message<M>>(size);
+        for (int ii = 0; ii < size; ii++) {
+            messages.add(source.get(selection[ii]));
+        }
+        return messages;
+    }
+}
@@ -21,7 +21,6 @@ package com.wookler.server.river;
 import com.wookler.server.common.AbstractCounter;
 import com.wookler.server.common.Average;
 import com.wookler.server.common.Count;
-import com.wookler.server.common.LockTimeoutException;
 import com.wookler.server.common.utils.*;
 import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
 
@@ -32,10 +31,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -51,20 +51,19 @@ public class MessageBlock {
 
     /**
      * Data structure containing the subscriber handle info. Consists of
-     * subscriber name, chronicle excerpt, last failed index, last read seq and
-     * last read index
+     * subscriber name, chronicle excerpt, last read seq and last read index
      */
     private static final class SubscriberHandle {
         /** subscriber name */
         public String Subscriber;
         /** chronicle excerpt */
         public Excerpt Exceprt;
-        /** index corresponding to last read failure to (due to timeout) */
-        public long LastFailedIndex = -1;
         /** last read sequence */
         public long LastReadSequence = -1;
         /** last read index in the MessageBlock */
         public long LastReadIndex = -1;
+        /** view used to evaluate the attribute filter */
+        public RecordAttributes.View Attributes = null;
     }
 
     public static final class Constants {
@@ -74,7 +73,7 @@ public class MessageBlock {
         public static final String MONITOR_COUNTER_ADDTIME = "time.write";
         public static final String MONITOR_COUNTER_ADDS = "adds";
         public static final String MONITOR_COUNTER_READS = "reads";
-        public static final byte[] PAD_BUFFER = { 0, 0, 0, 0, 0, 0, 0, 0 };
+        public static final String MONITOR_COUNTER_SKIPPED = "skipped";
     }
 
     /** unique block id corresponding to MessageBlock */
@@ -85,6 +84,8 @@ public class MessageBlock {
     private long createtime;
     /** MessageBlock state */
     private EBlockState state;
+    /** on-disk record format of this block */
+    private RecordFormat format;
     /** Chronicle queue */
     private Chronicle chronicle;
     /** write appender to write data to chronicle */
@@ -113,10 +114,33 @@ public class MessageBlock {
      * records
      */
     private AtomicLong m_index = new AtomicLong();
-    /** indicates the last written index in the message block */
-    private long lastWrittenIndex = -1;
+    /**
+     * last committed index in the message block. Published by the writer after
+     * the excerpt has been finished, readers never read past this index.
+     */
+    private volatile long committedIndex = -1;
     /** Chronicle store size (default medium) */
     private ChronicleConfig cc = ChronicleConfig.MEDIUM;
+    /** free excerpts used to back leased record views */
+    private ConcurrentLinkedQueue<Excerpt> excerpts = new ConcurrentLinkedQueue<Excerpt>();
+    /** number of record views currently leased */
+    private AtomicInteger leases = new AtomicInteger();
+    /** pending background recovery, NULL once the block is available */
+    private volatile CountDownLatch recovery = null;
+    /** error raised by the background recovery, if any */
+    private volatile MessageQueueException recoveryError = null;
+    /** block manifest to record lifecycle events to, NULL if disabled */
+    private BlockManifest manifest = null;
+    /** sparse time/sequence index of the records, loaded on first seek */
+    private RecordTimeIndex timeIndex = null;
+    /** timestamp of the first record, -1 if not known yet */
+    private volatile long firstTimestamp = -1;
+    /** number of records between time index entries */
+    private int indexStride = RecordTimeIndex.Constants.DEFAULT_STRIDE;
+    /** message ID index, loaded on first lookup for existing blocks */
+    private MessageIdIndex idIndex = null;
+    /** has the message ID index file been checked for? */
+    private boolean idIndexLoaded = false;
 
     /**
      * Register counters pertaining to MessageBlock (add, add.time, read,
@@ -146,6 +170,12 @@ public class MessageBlock {
         if (c != null) {
             counters.put(Constants.MONITOR_COUNTER_READS, new String[] { c.namespace(), c.name() });
         }
+        c = Monitoring.create(countername(Constants.MONITOR_NAMESPACE),
+                Constants.MONITOR_COUNTER_SKIPPED, Count.class, AbstractCounter.Mode.DEBUG);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_SKIPPED,
+                    new String[] { c.namespace(), c.name() });
+        }
 
     }
 
@@ -225,10 +255,17 @@ public class MessageBlock {
         try {
             chronicle = new IndexedChronicle(directory + "/" + name, cc);
             writer = chronicle.createAppender();
+            committedIndex = writer.lastWrittenIndex();
             createtime = System.currentTimeMillis();
             if (recovery) {
+                format = RecordFormat.read(directory, name);
                 state = EBlockState.RW;
+                checkTail();
             } else {
+                format = RecordFormat.create(directory, name, createtime);
+                timeIndex = RecordTimeIndex.create(directory, name, indexStride);
+                idIndex = new MessageIdIndex();
+                idIndexLoaded = true;
                 reader = chronicle.createExcerpt();
                 state = EBlockState.Unsued;
             }
@@ -240,6 +277,170 @@ public class MessageBlock {
         }
     }
 
+    /**
+     * Restore a sealed block from its manifest entry. The block files are not
+     * accessed, the block is loaded on first read.
+     *
+     * @param lastIndex
+     *            - Last index written to the block.
+     * @param lastSequence
+     *            - Last record sequence written to the block.
+     * @param createtime
+     *            - Block create time.
+     * @return - Self.
+     */
+    public MessageBlock restore(long lastIndex, long lastSequence, long createtime) {
+        b_lock.lock();
+        try {
+            this.committedIndex = lastIndex;
+            this.m_index.set(lastSequence < 0 ? 0 : lastSequence);
+            this.createtime = createtime;
+            state = EBlockState.Unloaded;
+
+            return this;
+        } finally {
+            b_lock.unlock();
+        }
+    }
+
+    /**
+     * Set the manifest block lifecycle events are recorded to.
+     *
+     * @param manifest
+     *            - Block manifest.
+     * @return - Self.
+     */
+    public MessageBlock manifest(BlockManifest manifest) {
+        this.manifest = manifest;
+
+        return this;
+    }
+
+    /**
+     * Set the number of records between the entries of the block time index,
+     * must be set before the block is initialized.
+     *
+     * @param indexStride
+     *            - Index stride.
+     * @return - Self.
+     */
+    public MessageBlock indexStride(int indexStride) {
+        this.indexStride = indexStride;
+
+        return this;
+    }
+
+    /**
+     * Mark this block as pending recovery. Reads on the block wait till
+     * {@link #recover()} has completed.
+     *
+     * @return - Self.
+     */
+    public MessageBlock recovering() {
+        recovery = new CountDownLatch(1);
+        state = EBlockState.Recovering;
+
+        return this;
+    }
+
+    /**
+     * Recover the existing block. The block is opened and verified, closed for
+     * writes and unloaded. The message ID index is rebuilt from the records if
+     * the block was not sealed. Threads waiting on the block are released once
+     * recovery completes.
+     *
+     * @return - Self.
+     * @throws MessageQueueException
+     */
+    public MessageBlock recover() throws MessageQueueException {
+        b_lock.lock();
+        try {
+            init(true);
+            if (!MessageIdIndex.exists(directory, name)) {
+                try {
+                    idIndex = idIndex();
+                    idIndexLoaded = true;
+                } catch (IOException ie) {
+                    throw new MessageQueueException("Error rebuilding message ID index. [BLOCK="
+                            + id + "]", ie);
+                }
+            }
+            closewriter();
+            unload();
+
+            return this;
+        } catch (MessageQueueException e) {
+            state = EBlockState.Exception;
+            recoveryError = e;
+            throw e;
+        } finally {
+            CountDownLatch l = recovery;
+            recovery = null;
+            if (l != null)
+                l.countDown();
+            b_lock.unlock();
+        }
+    }
+
+    /**
+     * Check if this block is pending recovery.
+     *
+     * @return - Is recovering?
+     */
+    public boolean isRecovering() {
+        return (recovery != null);
+    }
+
+    /**
+     * Wait for a pending recovery of this block to complete.
+     *
+     * @throws MessageQueueException
+     *             - If the recovery failed.
+     */
+    private void awaitRecovery() throws MessageQueueException {
+        CountDownLatch l = recovery;
+        if (l != null) {
+            try {
+                l.await();
+            } catch (InterruptedException e) {
+                throw new MessageQueueException("Interrupted waiting for block recovery. [BLOCK="
+                        + id + "]", e);
+            }
+        }
+        if (recoveryError != null)
+            throw new MessageQueueException("Block recovery failed. [BLOCK=" + id + "]",
+                    recoveryError);
+    }
+
+    /**
+     * Verify the last record written to a recovered block, a record torn by a
+     * crash during write is reported and will be skipped by readers. The
+     * record sequence is restored from the last valid record.
+     *
+     * @throws IOException
+     */
+    private void checkTail() throws IOException {
+        if (committedIndex < 0)
+            return;
+        Excerpt e = chronicle.createExcerpt();
+        try {
+            if (!e.index(committedIndex) || e.wasPadding())
+                return;
+            Record r = read(e, committedIndex);
+            if (r != null)
+                m_index.set(r.sequence());
+        } catch (MessageDataException de) {
+            LogUtils.warn(getClass(), String.format("Torn record found in block. [BLOCK=%s] : %s",
+                    id, de.getLocalizedMessage()), log);
+        } catch (MessageQueueException qe) {
+            LogUtils.warn(getClass(), String.format(
+                    "Error verifying block tail record. [BLOCK=%s] : %s", id,
+                    qe.getLocalizedMessage()), log);
+        } finally {
+            e.close();
+        }
+    }
+
     /**
      * Get the next block in this linked list whose state matches one of the
      * specified states.
@@ -335,12 +536,7 @@ public class MessageBlock {
     public long write(byte[] data) throws MessageQueueException {
         if (data == null)
             throw new MessageQueueException("Invalid argument. NULL records passed.");
-        Record record = record(data);
-        if (record != null) {
-            lastWrittenIndex = write(record);
-            return lastWrittenIndex;
-        } else
-            throw new MessageQueueException("Error creating queue record. Null record returned.");
+        return write(new RecordEncoder.ByteArrayEncoder(data));
     }
 
     /**
@@ -380,6 +576,23 @@ public class MessageBlock {
             state = EBlockState.RO;
 
             writer.close();
+            if (timeIndex != null)
+                timeIndex.close();
+            if (idIndex != null) {
+                try {
+                    idIndex.seal(directory, name);
+                } catch (IOException ie) {
+                    LogUtils.warn(getClass(), String.format(
+                            "Error writing message ID index. [BLOCK=%s] : %s", id,
+                            ie.getLocalizedMessage()), log);
+                    idIndex = null;
+                }
+            }
+            if (manifest != null) {
+                long sequence = m_index.get();
+                manifest.sealed(id, committedIndex, (sequence > 0 ? 1 : -1),
+                        (sequence > 0 ? sequence : -1));
+            }
         } finally {
             b_lock.unlock();
         }
@@ -403,6 +616,7 @@ public class MessageBlock {
             try {
                 if (reader != null)
                     reader.close();
+                closeExcerpts();
                 if (readers != null && !readers.isEmpty()) {
                     for (String k : readers.keySet()) {
                         readers.get(k).Exceprt.close();
@@ -485,6 +699,240 @@ public class MessageBlock {
         return chronicle.size();
     }
 
+    /**
+     * Get the index of the last record committed to this block. Unlike
+     * {@link #size()} this is available for unloaded blocks as well.
+     *
+     * @return - Last committed index, -1 if the block is empty.
+     */
+    public long committedIndex() {
+        return committedIndex;
+    }
+
+    /**
+     * Find the first record written at or after the specified timestamp. The
+     * sparse time index is used to find the record to start the scan from, so
+     * at most index stride records are scanned. The block is reloaded if
+     * unloaded.
+     *
+     * @param timestamp
+     *            - Timestamp (in milliseconds).
+     * @return - Record index, -1 if all the records have been written before
+     *         the timestamp.
+     * @throws MessageQueueException
+     */
+    public long seek(long timestamp) throws MessageQueueException {
+        awaitRecovery();
+        b_lock.lock();
+        try {
+            RecordTimeIndex index = timeIndex();
+            int entry = index.floor(timestamp);
+            long start = (entry >= 0 ? index.index(entry) : 0);
+            if (!EBlockState.available(state))
+                reload();
+            Excerpt e = chronicle.createExcerpt();
+            try {
+                Record record = new Record();
+                for (long ii = start; ii <= committedIndex; ii++) {
+                    if (!e.index(ii))
+                        break;
+                    if (e.wasPadding())
+                        continue;
+                    try {
+                        header(e, record);
+                        if (record.timestamp() >= timestamp)
+                            return ii;
+                    } catch (MessageDataException de) {
+                        // Torn record, skip.
+                    } finally {
+                        e.finish();
+                    }
+                }
+                return -1;
+            } finally {
+                e.close();
+            }
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error seeking block. [BLOCK=" + id + "]", ie);
+        } finally {
+            b_lock.unlock();
+        }
+    }
+
+    /**
+     * Get the timestamp of the first record in this block. The timestamp is
+     * cached once known, only the first lookup on an existing block reads the
+     * time index.
+     *
+     * @return - First record timestamp, -1 if the block is empty.
+     * @throws MessageQueueException
+     */
+    public long firstTimestamp() throws MessageQueueException {
+        long ts = firstTimestamp;
+        if (ts >= 0)
+            return ts;
+        awaitRecovery();
+        b_lock.lock();
+        try {
+            RecordTimeIndex index = timeIndex();
+            if (index.size() > 0)
+                firstTimestamp = index.timestamp(0);
+            return firstTimestamp;
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error reading block time index. [BLOCK=" + id + "]",
+                    ie);
+        } finally {
+            b_lock.unlock();
+        }
+    }
+
+    /**
+     * Find the record of a message by the message ID, using the message ID
+     * index of the block. Lookups on sealed blocks do not load the block.
+     *
+     * @param key
+     *            - Message ID key (see {@link MessageIdIndex#key(String)}).
+     * @return - Record index, -1 if not found or if the block has no message
+     *         ID index (blocks recovered after a crash while being written
+     *         to).
+     * @throws MessageQueueException
+     */
+    public long find(long[] key) throws MessageQueueException {
+        MessageIdIndex index;
+        b_lock.lock();
+        try {
+            if (!idIndexLoaded) {
+                idIndex = MessageIdIndex.read(directory, name);
+                idIndexLoaded = true;
+            }
+            index = idIndex;
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error reading message ID index. [BLOCK=" + id + "]",
+                    ie);
+        } finally {
+            b_lock.unlock();
+        }
+        if (index == null)
+            return -1;
+        try {
+            return index.get(key);
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error reading message ID index. [BLOCK=" + id + "]",
+                    ie);
+        }
+    }
+
+    /**
+     * Read the record at the specified index. The block is reloaded if
+     * unloaded.
+     *
+     * @param index
+     *            - Record index.
+     * @return - Record read.
+     * @throws MessageQueueException
+     */
+    public Record read(long index) throws MessageQueueException {
+        awaitRecovery();
+        b_lock.lock();
+        try {
+            if (!EBlockState.available(state))
+                reload();
+            if (!EBlockState.canread(state))
+                throw new MessageQueueException("Block not available for reads. [state="
+                        + state.name() + "]");
+            Excerpt e = chronicle.createExcerpt();
+            try {
+                return read(e, index);
+            } finally {
+                e.close();
+            }
+        } catch (MessageDataException de) {
+            throw new MessageQueueException("Error reading record. [BLOCK=" + id + "][INDEX="
+                    + index + "]", de);
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error reading record. [BLOCK=" + id + "][INDEX="
+                    + index + "]", ie);
+        } finally {
+            b_lock.unlock();
+        }
+    }
+
+    /**
+     * Get the time index of this block, the index is loaded from the index
+     * file or rebuilt from the records for blocks written without an index.
+     * Must be called with the block lock held.
+     *
+     * @return - Time index.
+     * @throws IOException
+     * @throws MessageQueueException
+     */
+    private RecordTimeIndex timeIndex() throws IOException, MessageQueueException {
+        if (timeIndex != null)
+            return timeIndex;
+        RecordTimeIndex index = RecordTimeIndex.read(directory, name);
+        if (index == null) {
+            LogUtils.debug(getClass(), "Rebuilding block time index. [BLOCK=" + id + "]");
+            if (!EBlockState.available(state))
+                reload();
+            index = RecordTimeIndex.memory(indexStride);
+            Excerpt e = chronicle.createExcerpt();
+            try {
+                Record record = new Record();
+                for (long ii = 0; ii <= committedIndex; ii++) {
+                    if (!e.index(ii))
+                        break;
+                    if (e.wasPadding())
+                        continue;
+                    try {
+                        header(e, record);
+                        index.record(ii, record.sequence(), record.timestamp());
+                    } catch (MessageDataException de) {
+                        // Torn record, skip.
+                    } finally {
+                        e.finish();
+                    }
+                }
+            } finally {
+                e.close();
+            }
+        }
+        timeIndex = index;
+        return index;
+    }
+
+    /**
+     * Rebuild the message ID index of this block from the records, for blocks
+     * closed without sealing the index (crash while being written to). Must be
+     * called with the block lock held, on an open block.
+     *
+     * @return - Message ID index, to be sealed.
+     * @throws IOException
+     * @throws MessageQueueException
+     */
+    private MessageIdIndex idIndex() throws IOException, MessageQueueException {
+        LogUtils.debug(getClass(), "Rebuilding message ID index. [BLOCK=" + id + "]");
+        MessageIdIndex index = new MessageIdIndex();
+        Excerpt e = chronicle.createExcerpt();
+        try {
+            for (long ii = 0; ii <= committedIndex; ii++) {
+                if (!e.index(ii))
+                    break;
+                if (e.wasPadding())
+                    continue;
+                try {
+                    long[] key = MessageIdIndex.key(ByteConvertor.id(read(e, ii).bytes()));
+                    if (key != null)
+                        index.put(key[0], key[1], ii);
+                } catch (MessageDataException de) {
+                    // Torn record, skip.
+                }
+            }
+        } finally {
+            e.close();
+        }
+        return index;
+    }
+
     /**
      * Check if this block has any active readers.
      *
@@ -494,6 +942,15 @@ public class MessageBlock {
         return !readers.isEmpty();
     }
 
+    /**
+     * Check if this block has any leased record views.
+     *
+     * @return - Has leased views?
+     */
+    public boolean hasLeases() {
+        return leases.get() > 0;
+    }
+
     /**
      * Register a new subscriber to this block. If the block is not available,
      * it is reloaded in RO mode. While registering the subscriber, create a
@@ -506,6 +963,25 @@ public class MessageBlock {
      * @throws MessageQueueException
      */
     public MessageBlock subscribe(String name) throws MessageQueueException {
+        return subscribe(name, -1, -1);
+    }
+
+    /**
+     * Register a new subscriber to this block, resuming reads after the
+     * specified position (subscriber checkpoint).
+     *
+     * @param name
+     *            - Subscriber name.
+     * @param lastReadIndex
+     *            - Index of the last record read, -1 to read from the start.
+     * @param lastReadSequence
+     *            - Sequence of the last record read.
+     * @return - Self.
+     * @throws MessageQueueException
+     */
+    public MessageBlock subscribe(String name, long lastReadIndex, long lastReadSequence)
+            throws MessageQueueException {
+        awaitRecovery();
         b_lock.lock();
         try {
             // Subscriber names are case insensitive.
@@ -522,12 +998,13 @@ public class MessageBlock {
                     throw new MessageQueueException("Subscriber with name already exists. [name="
                             + name + "]");
                 Excerpt e = chronicle.createExcerpt();
-                e.index(0);
+                e.index(lastReadIndex > 0 ? lastReadIndex : 0);
 
                 SubscriberHandle h = new SubscriberHandle();
                 h.Exceprt = e;
-                h.LastFailedIndex = -1;
                 h.Subscriber = name;
+                h.LastReadIndex = lastReadIndex;
+                h.LastReadSequence = lastReadSequence;
                 readers.put(name, h);
                 return this;
             } catch (IOException ie) {
@@ -591,6 +1068,36 @@ public class MessageBlock {
         return -1;
     }
 
+    /**
+     * Get the index of the last record read by the subscriber.
+     *
+     * @param subscriber
+     *            the subscriber name
+     * @return the last read index, -1 if nothing has been read or the
+     *         subscriber is not registered
+     */
+    public long lastReadIndex(String subscriber) {
+        SubscriberHandle h = readers.get(subscriber.toUpperCase());
+        if (h != null)
+            return h.LastReadIndex;
+        return -1;
+    }
+
+    /**
+     * Get the sequence of the last record read by the subscriber.
+     *
+     * @param subscriber
+     *            the subscriber name
+     * @return the last read sequence, -1 if nothing has been read or the
+     *         subscriber is not registered
+     */
+    public long lastReadSequence(String subscriber) {
+        SubscriberHandle h = readers.get(subscriber.toUpperCase());
+        if (h != null)
+            return h.LastReadSequence;
+        return -1;
+    }
+
     /**
      * Read the message records from the queue corresponding to the specified
      * keys and wrap it in a {@link ReadResponse} object and return
@@ -603,6 +1110,7 @@ public class MessageBlock {
      *             the message queue exception
      */
     public ReadResponse read(List<MessageAckRecord> keys) throws MessageQueueException {
+        awaitRecovery();
         try {
             if (state == EBlockState.Unloaded) {
                 reload();
@@ -635,23 +1143,119 @@ public class MessageBlock {
     }
 
     /**
-     * Read the next (n) records from the specified subscriber queue. The read
-     * function is lock controlled using an external lock, as concurrency is not
-     * required unless reading the last record.
+     * Read the next (n) records from the specified subscriber queue. Reads do
+     * not acquire the queue write lock, records are only read up to the index
+     * committed by the writer.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param size
+     *            - Message batch size to read.
+     * @param timeout
+     *            - Read timeout.
+     * @return - Data bytes read.
+     * @throws MessageQueueException
+     */
+    public ReadResponse read(String subscriber, int size, long timeout)
+            throws MessageQueueException {
+        return read(subscriber, size, timeout, false, null);
+    }
+
+    /**
+     * Read the next (n) records from the specified subscriber queue, that
+     * match the attribute filter. Records that do not match are skipped
+     * without being copied.
      *
      * @param subscriber
      *            - Subscriber name.
      * @param size
      *            - Message batch size to read.
-     * @param w_lock
-     *            - Lock to be used for concurrency.
      * @param timeout
-     *            - Lock timeout.
+     *            - Read timeout.
+     * @param filter
+     *            - Record attribute filter, NULL to read all records.
      * @return - Data bytes read.
      * @throws MessageQueueException
      */
-    public ReadResponse read(String subscriber, int size, ReentrantLock w_lock, long timeout)
+    public ReadResponse read(String subscriber, int size, long timeout, FilterExpression filter)
             throws MessageQueueException {
+        return read(subscriber, size, timeout, false, filter);
+    }
+
+    /**
+     * Lease the next (n) records from the specified subscriber queue as
+     * zero-copy {@link RecordView}s. The views must be released once consumed,
+     * the block will not be unloaded while views are leased.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param size
+     *            - Message batch size to read.
+     * @param timeout
+     *            - Read timeout.
+     * @return - Leased record views.
+     * @throws MessageQueueException
+     */
+    public ReadResponse lease(String subscriber, int size, long timeout)
+            throws MessageQueueException {
+        return read(subscriber, size, timeout, true, null);
+    }
+
+    /**
+     * Lease the next (n) records from the specified subscriber queue, that
+     * match the attribute filter, as zero-copy {@link RecordView}s.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param size
+     *            - Message batch size to read.
+     * @param timeout
+     *            - Read timeout.
+     * @param filter
+     *            - Record attribute filter, NULL to read all records.
+     * @return - Leased record views.
+     * @throws MessageQueueException
+     */
+    public ReadResponse lease(String subscriber, int size, long timeout, FilterExpression filter)
+            throws MessageQueueException {
+        return read(subscriber, size, timeout, true, filter);
+    }
+
+    /**
+     * Release a leased record view and return the backing excerpt to the free
+     * list.
+     *
+     * @param view
+     *            - Record view being released.
+     * @param excerpt
+     *            - Excerpt backing the view.
+     */
+    protected void release(RecordView view, Excerpt excerpt) {
+        excerpt.finish();
+        excerpts.offer(excerpt);
+        leases.decrementAndGet();
+    }
+
+    /**
+     * Read the next (n) records from the specified subscriber queue, either
+     * copied or as leased views.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param size
+     *            - Message batch size to read.
+     * @param timeout
+     *            - Read timeout.
+     * @param lease
+     *            - Lease record views instead of copying the records.
+     * @param filter
+     *            - Record attribute filter, NULL to read all records.
+     * @return - Data read.
+     * @throws MessageQueueException
+     */
+    private ReadResponse read(String subscriber, int size, long timeout, boolean lease,
+            FilterExpression filter) throws MessageQueueException {
+        awaitRecovery();
 
         subscriber = subscriber.toUpperCase();
 
@@ -663,16 +1267,17 @@ public class MessageBlock {
 
         ReadResponse response = new ReadResponse();
         int count = 0;
+        List<Record> records = new ArrayList<Record>();
+        boolean done = false;
         try {
             SubscriberHandle h = readers.get(subscriber);
             Record record = null;
 
             long delta_t = TimeUtils.timeout(ts, timeout);
-            List<Record> records = new ArrayList<Record>();
 
             while (count < size && delta_t > 0) {
                 try {
-                    record = read(h, w_lock, delta_t);
+                    record = readNext(h, lease, filter);
                     if (record == null) {
                         if (state == EBlockState.RW) {
                             response.status(ReadResponse.EReadResponseStatus.BlockEmpty);
@@ -693,9 +1298,6 @@ public class MessageBlock {
                     count++;
                 } catch (MessageDataException de) {
                     LogUtils.warn(getClass(), de.getLocalizedMessage(), log);
-                } catch (LockTimeoutException te) {
-                    response.status(ReadResponse.EReadResponseStatus.LockTimeout);
-                    break;
                 }
                 delta_t = TimeUtils.timeout(ts, timeout);
             }
@@ -711,8 +1313,14 @@ public class MessageBlock {
                 response.status(ReadResponse.EReadResponseStatus.NoData);
             }
 
+            done = true;
             return response;
         } finally {
+            if (!done && lease) {
+                for (Record r : records) {
+                    ((RecordView) r).release();
+                }
+            }
             if (response != null && response.data() != null && response.data().size() > 0) {
                 timerstop(Constants.MONITOR_COUNTER_READTIME, ts, response.data().size());
             }
@@ -729,7 +1337,7 @@ public class MessageBlock {
      *             the message queue exception
      */
     private boolean isBlockDone(SubscriberHandle h) throws MessageQueueException {
-        if (h.Exceprt.index() < lastWrittenIndex)
+        if (h.Exceprt.index() < committedIndex)
             return false;
         return true;
     }
@@ -746,7 +1354,7 @@ public class MessageBlock {
     public boolean unload() throws MessageQueueException {
         b_lock.lock();
         try {
-            if (hasReaders())
+            if (hasReaders() || hasLeases())
                 return false;
             LogUtils.debug(getClass(), String.format("Unloading block [%s] ...", this.id));
             try {
@@ -755,8 +1363,11 @@ public class MessageBlock {
                     reader.close();
                     reader = null;
                 }
+                closeExcerpts();
 
                 state = EBlockState.Unloaded;
+                if (manifest != null)
+                    manifest.unloaded(id);
                 return true;
             } catch (IOException e) {
                 LogUtils.stacktrace(getClass(), e);
@@ -776,12 +1387,15 @@ public class MessageBlock {
      * @throws MessageQueueException
      */
     public boolean reload() throws MessageQueueException {
+        awaitRecovery();
         if (EBlockState.available(state))
             return false;
         String dbf = directory + "/" + name;
         LogUtils.debug(getClass(), String.format("Reloading block [%s][%s]", this.id, dbf));
         try {
-
+            // Blocks restored from the manifest are loaded on first read.
+            if (format == null)
+                format = RecordFormat.read(directory, name);
             chronicle = new IndexedChronicle(dbf, cc);
 
             state = EBlockState.RO;
@@ -800,7 +1414,7 @@ public class MessageBlock {
      * @return - Can reload?
      */
     public boolean canUnload() {
-        if (state == EBlockState.RO && !hasReaders())
+        if (state == EBlockState.RO && !isRecovering() && !hasReaders() && !hasLeases())
             return true;
         return false;
     }
@@ -812,7 +1426,7 @@ public class MessageBlock {
      */
     public boolean canGC() {
         if ((state == EBlockState.RO || state == EBlockState.Closed || state == EBlockState.Unloaded)
-                && !hasReaders())
+                && !isRecovering() && !hasReaders() && !hasLeases())
             return true;
         return false;
     }
@@ -837,13 +1451,14 @@ public class MessageBlock {
 
         try {
 
-            e.index(index);
+            if (!e.index(index))
+                throw new MessageDataException(String.format(
+                        "Invalid Data Record : Index not found. [BLOCK: %s][INDEX: %d]", id, index));
 
             record.index(index);
-            record.size(e.readInt());
-            record.timestamp(e.readLong());
-            record.sequence(e.readLong());
+            int asize = header(e, record);
             if (record.size() > 0) {
+                long offset = e.position();
                 byte[] buff = new byte[record.size()];
                 int cc = e.read(buff, 0, record.size());
                 if (cc != record.size()) {
@@ -852,6 +1467,7 @@ public class MessageBlock {
                                     "Invalid Data Record : Message records size mismatch [expected=%d, received=%d][timestamp: %d]. [BLOCK: %s][INDEX: %d][SIZE: %d]",
                                     record.size(), cc, record.timestamp(), id, e.index(), e.size()));
                 }
+                checksum(e, record, crc(e, offset, asize, buff));
                 if (cc > 0) {
                     record.bytes(buff);
                 }
@@ -876,29 +1492,52 @@ public class MessageBlock {
     }
 
     /**
-     * Read data and wrap it in Record object
+     * Read data and wrap it in Record object. If lease is requested, the
+     * payload is not copied and a {@link RecordView} backed by a free excerpt
+     * is returned. If an attribute filter is specified, it is evaluated on the
+     * record attributes in the excerpt, records that do not match are skipped
+     * before the payload is read (V3 blocks only, records of older blocks have
+     * no attributes and are always read).
      *
      * @param h
      *            the subscriber handle
-     * @return the record object containing the read message
+     * @param lease
+     *            lease a record view instead of copying the payload
+     * @param filter
+     *            the record attribute filter, NULL to read all records
+     * @return the record object containing the read message, NULL if the
+     *         record has been skipped
      * @throws MessageQueueException
      *             the message queue exception
      * @throws MessageDataException
      *             the message data exception
      */
-    private Record read(SubscriberHandle h) throws MessageQueueException, MessageDataException {
-        Record record = new Record();
+    private Record read(SubscriberHandle h, boolean lease, FilterExpression filter)
+            throws MessageQueueException, MessageDataException {
+        Record record = (lease ? new RecordView() : new Record());
         Excerpt e = h.Exceprt;
+        long indx = e.index();
 
         try {
 
-            long indx = e.index();
-
             record.index(indx);
-            record.size(e.readInt());
-            record.timestamp(e.readLong());
-            record.sequence(e.readLong());
-            if (record.size() > 0) {
+            int asize = header(e, record);
+            if (filter != null && format.version() >= RecordFormat.Constants.V3
+                    && !matches(h, filter, e, asize)) {
+                sequence(h, e, record);
+                incrementCounter(Constants.MONITOR_COUNTER_SKIPPED, 1);
+                return null;
+            }
+            if (lease && record.size() > 0) {
+                long offset = e.position();
+                if (format.version() >= RecordFormat.Constants.V2) {
+                    e.position(offset + record.size());
+                    checksum(e, record,
+                            RecordFormat.crc32c(e, offset - asize, asize + record.size()));
+                }
+                ((RecordView) record).lease(this, excerpt(indx), offset);
+            } else if (record.size() > 0) {
+                long offset = e.position();
                 byte[] buff = new byte[record.size()];
                 int cc = e.read(buff, 0, record.size());
                 if (cc != record.size()) {
@@ -907,6 +1546,7 @@ public class MessageBlock {
                                     "Invalid Data Record : Message records size mismatch [expected=%d, received=%d][timestamp: %d]. [BLOCK: %s][INDEX: %d][SIZE: %d]",
                                     record.size(), cc, record.timestamp(), id, e.index(), e.size()));
                 }
+                checksum(e, record, crc(e, offset, asize, buff));
                 if (cc > 0) {
                     record.bytes(buff);
                 }
@@ -917,38 +1557,18 @@ public class MessageBlock {
                                 record.timestamp(), id, e.index(), e.size()));
             }
 
-            if (h.LastReadIndex >= 0 && record.sequence() != (h.LastReadSequence + 1)) {
-                LogUtils.mesg(
-                        getClass(),
-                        String.format(
-                                "Missing Record Sequence. [LAST=%d][CURRENT=%d][LAST INDEX=%d][CURRENT INDEX=%d]",
-                                h.LastReadSequence, record.sequence(), h.LastReadIndex,
-                                record.index()));
-                if (log.isInfoEnabled()) {
-                    e.index(h.LastReadIndex);
-                    long nindex = h.LastReadIndex + 1;
-                    while (true) {
-                        if (e.index() == record.index())
-                            break;
-                        e.index(nindex);
-                        if (e.wasPadding()) {
-                            LogUtils.mesg(getClass(), "Padded index. [" + e.index() + "]");
-                        } else {
-                            LogUtils.mesg(getClass(), "Found valid index. [" + e.index() + "]");
-                        }
-                        nindex++;
-                    }
-                }
-            }
-            h.LastReadSequence = record.sequence();
-            h.LastReadIndex = record.index();
+            sequence(h, e, record);
+        } catch (MessageDataException de) {
+            // Skip the corrupt record, the sequence gap is reported on the
+            // next read.
+            h.LastReadIndex = indx;
+            throw de;
         } finally {
             incrementCounter(Constants.MONITOR_COUNTER_READS, 1);
-            h.LastFailedIndex = -1;
             e.finish();
         }
 
-        if (record.bytes() == null || record.bytes().length <= 0)
+        if (!lease && (record.bytes() == null || record.bytes().length <= 0))
             throw new MessageDataException(String.format(
                     "Invalid Data Record : No message body read. [BLOCK: %s][INDEX: %d][SIZE: %d]",
                     id, e.index(), e.size()));
@@ -958,24 +1578,220 @@ public class MessageBlock {
     }
 
     /**
-     * Read data and wrap it in Record object
+     * Evaluate the attribute filter on the record attributes, the excerpt must
+     * be positioned at the start of the record payload.
+     *
+     * @param h
+     *            the subscriber handle
+     * @param filter
+     *            the record attribute filter
+     * @param e
+     *            the record excerpt
+     * @param asize
+     *            the encoded size of the record attributes
+     * @return does the record match?
+     */
+    private boolean matches(SubscriberHandle h, FilterExpression filter, Excerpt e, int asize) {
+        if (h.Attributes == null)
+            h.Attributes = new RecordAttributes.View();
+        try {
+            return filter.evaluate(h.Attributes.bind(e, e.position() - asize, asize));
+        } catch (Filter.FilterException fe) {
+            // Let the subscriber see the record.
+            LogUtils.debug(getClass(), "Error evaluating attribute filter. [BLOCK=" + id
+                    + "][INDEX=" + e.index() + "] : " + fe.getLocalizedMessage());
+            return true;
+        } finally {
+            h.Attributes.release();
+        }
+    }
+
+    /**
+     * Compute the record checksum, over the attributes and the payload read.
+     *
+     * @param e
+     *            the record excerpt
+     * @param offset
+     *            the payload start position
+     * @param asize
+     *            the encoded size of the record attributes
+     * @param buff
+     *            the payload bytes
+     * @return the computed checksum
+     */
+    private int crc(Excerpt e, long offset, int asize, byte[] buff) {
+        if (asize > 0)
+            return RecordFormat.crc32c(e, offset - asize, asize + buff.length);
+        return RecordFormat.crc32c(buff, 0, buff.length);
+    }
+
+    /**
+     * Update the subscriber read position with the record read (or skipped),
+     * reporting gaps in the record sequence.
+     *
+     * @param h
+     *            the subscriber handle
+     * @param e
+     *            the record excerpt
+     * @param record
+     *            the record read
+     */
+    private void sequence(SubscriberHandle h, Excerpt e, Record record) {
+        // The last read sequence is not known after a seek.
+        if (h.LastReadIndex >= 0 && h.LastReadSequence >= 0
+                && record.sequence() != (h.LastReadSequence + 1)) {
+            LogUtils.mesg(
+                    getClass(),
+                    String.format(
+                            "Missing Record Sequence. [LAST=%d][CURRENT=%d][LAST INDEX=%d][CURRENT INDEX=%d]",
+                            h.LastReadSequence, record.sequence(), h.LastReadIndex,
+                            record.index()));
+            if (log.isInfoEnabled()) {
+                e.index(h.LastReadIndex);
+                long nindex = h.LastReadIndex + 1;
+                while (true) {
+                    if (e.index() == record.index())
+                        break;
+                    e.index(nindex);
+                    if (e.wasPadding()) {
+                        LogUtils.mesg(getClass(), "Padded index. [" + e.index() + "]");
+                    } else {
+                        LogUtils.mesg(getClass(), "Found valid index. [" + e.index() + "]");
+                    }
+                    nindex++;
+                }
+            }
+        }
+        h.LastReadSequence = record.sequence();
+        h.LastReadIndex = record.index();
+    }
+
+    /**
+     * Read the record header fields, based on the block record format. The
+     * excerpt is left positioned at the start of the record payload, the
+     * record attributes (V3) precede the payload.
+     *
+     * @param e
+     *            the excerpt positioned at the record start
+     * @param record
+     *            the record to update
+     * @return the encoded size of the record attributes
+     * @throws MessageDataException
+     *             the message data exception
+     */
+    private int header(Excerpt e, Record record) throws MessageDataException {
+        int asize = 0;
+        if (format.version() >= RecordFormat.Constants.V2) {
+            long size = RecordFormat.readVarint(e);
+            long timestamp = format.timestamp() + RecordFormat.unzigzag(RecordFormat.readVarint(e));
+            long sequence = RecordFormat.readVarint(e);
+            if (format.version() >= RecordFormat.Constants.V3) {
+                long length = RecordFormat.readVarint(e);
+                if (length < 0 || length > RecordAttributes.Constants.MAX_SIZE)
+                    throw new MessageDataException(String.format(
+                            "Invalid Data Record : Invalid attributes size. "
+                                    + "[size=%d][BLOCK: %s][INDEX: %d]", length, id, e.index()));
+                asize = (int) length;
+            }
+            if (size <= 0
+                    || e.position() + asize + size + RecordFormat.Constants.CRC_SIZE > e.capacity())
+                throw new MessageDataException(String.format(
+                        "Invalid Data Record : Torn record, size exceeds excerpt. "
+                                + "[size=%d][BLOCK: %s][INDEX: %d][SIZE: %d]", size, id,
+                        e.index(), e.capacity()));
+            e.position(e.position() + asize);
+            record.size((int) size);
+            record.timestamp(timestamp);
+            record.sequence(sequence);
+        } else {
+            record.size(e.readInt());
+            record.timestamp(e.readLong());
+            record.sequence(e.readLong());
+        }
+        return asize;
+    }
+
+    /**
+     * Verify the record payload checksum, the excerpt must be positioned at the
+     * end of the payload. V1 records have no checksum.
+     *
+     * @param e
+     *            the excerpt positioned after the payload
+     * @param record
+     *            the record being read
+     * @param crc
+     *            the computed payload checksum
+     * @throws MessageDataException
+     *             if the checksum does not match
+     */
+    private void checksum(Excerpt e, Record record, int crc) throws MessageDataException {
+        if (format.version() < RecordFormat.Constants.V2)
+            return;
+        int expected = e.readInt();
+        if (expected != crc)
+            throw new MessageDataException(String.format(
+                    "Invalid Data Record : Checksum mismatch [expected=%d, computed=%d]. "
+                            + "[BLOCK: %s][INDEX: %d][SEQUENCE: %d]", expected, crc, id,
+                    record.index(), record.sequence()));
+    }
+
+    /**
+     * Get a free excerpt positioned at the specified index, to back a leased
+     * record view.
+     *
+     * @param index
+     *            the record index
+     * @return the positioned excerpt
+     * @throws MessageQueueException
+     *             the message queue exception
+     */
+    private Excerpt excerpt(long index) throws MessageQueueException {
+        try {
+            Excerpt e = excerpts.poll();
+            if (e == null)
+                e = chronicle.createExcerpt();
+            if (!e.index(index)) {
+                excerpts.offer(e);
+                throw new MessageQueueException(String.format(
+                        "Invalid record index. [BLOCK: %s][INDEX: %d]", id, index));
+            }
+            leases.incrementAndGet();
+            return e;
+        } catch (IOException ie) {
+            throw new MessageQueueException("Error creating lease excerpt.", ie);
+        }
+    }
+
+    /**
+     * Close all the free lease excerpts.
+     */
+    private void closeExcerpts() {
+        Excerpt e = null;
+        while ((e = excerpts.poll()) != null) {
+            e.close();
+        }
+    }
+
+    /**
+     * Read data and wrap it in Record object. Only records up to the committed
+     * index are visible to the reader, so the write lock is never required.
+     * Records not matching the attribute filter are skipped.
      *
      * @param h
      *            the {@link SubscriberHandle}
-     * @param w_lock
-     *            the write lock
-     * @param timeout
-     *            the timeout
-     * @return the newly created message Record containing the read data
+     * @param lease
+     *            lease a record view instead of copying the payload
+     * @param filter
+     *            the record attribute filter, NULL to read all records
+     * @return the newly created message Record containing the read data, NULL
+     *         if no committed records are available
      * @throws MessageQueueException
      *             the message queue exception
      * @throws MessageDataException
      *             the message data exception
-     * @throws LockTimeoutException
-     *             the lock timeout exception
      */
-    private Record read(SubscriberHandle h, ReentrantLock w_lock, long timeout)
-            throws MessageQueueException, MessageDataException, LockTimeoutException {
+    private Record readNext(SubscriberHandle h, boolean lease, FilterExpression filter)
+            throws MessageQueueException, MessageDataException {
         if (!EBlockState.canread(state))
             throw new MessageQueueException("Block not available for reads. [state=" + state.name()
                     + "]");
@@ -983,11 +1799,11 @@ public class MessageBlock {
         if (h == null || h.Exceprt == null)
             throw new MessageQueueException("Invalid Excerpt pointer. Pointer is NULL");
 
-        if (h.LastFailedIndex < 0) {
+        while (true) {
             long index = h.LastReadIndex + 1;
             while (true) {
                 if (writer != null) {
-                    if (index > writer.lastWrittenIndex())
+                    if (index > committedIndex)
                         return null;
                 } else {
                     if (index >= h.Exceprt.size()) {
@@ -1001,98 +1817,91 @@ public class MessageBlock {
                     break;
                 index++;
             }
-        } else {
-            // Indicates there was a lock timeout in the last read operation and
-            // the pointer needs to
-            // start from this value.
-            h.Exceprt.index(h.LastFailedIndex);
+            Record record = read(h, lease, filter);
+            if (record != null)
+                return record;
         }
-
-        if (state == EBlockState.RW) {
-            /*
-             * If writable block, check if the current index being read is the
-             * last index written. In which case the block needs to be locked to
-             * make sure the write operation has finished.
-             */
-            if (h.Exceprt.index() == writer.lastWrittenIndex()) {
-                try {
-                    if (w_lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
-                        w_lock.unlock();
-                        return read(h);
-                    } else {
-                        // In case of a lock timeout, save the index pointer, as
-                        // this needs to be
-                        // read in the next attempt.
-                        h.LastFailedIndex = h.Exceprt.index();
-                        throw new LockTimeoutException("BLOCK:" + id + ":WRITE-LOCK",
-                                "Reader failed to lock queue.");
-                    }
-                } catch (InterruptedException ie) {
-                    h.LastFailedIndex = h.Exceprt.index();
-                    throw new LockTimeoutException("BLOCK:" + id + ":WRITE-LOCK",
-                            "Reader failed to lock queue.");
-                }
-            }
-        }
-        return read(h);
     }
 
     /**
-     * Write the message record to the message block
+     * Write a new record to the block. The record payload is encoded directly
+     * into the block excerpt.
      *
-     * @param record
-     *            the message record to be written
-     * @return the index last written to
+     * @param data
+     *            - Record payload encoder.
+     * @return - Index of the record created.
      * @throws MessageQueueException
-     *             the message queue exception
      */
-    private long write(Record record) throws MessageQueueException {
+    public long write(RecordEncoder data) throws MessageQueueException {
+        if (data == null)
+            throw new MessageQueueException("Invalid argument. NULL records passed.");
         if (!EBlockState.canwrite(state))
             throw new MessageQueueException("Current block is not writable. [state=" + state.name()
                     + "]");
 
+        if (format.version() != RecordFormat.Constants.CURRENT)
+            throw new MessageQueueException("Block record format is read-only. [version="
+                    + format.version() + "]");
+
+        RecordAttributes attributes = data.attributes();
+        int asize = (attributes != null ? attributes.size() : 0);
+        if (asize > RecordAttributes.Constants.MAX_SIZE)
+            throw new MessageQueueException("Record attributes exceed maximum size. [size="
+                    + asize + "][max=" + RecordAttributes.Constants.MAX_SIZE + "]");
+
         long ts = Monitoring.timerstart();
         try {
-            // Message Data Size + size (integer) + timestamp (long) + sequence
-            // (long)
-            int msize = record.size() + Integer.SIZE + Long.SIZE + Long.SIZE;
-            int padsz = 8 - (msize % 8);
-            msize += padsz;
+            // V3 record : size (varint) + timestamp delta (zigzag varint) +
+            // sequence (varint) + attributes size (varint) + attributes +
+            // payload + attributes/payload CRC (int)
+            int size = data.size();
+            long timestamp = System.currentTimeMillis();
+            long delta = RecordFormat.zigzag(timestamp - format.timestamp());
+            // the sequence restarts at 1 for each block, it is written as is.
+            long sequence = m_index.incrementAndGet();
+            int msize = RecordFormat.varintSize(size) + RecordFormat.varintSize(delta)
+                    + RecordFormat.varintSize(sequence) + RecordFormat.varintSize(asize) + asize
+                    + size + RecordFormat.Constants.CRC_SIZE;
 
             writer.startExcerpt(msize);
-            writer.writeInt(record.size());
-            writer.writeLong(record.timestamp());
-            writer.writeLong(record.sequence());
-            writer.write(record.bytes());
-
-            writer.write(Arrays.copyOfRange(Constants.PAD_BUFFER, 0, padsz));
+            RecordFormat.writeVarint(writer, size);
+            RecordFormat.writeVarint(writer, delta);
+            RecordFormat.writeVarint(writer, sequence);
+            RecordFormat.writeVarint(writer, asize);
+            long start = writer.position();
+            if (asize > 0)
+                attributes.encode(writer);
+            data.encode(writer);
+            writer.writeInt(RecordFormat.crc32c(writer, start, asize + size));
             writer.finish();
+            // Publish the committed index only after the excerpt has been
+            // finished and the message ID indexed, readers use this as the
+            // read boundary and can ack the record by ID once read.
+            long index = writer.lastWrittenIndex();
+            if (idIndex != null && data.idSequence() >= 0)
+                idIndex.put(data.idSequence(), data.idTimestamp(), index);
+            committedIndex = index;
+            if (firstTimestamp < 0)
+                firstTimestamp = timestamp;
+            if (timeIndex != null) {
+                try {
+                    timeIndex.record(committedIndex, sequence, timestamp);
+                } catch (IOException ie) {
+                    // The index is rebuilt from the records on the next seek.
+                    LogUtils.warn(getClass(), String.format(
+                            "Error writing block time index, disabled. [BLOCK=%s] : %s", id,
+                            ie.getLocalizedMessage()), log);
+                    timeIndex.close();
+                    timeIndex = null;
+                }
+            }
             incrementCounter(Constants.MONITOR_COUNTER_ADDS, 1);
-            return writer.lastWrittenIndex();
+            return committedIndex;
         } finally {
             timerstop(Constants.MONITOR_COUNTER_ADDTIME, ts, 1);
         }
     }
 
-    /**
-     * Creates a new {@link Record} object from the message byte array
-     *
-     * @param data
-     *            the message byte array
-     * @return the newly created record object
-     * @throws MessageQueueException
-     *             the message queue exception
-     */
-    private Record record(byte[] data) throws MessageQueueException {
-        Record record = new Record();
-        record.size(data.length);
-        record.timestamp(System.currentTimeMillis());
-        record.sequence(m_index.incrementAndGet());
-        record.bytes(data);
-
-        return record;
-    }
-
     /**
      * Increment the specified counter with specified value.
      *
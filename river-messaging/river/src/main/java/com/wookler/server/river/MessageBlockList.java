@@ -19,6 +19,7 @@ package com.wookler.server.river;
 import com.wookler.server.common.utils.LogUtils;
 import net.openhft.chronicle.ChronicleConfig;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -36,8 +37,12 @@ public class MessageBlockList {
     private MessageBlock tail;
     /** ptr to the block that is being written to */
     private MessageBlock writer;
+    /** list closed for writes */
+    private volatile boolean closed = false;
     /** size of the list */
     private int size;
+    /** blocks in the list, by block id */
+    private ConcurrentHashMap<String, MessageBlock> ids = new ConcurrentHashMap<String, MessageBlock>();
     /** lock */
     private ReentrantLock lock = new ReentrantLock();
     /** Recycle strategy */
@@ -95,6 +100,7 @@ public class MessageBlockList {
                 block.previous(tail);
                 tail = tail.next();
             }
+            ids.put(block.id(), block);
             size++;
 
             return this;
@@ -174,6 +180,8 @@ public class MessageBlockList {
      * @return - Current write block.
      */
     public MessageBlock writeblock() throws MessageQueueException {
+        if (closed)
+            throw new MessageQueueException("Block list closed for writes.");
         if (writer == null) {
             MessageBlock ptr = tail;
             while (ptr != null) {
@@ -203,6 +211,24 @@ public class MessageBlockList {
         return writer;
     }
 
+    /**
+     * Close the list for writes. The blocks being written to are closed for
+     * writes, sealing their message ID index. Must be called with the store
+     * write lock held.
+     *
+     * @throws MessageQueueException
+     */
+    public void closewriter() throws MessageQueueException {
+        closed = true;
+        MessageBlock ptr = tail;
+        while (ptr != null) {
+            if (ptr.state() == EBlockState.RW)
+                ptr.closewriter();
+            ptr = ptr.previous();
+        }
+        writer = null;
+    }
+
     /**
      * Return the head of the linked list (Oldest block).
      *
@@ -233,6 +259,7 @@ public class MessageBlockList {
 
             head = head.next();
             head.previous(null);
+            ids.remove(b.id());
             size--;
 
             return b;
@@ -263,6 +290,7 @@ public class MessageBlockList {
                         prev.next(next);
                         next.previous(prev);
                     }
+                    ids.remove(ptr.id());
                     size--;
                     if (ptr.equals(head)) {
                         head = next;
@@ -285,14 +313,7 @@ public class MessageBlockList {
      * @return the message block or null if the no block with the id is present
      */
     public MessageBlock find(String id) {
-        MessageBlock ptr = head;
-        while (ptr != null) {
-            if (ptr.id().compareTo(id) == 0) {
-                return ptr;
-            }
-            ptr = ptr.next();
-        }
-        return null;
+        return ids.get(id);
     }
 
     /**
@@ -13,10 +13,11 @@
 
 package com.wookler.server.river;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -62,6 +63,9 @@ public class MessageFilterProcessor<M> extends Processor<M> {
         public static final String MONITOR_NAMESPACE = "river.counters.filter.processor";
 
         public static final String MONITOR_COUNTER_INVALIDS = "invalids";
+
+        /** batches processed between filter re-ordering */
+        private static final int REORDER_BATCHES = 64;
     }
 
     /** counters pertaining to this filter processor */
@@ -71,6 +75,29 @@ public class MessageFilterProcessor<M> extends Processor<M> {
     /** message filter handler instance to handle dropped messages */
     @CParam(name = "filter-handler", nested = true, required = false)
     private MessageFilterHandler<M> handler = null;
+    /**
+     * config param : re-order the filters by the measured rejection rate and
+     * cost, default = false (filters are applied in config order, which also
+     * determines the filter reported to the handler).
+     */
+    @CParam(name = "filter.adaptive", required = false)
+    private boolean adaptive = false;
+    /** filters in evaluation order, with their evaluation statistics */
+    private volatile FilterStats<M>[] ranked = null;
+    /** batches processed, used to trigger the re-ordering */
+    private AtomicLong batches = new AtomicLong();
+
+    /**
+     * Filter and its evaluation statistics.
+     */
+    private static final class FilterStats<M> {
+        private final Filter<M> filter;
+        private final PredicateStats stats = new PredicateStats(0);
+
+        private FilterStats(Filter<M> filter) {
+            this.filter = filter;
+        }
+    }
 
     /**
      * Apply the defined query filters on the specified list of messages. If
@@ -85,42 +112,99 @@ public class MessageFilterProcessor<M> extends Processor<M> {
     protected ProcessResponse<M> process(List<Message<M>> messages) throws ProcessingException,
             NonFatalProcessorException {
         ProcessResponse<M> response = new ProcessResponse<M>();
+        MessageBatch<M> batch = new MessageBatch<M>().reset(messages);
+        response.response(process(batch));
+        batch.compact();
+        if (!batch.isEmpty()) {
+            response.messages(batch.toList());
+        }
+        return response;
+    }
+
+    /**
+     * Apply the defined query filters on the batch, dropping the messages that
+     * do not match in place. If handler != null, then the dropped messages are
+     * handled by the handler
+     * 
+     * @param batch
+     *            - Batch of messages to be processed.
+     * @return - Execution response.
+     * @throws ProcessingException
+     */
+    @Override
+    protected EProcessResponse process(MessageBatch<M> batch) throws ProcessingException,
+            NonFatalProcessorException {
         try {
             ProcessState.check(state, EProcessState.Running, getClass());
-            List<Message<M>> result = new ArrayList<Message<M>>();
-            for (Message<M> m : messages) {
-                boolean drop = false;
-                for (Filter<M> q : queries) {
-                    if (!q.matches(m.data())) {
-                        drop = true;
-                        incrementCounter(Constants.MONITOR_COUNTER_INVALIDS, 1);
+            FilterStats<M>[] fs = ranked;
+            int size = batch.size();
+            int invalids = 0;
+            for (int ii = 0; ii < size; ii++) {
+                Message<M> m = batch.get(ii);
+                for (FilterStats<M> f : fs) {
+                    boolean matches;
+                    if (!adaptive) {
+                        // statistics are only used to re-order the filters.
+                        matches = f.filter.matches(m.data());
+                    } else if (f.stats.sample()) {
+                        long startt = System.nanoTime();
+                        matches = f.filter.matches(m.data());
+                        f.stats.evaluated(!matches, System.nanoTime() - startt);
+                    } else {
+                        matches = f.filter.matches(m.data());
+                        f.stats.evaluated(!matches);
+                    }
+                    if (!matches) {
+                        batch.drop(ii);
+                        invalids++;
                         if (handler != null) {
-                            handler.filtered(q, m.data());
+                            handler.filtered(f.filter, m.data());
                         }
                         break;
                     }
                 }
-                if (!drop) {
-                    result.add(m);
-                }
-            }
-            if (!result.isEmpty()) {
-                response.messages(result);
             }
-            response.response(EProcessResponse.Success);
+            if (invalids > 0)
+                incrementCounter(Constants.MONITOR_COUNTER_INVALIDS, invalids);
+            if (adaptive && fs.length > 1
+                    && batches.incrementAndGet() % Constants.REORDER_BATCHES == 0)
+                reorder();
+            return EProcessResponse.Success;
         } catch (FilterException e) {
-            response.response(EProcessResponse.Failed).error(e, this.getClass().getCanonicalName());
-            response.messages(null);
             LogUtils.stacktrace(getClass(), e, log);
             throw new NonFatalProcessorException("Exception in applying filter processor");
         } catch (Exception e) {
-            response.response(EProcessResponse.Failed).error(e,
-                    handler.getClass().getCanonicalName());
-            response.messages(null);
             LogUtils.stacktrace(getClass(), e, log);
             throw new NonFatalProcessorException("Exception in applying filter processor");
         }
-        return response;
+    }
+
+    /**
+     * Re-order the filters, so that the filters rejecting the most messages
+     * (per unit of cost) are applied first. The new order is published by
+     * replacing the filters array, batches in progress use the previous order.
+     */
+    private synchronized void reorder() {
+        FilterStats<M>[] fs = ranked;
+        PredicateStats[] stats = new PredicateStats[fs.length];
+        for (int ii = 0; ii < fs.length; ii++) {
+            stats[ii] = fs[ii].stats;
+        }
+        int[] order = PredicateStats.order(stats);
+        if (order != null) {
+            FilterStats<M>[] reordered = Arrays.copyOf(fs, fs.length);
+            for (int ii = 0; ii < order.length; ii++) {
+                reordered[ii] = fs[order[ii]];
+            }
+            ranked = reordered;
+            if (log.isDebugEnabled()) {
+                StringBuilder b = new StringBuilder();
+                for (FilterStats<M> f : reordered) {
+                    b.append("[").append(f.filter.filter()).append("]");
+                }
+                LogUtils.debug(getClass(), "Re-ordered filters : " + b.toString());
+            }
+        }
     }
 
     /**
@@ -143,7 +227,11 @@ public class MessageFilterProcessor<M> extends Processor<M> {
      * <pre>
      * {@code
      *     <processor class="[Non-generic type of com.wookler.server.river.MessageFilterProcessor]" name="[NAME]">
+     *         <params>
+     *             <param name="filter.adaptive" value="[optional: re-order filters, default=false]" />
+     *         </params>
      *         <query class="[query instance] q="Query String" />
+     *         <query class="com.wookler.server.river.ExpressionFilter" q="[filter expression]" />
      *         ...
      *         ...
      *     </processor>
@@ -178,9 +266,28 @@ public class MessageFilterProcessor<M> extends Processor<M> {
 
         registerCounters();
 
+        ranked = rank(queries);
+
         state.setState(EProcessState.Running);
     }
 
+    /**
+     * Create the evaluation order of the filters, initially the config order.
+     *
+     * @param filters
+     *            - Configured filters.
+     * @return - Filters with their evaluation statistics.
+     */
+    @SuppressWarnings("unchecked")
+    private FilterStats<M>[] rank(List<Filter<M>> filters) {
+        FilterStats<M>[] fs = (FilterStats<M>[]) new FilterStats<?>[filters.size()];
+        int index = 0;
+        for (Filter<M> f : filters) {
+            fs[index++] = new FilterStats<M>(f);
+        }
+        return fs;
+    }
+
     /**
      * Parse the configured filter and creates the query. Adds the filter
      * instance to the filter chain list
@@ -268,4 +375,23 @@ public class MessageFilterProcessor<M> extends Processor<M> {
             Monitoring.increment(names[0], names[1], value);
         }
     }
+
+    /**
+     * Gets the adaptive filter ordering flag.
+     *
+     * @return the adaptive
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets the adaptive filter ordering flag.
+     *
+     * @param adaptive
+     *            the adaptive to set
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
 }
@@ -0,0 +1,386 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Index of the message IDs written to a message block, mapping the ID to the
+ * record index in the block. Message IDs are created by the queue as
+ * [queue name]-[timestamp]-[sequence] (see
+ * {@link MessageQueue#createMessage(Object)}), the (sequence, timestamp) pair
+ * is used as the index key.
+ * <p/>
+ * The block being written to has an in-memory open-addressed hash table (O(1)
+ * lookups), the key is passed in by the writer so the ID is not parsed on
+ * publish. When the block is sealed the entries are sorted by key and written
+ * to an index file in the block directory (written to a temporary file and
+ * renamed, a partial index file is never read), lookups on sealed blocks are a
+ * binary search on the file (O(log n)), mapped read-only on the first lookup,
+ * and do not require the block to be loaded. The key range of the block is kept in memory to rule out blocks.
+ * <p/>
+ * Index file : [count][min sequence][max sequence][min timestamp][max
+ * timestamp] followed by the sorted entries [sequence][timestamp][index], all
+ * longs.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class MessageIdIndex {
+    public static final class Constants {
+        private static final String INDEX_FILE_EXT = ".idindex";
+        private static final String TEMP_FILE_EXT = ".tmp";
+        private static final int HEADER_SIZE = 40;
+        private static final int ENTRY_SIZE = 24;
+        private static final int INITIAL_CAPACITY = 64;
+    }
+
+    /** sequences of the entries, in write order (hot index only) */
+    private long[] sequences = null;
+    /** timestamps of the entries, in write order (hot index only) */
+    private long[] timestamps = null;
+    /** record indexes of the entries, in write order (hot index only) */
+    private long[] indexes = null;
+    /** hash table : entry position + 1, 0 if empty (hot index only) */
+    private int[] slots = null;
+    /** index file of a sealed index */
+    private File file = null;
+    /** read-only mapping of the index file, mapped on the first lookup */
+    private MappedByteBuffer mapped = null;
+    /** number of entries */
+    private long count = 0;
+    private long minSequence = Long.MAX_VALUE;
+    private long maxSequence = Long.MIN_VALUE;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Create a new (hot) index, for a block being written to.
+     */
+    public MessageIdIndex() {
+        sequences = new long[Constants.INITIAL_CAPACITY];
+        timestamps = new long[Constants.INITIAL_CAPACITY];
+        indexes = new long[Constants.INITIAL_CAPACITY];
+        slots = new int[Constants.INITIAL_CAPACITY * 2];
+    }
+
+    private MessageIdIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the index of a sealed block, only the index header is read.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @return - Sealed index, NULL if the block has no index file.
+     * @throws IOException
+     */
+    public static MessageIdIndex read(String directory, String name) throws IOException {
+        File f = file(directory, name);
+        if (!f.exists() || f.length() < Constants.HEADER_SIZE)
+            return null;
+        MessageIdIndex index = new MessageIdIndex(f);
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            index.count = in.readLong();
+            index.minSequence = in.readLong();
+            index.maxSequence = in.readLong();
+            index.minTimestamp = in.readLong();
+            index.maxTimestamp = in.readLong();
+            if (f.length() < Constants.HEADER_SIZE + index.count * Constants.ENTRY_SIZE)
+                throw new IOException("Truncated message ID index. [file=" + f.getAbsolutePath()
+                        + "]");
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Check if the block has an index file.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @return - Index file exists?
+     */
+    public static boolean exists(String directory, String name) {
+        return file(directory, name).exists();
+    }
+
+    private static File file(String directory, String name) {
+        return new File(directory + "/" + name + Constants.INDEX_FILE_EXT);
+    }
+
+    /**
+     * Parse the index key from a message ID.
+     *
+     * @param id
+     *            - Message ID.
+     * @return - Key (sequence, timestamp), NULL if the ID was not created by
+     *         the queue.
+     */
+    public static long[] key(String id) {
+        if (id == null)
+            return null;
+        int s = id.lastIndexOf('-');
+        if (s <= 0)
+            return null;
+        int t = id.lastIndexOf('-', s - 1);
+        if (t < 0)
+            return null;
+        try {
+            return new long[] { Long.parseLong(id.substring(s + 1)),
+                    Long.parseLong(id.substring(t + 1, s)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int hash(long sequence, long timestamp) {
+        long h = (sequence * 0x9E3779B97F4A7C15L) ^ timestamp;
+        h ^= (h >>> 32);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    /**
+     * Add a message ID to the (hot) index.
+     *
+     * @param sequence
+     *            - Queue sequence of the message ID.
+     * @param timestamp
+     *            - Timestamp of the message ID.
+     * @param index
+     *            - Record index in the block.
+     */
+    public synchronized void put(long sequence, long timestamp, long index) {
+        if (slots == null)
+            return;
+        if (count == sequences.length) {
+            int size = sequences.length * 2;
+            sequences = Arrays.copyOf(sequences, size);
+            timestamps = Arrays.copyOf(timestamps, size);
+            indexes = Arrays.copyOf(indexes, size);
+            rehash(size * 2);
+        }
+        int position = (int) count;
+        sequences[position] = sequence;
+        timestamps[position] = timestamp;
+        indexes[position] = index;
+        int mask = slots.length - 1;
+        int slot = hash(sequence, timestamp) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = position + 1;
+        count++;
+        range(sequence, timestamp);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int ii = 0; ii < count; ii++) {
+            int slot = hash(sequences[ii], timestamps[ii]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ii + 1;
+        }
+    }
+
+    private void range(long sequence, long timestamp) {
+        minSequence = Math.min(minSequence, sequence);
+        maxSequence = Math.max(maxSequence, sequence);
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+    }
+
+    /**
+     * Check if the key is within the key range of this index.
+     *
+     * @param key
+     *            - Key (sequence, timestamp).
+     * @return - In range?
+     */
+    public synchronized boolean covers(long[] key) {
+        return count > 0 && key[0] >= minSequence && key[0] <= maxSequence
+                && key[1] >= minTimestamp && key[1] <= maxTimestamp;
+    }
+
+    /**
+     * Look up the record index of a message.
+     *
+     * @param key
+     *            - Key (sequence, timestamp), see {@link #key(String)}.
+     * @return - Record index, -1 if not found.
+     * @throws IOException
+     */
+    public synchronized long get(long[] key) throws IOException {
+        if (!covers(key))
+            return -1;
+        if (slots != null) {
+            int mask = slots.length - 1;
+            int slot = hash(key[0], key[1]) & mask;
+            while (slots[slot] != 0) {
+                int position = slots[slot] - 1;
+                if (sequences[position] == key[0] && timestamps[position] == key[1])
+                    return indexes[position];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+        if (mapped == null)
+            mapped = map(file, Constants.HEADER_SIZE + count * Constants.ENTRY_SIZE);
+        int lo = 0;
+        int hi = (int) count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int position = Constants.HEADER_SIZE + mid * Constants.ENTRY_SIZE;
+            long sequence = mapped.getLong(position);
+            long timestamp = mapped.getLong(position + 8);
+            int c = (sequence != key[0] ? Long.compare(sequence, key[0]) : Long.compare(
+                    timestamp, key[1]));
+            if (c == 0)
+                return mapped.getLong(position + 16);
+            if (c < 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return -1;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Message ID index too large to map. [file="
+                    + file.getAbsolutePath() + "]");
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Seal the (hot) index : the entries are sorted and written to the index
+     * file, lookups are done on the file from then on. The file is written
+     * to a temporary file first and renamed once complete.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @throws IOException
+     */
+    public synchronized void seal(String directory, String name) throws IOException {
+        if (slots == null)
+            return;
+        int[] order = sort();
+        File f = file(directory, name);
+        File temp = new File(f.getAbsolutePath() + Constants.TEMP_FILE_EXT);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp, false)));
+        try {
+            out.writeLong(count);
+            out.writeLong(minSequence);
+            out.writeLong(maxSequence);
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+            for (int ii : order) {
+                out.writeLong(sequences[ii]);
+                out.writeLong(timestamps[ii]);
+                out.writeLong(indexes[ii]);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        file = f;
+        sequences = timestamps = indexes = null;
+        slots = null;
+    }
+
+    /**
+     * Get the entry positions sorted by key. Entries are not written in key
+     * order : concurrent publishers create the IDs and write the records in
+     * different orders, and the sequence restarts with the queue. The
+     * entries are a few ascending runs, they are merged (stable, in place of
+     * a boxed sort).
+     *
+     * @return - Entry positions, in key order.
+     */
+    private int[] sort() {
+        int size = (int) count;
+        int[] order = new int[size];
+        for (int ii = 0; ii < size; ii++) {
+            order[ii] = ii;
+        }
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size - width; lo += width * 2) {
+                int mid = lo + width;
+                int hi = Math.min(lo + width * 2, size);
+                // Runs already in order.
+                if (compare(order[mid - 1], order[mid]) <= 0)
+                    continue;
+                System.arraycopy(order, lo, buffer, lo, hi - lo);
+                int ll = lo;
+                int rr = mid;
+                for (int ii = lo; ii < hi; ii++) {
+                    if (rr >= hi || (ll < mid && compare(buffer[ll], buffer[rr]) <= 0))
+                        order[ii] = buffer[ll++];
+                    else
+                        order[ii] = buffer[rr++];
+                }
+            }
+        }
+        return order;
+    }
+
+    private int compare(int p1, int p2) {
+        if (sequences[p1] != sequences[p2])
+            return Long.compare(sequences[p1], sequences[p2]);
+        return Long.compare(timestamps[p1], timestamps[p2]);
+    }
+
+    /**
+     * Get the number of messages indexed.
+     *
+     * @return - Entry count.
+     */
+    public synchronized long size() {
+        return count;
+    }
+}
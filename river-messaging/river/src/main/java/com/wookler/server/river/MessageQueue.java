@@ -59,6 +59,9 @@ public class MessageQueue<M> implements Queue<M> {
     /** queue lock timeout. */
     @CParam(name = "queue.lock.timeout", required = false)
     protected long timeout = 100;
+    /** extractor for the record attributes stored with the messages */
+    @CParam(name = "queue.message.attributes", required = false)
+    protected AttributeExtractor<M> attributes = null;
     protected long mgmntSleepIntrvl = Constants.SLEEP_MGMNT_THREAD;
     /** map containing the subscribers for this message queue */
     protected HashMap<String, Subscriber<M>> subscribers = new HashMap<String, Subscriber<M>>();
@@ -195,11 +198,16 @@ public class MessageQueue<M> implements Queue<M> {
      *          <params>
      *              <param name="queue.lock.timeout" value="[DEFAULT LOCK TIMEOUTS]"/>
      *              <param name="queue.message.converter" value="[Message to Byte Converter] "/>
+     *              <param name="queue.message.attributes" value="[Optional: Record attribute extractor]"/>
      *              <param name="queue.directory" value="[Queue records directory]"/>
      *              <param name="queue.onstart.reload" value="[Reload pending messages on startup? true|false]"/>
      *              <param name="queue.recovery.threshold" value="[Number of message blocks to be recovered]"/>
      *                     <param name="queue.blocks.unused" value="[Number of unused blocks to be initialized"/>
      *          </params>
+     *          <!-- Optional, default = BlockingAckCache -->
+     *          <ackCache class="[Implementing Class]">
+     *              ...
+     *          </ackCache>
      *          <recycle class="[Implementing Class]]>
      *              ...
      *          </recycle>
@@ -235,7 +243,7 @@ public class MessageQueue<M> implements Queue<M> {
                             .getCanonicalName()), log);
 
             // initialize the ack cache for this queue
-            ackCache = new BlockingAckCache<>();
+            ackCache = createAckCache(config);
             ackCache.setQueue(this);
             ackCache.configure(config);
 
@@ -263,6 +271,39 @@ public class MessageQueue<M> implements Queue<M> {
         }
     }
 
+    /**
+     * Create the ack cache for this queue. The implementation is specified by
+     * the class attribute of the ackCache node, {@link BlockingAckCache} is
+     * used if not specified.
+     *
+     * @param config
+     *            - Configuration node (queue node)
+     * @return - Ack cache instance.
+     * @throws ConfigurationException
+     */
+    @SuppressWarnings("unchecked")
+    protected AckCache<M> createAckCache(ConfigNode config) throws ConfigurationException {
+        ConfigNode node = ConfigUtils.getConfigNode(config, AckCache.class, null);
+        // the queue node is returned if there is no ackCache node.
+        if (node == null || node == config)
+            return new BlockingAckCache<>();
+        Class<?> c = ConfigUtils.getImplementingClass(node, false);
+        if (c == null)
+            return new BlockingAckCache<>();
+        try {
+            Object o = c.newInstance();
+            if (!(o instanceof AckCache)) {
+                throw new ConfigurationException("Invalid ack cache class. [class="
+                        + c.getCanonicalName() + "]");
+            }
+            LogUtils.debug(getClass(), String.format("Using ack cache. [type=%s]",
+                    c.getCanonicalName()), log);
+            return (AckCache<M>) o;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new ConfigurationException("Invalid ack cache class specified.", e);
+        }
+    }
+
     /**
      * Setup the Message Store handle.
      *
@@ -391,6 +432,42 @@ public class MessageQueue<M> implements Queue<M> {
      */
     @Override
     public void add(M message) throws MessageQueueException, LockTimeoutException {
+        add(message, null);
+    }
+
+    /**
+     * Add a message to the queue. The key is used to select the store
+     * partition, if the store is partitioned.
+     *
+     * @param message
+     *            - Message to add.
+     * @param key
+     *            - Message key, can be NULL.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    @Override
+    public void add(M message, String key) throws MessageQueueException, LockTimeoutException {
+        add(message, key, null);
+    }
+
+    /**
+     * Add a message to the queue, with the specified record attributes. If no
+     * attributes are specified, the attributes are extracted using the
+     * configured {@link AttributeExtractor}, if any.
+     *
+     * @param message
+     *            - Message to add.
+     * @param key
+     *            - Message key, can be NULL.
+     * @param attributes
+     *            - Record attributes, can be NULL.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    @Override
+    public void add(M message, String key, RecordAttributes attributes)
+            throws MessageQueueException, LockTimeoutException {
         s_lock.readLock().lock();
         try {
             try {
@@ -399,10 +476,13 @@ public class MessageQueue<M> implements Queue<M> {
                 try {
                     // wrap the incoming message into Message wrapper
                     Message<M> wm = createMessage(message);
-                    // get the byte array corresponding to the Message
-                    byte[] data = convertor.write(wm);
+                    if (attributes == null && this.attributes != null)
+                        attributes = this.attributes.attributes(wm, key);
+                    // get the record encoder corresponding to the Message, the
+                    // message is serialized directly into the store block
+                    RecordEncoder data = convertor.encoder(wm, attributes);
                     // add the message to message store
-                    add(store, data);
+                    add(store, data, key);
                 } finally {
                     timerstop(Queue.Constants.MONITOR_COUNTER_ADDTIME, ts, 1);
                 }
@@ -433,13 +513,13 @@ public class MessageQueue<M> implements Queue<M> {
                 ObjectState.check(state, EObjectState.Available, getClass());
                 long ts = Monitoring.timerstart();
                 try {
-                    byte[][] darray = new byte[messages.size()][];
+                    RecordEncoder[] darray = new RecordEncoder[messages.size()];
                     for (int ii = 0; ii < messages.size(); ii++) {
                         // wrap the message into Message wrapper
                         Message<M> wm = createMessage(messages.get(ii));
-                        // convert the message into byte array
-                        byte[] data = convertor.write(wm);
-                        darray[ii] = data;
+                        // get the record encoder for the message
+                        darray[ii] = convertor.encoder(wm,
+                                (attributes != null ? attributes.attributes(wm, null) : null));
                     }
                     // add message byte array to message store
                     add(store, darray);
@@ -468,7 +548,24 @@ public class MessageQueue<M> implements Queue<M> {
      */
     protected void add(MessageStoreManager store, byte[] data) throws MessageQueueException,
             LockTimeoutException {
-        store.write(data, timeout);
+        add(store, data, null);
+    }
+
+    /**
+     * Add the message records to a specified Message Store.
+     *
+     * @param store
+     *            - Message Store handle
+     * @param data
+     *            - Message records.
+     * @param key
+     *            - Message key used to select the store partition.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    protected void add(MessageStoreManager store, byte[] data, String key)
+            throws MessageQueueException, LockTimeoutException {
+        store.write(data, key, timeout);
         incrementCounter(Queue.Constants.MONITOR_COUNTER_ADDS, 1);
     }
 
@@ -488,6 +585,40 @@ public class MessageQueue<M> implements Queue<M> {
         incrementCounter(Queue.Constants.MONITOR_COUNTER_ADDS, data.length);
     }
 
+    /**
+     * Add the message record encoder to a specified Message Store.
+     *
+     * @param store
+     *            - Message Store handle
+     * @param data
+     *            - Message record encoder.
+     * @param key
+     *            - Message key used to select the store partition.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    protected void add(MessageStoreManager store, RecordEncoder data, String key)
+            throws MessageQueueException, LockTimeoutException {
+        store.write(data, key, timeout);
+        incrementCounter(Queue.Constants.MONITOR_COUNTER_ADDS, 1);
+    }
+
+    /**
+     * Add the message record encoders to a specified Message Store.
+     *
+     * @param store
+     *            - Message Store handle
+     * @param data
+     *            - Array of Message record encoders.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    protected void add(MessageStoreManager store, RecordEncoder[] data)
+            throws MessageQueueException, LockTimeoutException {
+        store.write(data, timeout);
+        incrementCounter(Queue.Constants.MONITOR_COUNTER_ADDS, data.length);
+    }
+
     /**
      * Create a new instance of the {@link com.wookler.server.river.Message}
      * wrapper.
@@ -500,12 +631,14 @@ public class MessageQueue<M> implements Queue<M> {
     protected Message<M> createMessage(M message) throws MessageQueueException {
         Message<M> wm = new Message<M>();
         wm.data(message);
-        // update the id in the Message
-        wm.header().id(
-                String.format("%s-%d-%d", name(), System.currentTimeMillis(),
-                        sequence.getAndIncrement()));
+        long timestamp = System.currentTimeMillis();
+        long seq = sequence.getAndIncrement();
+        // update the id in the Message, the (sequence, timestamp) pair is
+        // the message ID index key.
+        wm.header().id(String.format("%s-%d-%d", name(), timestamp, seq));
+        wm.header().sequence(seq);
         // update the timestamp in the Message
-        wm.header().timestamp(System.currentTimeMillis());
+        wm.header().timestamp(timestamp);
         return wm;
     }
 
@@ -549,31 +682,45 @@ public class MessageQueue<M> implements Queue<M> {
                 if (subscr == null)
                     throw new MessageQueueException("Subscriber not registered. [subscriber="
                             + subscriber + "]");
-                // get the message data block list
-                MessageDataBlock.MessageDataBlockList data = store.read(subscriber, 1, timeout);
-                if (data != null && data.size() > 0) {
-                    // get the first message data block
-                    MessageDataBlock mb = data.blocks().get(0);
-                    if (mb != null) {
-                        // get the message records from this block
-                        List<Record> records = mb.records();
-                        if (records != null && !records.isEmpty()) {
-                            if (records.get(0) != null) {
-                                // get the first message byte record and convert
-                                // it to Message
-                                Message<M> m = convertor.read(records.get(0).bytes());
-                                // update the block id and block index in the
-                                // Message header
-                                m.header().blockid(mb.blockid()).blockindex(records.get(0).index());
-                                return m;
+                long startt = System.currentTimeMillis();
+                long leftt = timeout;
+                while (true) {
+                    long generation = store.generation();
+                    // get the message data block list
+                    MessageDataBlock.MessageDataBlockList data = store.read(subscriber, 1, leftt);
+                    if (data != null && data.size() > 0) {
+                        // get the first message data block
+                        MessageDataBlock mb = data.blocks().get(0);
+                        if (mb != null) {
+                            // get the message records from this block
+                            List<Record> records = mb.records();
+                            if (records != null && !records.isEmpty()) {
+                                if (records.get(0) != null) {
+                                    // get the first message byte record and
+                                    // convert it to Message
+                                    Message<M> m = convertor.read(records.get(0).bytes());
+                                    // update the block id and block index in
+                                    // the Message header
+                                    m.header().blockid(mb.blockid())
+                                            .blockindex(records.get(0).index());
+                                    return m;
+                                }
                             }
                         }
+                        break;
                     }
+                    // wait for a new record to be committed.
+                    leftt = timeout - (System.currentTimeMillis() - startt);
+                    if (leftt <= 0 || !store.await(generation, leftt))
+                        break;
+                    leftt = timeout - (System.currentTimeMillis() - startt);
                 }
             } catch (StateException e) {
                 throw new MessageQueueException("Error getting message.", e);
             } catch (ByteConvertor.ConversionException e) {
                 throw new MessageQueueException("Error de-serializing message.", e);
+            } catch (InterruptedException e) {
+                throw new MessageQueueException("Interrupted waiting for messages.", e);
             }
             return null;
         } finally {
@@ -646,37 +793,74 @@ public class MessageQueue<M> implements Queue<M> {
             int rem = batchSize;
 
             while (rem > 0) {
-                // get the message data block list
-                MessageDataBlock.MessageDataBlockList data = store.read(subscriber, rem, leftt);
+                // capture the write generation before reading, so that a write
+                // committed after the read is not missed.
+                long generation = store.generation();
+                // get the message data block list, records are leased views
+                // and are released once converted.
+                MessageDataBlock.MessageDataBlockList data = store.lease(subscriber, rem, leftt);
                 if (data != null && data.size() > 0) {
                     if (messages == null)
                         messages = new ArrayList<Message<M>>();
-                    for (int ii = 0; ii < data.blocks().size(); ii++) {
-                        // get the message data block from the list
-                        MessageDataBlock mb = data.blocks().get(ii);
-                        for (int jj = 0; jj < mb.records().size(); jj++) {
-                            // get message records from this data block
-                            Record r = mb.records().get(jj);
-                            if (r != null && r.size() > 0) {
-                                // convert the byte message record to Message
-                                Message<M> m = convertor.read(r.bytes());
-                                // update header with block id and block index
-                                m.header().blockid(mb.blockid()).blockindex(r.index());
-                                // add the messages list
-                                messages.add(m);
+                    try {
+                        for (int ii = 0; ii < data.blocks().size(); ii++) {
+                            // get the message data block from the list
+                            MessageDataBlock mb = data.blocks().get(ii);
+                            for (int jj = 0; jj < mb.records().size(); jj++) {
+                                // get message records from this data block
+                                Record r = mb.records().get(jj);
+                                if (r != null && r.size() > 0) {
+                                    // convert the message record to Message
+                                    Message<M> m = (r instanceof RecordView ? convertor
+                                            .read((RecordView) r) : convertor.read(r.bytes()));
+                                    // update header with block id and block
+                                    // index
+                                    m.header().blockid(mb.blockid()).blockindex(r.index());
+                                    // add the messages list
+                                    messages.add(m);
+                                }
                             }
                         }
+                    } finally {
+                        release(data);
                     }
                 }
                 if (messages != null)
                     rem = batchSize - messages.size();
                 leftt = timeout - (System.currentTimeMillis() - startt);
-                if (leftt <= 0)
+                if (leftt <= 0 || rem <= 0)
                     break;
+                if (data == null || data.size() <= 0) {
+                    // the store has been drained, return the partial batch
+                    // instead of holding it till the timeout.
+                    if (messages != null && !messages.isEmpty())
+                        break;
+                    // wait for new records to be committed.
+                    if (!store.await(generation, leftt))
+                        break;
+                    leftt = timeout - (System.currentTimeMillis() - startt);
+                }
             }
             return messages;
         } catch (ByteConvertor.ConversionException e) {
             throw new MessageQueueException("Error de-serializing message.", e);
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted waiting for messages.", e);
+        }
+    }
+
+    /**
+     * Release all the leased record views in the data block list.
+     *
+     * @param data
+     *            - Data block list returned by a lease read.
+     */
+    private void release(MessageDataBlock.MessageDataBlockList data) {
+        for (MessageDataBlock mb : data.blocks()) {
+            for (Record r : mb.records()) {
+                if (r instanceof RecordView)
+                    ((RecordView) r).release();
+            }
         }
     }
 
@@ -756,6 +940,174 @@ public class MessageQueue<M> implements Queue<M> {
         }
     }
 
+    /**
+     * Get the current write generation of the queue.
+     *
+     * @return - Write generation.
+     */
+    @Override
+    public long generation() {
+        return store.generation();
+    }
+
+    /**
+     * Wait for messages to be added to the queue after the specified write
+     * generation. Readers are woken up as soon as the messages are committed
+     * to the store.
+     *
+     * @param generation
+     *            - Write generation captured before the last read.
+     * @param timeout
+     *            - Max time to wait.
+     * @return - Messages added? (false if timed out)
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean await(long generation, long timeout) throws InterruptedException {
+        return store.await(generation, timeout);
+    }
+
+    /**
+     * Get the number of messages added to the queue that have not yet been
+     * read by the specified subscriber.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Subscriber lag (message count), -1 if the subscriber is not
+     *         registered.
+     */
+    @Override
+    public long lag(String subscriber) {
+        return store.lag(subscriber);
+    }
+
+    /**
+     * Get the message with the specified ID. The message is located using the
+     * message ID index of the store blocks, without scanning the blocks.
+     *
+     * @param messageId
+     *            - Message ID.
+     * @return - Message, NULL if not found.
+     * @throws MessageQueueException
+     */
+    @Override
+    public Message<M> get(String messageId) throws MessageQueueException {
+        s_lock.readLock().lock();
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            MessageDataBlock data = store.read(messageId);
+            if (data == null || data.size() <= 0)
+                return null;
+            Record r = data.records().get(0);
+            Message<M> m = convertor.read(r.bytes());
+            if (!messageId.equals(m.header().id()))
+                return null;
+            m.header().blockid(data.blockid()).blockindex(r.index());
+            return m;
+        } catch (StateException e) {
+            throw new MessageQueueException("Error reading message.", e);
+        } catch (ByteConvertor.ConversionException e) {
+            throw new MessageQueueException("Error de-serializing message.", e);
+        } finally {
+            s_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Locate the message with the specified ID in the store, the block id and
+     * index of the message are set on the specified record. Used to resolve
+     * acks by message ID.
+     *
+     * @param messageId
+     *            - Message ID.
+     * @param rec
+     *            - Message ack record to set the position on.
+     * @return - Found?
+     * @throws MessageQueueException
+     */
+    public boolean locate(String messageId, MessageAckRecord rec) throws MessageQueueException {
+        s_lock.readLock().lock();
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            return store.locate(messageId, rec);
+        } catch (StateException e) {
+            throw new MessageQueueException("Error locating message.", e);
+        } finally {
+            s_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Position the subscriber at the first message added at or after the
+     * specified timestamp. Reads of the subscriber are expected to be stopped
+     * while seeking.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param timestamp
+     *            - Timestamp (in milliseconds).
+     * @throws MessageQueueException
+     */
+    @Override
+    public void seek(String subscriber, long timestamp) throws MessageQueueException {
+        s_lock.readLock().lock();
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            store.seek(subscriber, timestamp);
+        } catch (StateException e) {
+            throw new MessageQueueException("Error seeking subscriber.", e);
+        } finally {
+            s_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Position the subscriber at the specified record. Reads of the subscriber
+     * are expected to be stopped while seeking.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockId
+     *            - Block ID.
+     * @param index
+     *            - Record index in the block.
+     * @throws MessageQueueException
+     */
+    @Override
+    public void seek(String subscriber, String blockId, long index)
+            throws MessageQueueException {
+        s_lock.readLock().lock();
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            store.seek(subscriber, blockId, index);
+        } catch (StateException e) {
+            throw new MessageQueueException("Error seeking subscriber.", e);
+        } finally {
+            s_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Position the subscriber at the end of the queue. Reads of the subscriber
+     * are expected to be stopped while seeking.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @throws MessageQueueException
+     */
+    @Override
+    public void seekToEnd(String subscriber) throws MessageQueueException {
+        s_lock.readLock().lock();
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            store.seekToEnd(subscriber);
+        } catch (StateException e) {
+            throw new MessageQueueException("Error seeking subscriber.", e);
+        } finally {
+            s_lock.readLock().unlock();
+        }
+    }
+
     /**
      * Get the handle to a registered subscriber.
      *
@@ -771,6 +1123,32 @@ public class MessageQueue<M> implements Queue<M> {
         return null;
     }
 
+    /**
+     * Notify the store of messages acked by the subscriber, used to trigger
+     * subscriber checkpoints.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param count
+     *            - Number of messages acked.
+     */
+    protected void acked(String subscriber, int count) {
+        if (store != null)
+            store.acked(subscriber, count);
+    }
+
+    /**
+     * Record that the messages read by the subscriber have been added to the
+     * ack cache.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     */
+    protected void delivered(String subscriber) {
+        if (store != null)
+            store.delivered(subscriber);
+    }
+
     /**
      * Perform GC on the Message Store.
      *
@@ -1042,4 +1420,23 @@ public class MessageQueue<M> implements Queue<M> {
     public void setName(String name) {
         this.name = name;
     }
+
+    /**
+     * Gets the record attribute extractor.
+     *
+     * @return the attributes
+     */
+    public AttributeExtractor<M> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Sets the record attribute extractor.
+     *
+     * @param attributes
+     *            the attributes to set
+     */
+    public void setAttributes(AttributeExtractor<M> attributes) {
+        this.attributes = attributes;
+    }
 }
@@ -17,6 +17,7 @@
 package com.wookler.server.river;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 
@@ -29,6 +30,7 @@ import com.wookler.server.common.DataNotFoundException;
 import com.wookler.server.common.EProcessState;
 import com.wookler.server.common.GlobalConstants;
 import com.wookler.server.common.ProcessState;
+import com.wookler.server.common.config.CParam;
 import com.wookler.server.common.config.CPath;
 import com.wookler.server.common.config.ConfigAttributes;
 import com.wookler.server.common.config.ConfigNode;
@@ -47,6 +49,10 @@ import com.wookler.server.common.utils.LogUtils;
  * 
  * This processor is always subscriber aware. The processors that are configured
  * as part of this selector can or cannot be subscriber aware.
+ * 
+ * Queries defined as {@link ExpressionFilter} are indexed (see
+ * {@link SelectorIndex}), so a message is only evaluated against the queries
+ * it can match.
  *
  * @author Subho Ghosh (subho dot ghosh at outlook.com)
  * @created 08/09/14
@@ -64,6 +70,15 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
 
     /** the selector chain consisting of mapping of Filter, Processor */
     private LinkedHashMap<Filter<M>, Processor<M>> selectors = new LinkedHashMap<Filter<M>, Processor<M>>();
+    /** config param : index the selector queries, default = true */
+    @CParam(name = "selector.index", required = false)
+    private boolean indexed = true;
+    /** selector queries, in evaluation order */
+    private List<Filter<M>> rules = null;
+    /** selector processors, by query position */
+    private List<Processor<M>> targets = null;
+    /** index of the selector queries, NULL if not indexed */
+    private SelectorIndex<M> index = null;
 
     /**
      * Pass the messages to the selector chain and execute the processors for
@@ -78,14 +93,41 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
     protected ProcessResponse<M> process(List<Message<M>> messages) throws ProcessingException,
             NonFatalProcessorException {
         ProcessResponse<M> response = new ProcessResponse<M>();
+        MessageBatch<M> batch = new MessageBatch<M>().reset(messages);
+        response.response(process(batch));
+        batch.compact();
+        if (!batch.isEmpty()) {
+            response.messages(batch.toList());
+        }
+        return response;
+    }
+
+    /**
+     * Pass the batch to the selector chain and execute the processors for the
+     * query conditions that are satisfied. Messages returned by the processors
+     * replace the selected messages in place.
+     *
+     * @param batch
+     *            - Batch of messages to be processed.
+     * @return - Execution response.
+     * @throws ProcessingException
+     */
+    @Override
+    protected EProcessResponse process(MessageBatch<M> batch) throws ProcessingException,
+            NonFatalProcessorException {
         try {
             ProcessState.check(state, EProcessState.Running, getClass());
-            List<Message<M>> result = new ArrayList<Message<M>>();
-            for (Message<M> m : messages) {
+            int size = batch.size();
+            for (int ii = 0; ii < size; ii++) {
+                Message<M> m = batch.get(ii);
                 Message<M> mr = m;
-                for (Filter<M> q : selectors.keySet()) {
+                // Only the queries the message can match are evaluated, in
+                // the configured order.
+                BitSet candidates = (index != null ? index.candidates(m.data()) : null);
+                for (int jj = next(candidates, -1); jj >= 0; jj = next(candidates, jj)) {
+                    Filter<M> q = rules.get(jj);
                     if (q.matches(m.data())) {
-                        Processor<M> p = selectors.get(q);
+                        Processor<M> p = targets.get(jj);
                         ProcessResponse<M> r = p.process(mr);
                         if (r.response() == EProcessResponse.Success && r.messages() != null
                                 && !r.messages().isEmpty()) {
@@ -97,21 +139,31 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
                         }
                     }
                 }
-                if (mr != null)
-                    result.add(mr);
-            }
-            if (!result.isEmpty()) {
-                response.messages(result);
+                if (mr == null)
+                    batch.drop(ii);
+                else if (mr != m)
+                    batch.set(ii, mr);
             }
-            response.response(EProcessResponse.Success);
+            return EProcessResponse.Success;
         } catch (Exception e) {
-            response.response(EProcessResponse.Failed);
-            response.error(e, this.getClass().getCanonicalName());
-            response.messages(null);
             LogUtils.stacktrace(getClass(), e, log);
             throw new NonFatalProcessorException("Exception in applying selector processors");
         }
-        return response;
+    }
+
+    /**
+     * Get the position of the next query to evaluate.
+     *
+     * @param candidates
+     *            - Candidate queries, NULL to evaluate all the queries.
+     * @param current
+     *            - Current query position, -1 to start.
+     * @return - Next query position, -1 if done.
+     */
+    private int next(BitSet candidates, int current) {
+        if (candidates != null)
+            return candidates.nextSetBit(current + 1);
+        return (current + 1 < rules.size() ? current + 1 : -1);
     }
 
     /**
@@ -134,6 +186,9 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
      * <pre>
      * {@code
      *     <processor class="[Non-generic type of com.wookler.server.river.MessageSelectorProcessor]" name="[NAME]">
+     *          <params>
+     *              <param name="selector.index" value="[optional: index the queries, default=true]" />
+     *          </params>
      *          <selector>
      *              <query class="[implementing class] q="[query string] />
      *              <processor>
@@ -172,6 +227,16 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
                 }
             }
         }
+        rules = new ArrayList<Filter<M>>(selectors.keySet());
+        targets = new ArrayList<Processor<M>>(selectors.values());
+        if (indexed) {
+            try {
+                index = new SelectorIndex<M>(rules);
+                LogUtils.debug(getClass(), "Selector index created : " + index.toString());
+            } catch (Filter.FilterException e) {
+                throw new ConfigurationException("Error creating selector index.", e);
+            }
+        }
         state.setState(EProcessState.Running);
     }
 
@@ -298,4 +363,23 @@ public class MessageSelectorProcessor<M> extends SubscriberAwareProcessor<M> {
         if (state.getState() != EProcessState.Exception)
             state.setState(EProcessState.Stopped);
     }
+
+    /**
+     * Gets the selector index flag.
+     *
+     * @return the indexed
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Sets the selector index flag.
+     *
+     * @param indexed
+     *            the indexed to set
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
 }
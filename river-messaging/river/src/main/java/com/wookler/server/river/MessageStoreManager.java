@@ -33,7 +33,14 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -52,9 +59,12 @@ public class MessageStoreManager implements Configurable {
 
         public static final String MONITOR_COUNTER_ADDS = "adds";
         public static final String MONITOR_COUNTER_READS = "reads";
+        public static final String MONITOR_COUNTER_COMMITS = "group.commits";
+        public static final String MONITOR_COUNTER_RECOVERYTIME = "time.recovery";
+        public static final String MONITOR_COUNTER_CHECKPOINTS = "checkpoints";
 
         private static final EBlockState[] VALID_READ_STATES = { EBlockState.RW, EBlockState.RO,
-                EBlockState.Unloaded };
+                EBlockState.Unloaded, EBlockState.Recovering };
         private static final EBlockState[] VALID_GC_STATES = { EBlockState.Closed, EBlockState.RO,
                 EBlockState.Unloaded };
     }
@@ -81,6 +91,48 @@ public class MessageStoreManager implements Configurable {
         /** chronicle store size, default = medium */
         @CParam(name = "queue.chronicle.size", required = false)
         private EChronicleSize chronicleSize = EChronicleSize.MEDIUM;
+        /** enable group commit for single record writes, default = false */
+        @CParam(name = "queue.write.group.commit", required = false)
+        private boolean groupCommit = false;
+        /** max records written per group commit, default = 1024 */
+        @CParam(name = "queue.write.group.size", required = false)
+        private int groupSize = GroupCommitWriter.Constants.DEFAULT_GROUP_SIZE;
+        /** number of store partitions, default = 1 (not partitioned) */
+        @CParam(name = "queue.partitions", required = false)
+        private int partitions = 1;
+        /** strategy used to select the partition to write to, default = KEY */
+        @CParam(name = "queue.partition.strategy", required = false)
+        private EPartitionStrategy partitionStrategy = EPartitionStrategy.KEY;
+        /** recover existing blocks in the background, default = false */
+        @CParam(name = "queue.recovery.parallel", required = false)
+        private boolean parallelRecovery = false;
+        /** record block lifecycle events to the block manifest, default = false */
+        @CParam(name = "queue.blocks.manifest", required = false)
+        private boolean blockManifest = false;
+        /**
+         * interval (in milliseconds) to commit subscriber checkpoints at,
+         * default = 0 (disabled)
+         */
+        @CParam(name = "queue.checkpoint.interval", required = false)
+        private long checkpointInterval = 0;
+        /**
+         * commit subscriber checkpoints after the specified number of acks,
+         * default = 0 (disabled)
+         */
+        @CParam(name = "queue.checkpoint.acks", required = false)
+        private int checkpointAcks = 0;
+        /**
+         * number of yields by a reader waiting for new records before parking,
+         * default = 64
+         */
+        @CParam(name = "queue.read.spin.count", required = false)
+        private int readSpinCount = WriteNotifier.Constants.DEFAULT_SPIN_COUNT;
+        /**
+         * number of records between the entries of the block time index (used
+         * to seek subscribers by timestamp), default = 256
+         */
+        @CParam(name = "queue.index.stride", required = false)
+        private int indexStride = RecordTimeIndex.Constants.DEFAULT_STRIDE;
 
         /**
          * Get the queue base directory
@@ -177,6 +229,198 @@ public class MessageStoreManager implements Configurable {
             this.chronicleSize = chronicleSize;
         }
 
+        /**
+         * Get the group commit flag
+         * 
+         * @return the groupCommit
+         */
+        public boolean isGroupCommit() {
+            return groupCommit;
+        }
+
+        /**
+         * Set the group commit flag
+         * 
+         * @param groupCommit
+         *            the groupCommit to set
+         */
+        public void setGroupCommit(boolean groupCommit) {
+            this.groupCommit = groupCommit;
+        }
+
+        /**
+         * Get the max group commit size
+         * 
+         * @return the groupSize
+         */
+        public int getGroupSize() {
+            return groupSize;
+        }
+
+        /**
+         * Set the max group commit size
+         * 
+         * @param groupSize
+         *            the groupSize to set
+         */
+        public void setGroupSize(int groupSize) {
+            this.groupSize = groupSize;
+        }
+
+        /**
+         * Get the number of store partitions
+         * 
+         * @return the partitions
+         */
+        public int getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * Set the number of store partitions
+         * 
+         * @param partitions
+         *            the partitions to set
+         */
+        public void setPartitions(int partitions) {
+            this.partitions = partitions;
+        }
+
+        /**
+         * Get the partition selection strategy
+         * 
+         * @return the partitionStrategy
+         */
+        public EPartitionStrategy getPartitionStrategy() {
+            return partitionStrategy;
+        }
+
+        /**
+         * Set the partition selection strategy
+         * 
+         * @param partitionStrategy
+         *            the partitionStrategy to set
+         */
+        public void setPartitionStrategy(EPartitionStrategy partitionStrategy) {
+            this.partitionStrategy = partitionStrategy;
+        }
+
+        /**
+         * Get the parallel recovery flag
+         * 
+         * @return the parallelRecovery
+         */
+        public boolean isParallelRecovery() {
+            return parallelRecovery;
+        }
+
+        /**
+         * Set the parallel recovery flag
+         * 
+         * @param parallelRecovery
+         *            the parallelRecovery to set
+         */
+        public void setParallelRecovery(boolean parallelRecovery) {
+            this.parallelRecovery = parallelRecovery;
+        }
+
+        /**
+         * Get the block manifest flag
+         * 
+         * @return the blockManifest
+         */
+        public boolean isBlockManifest() {
+            return blockManifest;
+        }
+
+        /**
+         * Set the block manifest flag
+         * 
+         * @param blockManifest
+         *            the blockManifest to set
+         */
+        public void setBlockManifest(boolean blockManifest) {
+            this.blockManifest = blockManifest;
+        }
+
+        /**
+         * Get the subscriber checkpoint interval
+         * 
+         * @return the checkpointInterval
+         */
+        public long getCheckpointInterval() {
+            return checkpointInterval;
+        }
+
+        /**
+         * Set the subscriber checkpoint interval
+         * 
+         * @param checkpointInterval
+         *            the checkpointInterval to set
+         */
+        public void setCheckpointInterval(long checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+        }
+
+        /**
+         * Get the number of acks after which subscriber checkpoints are
+         * committed
+         * 
+         * @return the checkpointAcks
+         */
+        public int getCheckpointAcks() {
+            return checkpointAcks;
+        }
+
+        /**
+         * Set the number of acks after which subscriber checkpoints are
+         * committed
+         * 
+         * @param checkpointAcks
+         *            the checkpointAcks to set
+         */
+        public void setCheckpointAcks(int checkpointAcks) {
+            this.checkpointAcks = checkpointAcks;
+        }
+
+        /**
+         * Get the number of yields before a waiting reader parks
+         * 
+         * @return the readSpinCount
+         */
+        public int getReadSpinCount() {
+            return readSpinCount;
+        }
+
+        /**
+         * Set the number of yields before a waiting reader parks
+         * 
+         * @param readSpinCount
+         *            the readSpinCount to set
+         */
+        public void setReadSpinCount(int readSpinCount) {
+            this.readSpinCount = readSpinCount;
+        }
+
+        /**
+         * Get the number of records between the block time index entries
+         * 
+         * @return the indexStride
+         */
+        public int getIndexStride() {
+            return indexStride;
+        }
+
+        /**
+         * Set the number of records between the block time index entries
+         * 
+         * @param indexStride
+         *            the indexStride to set
+         */
+        public void setIndexStride(int indexStride) {
+            this.indexStride = indexStride;
+        }
+
     }
 
     /**
@@ -208,6 +452,21 @@ public class MessageStoreManager implements Configurable {
         }
     }
 
+    /**
+     * Read position of a subscriber : the block and the last record read.
+     */
+    private static final class ReadPosition {
+        private final MessageBlock block;
+        private final long index;
+        private final long sequence;
+
+        private ReadPosition(MessageBlock block, long index, long sequence) {
+            this.block = block;
+            this.index = index;
+            this.sequence = sequence;
+        }
+    }
+
     /**
      * File name comparator based. Files are named as increasing integer
      * sequence.
@@ -222,6 +481,17 @@ public class MessageStoreManager implements Configurable {
         }
     }
 
+    /**
+     * Pool used to recover existing blocks in the background, shared by all
+     * the stores and bounded by the number of available processors.
+     */
+    private static ForkJoinPool recoveryPool = null;
+    /**
+     * Executor used to commit subscriber checkpoints in the background, shared
+     * by all the stores.
+     */
+    private static ScheduledExecutorService checkpointPool = null;
+
     /** Queue write lock. */
     private MonitoredLock qw_lock = new MonitoredLock();
     /** List of MessageBlocks */
@@ -236,6 +506,24 @@ public class MessageStoreManager implements Configurable {
     private MessageBlockBackup backup = null;
     /** MessageStore dir (base_dir/store_name) */
     private File messagedir;
+    /** block manifest, NULL if disabled */
+    private BlockManifest manifest = null;
+    /** subscriber checkpoints, NULL if disabled */
+    private SubscriberCheckpoints checkpoints = null;
+    /** scheduled checkpoint commit, if a checkpoint interval is set */
+    private ScheduledFuture<?> checkpointTask = null;
+    /** acks received since the last checkpoint commit, by subscriber */
+    private ConcurrentHashMap<String, AtomicInteger> checkpointAcks = new ConcurrentHashMap<String, AtomicInteger>();
+    /**
+     * read position of the ack required subscribers after the last read, not
+     * yet added to the ack cache
+     */
+    private ConcurrentHashMap<String, ReadPosition> reads = new ConcurrentHashMap<String, ReadPosition>();
+    /**
+     * read position of the ack required subscribers, all the records up to it
+     * have been added to the ack cache
+     */
+    private ConcurrentHashMap<String, ReadPosition> delivered = new ConcurrentHashMap<String, ReadPosition>();
     /**
      * Map of subscriber name and the head of Message Block list it is pointing
      * to
@@ -255,6 +543,16 @@ public class MessageStoreManager implements Configurable {
     private AckCache<?> ackCache = null;
     /** configs pertaining to MessageStore */
     private MessageStoreConfig mConfig = new MessageStoreConfig();
+    /** group commit writer, if group commit is enabled */
+    private GroupCommitWriter groupWriter = null;
+    /** store partitions, NULL if the store is not partitioned */
+    private MessageStoreManager[] partitions = null;
+    /** index of this store in the parent partitioned store, -1 if none */
+    private int partition = -1;
+    /** per subscriber partition index to start the next read from */
+    private HashMap<String, AtomicInteger> readOffsets = new HashMap<String, AtomicInteger>();
+    /** notifies waiting readers of committed records */
+    private WriteNotifier notifier = new WriteNotifier();
 
     /**
      * Instantiates a new message store manager.
@@ -272,6 +570,24 @@ public class MessageStoreManager implements Configurable {
         this.ackCache = ackCache;
     }
 
+    /**
+     * Instantiates a new partition of a partitioned message store.
+     *
+     * @param storename
+     *            the parent storename
+     * @param disableExpiry
+     *            the disable expiry flag
+     * @param ackCache
+     *            the ack cache
+     * @param partition
+     *            the partition index
+     */
+    private MessageStoreManager(String storename, boolean disableExpiry, AckCache<?> ackCache,
+            int partition) {
+        this(String.format("%s-P%d", storename, partition), disableExpiry, ackCache);
+        this.partition = partition;
+    }
+
     /**
      * Configure the message storage system.
      *
@@ -288,6 +604,12 @@ public class MessageStoreManager implements Configurable {
                         ConfigPath.class.getCanonicalName(), config.getClass().getCanonicalName()));
 
             ConfigUtils.parse(config, mConfig);
+            notifier.spinCount(mConfig.readSpinCount);
+
+            if (partition < 0 && mConfig.partitions > 1) {
+                configurePartitions(config);
+                return;
+            }
 
             String dir = String.format("%s/%s", mConfig.baseDirectory.getAbsolutePath(), storename);
 
@@ -316,12 +638,26 @@ public class MessageStoreManager implements Configurable {
                         + "]");
             }
 
+            // register counters, used by the block recovery.
+            registerCounters();
+
             // call set to create new block, recover existing blocks and
             // initialize empty blocks
             setup(cc);
 
-            // register counters
-            registerCounters();
+            if (mConfig.groupCommit) {
+                groupWriter = new GroupCommitWriter(storename, qw_lock, blocks).groupSize(
+                        mConfig.groupSize).listener(new GroupCommitWriter.GroupCommitListener() {
+                    @Override
+                    public void committed(int count) {
+                        incrementCounter(Constants.MONITOR_COUNTER_ADDS, count);
+                        incrementCounter(Constants.MONITOR_COUNTER_COMMITS, 1);
+                        notifier.signal();
+                    }
+                });
+                LogUtils.debug(getClass(), "[ Group commit enabled : group size="
+                        + groupWriter.groupSize() + "]");
+            }
 
             // set the setState to initialized
             state.setState(EObjectState.Initialized);
@@ -334,6 +670,83 @@ public class MessageStoreManager implements Configurable {
         }
     }
 
+    /**
+     * Create and configure the store partitions. Each partition is a separate
+     * store with its own block list, write lock and chronicle files.
+     *
+     * @param config
+     *            - Configuration node for this instance.
+     * @throws ConfigurationException
+     */
+    private void configurePartitions(ConfigNode config) throws ConfigurationException {
+        partitions = new MessageStoreManager[mConfig.partitions];
+        for (int ii = 0; ii < partitions.length; ii++) {
+            partitions[ii] = new MessageStoreManager(storename, disableExpiry, ackCache, ii);
+            partitions[ii].configure(config);
+        }
+        LogUtils.debug(getClass(), "[ Store partitions:" + partitions.length + "][strategy="
+                + mConfig.partitionStrategy.name() + "]");
+
+        registerCounters();
+        state.setState(EObjectState.Initialized);
+    }
+
+    /**
+     * Get the partition the specified block belongs to.
+     *
+     * @param blockid
+     *            - Partition qualified block ID.
+     * @return - Store partition.
+     * @throws MessageQueueException
+     */
+    private MessageStoreManager partition(String blockid) throws MessageQueueException {
+        int indx = blockid.indexOf(':');
+        if (indx > 0) {
+            int p = Integer.parseInt(blockid.substring(0, indx));
+            if (p >= 0 && p < partitions.length)
+                return partitions[p];
+        }
+        throw new MessageQueueException("Invalid partition block ID. [block=" + blockid + "]");
+    }
+
+    /**
+     * Get the block ID as seen outside the store. Blocks of a partition are
+     * qualified by the partition index, as block IDs are only unique within a
+     * partition.
+     *
+     * @param block
+     *            - Message block.
+     * @return - Block ID.
+     */
+    private String blockid(MessageBlock block) {
+        if (partition < 0)
+            return block.id();
+        return partition + ":" + block.id();
+    }
+
+    /**
+     * Get the local (un-qualified) block ID for a block ID returned by
+     * {@link #blockid(MessageBlock)}.
+     *
+     * @param blockid
+     *            - Block ID.
+     * @return - Local block ID.
+     */
+    private String localid(String blockid) {
+        if (partition < 0)
+            return blockid;
+        return blockid.substring(blockid.indexOf(':') + 1);
+    }
+
+    /**
+     * Check if this store is partitioned.
+     *
+     * @return - Partitioned?
+     */
+    public boolean partitioned() {
+        return (partitions != null);
+    }
+
     /**
      * Register MessageStore counters (add and read counts)
      */
@@ -348,6 +761,41 @@ public class MessageStoreManager implements Configurable {
         if (c != null) {
             counters.put(Constants.MONITOR_COUNTER_READS, new String[] { c.namespace(), c.name() });
         }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + storename,
+                Constants.MONITOR_COUNTER_COMMITS, Count.class, AbstractCounter.Mode.DEBUG);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_COMMITS,
+                    new String[] { c.namespace(), c.name() });
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + storename,
+                Constants.MONITOR_COUNTER_RECOVERYTIME, Average.class, AbstractCounter.Mode.DEBUG);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_RECOVERYTIME,
+                    new String[] { c.namespace(), c.name() });
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + storename,
+                Constants.MONITOR_COUNTER_CHECKPOINTS, Count.class, AbstractCounter.Mode.DEBUG);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_CHECKPOINTS,
+                    new String[] { c.namespace(), c.name() });
+        }
+    }
+
+    /**
+     * Stop the current timer and update the corresponding counter.
+     *
+     * @param name
+     *            - Counter Key
+     * @param starttime
+     *            - Start time for this timer.
+     * @param count
+     *            - Operation count.
+     */
+    private void timerstop(String name, long starttime, long count) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.timerstop(starttime, count, names[0], names[1]);
+        }
     }
 
     /**
@@ -369,6 +817,19 @@ public class MessageStoreManager implements Configurable {
      * Start the storage system and make it available for read/write.
      */
     public void start() {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.start();
+            }
+        }
+        if (checkpoints != null && mConfig.checkpointInterval > 0) {
+            checkpointTask = checkpointPool().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            }, mConfig.checkpointInterval, mConfig.checkpointInterval, TimeUnit.MILLISECONDS);
+        }
         state.setState(EObjectState.Available);
     }
 
@@ -377,8 +838,37 @@ public class MessageStoreManager implements Configurable {
      */
     @Override
     public void dispose() {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.dispose();
+            }
+        }
+        if (checkpointTask != null) {
+            checkpointTask.cancel(false);
+            checkpointTask = null;
+        }
+        if (blocks != null) {
+            // Seal the block being written to, its message ID index is
+            // written only when the block is closed for writes.
+            qw_lock.lock();
+            try {
+                blocks.closewriter();
+            } catch (MessageQueueException e) {
+                LogUtils.warn(getClass(), String.format(
+                        "Error closing write block. [store=%s] : %s", storename,
+                        e.getLocalizedMessage()), log);
+            } finally {
+                qw_lock.unlock();
+            }
+        }
+        if (checkpoints != null)
+            checkpoint();
+        if (manifest != null)
+            manifest.close();
         if (state.getState() != EObjectState.Exception)
             state.setState(EObjectState.Disposed);
+        // release the readers waiting for records
+        notifier.signal();
     }
 
     /**
@@ -402,10 +892,21 @@ public class MessageStoreManager implements Configurable {
     public boolean subscribe(Subscriber<?> subscriber) throws MessageQueueException {
         try {
             ObjectState.check(state, EObjectState.Initialized, getClass());
+            if (partitions != null) {
+                for (MessageStoreManager p : partitions) {
+                    p.subscribe(subscriber);
+                }
+                readOffsets.put(subscriber.name(), new AtomicInteger());
+                subscribers.put(subscriber.name(), subscriber);
+                return true;
+            }
             blocks.lock().lock();
             try {
-                MessageBlock m = blocks.peek();
-                m.subscribe(subscriber.name());
+                MessageBlock m = restore(subscriber.name());
+                if (m == null) {
+                    m = blocks.peek();
+                    m.subscribe(subscriber.name());
+                }
 
                 blocksSubscribed.put(subscriber.name(), m);
                 subscribers.put(subscriber.name(), subscriber);
@@ -421,53 +922,366 @@ public class MessageStoreManager implements Configurable {
     }
 
     /**
-     * Write a new record to the queue.
+     * Resume the subscriber from the committed checkpoint, if any. The
+     * subscriber is registered with the checkpoint block, positioned after the
+     * last record read.
      *
-     * @param data
-     *            - Record records (bytes)
-     * @param timeout
-     *            - Lock timeout.
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Block subscribed to, NULL if the subscriber has no checkpoint
+     *         or the checkpoint block has been removed.
      * @throws MessageQueueException
-     *             , LockTimeoutException
      */
-    public void write(byte[] data, long timeout) throws MessageQueueException, LockTimeoutException {
+    private MessageBlock restore(String subscriber) throws MessageQueueException {
+        if (checkpoints == null)
+            return null;
         try {
-            ObjectState.check(state, EObjectState.Available, getClass());
-            if (qw_lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
-                try {
-                    blocks.writeblock().write(data);
-                } finally {
-                    qw_lock.unlock();
-                }
-                incrementCounter(Constants.MONITOR_COUNTER_ADDS, 1);
-            } else {
-                throw new LockTimeoutException(storename + ":WRITE-LOCK", String.format(
-                        "[TIMEOUT=%d][LOCKED BY:%s]", timeout, qw_lock.owner().getName()));
+            SubscriberCheckpoints.Checkpoint c = checkpoints.read(subscriber);
+            if (c == null)
+                return null;
+            MessageBlock m = blocks.peek();
+            while (m != null) {
+                if (m.id().compareTo(c.block()) == 0)
+                    break;
+                m = m.next();
+            }
+            if (m == null || !isReadable(m)) {
+                LogUtils.warn(getClass(), String.format(
+                        "Checkpoint block not available, reading from head. [subscriber=%s][block=%s]",
+                        subscriber, c.block()), log);
+                return null;
             }
+            m.subscribe(subscriber, c.index(), c.sequence());
+            LogUtils.debug(getClass(), String.format(
+                    "Restored subscriber checkpoint. [subscriber=%s][block=%s][index=%d]",
+                    subscriber, c.block(), c.index()));
+            return m;
+        } catch (IOException e) {
+            LogUtils.warn(getClass(), String.format(
+                    "Error reading checkpoint, reading from head. [subscriber=%s] : %s",
+                    subscriber, e.getLocalizedMessage()), log);
+            return null;
+        }
+    }
 
-        } catch (StateException e) {
-            throw new MessageQueueException("Block manager in invalid setState.", e);
-        } catch (InterruptedException e) {
-            throw new MessageQueueException("Interrupted acquiring lock.", e);
+    private boolean isReadable(MessageBlock m) {
+        for (EBlockState s : Constants.VALID_READ_STATES) {
+            if (m.state() == s)
+                return true;
         }
+        return false;
+    }
 
+    /**
+     * Record messages acked by the subscriber. The subscriber checkpoints are
+     * committed in the background once the configured number of acks has
+     * been received.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param count
+     *            - Number of messages acked.
+     */
+    public void acked(String subscriber, int count) {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.acked(subscriber, count);
+            }
+            return;
+        }
+        if (checkpoints == null || mConfig.checkpointAcks <= 0)
+            return;
+        AtomicInteger acks = checkpointAcks.get(subscriber);
+        if (acks == null) {
+            checkpointAcks.putIfAbsent(subscriber, new AtomicInteger());
+            acks = checkpointAcks.get(subscriber);
+        }
+        if (acks.addAndGet(count) >= mConfig.checkpointAcks) {
+            acks.set(0);
+            checkpointPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            });
+        }
     }
 
     /**
-     * Write a new batch of records to the queue.
+     * Record that the records read by the subscriber have been added to the
+     * ack cache, the read position can be checkpointed.
      *
-     * @param data
-     *            - Array of Record records (bytes)
-     * @param timeout
-     *            - Lock timeout.
-     * @throws MessageQueueException
-     *             , LockTimeoutException
+     * @param subscriber
+     *            - Subscriber name.
+     */
+    public void delivered(String subscriber) {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.delivered(subscriber);
+            }
+            return;
+        }
+        ReadPosition p = reads.remove(subscriber);
+        if (p != null)
+            delivered.put(subscriber, p);
+    }
+
+    /**
+     * Commit the pending subscriber checkpoints.
+     */
+    private void checkpoint() {
+        try {
+            for (String subscriber : delivered.keySet()) {
+                checkpointAcked(subscriber);
+            }
+            int count = checkpoints.commit();
+            if (count > 0)
+                incrementCounter(Constants.MONITOR_COUNTER_CHECKPOINTS, count);
+        } catch (Throwable t) {
+            LogUtils.error(getClass(), String.format(
+                    "Error committing subscriber checkpoints. [store=%s]", storename), log);
+            LogUtils.stacktrace(getClass(), t, log);
+        }
+    }
+
+    /**
+     * Update the checkpoint of an ack required subscriber. Records read but not
+     * acked must be read again on restart, the subscriber is checkpointed at
+     * min(acked low-watermark - 1, delivered position). If the ack cache is
+     * journaled the pending records are resent on restart and the
+     * subscriber is checkpointed at the delivered position.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     */
+    private void checkpointAcked(String subscriber) {
+        ReadPosition p = delivered.get(subscriber);
+        if (p == null)
+            return;
+        try {
+            if (!ackCache.journaled()) {
+                // Blocks up to the delivered block, in read order.
+                List<MessageBlock> chain = new ArrayList<MessageBlock>();
+                blocks.lock().lock();
+                try {
+                    MessageBlock m = blocks.peek();
+                    while (m != null) {
+                        chain.add(m);
+                        if (m == p.block)
+                            break;
+                        m = m.next();
+                    }
+                } finally {
+                    blocks.lock().unlock();
+                }
+                for (MessageBlock m : chain) {
+                    long low = ackCache.lowWatermark(subscriber, blockid(m));
+                    if (low >= 0 && (m != p.block || low <= p.index)) {
+                        checkpoints.update(subscriber, m.id(), low - 1, -1);
+                        return;
+                    }
+                }
+            }
+            checkpoints.update(subscriber, p.block.id(), p.index, p.sequence);
+        } catch (MessageQueueException | LockTimeoutException e) {
+            LogUtils.warn(getClass(), String.format(
+                    "Error reading acked position, checkpoint not updated. [subscriber=%s] : %s",
+                    subscriber, e.getLocalizedMessage()), log);
+        }
+    }
+
+    /**
+     * Check if the subscriber requires its messages to be acked.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Ack required?
+     */
+    private boolean ackrequired(String subscriber) {
+        Subscriber<?> s = subscribers.get(subscriber);
+        return (ackCache != null && s != null && s.ackrequired());
+    }
+
+    /**
+     * Write a new record to the queue. If group commit is enabled the record is
+     * staged and written along with other concurrently published records under
+     * a single lock acquisition.
+     *
+     * @param data
+     *            - Record records (bytes)
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(byte[] data, long timeout) throws MessageQueueException, LockTimeoutException {
+        write(data, null, timeout);
+    }
+
+    /**
+     * Write a new record to the queue. The key is used to select the partition
+     * in case of a partitioned store, records with the same key are written to
+     * the same partition.
+     *
+     * @param data
+     *            - Record records (bytes)
+     * @param key
+     *            - Record key, can be NULL.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(byte[] data, Object key, long timeout) throws MessageQueueException,
+            LockTimeoutException {
+        if (data == null)
+            throw new MessageQueueException("Invalid argument. NULL records passed.");
+        write(new RecordEncoder.ByteArrayEncoder(data), key, timeout);
+    }
+
+    /**
+     * Write a new record to the queue. The record payload is encoded directly
+     * into the block, without intermediate copies.
+     *
+     * @param data
+     *            - Record payload encoder.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(RecordEncoder data, long timeout) throws MessageQueueException,
+            LockTimeoutException {
+        write(data, null, timeout);
+    }
+
+    /**
+     * Write a new record to the queue. The record payload is encoded directly
+     * into the block, the key is used to select the partition in case of a
+     * partitioned store.
+     *
+     * @param data
+     *            - Record payload encoder.
+     * @param key
+     *            - Record key, can be NULL.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(RecordEncoder data, Object key, long timeout) throws MessageQueueException,
+            LockTimeoutException {
+        try {
+            ObjectState.check(state, EObjectState.Available, getClass());
+            if (partitions != null) {
+                partitions[EPartitionStrategy.select(mConfig.partitionStrategy, key,
+                        partitions.length)].write(data, timeout);
+                incrementCounter(Constants.MONITOR_COUNTER_ADDS, 1);
+                notifier.signal();
+            } else if (groupWriter != null) {
+                groupWriter.write(data, timeout);
+            } else if (qw_lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                try {
+                    blocks.writeblock().write(data);
+                } finally {
+                    qw_lock.unlock();
+                }
+                incrementCounter(Constants.MONITOR_COUNTER_ADDS, 1);
+                notifier.signal();
+            } else {
+                throw new LockTimeoutException(storename + ":WRITE-LOCK", String.format(
+                        "[TIMEOUT=%d][LOCKED BY:%s]", timeout, qw_lock.owner().getName()));
+            }
+
+        } catch (StateException e) {
+            throw new MessageQueueException("Block manager in invalid setState.", e);
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted acquiring lock.", e);
+        }
+
+    }
+
+    /**
+     * Write a new batch of records to the queue.
+     *
+     * @param data
+     *            - Array of Record records (bytes)
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
      */
     public void write(byte[][] data, long timeout) throws MessageQueueException,
             LockTimeoutException {
+        write(data, null, timeout);
+    }
+
+    /**
+     * Write a new batch of records to the queue. In case of a partitioned store
+     * the whole batch is written to the partition selected by the key.
+     *
+     * @param data
+     *            - Array of Record records (bytes)
+     * @param key
+     *            - Batch key, can be NULL.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(byte[][] data, Object key, long timeout) throws MessageQueueException,
+            LockTimeoutException {
+        if (data == null)
+            throw new MessageQueueException("Invalid argument. NULL records passed.");
+        RecordEncoder[] encoders = new RecordEncoder[data.length];
+        for (int ii = 0; ii < data.length; ii++) {
+            if (data[ii] == null)
+                throw new MessageQueueException("Invalid argument. NULL records passed.");
+            encoders[ii] = new RecordEncoder.ByteArrayEncoder(data[ii]);
+        }
+        write(encoders, key, timeout);
+    }
+
+    /**
+     * Write a new batch of records to the queue. The record payloads are
+     * encoded directly into the block.
+     *
+     * @param data
+     *            - Array of record payload encoders.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(RecordEncoder[] data, long timeout) throws MessageQueueException,
+            LockTimeoutException {
+        write(data, null, timeout);
+    }
+
+    /**
+     * Write a new batch of records to the queue. The record payloads are
+     * encoded directly into the block, in case of a partitioned store the whole
+     * batch is written to the partition selected by the key.
+     *
+     * @param data
+     *            - Array of record payload encoders.
+     * @param key
+     *            - Batch key, can be NULL.
+     * @param timeout
+     *            - Lock timeout.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public void write(RecordEncoder[] data, Object key, long timeout)
+            throws MessageQueueException, LockTimeoutException {
         try {
             ObjectState.check(state, EObjectState.Available, getClass());
-            if (qw_lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+            if (partitions != null) {
+                partitions[EPartitionStrategy.select(mConfig.partitionStrategy, key,
+                        partitions.length)].write(data, timeout);
+                incrementCounter(Constants.MONITOR_COUNTER_ADDS, data.length);
+                notifier.signal();
+            } else if (qw_lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
                 try {
                     for (int ii = 0; ii < data.length; ii++) {
                         blocks.writeblock().write(data[ii]);
@@ -476,6 +1290,7 @@ public class MessageStoreManager implements Configurable {
                     qw_lock.unlock();
                 }
                 incrementCounter(Constants.MONITOR_COUNTER_ADDS, data.length);
+                notifier.signal();
             } else {
                 throw new LockTimeoutException(storename + ":WRITE-LOCK", String.format(
                         "[TIMEOUT=%d][LOCKED BY:%s]", timeout, qw_lock.owner().getName()));
@@ -488,6 +1303,377 @@ public class MessageStoreManager implements Configurable {
         }
     }
 
+    /**
+     * Get the current write generation of this store. Readers capture the
+     * generation before a read, to wait for new records if the read returned
+     * no data.
+     *
+     * @return - Write generation.
+     */
+    public long generation() {
+        return notifier.generation();
+    }
+
+    /**
+     * Wait for records to be written to the store after the specified write
+     * generation.
+     *
+     * @param generation
+     *            - Write generation captured before the read.
+     * @param timeout
+     *            - Max time to wait.
+     * @return - New records written? (false if timed out)
+     * @throws InterruptedException
+     */
+    public boolean await(long generation, long timeout) throws InterruptedException {
+        return notifier.await(generation, timeout);
+    }
+
+    /**
+     * Get the number of records committed to the store that have not yet been
+     * read by the subscriber. The lag is computed from the subscriber read
+     * pointer up to the last record committed to the write block, and is
+     * summed over the partitions for a partitioned store.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Subscriber lag (record count), -1 if the subscriber is not
+     *         registered.
+     */
+    public long lag(String subscriber) {
+        if (partitions != null) {
+            long lag = 0;
+            for (MessageStoreManager p : partitions) {
+                long l = p.lag(subscriber);
+                if (l > 0)
+                    lag += l;
+            }
+            return lag;
+        }
+        blocks.lock().lock();
+        try {
+            MessageBlock m = blocksSubscribed.get(subscriber);
+            if (m == null)
+                return -1;
+            long lag = m.committedIndex() - m.lastReadIndex(subscriber);
+            if (lag < 0)
+                lag = 0;
+            m = m.nextOfType(Constants.VALID_READ_STATES);
+            while (m != null) {
+                lag += m.committedIndex() + 1;
+                m = m.nextOfType(Constants.VALID_READ_STATES);
+            }
+            return lag;
+        } finally {
+            blocks.lock().unlock();
+        }
+    }
+
+    /**
+     * Read the record of the message with the specified ID, using the message
+     * ID indexes of the blocks. Newer blocks are looked up first.
+     *
+     * @param messageId
+     *            - Message ID.
+     * @return - Data block with the message record, NULL if not found.
+     * @throws MessageQueueException
+     */
+    public MessageDataBlock read(String messageId) throws MessageQueueException {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                MessageDataBlock data = p.read(messageId);
+                if (data != null)
+                    return data;
+            }
+            return null;
+        }
+        long[] key = MessageIdIndex.key(messageId);
+        if (key == null)
+            return null;
+        long[] index = new long[1];
+        MessageBlock found = find(key, index);
+        if (found == null)
+            return null;
+        MessageDataBlock data = new MessageDataBlock(blockid(found));
+        data.add(found.read(index[0]));
+        return data;
+    }
+
+    /**
+     * Locate the message with the specified ID, using the message ID indexes
+     * of the blocks. The block id and index of the message are set on the
+     * specified record, the message record itself is not read.
+     *
+     * @param messageId
+     *            - Message ID.
+     * @param rec
+     *            - Message ack record to set the position on.
+     * @return - Found?
+     * @throws MessageQueueException
+     */
+    public boolean locate(String messageId, MessageAckRecord rec) throws MessageQueueException {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                if (p.locate(messageId, rec))
+                    return true;
+            }
+            return false;
+        }
+        long[] key = MessageIdIndex.key(messageId);
+        if (key == null)
+            return false;
+        long[] index = new long[1];
+        MessageBlock found = find(key, index);
+        if (found == null)
+            return false;
+        rec.setBlockId(blockid(found));
+        rec.setBlockIndex(index[0]);
+        return true;
+    }
+
+    /**
+     * Find the block containing the message with the specified ID key, newer
+     * blocks are looked up first. The readable blocks are listed under the
+     * blocks lock, the index lookups (which can read the index files) are
+     * done outside it.
+     *
+     * @param key
+     *            - Message ID key.
+     * @param index
+     *            - Set to the record index of the message in the block.
+     * @return - Block, NULL if not found.
+     * @throws MessageQueueException
+     */
+    private MessageBlock find(long[] key, long[] index) throws MessageQueueException {
+        List<MessageBlock> chain = new ArrayList<MessageBlock>();
+        blocks.lock().lock();
+        try {
+            MessageBlock m = blocks.tail();
+            while (m != null) {
+                if (isReadable(m))
+                    chain.add(m);
+                m = m.previous();
+            }
+        } finally {
+            blocks.lock().unlock();
+        }
+        for (MessageBlock m : chain) {
+            index[0] = m.find(key);
+            if (index[0] >= 0)
+                return m;
+        }
+        return null;
+    }
+
+    /**
+     * Position the subscriber at the first record written at or after the
+     * specified timestamp. The block is located by a binary search on the
+     * first record timestamp of the readable blocks, the record by the block
+     * time index. The subscriber is positioned at the end of the queue if all
+     * the records have been written before the timestamp. Reads of the
+     * subscriber are expected to be stopped while seeking.
+     * <p/>
+     * The blocks are searched outside the blocks lock (searching can load a
+     * block), the lock is only held to get the readable blocks and to
+     * position the subscriber.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param timestamp
+     *            - Timestamp (in milliseconds).
+     * @throws MessageQueueException
+     */
+    public void seek(String subscriber, long timestamp) throws MessageQueueException {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.seek(subscriber, timestamp);
+            }
+            return;
+        }
+        while (true) {
+            List<MessageBlock> chain;
+            blocks.lock().lock();
+            try {
+                chain = readable(subscriber);
+            } finally {
+                blocks.lock().unlock();
+            }
+            MessageBlock m = null;
+            long index = -1;
+            for (int ii = start(chain, timestamp); ii < chain.size(); ii++) {
+                index = chain.get(ii).seek(timestamp);
+                if (index >= 0) {
+                    m = chain.get(ii);
+                    break;
+                }
+            }
+            blocks.lock().lock();
+            try {
+                chain = readable(subscriber);
+                if (m == null) {
+                    MessageBlock tail = chain.get(chain.size() - 1);
+                    position(subscriber, tail, tail.committedIndex() + 1);
+                    return;
+                }
+                // Retry if the block was removed while searching.
+                if (chain.contains(m)) {
+                    position(subscriber, m, index);
+                    return;
+                }
+            } finally {
+                blocks.lock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Find the last block with the first record written at or before the
+     * timestamp, by a binary search on the cached first record timestamps.
+     *
+     * @param chain
+     *            - Readable blocks, from the head.
+     * @param timestamp
+     *            - Timestamp (in milliseconds).
+     * @return - Position of the block to start the search from.
+     * @throws MessageQueueException
+     */
+    private int start(List<MessageBlock> chain, long timestamp) throws MessageQueueException {
+        int lo = 0;
+        int hi = chain.size() - 1;
+        int start = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long ts = chain.get(mid).firstTimestamp();
+            if (ts >= 0 && ts <= timestamp) {
+                start = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Position the subscriber at the specified record, the record is the next
+     * one read by the subscriber. Reads of the subscriber are expected to be
+     * stopped while seeking.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param blockid
+     *            - Block ID.
+     * @param index
+     *            - Record index in the block.
+     * @throws MessageQueueException
+     */
+    public void seek(String subscriber, String blockid, long index) throws MessageQueueException {
+        if (partitions != null) {
+            partition(blockid).seek(subscriber, blockid, index);
+            return;
+        }
+        blocks.lock().lock();
+        try {
+            String id = localid(blockid);
+            for (MessageBlock m : readable(subscriber)) {
+                if (m.id().compareTo(id) == 0) {
+                    if (index < 0 || index > m.committedIndex() + 1)
+                        throw new MessageQueueException(String.format(
+                                "Invalid record index. [block=%s][index=%d][committed=%d]",
+                                blockid, index, m.committedIndex()));
+                    position(subscriber, m, index);
+                    return;
+                }
+            }
+            throw new MessageQueueException("Block not found or not readable. [block=" + blockid
+                    + "]");
+        } finally {
+            blocks.lock().unlock();
+        }
+    }
+
+    /**
+     * Position the subscriber after the last record written, only records
+     * written after the seek are read.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @throws MessageQueueException
+     */
+    public void seekToEnd(String subscriber) throws MessageQueueException {
+        if (partitions != null) {
+            for (MessageStoreManager p : partitions) {
+                p.seekToEnd(subscriber);
+            }
+            return;
+        }
+        blocks.lock().lock();
+        try {
+            List<MessageBlock> chain = readable(subscriber);
+            MessageBlock tail = chain.get(chain.size() - 1);
+            position(subscriber, tail, tail.committedIndex() + 1);
+        } finally {
+            blocks.lock().unlock();
+        }
+    }
+
+    /**
+     * Get the readable blocks, from the head. Must be called with the blocks
+     * lock held.
+     *
+     * @param subscriber
+     *            - Subscriber name, to check the registration.
+     * @return - Readable blocks.
+     * @throws MessageQueueException
+     */
+    private List<MessageBlock> readable(String subscriber) throws MessageQueueException {
+        if (!blocksSubscribed.containsKey(subscriber))
+            throw new MessageQueueException("Subscriber not registered. [subscriber="
+                    + subscriber + "]");
+        List<MessageBlock> chain = new ArrayList<MessageBlock>();
+        MessageBlock m = blocks.peek();
+        while (m != null) {
+            if (isReadable(m))
+                chain.add(m);
+            m = m.next();
+        }
+        if (chain.isEmpty())
+            throw new MessageQueueException("No readable blocks. [store=" + storename + "]");
+        return chain;
+    }
+
+    /**
+     * Move the subscriber to the specified block and record. Must be called
+     * with the blocks lock held.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param block
+     *            - Block to read from.
+     * @param index
+     *            - Index of the next record to read.
+     * @throws MessageQueueException
+     */
+    private void position(String subscriber, MessageBlock block, long index)
+            throws MessageQueueException {
+        MessageBlock m = blocksSubscribed.get(subscriber);
+        m.unsubscribe(subscriber);
+        // The sequence of the previous record is not known, sequence gaps are
+        // not reported for the first record read.
+        block.subscribe(subscriber, index - 1, -1);
+        blocksSubscribed.put(subscriber, block);
+        if (checkpoints != null) {
+            if (ackrequired(subscriber)) {
+                reads.remove(subscriber);
+                delivered.put(subscriber, new ReadPosition(block, index - 1, -1));
+            }
+            checkpoints.update(subscriber, block.id(), index - 1, -1);
+        }
+        LogUtils.debug(getClass(), String.format(
+                "Subscriber positioned. [subscriber=%s][block=%s][index=%d]", subscriber,
+                block.id(), index));
+    }
+
     /**
      * Read from the specified block, the list of messages whose keys are
      * passed. These are the messages that are pending ack and need to be resent
@@ -502,7 +1688,9 @@ public class MessageStoreManager implements Configurable {
      */
     public List<Record> read(String blockid, List<MessageAckRecord> keys)
             throws MessageQueueException {
-        MessageBlock mb = blocks.find(blockid);
+        if (partitions != null)
+            return partition(blockid).read(blockid, keys);
+        MessageBlock mb = blocks.find(localid(blockid));
         if (mb == null)
             throw new MessageQueueException("Block [" + blockid + "] not found in block chain.");
         ReadResponse resp = mb.read(keys);
@@ -531,13 +1719,123 @@ public class MessageStoreManager implements Configurable {
      */
     public MessageDataBlock.MessageDataBlockList read(String subscriber, int batch, long timeout)
             throws MessageQueueException, LockTimeoutException {
-        MessageDataBlock.MessageDataBlockList data = read(subscriber, batch, timeout, null);
+        return read(subscriber, batch, timeout, false);
+    }
+
+    /**
+     * Lease a batch of records from the queue as zero-copy {@link RecordView}
+     * s. Every leased view must be released once consumed, blocks with leased
+     * views are not unloaded or GC'd.
+     *
+     * @param subscriber
+     *            - Registered subscriber name.
+     * @param batch
+     *            - Batch size.
+     * @param timeout
+     *            - Lock timeout.
+     * @return - Batch of leased record views.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    public MessageDataBlock.MessageDataBlockList lease(String subscriber, int batch, long timeout)
+            throws MessageQueueException, LockTimeoutException {
+        return read(subscriber, batch, timeout, true);
+    }
+
+    /**
+     * Read or lease a batch of records from the queue.
+     *
+     * @param subscriber
+     *            - Registered subscriber name.
+     * @param batch
+     *            - Batch size.
+     * @param timeout
+     *            - Lock timeout.
+     * @param lease
+     *            - Lease record views instead of copying the records.
+     * @return - Batch of records.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    private MessageDataBlock.MessageDataBlockList read(String subscriber, int batch,
+            long timeout, boolean lease) throws MessageQueueException, LockTimeoutException {
+        MessageDataBlock.MessageDataBlockList data = null;
+        if (partitions != null)
+            data = readPartitions(subscriber, batch, timeout, lease);
+        else
+            data = read(subscriber, batch, timeout, lease, null);
         if (data != null) {
             incrementCounter(Constants.MONITOR_COUNTER_READS, data.size());
         }
         return data;
     }
 
+    /**
+     * Read a batch of records from the store partitions. Each partition keeps
+     * its own read pointer for the subscriber, records are read in order within
+     * a partition. The partition to start reading from is rotated for each
+     * call, so that all the partitions are drained fairly.
+     *
+     * @param subscriber
+     *            - Registered subscriber name.
+     * @param batch
+     *            - Batch size.
+     * @param timeout
+     *            - Lock timeout.
+     * @param lease
+     *            - Lease record views instead of copying the records.
+     * @return - Batch of byte records.
+     * @throws MessageQueueException
+     *             , LockTimeoutException
+     */
+    private MessageDataBlock.MessageDataBlockList readPartitions(String subscriber, int batch,
+            long timeout, boolean lease) throws MessageQueueException, LockTimeoutException {
+        try {
+            if (state.getState() == EObjectState.Initialized)
+                return null;
+
+            ObjectState.check(state, EObjectState.Available, getClass());
+            long ts = System.currentTimeMillis();
+
+            AtomicInteger offset = readOffsets.get(subscriber);
+            if (offset == null)
+                throw new MessageQueueException("Subscriber not registered. [subscriber="
+                        + subscriber + "]");
+            int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % partitions.length;
+
+            MessageDataBlock.MessageDataBlockList data = null;
+            boolean done = false;
+            try {
+                int count = 0;
+                for (int ii = 0; ii < partitions.length && count < batch; ii++) {
+                    long delta_t = TimeUtils.timeout(ts, timeout);
+                    if (delta_t <= 0)
+                        break;
+                    MessageStoreManager p = partitions[(start + ii) % partitions.length];
+                    MessageDataBlock.MessageDataBlockList pdata = p.read(subscriber, batch
+                            - count, delta_t, lease);
+                    if (pdata != null && pdata.size() > 0) {
+                        if (data == null)
+                            data = new MessageDataBlock.MessageDataBlockList();
+                        for (MessageDataBlock mb : pdata.blocks()) {
+                            data.add(mb);
+                        }
+                        count = data.size();
+                    }
+                }
+                done = true;
+                return data;
+            } finally {
+                // Views leased from the other partitions are not returned,
+                // release them so that the blocks can be unloaded.
+                if (!done)
+                    release(data);
+            }
+        } catch (StateException e) {
+            throw new MessageQueueException("Block manager in invalid setState.", e);
+        }
+    }
+
     /**
      * To read the messages from the queue. The messages are read block-wise,
      * till the requested batch size is met or the unread messages are
@@ -556,6 +1854,8 @@ public class MessageStoreManager implements Configurable {
      *            the batch size
      * @param timeout
      *            the lock timeout
+     * @param lease
+     *            lease record views instead of copying the records
      * @param data
      *            MessageDataBlockList to which the MessageDataBlock needs to be
      *            appeneded to
@@ -567,8 +1867,9 @@ public class MessageStoreManager implements Configurable {
      *             the lock timeout exception
      */
     private MessageDataBlock.MessageDataBlockList read(String subscriber, int batch, long timeout,
-            MessageDataBlock.MessageDataBlockList data) throws MessageQueueException,
-            LockTimeoutException {
+            boolean lease, MessageDataBlock.MessageDataBlockList data)
+            throws MessageQueueException, LockTimeoutException {
+        boolean done = false;
         try {
             if (state.getState() == EObjectState.Initialized)
                 return null;
@@ -583,10 +1884,25 @@ public class MessageStoreManager implements Configurable {
             MessageBlock m = blocksSubscribed.get(subscriber);
             long delta_t = TimeUtils.timeout(ts, timeout);
 
+            boolean acked = ackrequired(subscriber);
+
             int bsize = batch - (data != null ? data.size() : 0);
-            ReadResponse records = m.read(subscriber, bsize, qw_lock, delta_t);
+            Subscriber<?> s = subscribers.get(subscriber);
+            FilterExpression filter = (s != null ? s.attributes() : null);
+            ReadResponse records = (lease ? m.lease(subscriber, bsize, delta_t, filter) : m.read(
+                    subscriber, bsize, delta_t, filter));
             if (records != null && records.data() != null && records.data().size() > 0) {
-                data = copy(data, records.data(), m.id());
+                data = copy(data, records.data(), blockid(m));
+                if (checkpoints != null) {
+                    // Records read by ack required subscribers are
+                    // checkpointed once added to the ack cache.
+                    if (acked)
+                        reads.put(subscriber, new ReadPosition(m, m.lastReadIndex(subscriber),
+                                m.lastReadSequence(subscriber)));
+                    else
+                        checkpoints.update(subscriber, m.id(), m.lastReadIndex(subscriber),
+                                m.lastReadSequence(subscriber));
+                }
             }
 
             if ((data == null || data.size() < batch)
@@ -611,14 +1927,40 @@ public class MessageStoreManager implements Configurable {
                         blocks.lock().unlock();
                     }
 
-                    return read(subscriber, batch, delta_t, data);
+                    data = read(subscriber, batch, delta_t, lease, data);
+                    done = true;
+                    return data;
                 }
             }
 
+            done = true;
             return data;
 
         } catch (StateException e) {
             throw new MessageQueueException("Block manager in invalid setState.", e);
+        } finally {
+            // The records read so far are not returned, release the leased
+            // views so that the blocks can be unloaded.
+            if (!done)
+                release(data);
+        }
+    }
+
+    /**
+     * Release the leased record views in the data block list, records that
+     * have been copied are ignored.
+     *
+     * @param data
+     *            - Data block list, can be NULL.
+     */
+    private void release(MessageDataBlock.MessageDataBlockList data) {
+        if (data == null)
+            return;
+        for (MessageDataBlock mb : data.blocks()) {
+            for (Record r : mb.records()) {
+                if (r instanceof RecordView)
+                    ((RecordView) r).release();
+            }
         }
     }
 
@@ -660,8 +2002,10 @@ public class MessageStoreManager implements Configurable {
      */
     public MessageBlock newblock(ChronicleConfig cc) throws MessageQueueException {
         MessageBlock b = new MessageBlock("" + blockIndex.incrementAndGet(),
-                messagedir.getAbsolutePath(), storename, true, cc);
+                messagedir.getAbsolutePath(), storename, true, cc)
+                .indexStride(mConfig.indexStride);
         b.init(false);
+        created(b);
 
         return b;
     }
@@ -678,6 +2022,12 @@ public class MessageStoreManager implements Configurable {
                 return;
 
             ObjectState.check(state, EObjectState.Available, getClass());
+            if (partitions != null) {
+                for (MessageStoreManager p : partitions) {
+                    p.gc();
+                }
+                return;
+            }
             blocks.initEmptyBlocks();
 
             if (blocks != null && blocks.size() > 0) {
@@ -697,7 +2047,7 @@ public class MessageStoreManager implements Configurable {
                         blocks.lock().lock();
                         try {
                             if (ptr.canGC()) {
-                                boolean ackpending = ackCache.hasPendingAcks(ptr.id());
+                                boolean ackpending = ackCache.hasPendingAcks(blockid(ptr));
                                 if (!ackpending) {
                                     LogUtils.debug(getClass(), String.format(
                                             "Adding block [%s:%s] for GC.", ptr.id(),
@@ -732,10 +2082,14 @@ public class MessageStoreManager implements Configurable {
                             if (removed) {
                                 if (backup != null) {
                                     backup.backup(m);
+                                    if (manifest != null)
+                                        manifest.backedup(m.id());
                                 }
                                 File d = new File(m.directory());
                                 if (d.exists())
                                     FileUtils.emptydir(d, true);
+                                if (manifest != null)
+                                    manifest.removed(m.id());
                             }
                         }
                     }
@@ -780,8 +2134,19 @@ public class MessageStoreManager implements Configurable {
                 messagedir.mkdirs();
             if (!mConfig.recoverOnRestart) {
                 FileUtils.emptydir(messagedir, false);
-            } else {
-                recover(cc);
+            }
+            if (mConfig.checkpointInterval > 0 || mConfig.checkpointAcks > 0)
+                checkpoints = new SubscriberCheckpoints(messagedir);
+            List<BlockManifest.Entry> entries = null;
+            if (mConfig.blockManifest) {
+                manifest = new BlockManifest(messagedir);
+                boolean exists = manifest.exists();
+                List<BlockManifest.Entry> e = manifest.open();
+                if (exists)
+                    entries = e;
+            }
+            if (mConfig.recoverOnRestart) {
+                recover(cc, entries);
             }
 
             MessageBlock b = newblock(String.valueOf(blockIndex.incrementAndGet()), cc);
@@ -797,57 +2162,109 @@ public class MessageStoreManager implements Configurable {
      * Recover existing {@link MessageBlock}. Only blcoks within the recovery
      * threshold are recovered. Remaining blocks are marked for backup and GCed.
      * All the blocks that are recovered are marked as RO.
+     * <p/>
+     * The recovered blocks are added to the block chain in block order before
+     * they are opened. If parallel recovery is enabled the blocks are opened
+     * and verified in the background, reads on a block wait till the block has
+     * been recovered while writes can proceed on the new write block.
+     * <p/>
+     * Blocks sealed in the block manifest are restored from the manifest entry
+     * without opening the block files, these blocks are loaded on first read.
+     * Blocks that were not sealed (write block at shutdown) or are missing in
+     * the manifest are recovered from the block files.
      *
      * @param cc
      *            the {@link ChronicleConfig}
+     * @param entries
+     *            the block manifest entries, NULL if no manifest exists
      * @throws MessageQueueException
      *             the message queue exception
      */
-    private void recover(ChronicleConfig cc) throws MessageQueueException {
+    private void recover(ChronicleConfig cc, List<BlockManifest.Entry> entries)
+            throws MessageQueueException {
         try {
-            File[] files = messagedir.listFiles();
-            if (files != null && files.length > 0) {
+            HashMap<String, BlockManifest.Entry> manifested = new HashMap<String, BlockManifest.Entry>();
+            if (entries != null) {
+                for (BlockManifest.Entry e : entries) {
+                    manifested.put(e.id(), e);
+                }
+            }
+            List<File> files = new ArrayList<File>();
+            HashSet<String> names = new HashSet<String>();
+            String[] list = messagedir.list();
+            if (list != null) {
+                for (String bid : list) {
+                    if (!isBlockId(bid))
+                        continue;
+                    File f = new File(messagedir, bid);
+                    if (manifested.containsKey(bid)
+                            || (f.isDirectory() && isMessageDirectory(f, storename))) {
+                        files.add(f);
+                        names.add(bid);
+                    }
+                }
+            }
+            for (String bid : manifested.keySet()) {
+                if (!names.contains(bid)) {
+                    LogUtils.warn(getClass(), String.format(
+                            "Block [%s] in manifest not found, removing. [store=%s]", bid,
+                            storename), log);
+                    manifest.removed(bid);
+                }
+            }
+            if (!files.isEmpty()) {
                 // recoveryThreshold should be min(recoveryThreshold,
                 // files.length)
-                mConfig.recoveryThreshold = mConfig.recoveryThreshold < files.length ? files.length
-                        : mConfig.recoveryThreshold;
-                Arrays.sort(files, new FileComparator());
+                mConfig.recoveryThreshold = mConfig.recoveryThreshold < files.size() ? files
+                        .size() : mConfig.recoveryThreshold;
+                Collections.sort(files, new FileComparator());
+                List<MessageBlock> expired = new ArrayList<MessageBlock>();
                 int count = 0;
                 for (File f : files) {
                     String bid = f.getName();
-                    if (f.isDirectory() && isMessageDirectory(f, storename)) {
-                        // if recoverOnRestart flag is true, then the emptyFlag
-                        // should be false,
-                        // while recovering the MessageBlock and vice-versa.
-                        MessageBlock b = new MessageBlock(bid, messagedir.getAbsolutePath(),
-                                storename, !mConfig.recoverOnRestart, cc);
-                        b.init(true);
-                        b.closewriter();
-                        b.unload();
-                        if (mConfig.recoveryThreshold < 0 || count < mConfig.recoveryThreshold) {
+                    // if recoverOnRestart flag is true, then the emptyFlag
+                    // should be false,
+                    // while recovering the MessageBlock and vice-versa.
+                    MessageBlock b = new MessageBlock(bid, messagedir.getAbsolutePath(),
+                            storename, !mConfig.recoverOnRestart, cc).manifest(manifest);
+                    if (mConfig.recoveryThreshold < 0 || count < mConfig.recoveryThreshold) {
+                        BlockManifest.Entry e = manifested.get(bid);
+                        if (e != null && e.sealed()) {
+                            LogUtils.debug(getClass(), String.format(
+                                    "Restoring block [%s] from manifest : last index=%d", bid,
+                                    e.lastIndex()));
+                            blocks.add(b.restore(e.lastIndex(), e.lastSequence(), e.createtime()));
+                        } else {
                             log.warn(String.format("Recovering block [%s] : directory=%s", bid,
                                     f.getAbsolutePath()));
-                            blocks.add(b);
-                        } else if (!disableExpiry) {
-                            // create a new block and mark that block as a
-                            // candidate for backup (GC)
-                            log.warn(String.format("Marking block [%s] : directory=%s for backup",
-                                    bid, f.getAbsolutePath()));
-                            b.close();
-                            // call backup
-                            if (backup != null) {
-                                backup.backup(b);
+                            blocks.add(b.recovering());
+                            if (mConfig.parallelRecovery) {
+                                recoverAsync(b);
+                            } else {
+                                recover(b);
                             }
-                            File d = new File(b.directory());
-                            if (d.exists())
-                                FileUtils.emptydir(d, true);
                         }
-                        long id = Long.parseLong(bid);
-                        if (id > blockIndex.get())
-                            blockIndex.set(id);
+                    } else if (!disableExpiry) {
+                        // create a new block and mark that block as a
+                        // candidate for backup (GC)
+                        log.warn(String.format("Marking block [%s] : directory=%s for backup",
+                                bid, f.getAbsolutePath()));
+                        expired.add(b);
                     }
+                    long id = Long.parseLong(bid);
+                    if (id > blockIndex.get())
+                        blockIndex.set(id);
                     count++;
                 }
+                if (!expired.isEmpty()) {
+                    if (mConfig.parallelRecovery) {
+                        expireAsync(expired);
+                    } else {
+                        for (MessageBlock b : expired) {
+                            expire(b);
+                        }
+                    }
+                }
             }
         } catch (MessageBlockBackup.BlockBackupException e) {
             throw new MessageQueueException("Error backing up block.", e);
@@ -856,6 +2273,153 @@ public class MessageStoreManager implements Configurable {
         }
     }
 
+    /**
+     * Check if the file name is a valid block id, blocks are named as
+     * increasing integer sequence.
+     *
+     * @param name
+     *            - File name.
+     * @return - Is block id?
+     */
+    private boolean isBlockId(String name) {
+        try {
+            return Integer.parseInt(name) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record a newly created block in the block manifest.
+     *
+     * @param block
+     *            - New block.
+     */
+    private void created(MessageBlock block) {
+        if (manifest != null) {
+            block.manifest(manifest);
+            manifest.created(block.id(), block.createtime());
+        }
+    }
+
+    /**
+     * Open and verify an existing block, recording the recovery time.
+     *
+     * @param block
+     *            - Block pending recovery.
+     * @throws MessageQueueException
+     */
+    private void recover(MessageBlock block) throws MessageQueueException {
+        long ts = Monitoring.timerstart();
+        block.recover();
+        timerstop(Constants.MONITOR_COUNTER_RECOVERYTIME, ts, 1);
+        LogUtils.debug(getClass(), String.format("Recovered block [%s] in %d ms. [store=%s]",
+                block.id(), (System.currentTimeMillis() - ts), storename));
+    }
+
+    /**
+     * Recover an existing block on the shared recovery pool.
+     *
+     * @param block
+     *            - Block pending recovery.
+     */
+    private void recoverAsync(final MessageBlock block) {
+        recoveryPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recover(block);
+                } catch (Throwable t) {
+                    LogUtils.error(MessageStoreManager.class, String.format(
+                            "Error recovering block [%s]. [store=%s]", block.id(), storename), log);
+                    LogUtils.stacktrace(MessageStoreManager.class, t, log);
+                }
+            }
+        });
+    }
+
+    /**
+     * Backup and remove a block that is outside the recovery threshold.
+     *
+     * @param block
+     *            - Expired block.
+     * @throws MessageQueueException
+     * @throws MessageBlockBackup.BlockBackupException
+     * @throws IOException
+     */
+    private void expire(MessageBlock block) throws MessageQueueException,
+            MessageBlockBackup.BlockBackupException, IOException {
+        block.recovering().recover();
+        block.close();
+        // call backup
+        if (backup != null) {
+            backup.backup(block);
+            if (manifest != null)
+                manifest.backedup(block.id());
+        }
+        File d = new File(block.directory());
+        if (d.exists())
+            FileUtils.emptydir(d, true);
+        if (manifest != null)
+            manifest.removed(block.id());
+    }
+
+    /**
+     * Backup and remove the expired blocks in the background. The blocks are
+     * processed in order by a single task, so the backups are not run
+     * concurrently.
+     *
+     * @param expired
+     *            - Expired blocks.
+     */
+    private void expireAsync(final List<MessageBlock> expired) {
+        recoveryPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (MessageBlock b : expired) {
+                    try {
+                        expire(b);
+                    } catch (Throwable t) {
+                        LogUtils.error(MessageStoreManager.class, String.format(
+                                "Error backing up block [%s]. [store=%s]", b.id(), storename),
+                                log);
+                        LogUtils.stacktrace(MessageStoreManager.class, t, log);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the shared block recovery pool, creating it if required.
+     *
+     * @return - Recovery pool.
+     */
+    private static synchronized ForkJoinPool recoveryPool() {
+        if (recoveryPool == null)
+            recoveryPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return recoveryPool;
+    }
+
+    /**
+     * Get the shared checkpoint executor, creating it if required.
+     *
+     * @return - Checkpoint executor.
+     */
+    private static synchronized ScheduledExecutorService checkpointPool() {
+        if (checkpointPool == null) {
+            checkpointPool = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RIVER_CHECKPOINT");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return checkpointPool;
+    }
+
     /**
      * Checks if the message store directory is valid. Valid directory should
      * have .data and .index files corresponding to the store name
@@ -897,8 +2461,10 @@ public class MessageStoreManager implements Configurable {
      *             the message queue exception
      */
     private MessageBlock newblock(String name, ChronicleConfig cc) throws MessageQueueException {
-        MessageBlock b = new MessageBlock(name, messagedir.getAbsolutePath(), storename, true, cc);
+        MessageBlock b = new MessageBlock(name, messagedir.getAbsolutePath(), storename, true, cc)
+                .indexStride(mConfig.indexStride);
         b.init(false);
+        created(b);
         blocks.add(b);
 
         return b;
@@ -29,11 +29,21 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Pooled Executor executes each registered {@link Processor} in a serial
  * manner, using a thread pool of pre-configured size. Pooled Executors are
  * defined at the subscriber level.
+ * <p/>
+ * If a pipeline depth is configured, the executor runs in pipelined mode
+ * instead: a reader thread prefetches and decodes the next batches into a
+ * bounded hand-off buffer, a single processor thread executes the processor
+ * chain and an ack thread acks the processed batches. Reads, processing and
+ * acks overlap, while the batches are still processed and acked in the order
+ * they were read.
  *
  * @author Subho Ghosh (subho dot ghosh at outlook.com)
  * @param <M>
@@ -52,6 +62,22 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
     @CParam(name = "executor.pool.size", required = false)
     private int poolSize = 1;
 
+    /**
+     * config param : number of batches prefetched ahead of the processor,
+     * default = 0 (pipeline disabled).
+     */
+    @CParam(name = "executor.pipeline.depth", required = false)
+    private int pipelineDepth = 0;
+
+    /** pipeline : batches read and pending processing */
+    private ArrayBlockingQueue<List<Message<M>>> prefetched = null;
+    /** pipeline : batches processed and pending ack */
+    private LinkedBlockingQueue<List<Message<M>>> processed = null;
+    /** pipeline : reader stage has terminated */
+    private volatile boolean readerDone = false;
+    /** pipeline : processor stage has terminated */
+    private volatile boolean processorDone = false;
+
     /**
      * Start all the threads in the pool corresponding to PooledExecutor
      * 
@@ -60,6 +86,10 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
      */
     @Override
     public void start() throws ProcessingException {
+        if (pipelineDepth > 0) {
+            startPipeline();
+            return;
+        }
         threads = new ArrayList<MonitoredThread>(poolSize);
         for (int ii = 0; ii < poolSize; ii++) {
             MonitoredThread t = new MonitoredThread(this, name + "_EXECUTOR_" + ii);
@@ -72,41 +102,32 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
     /**
      * Run method -- For the subscriber associated with this executor, read the
      * message batch from the message queue, and execute all configured
-     * processors on the message batch. Exception action depend upon the type of
-     * Processors configured (fatal or non-fatal processing excpetion, ignore or
-     * not to ignore the non fatal exception)
+     * processors on the message batch. If the queue is empty, the thread waits
+     * for new messages to be committed (max sleep interval). Exception action
+     * depend upon the type of Processors configured (fatal or non-fatal
+     * processing excpetion, ignore or not to ignore the non fatal exception)
      */
     @Override
     public void run() {
         try {
-            while (subscriber().state().getState() == EObjectState.Initialized) {
-                try {
-                    Thread.sleep(sleeptime);
-                } catch (InterruptedException ie) {
-                    log.warn(String.format("Thread interrupt received. Thread ID=%d", Thread
-                            .currentThread().getName()));
-                    continue;
-                }
-            }
-            ObjectState.check(subscriber().state(), EObjectState.Available, getClass());
-            log.info(String.format("Message subscriber running. [name=%s]", name()));
+            awaitSubscriber();
             // for the subscriber corresponding to this executor
             while (subscriber().state().getState() == EObjectState.Available) {
                 List<Message<M>> messages = null;
-                lock.readLock().lock();
-                try {
-                    // read the message batch from the queue
-                    messages = subscriber().batch(batchSize, queueTimeout);
-                } finally {
-                    lock.readLock().unlock();
-                }
+                // capture the queue write generation before reading, used to
+                // wait for new messages if the batch is empty.
+                long generation = subscriber().queue().generation();
+                // read the message batch from the queue
+                messages = read();
                 try {
                     if (messages != null && !messages.isEmpty()) {
                         // execute the processors on the message batch
                         execute(messages);
                     } else {
                         try {
-                            Thread.sleep(sleeptime);
+                            // wake up as soon as new messages are committed,
+                            // instead of sleeping for the whole interval.
+                            subscriber().queue().await(generation, sleeptime);
                         } catch (InterruptedException ie) {
                             log.warn(String.format("Thread interrupt received. Thread ID=%d",
                                     Thread.currentThread().getName()));
@@ -134,98 +155,163 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
     }
 
     /**
-     * Execute the processors for the messages passed. The processors that are
-     * configured are executed sequentially one after another. Exception
-     * handling depends on the type of exception encountered and the type
-     * processor configured. Refer to {@link ProcessingException} and
-     * {@link NonFatalProcessorException} for more details. If ack is set to
-     * true and async flag is set to false, then the message batch is
-     * acknowledged after all the processors are executed successfully.
-     * 
+     * Wait for the subscriber to be started.
      *
-     * @param messages
-     *            - List of messages.
-     * @throws ProcessingException
-     *             the processing exception
-     * @throws NonFatalProcessorException
-     *             the non fatal processor exception
+     * @throws StateException
+     *             if the subscriber is not available
      */
-    public void execute(final List<Message<M>> messages) throws ProcessingException,
-            NonFatalProcessorException {
-        try {
-            ProcessState.check(state, EProcessState.Running, getClass());
-            List<Message<M>> ms = messages;
-            if (processors != null && !processors.isEmpty()) {
-                for (Processor<M> p : processors) {
-                    EProcessResponse r = null;
-                    try {
-                        ProcessResponse<M> pr = p.execute(ms);
-                        r = pr.response();
+    private void awaitSubscriber() throws StateException {
+        while (subscriber().state().getState() == EObjectState.Initialized) {
+            try {
+                Thread.sleep(sleeptime);
+            } catch (InterruptedException ie) {
+                log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                        .currentThread().getName()));
+                continue;
+            }
+        }
+        ObjectState.check(subscriber().state(), EObjectState.Available, getClass());
+        log.info(String.format("Message subscriber running. [name=%s]", name()));
+    }
 
-                        // If the last processor did not return
-                        // any messages, then stop the chain.
-                        if (pr.messages() == null || pr.messages().isEmpty())
-                            break;
+    /**
+     * Start the pipeline stage threads. The processor stage is single
+     * threaded, so that the batch order is preserved.
+     */
+    private void startPipeline() {
+        if (poolSize > 1)
+            LogUtils.warn(getClass(), "Pool size ignored in pipelined mode. [name=" + name
+                    + "][pool size=" + poolSize + "]");
+        prefetched = new ArrayBlockingQueue<List<Message<M>>>(pipelineDepth);
+        processed = new LinkedBlockingQueue<List<Message<M>>>();
+        readerDone = false;
+        processorDone = false;
 
-                        // Set the message input to the next
-                        // processor the output of the current
-                        // one.
-                        if (r == EProcessResponse.Success)
-                            ms = pr.messages();
+        threads = new ArrayList<MonitoredThread>(3);
+        threads.add(new MonitoredThread(new PipelineReader(), name + "_EXECUTOR_READER"));
+        threads.add(new MonitoredThread(new PipelineProcessor(), name + "_EXECUTOR_PROCESSOR"));
+        threads.add(new MonitoredThread(new PipelineAcker(), name + "_EXECUTOR_ACKER"));
+        for (MonitoredThread t : threads) {
+            t.start();
+            Monitoring.register(t);
+        }
+    }
 
-                    } catch (NonFatalProcessorException nfe) {
-                        // NonFatalProcessor Exception raised will
-                        // cause the processor chain to terminate
-                        // if the process instance has set
-                        // ignore getError to false (Messages will still
-                        // be acked). Else the
-                        // current execution loop will
-                        // terminate and the messages will not be
-                        // acked by the subscribers
-                        if (p.ignoreException()) {
-                            log.error(String
-                                    .format("Processor getError : [%s] : [%s]. Ignore exception is set to true. Messages will be acked",
-                                            p.getClass().getCanonicalName(),
-                                            nfe.getLocalizedMessage()));
-                            break;
+    /**
+     * Pipeline reader stage -- read (and decode) the message batches ahead of
+     * the processor. Blocks once the hand-off buffer is full.
+     */
+    private final class PipelineReader implements Runnable {
+        @Override
+        public void run() {
+            try {
+                awaitSubscriber();
+                while (subscriber().state().getState() == EObjectState.Available
+                        && state.getState() == EProcessState.Running) {
+                    List<Message<M>> messages = null;
+                    long generation = subscriber().queue().generation();
+                    // read the message batch from the queue
+                    messages = read();
+                    try {
+                        if (messages != null && !messages.isEmpty()) {
+                            // hand-off the batch, wait for buffer space
+                            while (!prefetched.offer(messages, sleeptime, TimeUnit.MILLISECONDS)) {
+                                if (state.getState() != EProcessState.Running)
+                                    break;
+                            }
                         } else {
-                            throw nfe;
+                            subscriber().queue().await(generation, sleeptime);
                         }
-                    } catch (ProcessingException pe) {
-                        // processing exception will cause the current processor
-                        // chain to terminate
-                        // and the exception will be propagated further causing
-                        // the subscriber
-                        // loop to terminate
-                        throw pe;
-                    } catch (Throwable te) {
-                        // any other exception will be suppressed
-                        log.error(String.format("Processor getError : [%s] : [%s]", p.getClass()
-                                .getCanonicalName(), te.getLocalizedMessage()));
+                    } catch (InterruptedException ie) {
+                        log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                                .currentThread().getName()));
                     }
                 }
-                // invoke the ack, only if async flag is set to false. Check to
-                // determine whether the ack flag is actually configured or not
-                // is done inside the ack() call.
-                if (!subscriber().subscriberAsyncAck()) {
-                    List<String> acks = new ArrayList<String>();
-                    for (Message<M> m : messages) {
-                        acks.add(m.header().id());
+            } catch (MessageQueueException e) {
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message subscriber terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            } catch (StateException e) {
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format(
+                        "Message subscriber in invalid setState. [name=%s][error=%s]", name(),
+                        e.getLocalizedMessage()));
+            } finally {
+                readerDone = true;
+            }
+        }
+    }
+
+    /**
+     * Pipeline processor stage -- execute the processor chain on the prefetched
+     * batches, in read order, and hand-off the processed batches for ack.
+     */
+    private final class PipelineProcessor implements Runnable {
+        @Override
+        public void run() {
+            boolean ack = subscriber().ackrequired() && !subscriber().subscriberAsyncAck();
+            try {
+                while (!readerDone || !prefetched.isEmpty()) {
+                    List<Message<M>> messages = null;
+                    try {
+                        messages = prefetched.poll(sleeptime, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                                .currentThread().getName()));
+                        continue;
                     }
-                    if (acks.size() > 0) {
-                        subscriber().ack(acks);
+                    if (messages == null)
+                        continue;
+                    if (state.getState() != EProcessState.Running) {
+                        // Executor stopped, un-acked batches are resent.
+                        LogUtils.debug(getClass(), "Executor stopped, dropping prefetched batches. "
+                                + "[name=" + name + "][batches=" + (prefetched.size() + 1) + "]");
+                        break;
+                    }
+                    try {
+                        if (process(messages) && ack)
+                            processed.add(messages);
+                    } catch (NonFatalProcessorException nfe) {
+                        LogUtils.stacktrace(getClass(), nfe, log);
+                        log.error("Non Fatal Error in executing processor.", nfe.getMessage());
                     }
                 }
+            } catch (ProcessingException e) {
+                exception(e);
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message subscriber terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            } finally {
+                processorDone = true;
             }
+        }
+    }
 
-        } catch (StateException se) {
-            exception(se);
-            throw new ProcessingException("Execution failed. Executor is not running. [setState="
-                    + state.getState().name() + "]");
-        } catch (MessageQueueException se) {
-            exception(se);
-            throw new ProcessingException("Execution failed. Executor is not running. [setState="
-                    + state.getState().name() + "]");
+    /**
+     * Pipeline ack stage -- ack the processed batches, in processing order.
+     */
+    private final class PipelineAcker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!processorDone || !processed.isEmpty()) {
+                    List<Message<M>> messages = null;
+                    try {
+                        messages = processed.poll(sleeptime, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ie) {
+                        log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                                .currentThread().getName()));
+                        continue;
+                    }
+                    if (messages != null
+                            && subscriber().state().getState() == EObjectState.Available)
+                        ack(messages);
+                }
+            } catch (ProcessingException e) {
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message ack failed. [name=%s][error=%s]", name(),
+                        e.getLocalizedMessage()));
+            }
         }
     }
 
@@ -249,6 +335,12 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
      *      <executor class="com.wookler.server.river.PooledExecutor">
      *          <params>
      *              <param name="executor.pool.size" value="[thread pool size]" />
+     *              <param name="executor.pipeline.depth" value="[optional: prefetched batches, default=0 (disabled)]" />
+     *              <param name="executor.batch.adaptive" value="[optional: adapt batch size/timeout, default=false]" />
+     *              <param name="executor.batch.size.min" value="[optional: default=1]" />
+     *              <param name="executor.batch.size.max" value="[optional: default=subscriber batch size]" />
+     *              <param name="executor.batch.timeout.min" value="[optional: default=1]" />
+     *              <param name="executor.batch.latency.target" value="[optional: default=100]" />
      *          </params>
      *      </executor>
      * }
@@ -269,7 +361,7 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
             LogUtils.debug(getClass(), ((ConfigPath) config).path());
             ConfigUtils.parse(config, this);
             LogUtils.debug(getClass(), "Configured Pooled Executor with pool size = " + poolSize
-                    + ". [name=" + name + "]");
+                    + ", pipeline depth = " + pipelineDepth + ". [name=" + name + "]");
             state.setState(EProcessState.Running);
         } catch (ConfigurationException e) {
             exception(e);
@@ -326,4 +418,23 @@ public class PooledExecutor<M> extends AbstractExecutor<M> {
     public void setPoolSize(int poolSize) {
         this.poolSize = poolSize;
     }
+
+    /**
+     * Gets the pipeline depth.
+     *
+     * @return the pipelineDepth
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the pipeline depth.
+     *
+     * @param pipelineDepth
+     *            the pipelineDepth to set
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluation statistics of a predicate in a short-circuit chain (filters in a
+ * filter processor, terms of an AND/OR expression), used to order the chain
+ * adaptively. A predicate that short-circuits the chain often and is cheap to
+ * evaluate should run first: predicates are ranked by cost / short-circuit
+ * rate, lowest first.
+ * <p/>
+ * The evaluation cost is sampled (timed) on average once every
+ * {@link Constants#SAMPLE_INTERVAL} evaluations. Statistics are updated
+ * concurrently by the evaluating threads, the chain is ordered on a snapshot
+ * of the statistics.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class PredicateStats {
+    public static final class Constants {
+        /** evaluations between timed samples (on average) */
+        public static final int SAMPLE_INTERVAL = 64;
+        /** chain evaluations between re-ordering (on average) */
+        public static final int REORDER_INTERVAL = 4096;
+    }
+
+    /** static cost estimate, used till the cost has been sampled */
+    private final double cost;
+    /** number of evaluations */
+    private final LongAdder evaluations = new LongAdder();
+    /** number of evaluations that short-circuited the chain */
+    private final LongAdder hits = new LongAdder();
+    /** sampled evaluation time (in nanoseconds) */
+    private final LongAdder nanos = new LongAdder();
+    /** number of timed evaluations */
+    private final LongAdder samples = new LongAdder();
+
+    /**
+     * Create a new predicate statistics instance.
+     *
+     * @param cost
+     *            - Static cost estimate (in nanoseconds).
+     */
+    public PredicateStats(double cost) {
+        this.cost = cost;
+    }
+
+    /**
+     * Check if the next evaluation should be timed.
+     *
+     * @return - Sample?
+     */
+    public boolean sample() {
+        return ThreadLocalRandom.current().nextInt(Constants.SAMPLE_INTERVAL) == 0;
+    }
+
+    /**
+     * Check if the chain should be re-ordered after the current evaluation.
+     *
+     * @return - Re-order?
+     */
+    public static boolean reorder() {
+        return ThreadLocalRandom.current().nextInt(Constants.REORDER_INTERVAL) == 0;
+    }
+
+    /**
+     * Record an evaluation.
+     *
+     * @param hit
+     *            - Evaluation short-circuited the chain?
+     */
+    public void evaluated(boolean hit) {
+        evaluations.increment();
+        if (hit)
+            hits.increment();
+    }
+
+    /**
+     * Record a timed evaluation.
+     *
+     * @param hit
+     *            - Evaluation short-circuited the chain?
+     * @param elapsed
+     *            - Evaluation time (in nanoseconds).
+     */
+    public void evaluated(boolean hit, long elapsed) {
+        evaluated(hit);
+        nanos.add(elapsed);
+        samples.increment();
+    }
+
+    /**
+     * Get the average evaluation cost.
+     *
+     * @return - Cost (in nanoseconds).
+     */
+    public double cost() {
+        return cost(nanos.sum(), samples.sum());
+    }
+
+    private double cost(long nanos, long samples) {
+        if (samples > 0)
+            return (double) nanos / samples;
+        return cost;
+    }
+
+    /**
+     * Get the rate at which this predicate short-circuits the chain.
+     *
+     * @return - Short-circuit rate (0-1).
+     */
+    public double selectivity() {
+        return selectivity(hits.sum(), evaluations.sum());
+    }
+
+    private static double selectivity(long hits, long evaluations) {
+        // Laplace smoothing, untested predicates rank in the middle.
+        return (hits + 1.0) / (evaluations + 2.0);
+    }
+
+    /**
+     * Compute the rank and halve the statistics, so the order follows changes
+     * in the message mix. Evaluations recorded concurrently are either counted
+     * in this rank or kept for the next.
+     *
+     * @return - Rank.
+     */
+    private double rank() {
+        long e = evaluations.sumThenReset();
+        long h = hits.sumThenReset();
+        long n = nanos.sumThenReset();
+        long c = samples.sumThenReset();
+        double rank = cost(n, c) / selectivity(h, e);
+        evaluations.add(e >> 1);
+        hits.add(h >> 1);
+        if (c > 1) {
+            nanos.add(n >> 1);
+            samples.add(c >> 1);
+        } else {
+            nanos.add(n);
+            samples.add(c);
+        }
+        return rank;
+    }
+
+    /**
+     * Order the specified predicates by rank, lowest first. The ranks are
+     * computed once, the order is sorted on this snapshot. Must not be called
+     * concurrently for the same predicates.
+     *
+     * @param stats
+     *            - Predicate statistics, in the current order.
+     * @return - Predicate positions, in the new order. NULL if the order is
+     *         unchanged.
+     */
+    public static int[] order(PredicateStats[] stats) {
+        double[] ranks = new double[stats.length];
+        int[] order = new int[stats.length];
+        for (int ii = 0; ii < stats.length; ii++) {
+            ranks[ii] = stats[ii].rank();
+            order[ii] = ii;
+        }
+        // Stable insertion sort, chains are short.
+        boolean changed = false;
+        for (int ii = 1; ii < order.length; ii++) {
+            int p = order[ii];
+            int jj = ii - 1;
+            while (jj >= 0 && Double.compare(ranks[order[jj]], ranks[p]) > 0) {
+                order[jj + 1] = order[jj];
+                jj--;
+            }
+            if (jj + 1 != ii) {
+                order[jj + 1] = p;
+                changed = true;
+            }
+        }
+        return (changed ? order : null);
+    }
+}
@@ -252,6 +252,45 @@ public abstract class Processor<M> implements Configurable {
         }
     }
 
+    /**
+     * Execute this processor on the batch view passed. Messages dropped by the
+     * processor are removed from the batch once the processor returns, the
+     * batch is then passed as is to the next processor in the chain.
+     *
+     * @param batch
+     *            - Batch of messages.
+     * @return - Execution response.
+     * @throws ProcessingException
+     */
+    public EProcessResponse execute(MessageBatch<M> batch) throws ProcessingException,
+            NonFatalProcessorException {
+        if (batch == null || batch.isEmpty())
+            return EProcessResponse.Failed;
+        int count = batch.size();
+        long ts = Monitoring.timerstart();
+        incrementCounter(Constants.MONITOR_COUNTER_MESSAGES, count);
+        try {
+            EProcessResponse resp = process(batch);
+            batch.compact();
+            if (resp == EProcessResponse.Success) {
+                incrementCounter(Constants.MONITOR_COUNTER_SUCCESS, count);
+            } else if (resp == EProcessResponse.Failed) {
+                incrementCounter(Constants.MONITOR_COUNTER_FAILED, count);
+            } else if (resp == EProcessResponse.Exception) {
+                incrementCounter(Constants.MONITOR_COUNTER_EXCEPTION, count);
+            }
+            return resp;
+        } catch (NonFatalProcessorException nfe) {
+            incrementCounter(Constants.MONITOR_COUNTER_EXCEPTION, count);
+            throw nfe;
+        } catch (ProcessingException pe) {
+            incrementCounter(Constants.MONITOR_COUNTER_EXCEPTION, count);
+            throw pe;
+        } finally {
+            timerstop(ts, count);
+        }
+    }
+
     /**
      * Execute this processor on the message passed.
      * 
@@ -297,6 +336,29 @@ public abstract class Processor<M> implements Configurable {
     protected abstract ProcessResponse<M> process(List<Message<M>> messages)
             throws ProcessingException, NonFatalProcessorException;
 
+    /**
+     * Process the batch view in place. Processors that filter or replace
+     * messages should override this method to avoid copying the batch. The
+     * default implementation adapts the list based
+     * {@link #process(List)} call: the selected messages are copied to a list
+     * and the returned messages are selected for the next processor (if the
+     * call succeeded).
+     *
+     * @param batch
+     *            - Batch of messages to be processed.
+     * @return - Execution response.
+     * @throws ProcessingException
+     */
+    protected EProcessResponse process(MessageBatch<M> batch) throws ProcessingException,
+            NonFatalProcessorException {
+        ProcessResponse<M> resp = process(batch.toList());
+        if (resp.messages() == null || resp.messages().isEmpty())
+            batch.retain(null);
+        else if (resp.response() == EProcessResponse.Success)
+            batch.retain(resp.messages());
+        return resp.response();
+    }
+
     /**
      * Method to be implemented for processing message blocks.
      * 
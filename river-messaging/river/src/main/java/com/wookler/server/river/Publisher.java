@@ -68,10 +68,26 @@ public class Publisher<M> {
      * @throws MessageQueueException
      */
     public void publish(M message) throws MessageQueueException {
+        publish(message, null);
+    }
+
+    /**
+     * Publish a message with the specified key to the queue. The key selects
+     * the partition in case of a partitioned queue. If message publish fails,
+     * then it is retried if the failure count is within threshold. Otherwise
+     * {@link MessageQueueException} is thrown
+     *
+     * @param message
+     *            - Message published
+     * @param key
+     *            - Message key, can be NULL.
+     * @throws MessageQueueException
+     */
+    public void publish(M message, String key) throws MessageQueueException {
         int r_count = 0;
         while (r_count < retryCount) {
             try {
-                queue.add(message);
+                queue.add(message, key);
                 return;
             } catch (LockTimeoutException te) {
                 r_count++;
@@ -65,6 +65,36 @@ public interface Queue<M> extends Configurable {
 	public abstract void add(M message)
 			throws MessageQueueException, LockTimeoutException;
 
+	/**
+	 * Add a new message to the queue. In case of a partitioned queue, the key
+	 * selects the partition the message is written to. Messages with the same
+	 * key are read in the order they were published.
+	 *
+	 * @param message
+	 *            - Message to add.
+	 * @param key
+	 *            - Message key, can be NULL.
+	 * @throws MessageQueueException
+	 */
+	public abstract void add(M message, String key)
+			throws MessageQueueException, LockTimeoutException;
+
+	/**
+	 * Add a new message to the queue, with the record attributes to be stored
+	 * beside the message payload. Subscribers can filter records on the
+	 * attributes without reading the payload.
+	 *
+	 * @param message
+	 *            - Message to add.
+	 * @param key
+	 *            - Message key, can be NULL.
+	 * @param attributes
+	 *            - Record attributes, can be NULL.
+	 * @throws MessageQueueException
+	 */
+	public abstract void add(M message, String key, RecordAttributes attributes)
+			throws MessageQueueException, LockTimeoutException;
+
 	/**
 	 * Add a batch of messages to the queue.
 	 *
@@ -113,6 +143,86 @@ public interface Queue<M> extends Configurable {
 	public abstract List<Message<M>> batch(String subscriber, int batchSize,
 			long timeout) throws MessageQueueException, LockTimeoutException;
 
+	/**
+	 * Get the current write generation of the queue. The generation moves
+	 * ahead every time messages are added to the queue.
+	 *
+	 * @return - Write generation.
+	 */
+	public long generation();
+
+	/**
+	 * Wait for messages to be added to the queue after the specified write
+	 * generation.
+	 *
+	 * @param generation
+	 *            - Write generation captured before the last read.
+	 * @param timeout
+	 *            - Max time to wait.
+	 * @return - Messages added? (false if timed out)
+	 * @throws InterruptedException
+	 */
+	public boolean await(long generation, long timeout)
+			throws InterruptedException;
+
+	/**
+	 * Get the number of messages added to the queue that have not yet been
+	 * read by the specified subscriber.
+	 *
+	 * @param subscriber
+	 *            - Subscriber name.
+	 * @return - Subscriber lag (message count), -1 if not registered.
+	 */
+	public long lag(String subscriber);
+
+	/**
+	 * Get the message with the specified ID.
+	 *
+	 * @param messageId
+	 *            - Message ID.
+	 * @return - Message, NULL if not found.
+	 * @throws MessageQueueException
+	 */
+	public Message<M> get(String messageId) throws MessageQueueException;
+
+	/**
+	 * Position the subscriber at the first message added at or after the
+	 * specified timestamp, messages are replayed from there.
+	 *
+	 * @param subscriber
+	 *            - Subscriber name.
+	 * @param timestamp
+	 *            - Timestamp (in milliseconds).
+	 * @throws MessageQueueException
+	 */
+	public void seek(String subscriber, long timestamp)
+			throws MessageQueueException;
+
+	/**
+	 * Position the subscriber at the specified record (block ID and index, as
+	 * recorded in the message ack records).
+	 *
+	 * @param subscriber
+	 *            - Subscriber name.
+	 * @param blockId
+	 *            - Block ID.
+	 * @param index
+	 *            - Record index in the block.
+	 * @throws MessageQueueException
+	 */
+	public void seek(String subscriber, String blockId, long index)
+			throws MessageQueueException;
+
+	/**
+	 * Position the subscriber at the end of the queue, only messages added
+	 * after the seek are read.
+	 *
+	 * @param subscriber
+	 *            - Subscriber name.
+	 * @throws MessageQueueException
+	 */
+	public void seekToEnd(String subscriber) throws MessageQueueException;
+
 	/**
 	 * Get the handle to a registered subscriber based on the specified
 	 * subscriber name.
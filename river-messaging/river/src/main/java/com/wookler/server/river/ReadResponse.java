@@ -122,10 +122,11 @@ public class ReadResponse {
         if (data == null)
             data = new ArrayList<Record>();
 
+        // Records are created per read and are not shared, no need to copy
+        // them (leased record views cannot be copied without losing the
+        // zero-copy read).
         if (records != null && !records.isEmpty()) {
-            for (Record r : records) {
-                data.add(r.copy());
-            }
+            data.addAll(records);
         }
         return this;
     }
@@ -0,0 +1,445 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.openhft.lang.io.RandomDataInput;
+import net.openhft.lang.io.RandomDataOutput;
+
+/**
+ * Small set of typed attributes (ex. key, type) and tags stored in the record
+ * header, beside the message payload. Attributes can be evaluated by the
+ * reader without copying or de-serializing the payload (see
+ * {@link RecordAttributes.View}).
+ * <p/>
+ * Encoding : sequence of [type (byte)][name length (varint)][name
+ * (UTF-8)][value], where the value is encoded as
+ * <ul>
+ * <li>String : [length (varint)][UTF-8 bytes]</li>
+ * <li>Long : zigzag varint</li>
+ * <li>Double : 8 bytes, little endian</li>
+ * <li>Boolean : 1 byte</li>
+ * <li>Tag : no value</li>
+ * </ul>
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class RecordAttributes {
+    public static final class Constants {
+        /** name the tags are exposed under by the attribute view */
+        public static final String ATTR_TAGS = "tags";
+        /** maximum encoded size of the attributes */
+        public static final int MAX_SIZE = 4096;
+
+        private static final byte TYPE_STRING = 1;
+        private static final byte TYPE_LONG = 2;
+        private static final byte TYPE_DOUBLE = 3;
+        private static final byte TYPE_BOOLEAN = 4;
+        private static final byte TYPE_TAG = 5;
+    }
+
+    /** attribute types */
+    private final List<Byte> types = new ArrayList<Byte>(4);
+    /** encoded attribute names */
+    private final List<byte[]> names = new ArrayList<byte[]>(4);
+    /** attribute values, encoded strings for string values */
+    private final List<Object> values = new ArrayList<Object>(4);
+    /** encoded size */
+    private int size = 0;
+
+    /**
+     * Add a string attribute.
+     *
+     * @param name
+     *            - Attribute name.
+     * @param value
+     *            - Attribute value.
+     * @return - Self.
+     */
+    public RecordAttributes put(String name, String value) {
+        if (value == null)
+            return this;
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        add(Constants.TYPE_STRING, name, v, RecordFormat.varintSize(v.length) + v.length);
+        return this;
+    }
+
+    /**
+     * Add a long attribute.
+     *
+     * @param name
+     *            - Attribute name.
+     * @param value
+     *            - Attribute value.
+     * @return - Self.
+     */
+    public RecordAttributes put(String name, long value) {
+        add(Constants.TYPE_LONG, name, value,
+                RecordFormat.varintSize(RecordFormat.zigzag(value)));
+        return this;
+    }
+
+    /**
+     * Add a double attribute.
+     *
+     * @param name
+     *            - Attribute name.
+     * @param value
+     *            - Attribute value.
+     * @return - Self.
+     */
+    public RecordAttributes put(String name, double value) {
+        add(Constants.TYPE_DOUBLE, name, value, 8);
+        return this;
+    }
+
+    /**
+     * Add a boolean attribute.
+     *
+     * @param name
+     *            - Attribute name.
+     * @param value
+     *            - Attribute value.
+     * @return - Self.
+     */
+    public RecordAttributes put(String name, boolean value) {
+        add(Constants.TYPE_BOOLEAN, name, value, 1);
+        return this;
+    }
+
+    /**
+     * Add a tag.
+     *
+     * @param tag
+     *            - Tag name.
+     * @return - Self.
+     */
+    public RecordAttributes tag(String tag) {
+        types.add(Constants.TYPE_TAG);
+        byte[] n = tag.getBytes(StandardCharsets.UTF_8);
+        names.add(n);
+        values.add(null);
+        size += 1 + RecordFormat.varintSize(n.length) + n.length;
+        return this;
+    }
+
+    private void add(byte type, String name, Object value, int vsize) {
+        if (Constants.ATTR_TAGS.equals(name))
+            throw new IllegalArgumentException("Reserved attribute name. [name=" + name + "]");
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        types.add(type);
+        names.add(n);
+        values.add(value);
+        size += 1 + RecordFormat.varintSize(n.length) + n.length + vsize;
+    }
+
+    /**
+     * Get the encoded size of the attributes.
+     *
+     * @return - Size in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if no attributes have been added.
+     *
+     * @return - Is empty?
+     */
+    public boolean isEmpty() {
+        return types.isEmpty();
+    }
+
+    /**
+     * Encode the attributes into the output. Exactly {@link #size()} bytes are
+     * written.
+     *
+     * @param out
+     *            - Output to write to.
+     */
+    public void encode(RandomDataOutput out) {
+        for (int ii = 0; ii < types.size(); ii++) {
+            byte type = types.get(ii);
+            byte[] n = names.get(ii);
+            out.writeByte(type);
+            RecordFormat.writeVarint(out, n.length);
+            out.write(n);
+            Object v = values.get(ii);
+            switch (type) {
+            case Constants.TYPE_STRING:
+                RecordFormat.writeVarint(out, ((byte[]) v).length);
+                out.write((byte[]) v);
+                break;
+            case Constants.TYPE_LONG:
+                RecordFormat.writeVarint(out, RecordFormat.zigzag((Long) v));
+                break;
+            case Constants.TYPE_DOUBLE:
+                long bits = Double.doubleToRawLongBits((Double) v);
+                for (int jj = 0; jj < 8; jj++) {
+                    out.writeByte((int) (bits >>> (8 * jj)));
+                }
+                break;
+            case Constants.TYPE_BOOLEAN:
+                out.writeByte(((Boolean) v) ? 1 : 0);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read-only map view over encoded attributes in a record excerpt, used to
+     * evaluate subscriber attribute filters (see
+     * {@link FilterExpression#evaluate(Object)}) on the raw record. Only the
+     * values looked up are decoded. Tags are exposed as a map under
+     * {@link Constants#ATTR_TAGS}, mapping each tag to TRUE (ex.
+     * "tags.urgent"). A view instance is not thread safe, it is re-bound for
+     * each record.
+     */
+    public static final class View extends AbstractMap<String, Object> {
+        /** input the attributes are read from */
+        private RandomDataInput in = null;
+        /** start offset of the attributes */
+        private long offset = 0;
+        /** end offset of the attributes */
+        private long end = 0;
+        /** read position */
+        private long cursor = 0;
+        /** encoded names, by name */
+        private final HashMap<String, byte[]> keys = new HashMap<String, byte[]>();
+        /** tag view */
+        private final Tags tags = new Tags();
+
+        /**
+         * Bind the view to the attributes of a record.
+         *
+         * @param in
+         *            - Record input.
+         * @param offset
+         *            - Start offset of the attributes.
+         * @param length
+         *            - Encoded size of the attributes.
+         * @return - Self.
+         */
+        public View bind(RandomDataInput in, long offset, int length) {
+            this.in = in;
+            this.offset = offset;
+            this.end = offset + length;
+            return this;
+        }
+
+        /**
+         * Release the bound record.
+         */
+        public void release() {
+            in = null;
+            offset = end = 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (!(key instanceof String) || in == null)
+                return null;
+            if (Constants.ATTR_TAGS.equals(key))
+                return tags;
+            byte type = find(name((String) key), false);
+            return (type > 0 ? value(type) : null);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+            LinkedHashMap<String, Object> tagmap = new LinkedHashMap<String, Object>();
+            decode(map, tagmap);
+            map.put(Constants.ATTR_TAGS, tagmap);
+            return map.entrySet();
+        }
+
+        /**
+         * Decode all the attributes and tags, only used for the map views.
+         */
+        private void decode(Map<String, Object> map, Map<String, Object> tagmap) {
+            if (in == null)
+                return;
+            cursor = offset;
+            while (cursor < end) {
+                byte type = in.readByte(cursor++);
+                String name = string();
+                if (name == null)
+                    break;
+                if (type == Constants.TYPE_TAG) {
+                    tagmap.put(name, Boolean.TRUE);
+                } else {
+                    Object v = value(type);
+                    if (v == null)
+                        break;
+                    if (!map.containsKey(name))
+                        map.put(name, v);
+                }
+            }
+        }
+
+        /**
+         * Map view of the record tags.
+         */
+        private final class Tags extends AbstractMap<String, Object> {
+            @Override
+            public Object get(Object key) {
+                if (!(key instanceof String) || in == null)
+                    return null;
+                return (find(name((String) key), true) > 0 ? Boolean.TRUE : null);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Object>> entrySet() {
+                LinkedHashMap<String, Object> tagmap = new LinkedHashMap<String, Object>();
+                decode(new HashMap<String, Object>(), tagmap);
+                return tagmap.entrySet();
+            }
+        }
+
+        private byte[] name(String key) {
+            byte[] n = keys.get(key);
+            if (n == null) {
+                n = key.getBytes(StandardCharsets.UTF_8);
+                keys.put(key, n);
+            }
+            return n;
+        }
+
+        /**
+         * Find the first attribute (or tag) with the specified name, the cursor
+         * is left at the value.
+         *
+         * @return - Attribute type, 0 if not found.
+         */
+        private byte find(byte[] name, boolean tag) {
+            cursor = offset;
+            while (cursor < end) {
+                byte type = in.readByte(cursor++);
+                int length = (int) varint();
+                boolean match = ((type == Constants.TYPE_TAG) == tag && length == name.length);
+                for (int ii = 0; match && ii < length; ii++) {
+                    if (in.readByte(cursor + ii) != name[ii])
+                        match = false;
+                }
+                cursor += length;
+                if (match)
+                    return type;
+                if (!skip(type))
+                    break;
+            }
+            return 0;
+        }
+
+        /**
+         * Skip the value at the cursor.
+         *
+         * @return - FALSE if the type is unknown.
+         */
+        private boolean skip(byte type) {
+            switch (type) {
+            case Constants.TYPE_STRING:
+                long length = varint();
+                cursor += length;
+                return true;
+            case Constants.TYPE_LONG:
+                varint();
+                return true;
+            case Constants.TYPE_DOUBLE:
+                cursor += 8;
+                return true;
+            case Constants.TYPE_BOOLEAN:
+                cursor += 1;
+                return true;
+            case Constants.TYPE_TAG:
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Decode the value at the cursor.
+         *
+         * @return - Value, NULL if the type is unknown.
+         */
+        private Object value(byte type) {
+            switch (type) {
+            case Constants.TYPE_STRING:
+                return string();
+            case Constants.TYPE_LONG:
+                return RecordFormat.unzigzag(varint());
+            case Constants.TYPE_DOUBLE:
+                long bits = 0;
+                for (int jj = 0; jj < 8; jj++) {
+                    bits |= (long) (in.readByte(cursor++) & 0xFF) << (8 * jj);
+                }
+                return Double.longBitsToDouble(bits);
+            case Constants.TYPE_BOOLEAN:
+                return in.readByte(cursor++) != 0;
+            default:
+                return null;
+            }
+        }
+
+        private String string() {
+            int length = (int) varint();
+            if (length < 0 || cursor + length > end)
+                return null;
+            byte[] b = new byte[length];
+            for (int ii = 0; ii < length; ii++) {
+                b[ii] = in.readByte(cursor++);
+            }
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64 && cursor < end; shift += 7) {
+                byte b = in.readByte(cursor++);
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            // Malformed, move past the end so the scan stops.
+            cursor = end;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import net.openhft.lang.io.RandomDataOutput;
+
+/**
+ * Record payload that serializes itself directly into the block excerpt. The
+ * size must be known up front, the excerpt is reserved for the specified size
+ * before the payload is encoded.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public interface RecordEncoder {
+    /**
+     * Get the encoded size of the record payload.
+     *
+     * @return - Payload size in bytes.
+     */
+    public int size();
+
+    /**
+     * Encode the record payload into the output. Exactly {@link #size()} bytes
+     * must be written.
+     *
+     * @param out
+     *            - Output positioned at the payload start.
+     */
+    public void encode(RandomDataOutput out);
+
+    /**
+     * Get the record attributes to be stored beside the payload.
+     *
+     * @return - Record attributes, NULL if none.
+     */
+    public RecordAttributes attributes();
+
+    /**
+     * Get the queue sequence of the message ID, used with
+     * {@link #idTimestamp()} to index the record by message ID (see
+     * {@link MessageIdIndex}).
+     *
+     * @return - Message ID sequence, -1 if the record is not to be indexed.
+     */
+    public long idSequence();
+
+    /**
+     * Get the timestamp of the message ID.
+     *
+     * @return - Message ID timestamp.
+     */
+    public long idTimestamp();
+
+    /**
+     * Encoder for payloads that have already been serialized to a byte array.
+     */
+    public static final class ByteArrayEncoder implements RecordEncoder {
+        /** serialized payload */
+        private final byte[] data;
+        /** record attributes */
+        private final RecordAttributes attributes;
+
+        /**
+         * Create a new byte array encoder.
+         *
+         * @param data
+         *            - Serialized payload.
+         */
+        public ByteArrayEncoder(byte[] data) {
+            this(data, null);
+        }
+
+        /**
+         * Create a new byte array encoder, with record attributes.
+         *
+         * @param data
+         *            - Serialized payload.
+         * @param attributes
+         *            - Record attributes, can be NULL.
+         */
+        public ByteArrayEncoder(byte[] data, RecordAttributes attributes) {
+            this.data = data;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public int size() {
+            return data.length;
+        }
+
+        @Override
+        public void encode(RandomDataOutput out) {
+            out.write(data);
+        }
+
+        @Override
+        public RecordAttributes attributes() {
+            return attributes;
+        }
+
+        @Override
+        public long idSequence() {
+            return -1;
+        }
+
+        @Override
+        public long idTimestamp() {
+            return -1;
+        }
+    }
+}
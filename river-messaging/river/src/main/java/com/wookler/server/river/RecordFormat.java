@@ -0,0 +1,339 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Properties;
+
+import net.openhft.lang.io.RandomDataInput;
+import net.openhft.lang.io.RandomDataOutput;
+
+/**
+ * On-disk record framing formats of the message blocks. The format is fixed
+ * per block and recorded in a format file in the block directory, blocks
+ * without a format file are V1 blocks.
+ * <p/>
+ * V1 : [size (int)][timestamp (long)][sequence (long)][payload][pad to 8 bytes]
+ * <p/>
+ * V2 : [size (varint)][timestamp delta (zigzag varint)][sequence
+ * (varint)][payload][CRC32C of the payload (int)]. The timestamp is encoded
+ * relative to the block base timestamp stored in the format file. The record
+ * sequence is a per-block counter starting at 1, it is already relative to the
+ * block (base sequence 0) and is stored as is. It is not encoded relative to
+ * the record index either, the index of a record is only known once the
+ * excerpt has been started (padding entries take up an index) while the
+ * excerpt size has to be computed before.
+ * <p/>
+ * V3 : [size (varint)][timestamp delta (zigzag varint)][sequence
+ * (varint)][attributes size (varint)][attributes][payload][CRC32C of the
+ * attributes and payload (int)]. The attributes (see {@link RecordAttributes})
+ * can be evaluated by readers without reading the payload.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public final class RecordFormat {
+    public static final class Constants {
+        public static final int V1 = 1;
+        public static final int V2 = 2;
+        public static final int V3 = 3;
+
+        /** format written to new blocks */
+        public static final int CURRENT = V3;
+        /** size of the V2/V3 record CRC trailer */
+        public static final int CRC_SIZE = 4;
+
+        private static final String FORMAT_FILE_EXT = ".format";
+        private static final String KEY_VERSION = "version";
+        private static final String KEY_TIMESTAMP = "timestamp";
+    }
+
+    /**
+     * CRC32C (Castagnoli, reflected polynomial) slicing-by-8 lookup tables,
+     * table 0 is the byte-wise table.
+     */
+    private static final int[][] CRC_TABLE = new int[8][256];
+    /** can 8 byte words be read as little endian longs? */
+    private static final boolean LITTLE_ENDIAN =
+            (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+    static {
+        for (int ii = 0; ii < 256; ii++) {
+            int crc = ii;
+            for (int jj = 0; jj < 8; jj++) {
+                crc = ((crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1);
+            }
+            CRC_TABLE[0][ii] = crc;
+        }
+        for (int ii = 0; ii < 256; ii++) {
+            for (int jj = 1; jj < 8; jj++) {
+                int crc = CRC_TABLE[jj - 1][ii];
+                CRC_TABLE[jj][ii] = (crc >>> 8) ^ CRC_TABLE[0][crc & 0xFF];
+            }
+        }
+    }
+
+    /** block format version */
+    private int version = Constants.V1;
+    /** block base timestamp (V2) */
+    private long timestamp = 0;
+
+    private RecordFormat(int version, long timestamp) {
+        this.version = version;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Get the block format version.
+     *
+     * @return - Format version.
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * Get the block base timestamp, record timestamps are encoded relative to
+     * this value.
+     *
+     * @return - Base timestamp.
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Create the format file for a new block, using the current format.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @param timestamp
+     *            - Block base timestamp.
+     * @return - Block format.
+     * @throws IOException
+     */
+    public static RecordFormat create(String directory, String name, long timestamp)
+            throws IOException {
+        Properties p = new Properties();
+        p.setProperty(Constants.KEY_VERSION, String.valueOf(Constants.CURRENT));
+        p.setProperty(Constants.KEY_TIMESTAMP, String.valueOf(timestamp));
+        FileOutputStream out = new FileOutputStream(file(directory, name));
+        try {
+            p.store(out, null);
+        } finally {
+            out.close();
+        }
+        return new RecordFormat(Constants.CURRENT, timestamp);
+    }
+
+    /**
+     * Read the format of an existing block. Blocks without a format file are
+     * V1 blocks.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @return - Block format.
+     * @throws IOException
+     */
+    public static RecordFormat read(String directory, String name) throws IOException {
+        File f = file(directory, name);
+        if (!f.exists())
+            return new RecordFormat(Constants.V1, 0);
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            int version = Integer.parseInt(p.getProperty(Constants.KEY_VERSION));
+            if (version != Constants.V1 && version != Constants.V2 && version != Constants.V3)
+                throw new IOException("Unsupported block format version. [version=" + version
+                        + "][file=" + f.getAbsolutePath() + "]");
+            long timestamp = Long.parseLong(p.getProperty(Constants.KEY_TIMESTAMP, "0"));
+            return new RecordFormat(version, timestamp);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid block format file. [file=" + f.getAbsolutePath()
+                    + "]", e);
+        }
+    }
+
+    private static File file(String directory, String name) {
+        return new File(directory + "/" + name + Constants.FORMAT_FILE_EXT);
+    }
+
+    /**
+     * Get the encoded size of the value as a varint.
+     *
+     * @param value
+     *            - Value to encode.
+     * @return - Encoded size.
+     */
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write the value as a varint (protobuf encoding).
+     *
+     * @param out
+     *            - Output to write to.
+     * @param value
+     *            - Value to write.
+     */
+    public static void writeVarint(RandomDataOutput out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Read a varint from the input.
+     *
+     * @param in
+     *            - Input to read from.
+     * @return - Value read.
+     * @throws MessageDataException
+     *             - Malformed varint.
+     */
+    public static long readVarint(RandomDataInput in) throws MessageDataException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new MessageDataException("Invalid Data Record : Malformed varint.");
+    }
+
+    /**
+     * ZigZag encode a signed value, so that small negative values have a
+     * compact varint encoding.
+     *
+     * @param value
+     *            - Signed value.
+     * @return - Encoded value.
+     */
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Decode a ZigZag encoded value.
+     *
+     * @param value
+     *            - Encoded value.
+     * @return - Signed value.
+     */
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Compute the CRC32C of the byte array range.
+     *
+     * @param data
+     *            - Data bytes.
+     * @param offset
+     *            - Start offset.
+     * @param length
+     *            - Number of bytes.
+     * @return - CRC32C value.
+     */
+    public static int crc32c(byte[] data, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        int ii = offset;
+        int end = offset + length;
+        for (; ii + 8 <= end; ii += 8) {
+            int lo = (data[ii] & 0xFF) | (data[ii + 1] & 0xFF) << 8 | (data[ii + 2] & 0xFF) << 16
+                    | (data[ii + 3] & 0xFF) << 24;
+            int hi = (data[ii + 4] & 0xFF) | (data[ii + 5] & 0xFF) << 8
+                    | (data[ii + 6] & 0xFF) << 16 | (data[ii + 7] & 0xFF) << 24;
+            crc = update(crc, lo, hi);
+        }
+        for (; ii < end; ii++) {
+            crc = (crc >>> 8) ^ CRC_TABLE[0][(crc ^ data[ii]) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /**
+     * Compute the CRC32C of the input range, without moving the input
+     * position.
+     *
+     * @param in
+     *            - Input to read from.
+     * @param offset
+     *            - Start offset.
+     * @param length
+     *            - Number of bytes.
+     * @return - CRC32C value.
+     */
+    public static int crc32c(RandomDataInput in, long offset, long length) {
+        int crc = 0xFFFFFFFF;
+        long ii = offset;
+        long end = offset + length;
+        if (LITTLE_ENDIAN) {
+            for (; ii + 8 <= end; ii += 8) {
+                long v = in.readLong(ii);
+                crc = update(crc, (int) v, (int) (v >>> 32));
+            }
+        }
+        for (; ii < end; ii++) {
+            crc = (crc >>> 8) ^ CRC_TABLE[0][(crc ^ in.readByte(ii)) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    /**
+     * Update the CRC with 8 bytes, passed as two little endian words.
+     *
+     * @param crc
+     *            - Current CRC.
+     * @param lo
+     *            - Bytes 0-3.
+     * @param hi
+     *            - Bytes 4-7.
+     * @return - Updated CRC.
+     */
+    private static int update(int crc, int lo, int hi) {
+        lo ^= crc;
+        return CRC_TABLE[7][lo & 0xFF] ^ CRC_TABLE[6][(lo >>> 8) & 0xFF]
+                ^ CRC_TABLE[5][(lo >>> 16) & 0xFF] ^ CRC_TABLE[4][lo >>> 24]
+                ^ CRC_TABLE[3][hi & 0xFF] ^ CRC_TABLE[2][(hi >>> 8) & 0xFF]
+                ^ CRC_TABLE[1][(hi >>> 16) & 0xFF] ^ CRC_TABLE[0][hi >>> 24];
+    }
+}
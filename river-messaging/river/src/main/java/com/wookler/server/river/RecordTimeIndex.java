@@ -0,0 +1,262 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse time/sequence index of the records of a message block. The first
+ * record and every Nth record (stride) written to the block is sampled as an
+ * (index, sequence, timestamp) entry. The entries are appended to an index
+ * file in the block directory as they are sampled, so the index is available
+ * for blocks that are unloaded or recovered after a restart.
+ * <p/>
+ * A lookup by timestamp returns the last sampled record before the timestamp,
+ * the block is scanned from there for at most stride records.
+ * <p/>
+ * Index file : sequence of [index (long)][sequence (long)][timestamp (long)],
+ * a partially written last entry (crash during append) is ignored on load.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class RecordTimeIndex {
+    public static final class Constants {
+        /** default number of records between index entries */
+        public static final int DEFAULT_STRIDE = 256;
+
+        private static final String INDEX_FILE_EXT = ".tindex";
+        private static final int ENTRY_SIZE = 24;
+    }
+
+    /** number of records between index entries */
+    private final int stride;
+    /** sampled record indexes */
+    private long[] indexes = new long[16];
+    /** sampled record sequences */
+    private long[] sequences = new long[16];
+    /** sampled record timestamps */
+    private long[] timestamps = new long[16];
+    /** number of entries */
+    private int size = 0;
+    /** index file output, NULL if read-only */
+    private FileOutputStream out = null;
+    /** entry write buffer */
+    private final ByteBuffer buffer = ByteBuffer.allocate(Constants.ENTRY_SIZE);
+
+    private RecordTimeIndex(int stride) {
+        this.stride = (stride > 0 ? stride : Constants.DEFAULT_STRIDE);
+    }
+
+    /**
+     * Create a new (empty) index for a block, the index file is created or
+     * truncated.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @param stride
+     *            - Number of records between index entries.
+     * @return - New index.
+     * @throws IOException
+     */
+    public static RecordTimeIndex create(String directory, String name, int stride)
+            throws IOException {
+        RecordTimeIndex index = new RecordTimeIndex(stride);
+        index.out = new FileOutputStream(file(directory, name), false);
+        return index;
+    }
+
+    /**
+     * Load the index of an existing block, read-only.
+     *
+     * @param directory
+     *            - Block directory.
+     * @param name
+     *            - Block file name.
+     * @return - Loaded index, NULL if the block has no index file.
+     * @throws IOException
+     */
+    public static RecordTimeIndex read(String directory, String name) throws IOException {
+        File f = file(directory, name);
+        if (!f.exists())
+            return null;
+        RecordTimeIndex index = new RecordTimeIndex(Constants.DEFAULT_STRIDE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            long count = f.length() / Constants.ENTRY_SIZE;
+            for (long ii = 0; ii < count; ii++) {
+                index.add(in.readLong(), in.readLong(), in.readLong());
+            }
+        } catch (EOFException e) {
+            // Ignore the torn last entry.
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Create an in-memory index, used to index blocks written without an index
+     * file.
+     *
+     * @param stride
+     *            - Number of records between index entries.
+     * @return - New index.
+     */
+    public static RecordTimeIndex memory(int stride) {
+        return new RecordTimeIndex(stride);
+    }
+
+    private static File file(String directory, String name) {
+        return new File(directory + "/" + name + Constants.INDEX_FILE_EXT);
+    }
+
+    /**
+     * Record a record written to the block, the record is sampled if it is
+     * the first record or stride records past the last entry.
+     *
+     * @param index
+     *            - Record index.
+     * @param sequence
+     *            - Record sequence.
+     * @param timestamp
+     *            - Record timestamp.
+     * @throws IOException
+     */
+    public synchronized void record(long index, long sequence, long timestamp)
+            throws IOException {
+        if (size > 0 && index - indexes[size - 1] < stride)
+            return;
+        add(index, sequence, timestamp);
+        if (out != null) {
+            buffer.clear();
+            buffer.putLong(index).putLong(sequence).putLong(timestamp);
+            out.write(buffer.array(), 0, Constants.ENTRY_SIZE);
+        }
+    }
+
+    private void add(long index, long sequence, long timestamp) {
+        if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, size * 2);
+            sequences = Arrays.copyOf(sequences, size * 2);
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+        }
+        indexes[size] = index;
+        sequences[size] = sequence;
+        timestamps[size] = timestamp;
+        size++;
+    }
+
+    /**
+     * Close the index file, the index is read-only once closed.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Entries are written as they are sampled, nothing to flush.
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Find the entry to start a scan for the first record at or after the
+     * specified timestamp : the last entry before the timestamp.
+     *
+     * @param timestamp
+     *            - Timestamp to look up.
+     * @return - Entry position, -1 if the timestamp is before the first entry.
+     */
+    public synchronized int floor(long timestamp) {
+        int lo = 0;
+        int hi = size - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the record index of an entry.
+     *
+     * @param entry
+     *            - Entry position.
+     * @return - Record index.
+     */
+    public synchronized long index(int entry) {
+        return indexes[entry];
+    }
+
+    /**
+     * Get the record sequence of an entry.
+     *
+     * @param entry
+     *            - Entry position.
+     * @return - Record sequence.
+     */
+    public synchronized long sequence(int entry) {
+        return sequences[entry];
+    }
+
+    /**
+     * Get the record timestamp of an entry.
+     *
+     * @param entry
+     *            - Entry position.
+     * @return - Record timestamp.
+     */
+    public synchronized long timestamp(int entry) {
+        return timestamps[entry];
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return - Entry count.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of records between index entries.
+     *
+     * @return - Stride.
+     */
+    public int stride() {
+        return stride;
+    }
+}
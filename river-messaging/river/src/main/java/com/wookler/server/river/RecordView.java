@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import net.openhft.chronicle.Excerpt;
+
+/**
+ * Zero-copy view of a message record. The record payload is not copied out of
+ * the block, reads are served directly from the mapped excerpt memory. A view
+ * is leased from the {@link MessageBlock} and must be released once the
+ * payload has been consumed, the block cannot be unloaded or GC'd while views
+ * are leased. Views are not thread safe.
+ * <p/>
+ * Consumers expecting a byte array can still call {@link #bytes()}, which
+ * copies the payload on first access.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class RecordView extends Record {
+    /** block the view has been leased from */
+    private MessageBlock block;
+    /** excerpt positioned at the record */
+    private Excerpt excerpt;
+    /** payload start position within the excerpt */
+    private long offset;
+    /** is the view currently leased? */
+    private boolean leased = false;
+
+    /**
+     * Lease this view for the record the excerpt is positioned at.
+     *
+     * @param block
+     *            - Block leasing the view.
+     * @param excerpt
+     *            - Excerpt positioned at the record.
+     * @param offset
+     *            - Payload start position.
+     * @return - Self.
+     */
+    protected RecordView lease(MessageBlock block, Excerpt excerpt, long offset) {
+        this.block = block;
+        this.excerpt = excerpt;
+        this.offset = offset;
+        this.leased = true;
+        super.bytes(null);
+
+        return this;
+    }
+
+    /**
+     * Check if this view is currently leased.
+     *
+     * @return - Leased?
+     */
+    public boolean leased() {
+        return leased;
+    }
+
+    /**
+     * Release the view. The payload cannot be accessed after the view has been
+     * released, unless it was copied using {@link #bytes()}.
+     */
+    public void release() {
+        if (leased) {
+            leased = false;
+            MessageBlock b = block;
+            Excerpt e = excerpt;
+            block = null;
+            excerpt = null;
+            b.release(this, e);
+        }
+    }
+
+    /**
+     * Get the payload byte at the specified position.
+     *
+     * @param position
+     *            - Position within the payload.
+     * @return - Byte value.
+     */
+    public byte byteAt(int position) {
+        check(position, 1);
+        return excerpt.readByte(offset + position);
+    }
+
+    /**
+     * Read the payload bytes starting at the specified position into the
+     * buffer.
+     *
+     * @param position
+     *            - Position within the payload.
+     * @param buffer
+     *            - Buffer to read into.
+     * @param index
+     *            - Buffer start index.
+     * @param length
+     *            - Number of bytes to read.
+     */
+    public void read(int position, byte[] buffer, int index, int length) {
+        check(position, length);
+        excerpt.position(offset + position);
+        excerpt.readFully(buffer, index, length);
+    }
+
+    /**
+     * Copying adapter, get the payload as a byte array. The payload is copied
+     * out of the excerpt on first access.
+     *
+     * @return - Payload bytes.
+     */
+    @Override
+    public byte[] bytes() {
+        byte[] data = super.bytes();
+        if (data == null && leased && size() > 0) {
+            data = new byte[size()];
+            read(0, data, 0, data.length);
+            super.bytes(data);
+        }
+        return data;
+    }
+
+    /**
+     * Create a detached copy of this record, the copy remains valid after the
+     * view has been released.
+     *
+     * @return - Record copy.
+     */
+    @Override
+    public Record copy() {
+        Record r = new Record();
+        r.index(index()).sequence(sequence()).timestamp(timestamp());
+        byte[] data = bytes();
+        if (data != null) {
+            byte[] buff = new byte[data.length];
+            System.arraycopy(data, 0, buff, 0, data.length);
+            r.bytes(buff);
+            r.size(buff.length);
+        } else {
+            r.size(size());
+        }
+        return r;
+    }
+
+    /**
+     * Check if the requested payload range can be read.
+     *
+     * @param position
+     *            - Position within the payload.
+     * @param length
+     *            - Number of bytes.
+     */
+    private void check(int position, int length) {
+        if (!leased)
+            throw new IllegalStateException("Record view has been released. [index=" + index()
+                    + "]");
+        if (position < 0 || length < 0 || position + length > size())
+            throw new IndexOutOfBoundsException(String.format(
+                    "Invalid payload range. [position=%d][length=%d][size=%d]", position, length,
+                    size()));
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.wookler.server.river.Filter.FilterException;
+
+/**
+ * Index over a list of routing rules (filters), used to find the rules a
+ * message can match without evaluating every rule. Rules defined as
+ * {@link ExpressionFilter} are indexed on one of their top level constraints
+ * (see {@link FilterExpression#constraints()}):
+ * <ul>
+ * <li>Equality and IN lists : hash table from the value to the rules.</li>
+ * <li>Literal prefix matches ('abc.*') : character trie of the prefixes.</li>
+ * <li>Numeric ranges : table of the elementary intervals between the range
+ * bounds, each mapped to the set of covering rules.</li>
+ * </ul>
+ * Rules that cannot be indexed are always returned as candidates. Candidates
+ * still have to be evaluated, the index only rules out the rules that cannot
+ * match. Candidates are returned in rule order.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @param <M>
+ *            the generic type
+ * @created 16/10/26
+ */
+public class SelectorIndex<M> {
+    /**
+     * Character trie of the prefix rules.
+     */
+    private static final class TrieNode {
+        /** child characters */
+        private char[] keys = new char[0];
+        /** child nodes */
+        private TrieNode[] children = new TrieNode[0];
+        /** rules whose prefix ends at this node */
+        private BitSet rules = null;
+
+        private TrieNode child(char c) {
+            for (int ii = 0; ii < keys.length; ii++) {
+                if (keys[ii] == c)
+                    return children[ii];
+            }
+            return null;
+        }
+
+        private TrieNode add(char c) {
+            TrieNode n = child(c);
+            if (n == null) {
+                n = new TrieNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Dispatch tables for the rules indexed on a field path.
+     */
+    private static final class PathIndex {
+        /** indexed field path */
+        private final FieldPath path;
+        /** all rules indexed on this path */
+        private final BitSet all = new BitSet();
+        /** equality rules, by lookup key */
+        private final HashMap<Object, BitSet> equals = new HashMap<Object, BitSet>();
+        /** prefix rules */
+        private TrieNode prefixes = null;
+        /** range rules, for values not compared as numbers */
+        private final BitSet ranges = new BitSet();
+        /** range rules : (rule, lower, upper), till the table is built */
+        private List<double[]> bounds = new ArrayList<double[]>();
+        /** range table : sorted range bounds */
+        private double[] points = null;
+        /**
+         * range table : covering rules of the interval before each point
+         * (2i), of the point (2i + 1) and after the last point (2n).
+         */
+        private BitSet[] slots = null;
+
+        private PathIndex(FieldPath path) {
+            this.path = path;
+        }
+
+        /**
+         * Add the rules matching the field value to the candidates.
+         */
+        private void candidates(Object data, BitSet candidates) {
+            Object v;
+            try {
+                v = path.get(data);
+            } catch (FilterException e) {
+                // Let the rules report the error.
+                candidates.or(all);
+                return;
+            }
+            if (v == null)
+                return;
+            if (!equals.isEmpty()) {
+                for (Object key : FilterExpression.keys(v)) {
+                    BitSet r = equals.get(key);
+                    if (r != null)
+                        candidates.or(r);
+                }
+            }
+            if (prefixes != null) {
+                String s = FilterExpression.string(v);
+                TrieNode n = prefixes;
+                for (int ii = 0; ii < s.length() && n != null; ii++) {
+                    n = n.child(s.charAt(ii));
+                    if (n != null && n.rules != null)
+                        candidates.or(n.rules);
+                }
+            }
+            if (points != null) {
+                Double d = FilterExpression.number(v);
+                if (d == null) {
+                    candidates.or(ranges);
+                } else {
+                    int index = Arrays.binarySearch(points, d);
+                    BitSet r = (index >= 0 ? slots[2 * index + 1] : slots[2 * (-index - 1)]);
+                    candidates.or(r);
+                }
+            }
+        }
+
+        /**
+         * Build the range table from the collected range bounds.
+         */
+        private void build() {
+            if (bounds.isEmpty())
+                return;
+            TreeSet<Double> ps = new TreeSet<Double>();
+            for (double[] b : bounds) {
+                if (!Double.isInfinite(b[1]))
+                    ps.add(b[1]);
+                if (!Double.isInfinite(b[2]))
+                    ps.add(b[2]);
+            }
+            points = new double[ps.size()];
+            int index = 0;
+            for (Double p : ps) {
+                points[index++] = p;
+            }
+            slots = new BitSet[2 * points.length + 1];
+            for (int ii = 0; ii < slots.length; ii++) {
+                // Coverage is the same for every value in an interval, as
+                // the intervals are bounded by the range bounds.
+                double v;
+                if (points.length == 0)
+                    v = 0;
+                else if (ii % 2 == 1)
+                    v = points[ii / 2];
+                else if (ii == 0)
+                    v = points[0] - 1;
+                else if (ii == slots.length - 1)
+                    v = points[points.length - 1] + 1;
+                else
+                    v = (points[ii / 2 - 1] + points[ii / 2]) / 2;
+                slots[ii] = new BitSet();
+                for (double[] b : bounds) {
+                    if (v >= b[1] && v <= b[2])
+                        slots[ii].set((int) b[0]);
+                }
+            }
+            bounds = null;
+        }
+    }
+
+    /** rules not indexed, always candidates */
+    private final BitSet unindexed = new BitSet();
+    /** indexes, by field path */
+    private final LinkedHashMap<String, PathIndex> paths = new LinkedHashMap<String, PathIndex>();
+    /** number of rules */
+    private final int size;
+    /** candidate set, reused per thread */
+    private final ThreadLocal<BitSet> candidates = new ThreadLocal<BitSet>() {
+        @Override
+        protected BitSet initialValue() {
+            return new BitSet(size);
+        }
+    };
+
+    /**
+     * Create the index for the specified rules.
+     *
+     * @param rules
+     *            - Rules, in evaluation order.
+     * @throws FilterException
+     */
+    public SelectorIndex(List<Filter<M>> rules) throws FilterException {
+        size = rules.size();
+        for (int ii = 0; ii < size; ii++) {
+            Filter<M> f = rules.get(ii);
+            FilterExpression.Constraint c = null;
+            if (f instanceof ExpressionFilter && ((ExpressionFilter<M>) f).expression() != null)
+                c = select(((ExpressionFilter<M>) f).expression().constraints());
+            if (c == null) {
+                unindexed.set(ii);
+                continue;
+            }
+            PathIndex p = paths.get(c.path());
+            if (p == null) {
+                p = new PathIndex(new FieldPath(c.path()));
+                paths.put(c.path(), p);
+            }
+            p.all.set(ii);
+            switch (c.type()) {
+            case EQUALS:
+                for (Object key : c.keys()) {
+                    BitSet r = p.equals.get(key);
+                    if (r == null) {
+                        r = new BitSet();
+                        p.equals.put(key, r);
+                    }
+                    r.set(ii);
+                }
+                break;
+            case PREFIX:
+                if (p.prefixes == null)
+                    p.prefixes = new TrieNode();
+                TrieNode n = p.prefixes;
+                for (int jj = 0; jj < c.prefix().length(); jj++) {
+                    n = n.add(c.prefix().charAt(jj));
+                }
+                if (n.rules == null)
+                    n.rules = new BitSet();
+                n.rules.set(ii);
+                break;
+            case RANGE:
+                p.ranges.set(ii);
+                p.bounds.add(new double[] { ii, c.lower(), c.upper() });
+                break;
+            }
+        }
+        for (PathIndex p : paths.values()) {
+            p.build();
+        }
+    }
+
+    /**
+     * Select the constraint to index a rule on, the most selective kind
+     * (equality, then prefix, then range) is preferred.
+     *
+     * @param constraints
+     *            - Indexable constraints of the rule.
+     * @return - Selected constraint, NULL if none.
+     */
+    private FilterExpression.Constraint select(List<FilterExpression.Constraint> constraints) {
+        FilterExpression.Constraint selected = null;
+        for (FilterExpression.Constraint c : constraints) {
+            if (selected == null || c.type().ordinal() < selected.type().ordinal())
+                selected = c;
+        }
+        return selected;
+    }
+
+    /**
+     * Get the rules the message data can match. The returned set is reused by
+     * the next call on the same thread.
+     *
+     * @param data
+     *            - Message data.
+     * @return - Candidate rule indexes.
+     */
+    public BitSet candidates(M data) {
+        BitSet c = candidates.get();
+        c.clear();
+        c.or(unindexed);
+        for (PathIndex p : paths.values()) {
+            p.candidates(data, c);
+        }
+        return c;
+    }
+
+    /**
+     * Get the number of rules indexed.
+     *
+     * @return - Indexed rule count.
+     */
+    public int indexed() {
+        return size - unindexed.cardinality();
+    }
+
+    /**
+     * Get the number of rules.
+     *
+     * @return - Rule count.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("[rules=").append(size).append("][indexed=").append(indexed()).append("]");
+        for (Map.Entry<String, PathIndex> e : paths.entrySet()) {
+            b.append("[").append(e.getKey()).append("=").append(e.getValue().all.cardinality())
+                    .append("]");
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Preconditions;
+import com.wookler.server.common.ConfigurationException;
+import com.wookler.server.common.LockTimeoutException;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.river.AckCacheStructs.MessageAckRange;
+import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
+import com.wookler.server.river.AckCacheStructs.StructSubscriberConfig;
+
+/**
+ * Ack cache implementation of {@link AckCache} with the ack state striped by
+ * subscriber. Each subscriber has its own lock, ack tracker, ack timer and
+ * free record list, acks and adds by different subscribers do not contend.
+ * <p>
+ * As in {@link BlockingAckCache}, the ack tracker bitmap is the only
+ * per-message ack state, ack timeouts and resends are kept per contiguous range
+ * of delivered messages. Timed out ranges are moved to a per-subscriber
+ * lock-free resend queue, which can be checked without taking the subscriber
+ * lock.
+ * <p>
+ * Like {@link BlockingAckCache}, no new messages are added for a subscriber
+ * once its used size has reached the configured threshold. Selected by setting
+ * the implementing class of the queue ackCache node:
+ *
+ * <pre>
+ * {@code
+ *      <ackCache class="com.wookler.server.river.StripedAckCache">
+ *          <params>
+ *              ...
+ *          </params>
+ *      </ackCache>
+ * }
+ * </pre>
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class StripedAckCache<M> extends AckCache<M> {
+    /**
+     * Ack state of a subscriber, guarded by the subscriber lock.
+     */
+    private static final class SubscriberAcks {
+        /** subscriber config */
+        private StructSubscriberConfig config;
+        /** subscriber lock */
+        private ReentrantLock lock = new ReentrantLock();
+        /** messages pending ack, by block */
+        private AckTracker tracker = new AckTracker();
+        /** messages pending ack waiting to be resent, by block */
+        private AckTracker resends = new AckTracker();
+        /** ack timeouts of the delivered message ranges */
+        private AckTimerWheel<MessageAckRange> timer;
+        /** timed out message ranges to be resent */
+        private ConcurrentLinkedQueue<MessageAckRange> resend = new ConcurrentLinkedQueue<>();
+        /** free records for reuse */
+        private ArrayDeque<MessageAckRecord> free = new ArrayDeque<>();
+
+        private SubscriberAcks(StructSubscriberConfig config, AckTimerWheel<MessageAckRange> timer) {
+            this.config = config;
+            this.timer = timer;
+        }
+
+        private void lock() throws LockTimeoutException, InterruptedException {
+            if (!lock.tryLock(AckCache.Constants.LOCK_TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new LockTimeoutException("ACK-CACHE-LOCK",
+                        "Timeout trying to acquire lock for acking. [subscriber="
+                                + config.subscriber + "]");
+        }
+
+        private void free(MessageAckRecord rec) {
+            rec.clear();
+            if (free.size() < config.maxSize)
+                free.push(rec);
+        }
+    }
+
+    /** ack state by subscriber */
+    private ConcurrentHashMap<String, SubscriberAcks> acks = new ConcurrentHashMap<>();
+    /** scheduled ticker task, advances the ack timers */
+    private ScheduledFuture<?> ticker = null;
+
+    /**
+     * Register counters, open the ack journal, if configured, and start the
+     * ack timer.
+     *
+     * @see com.wookler.server.common.Configurable#configure(com.wookler.server.
+     *      common .config.ConfigNode)
+     */
+    @Override
+    public void configure(ConfigNode config) throws ConfigurationException {
+        ConfigUtils.parse(config, this);
+        registerCounters();
+        openJournal();
+
+        long tick = (timerTick > 0 ? timerTick : AckTimerWheel.Constants.DEFAULT_TICK);
+        ticker = tickerPool().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Dispose the ack cache. Stop the ack timer and clear all the subscriber
+     * ack state.
+     *
+     * @see com.wookler.server.common.Configurable#dispose()
+     */
+    @Override
+    public void dispose() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        acks.clear();
+        closeJournal();
+    }
+
+    /**
+     * Add the subscriber and restore the messages pending ack at the last
+     * shutdown, replayed from the ack journal, for resend. The ack state of a
+     * subscriber that is already registered is not replaced.
+     *
+     * @see com.wookler.server.river.AckCache#addSubscriber(com.wookler.server.river
+     *      .Subscriber)
+     */
+    @Override
+    public AckCache<M> addSubscriber(Subscriber<M> subscriber) {
+        super.addSubscriber(subscriber);
+        SubscriberAcks sa = new SubscriberAcks(subscribers.get(subscriber.name),
+                new AckTimerWheel<MessageAckRange>(timerTick, timerWheelSize,
+                        System.currentTimeMillis()));
+        if (acks.putIfAbsent(subscriber.name, sa) != null) {
+            LogUtils.warn(getClass(), "Subscriber already registered, ack state retained. "
+                    + "[subscriber=" + subscriber.name + "]");
+            return this;
+        }
+        if (replayed != null) {
+            sa.lock.lock();
+            try {
+                List<MessageAckRecord> recs = replayed.remove(subscriber.name);
+                if (recs != null)
+                    restore(sa.tracker, sa.resends, recs, sa.resend);
+            } finally {
+                sa.lock.unlock();
+            }
+        }
+        return this;
+    }
+
+    private SubscriberAcks get(String subscriber) throws MessageQueueException {
+        SubscriberAcks sa = acks.get(subscriber);
+        if (sa == null)
+            throw new MessageQueueException("No registered subscriber with ID. [id=" + subscriber
+                    + "]");
+        return sa;
+    }
+
+    /**
+     * Advance the ack timers and queue the timed out messages for resend.
+     * Called by the ticker thread, subscribers that are busy are skipped and
+     * caught up at the next tick.
+     */
+    private void expire() {
+        try {
+            long now = System.currentTimeMillis();
+            List<MessageAckRange> expired = new ArrayList<>();
+            for (SubscriberAcks sa : acks.values()) {
+                if (!sa.lock.tryLock())
+                    continue;
+                try {
+                    expired.clear();
+                    if (sa.timer.expire(now, expired) > 0) {
+                        int count = 0;
+                        for (MessageAckRange range : expired) {
+                            count += expired(sa.tracker, sa.resends, range, sa.resend);
+                        }
+                        sa.config.usedSize -= count;
+                        incrementCounter(Constants.MONITOR_COUNTER_TIMEOUTS, count);
+                    }
+                } finally {
+                    sa.lock.unlock();
+                }
+            }
+        } catch (Throwable t) {
+            // Keep the ticker scheduled.
+            LogUtils.stacktrace(getClass(), t);
+            LogUtils.error(getClass(), "Error expiring messages pending ack : "
+                    + t.getLocalizedMessage());
+        }
+    }
+
+    private int ackLocked(SubscriberAcks sa, String subscriber, String blockid, long fromIndex,
+            long toIndex) throws MessageQueueException {
+        try {
+            journalAcked(sa.tracker, subscriber, blockid, fromIndex, toIndex);
+        } catch (IOException e) {
+            throw new MessageQueueException("Error writing ack journal.", e);
+        }
+        int acked = sa.tracker.ack(subscriber, blockid, fromIndex, toIndex);
+        if (acked > 0) {
+            // messages waiting for resend are no longer counted as used.
+            int waiting = sa.resends.ack(subscriber, blockid, fromIndex, toIndex);
+            sa.config.usedSize -= (acked - waiting);
+        }
+        return acked;
+    }
+
+    private int ackLocated(String subscriber, List<MessageAckRecord> recs)
+            throws MessageQueueException, LockTimeoutException {
+        SubscriberAcks sa = get(subscriber);
+        int acked = 0;
+        try {
+            sa.lock();
+            try {
+                for (MessageAckRecord rec : recs) {
+                    acked += ackLocked(sa, subscriber, rec.getBlockId(), rec.getBlockIndex(),
+                            rec.getBlockIndex());
+                }
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while acking.", e);
+        }
+        incrementCounter(Constants.MONITOR_COUNTER_REMOVES, acked);
+        flushJournal();
+        acked(subscriber, acked);
+        return acked;
+    }
+
+    /**
+     * Ack the message by message id, the message is located in the queue
+     * store by the message id index before the subscriber lock is taken.
+     *
+     * @see com.wookler.server.river.AckCache#ack(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public boolean ack(String subscriber, String messageid) throws MessageQueueException,
+            LockTimeoutException {
+        Preconditions.checkArgument(!StringUtils.isEmpty(messageid));
+        get(subscriber);
+        incrementCounter(Constants.MONITOR_COUNTER_ACKS, 1);
+        return (ackLocated(subscriber, locate(Collections.singletonList(messageid))) > 0);
+    }
+
+    /**
+     * Ack the messages by message id, the messages are located in the queue
+     * store by the message id index before the subscriber lock is taken.
+     *
+     * @see com.wookler.server.river.AckCache#ack(java.lang.String,
+     *      java.util.List)
+     */
+    @Override
+    public void ack(String subscriber, List<String> messageids) throws MessageQueueException,
+            LockTimeoutException {
+        Preconditions.checkArgument(!StringUtils.isEmpty(subscriber));
+        Preconditions.checkArgument(messageids != null && !messageids.isEmpty());
+        get(subscriber);
+        incrementCounter(Constants.MONITOR_COUNTER_ACKS, messageids.size());
+        ackLocated(subscriber, locate(messageids));
+    }
+
+    /**
+     * Ack the range of messages in the specified block, only the pending bits
+     * are cleared from the tracker.
+     *
+     * @see com.wookler.server.river.AckCache#ack(java.lang.String,
+     *      java.lang.String, long, long)
+     */
+    @Override
+    public int ack(String subscriber, String blockid, long fromIndex, long toIndex)
+            throws MessageQueueException, LockTimeoutException {
+        Preconditions.checkArgument(!StringUtils.isEmpty(subscriber));
+        Preconditions.checkArgument(!StringUtils.isEmpty(blockid));
+        Preconditions.checkArgument(fromIndex >= 0 && toIndex >= fromIndex);
+        SubscriberAcks sa = get(subscriber);
+        int acked = 0;
+        try {
+            sa.lock();
+            try {
+                acked = ackLocked(sa, subscriber, blockid, fromIndex, toIndex);
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while acking.", e);
+        }
+        incrementCounter(Constants.MONITOR_COUNTER_ACKS, acked);
+        incrementCounter(Constants.MONITOR_COUNTER_REMOVES, acked);
+        flushJournal();
+        acked(subscriber, acked);
+        return acked;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.wookler.server.river.AckCache#add(java.lang.String,
+     * com.wookler.server.river.Message,
+     * com.wookler.server.river.AckCacheStructs.MessageAckRecord, int)
+     */
+    @Override
+    public void add(String subscriber, Message<M> message, MessageAckRecord rec, int resendCount)
+            throws MessageQueueException, LockTimeoutException {
+        Preconditions.checkArgument(message != null);
+        Preconditions.checkArgument(rec != null);
+        add(subscriber, Collections.singletonList(message), Collections.singletonList(rec),
+                resendCount);
+    }
+
+    /**
+     * Add the messages to the ack cache of the subscriber. The first
+     * resendCount messages are resent messages, claimed (and scheduled) by
+     * {@link #getMessagesForResend(String, int)}. New messages are marked
+     * pending and the timeout of each contiguous range is scheduled. The
+     * records are returned to the free list.
+     *
+     * @see com.wookler.server.river.AckCache#add(java.lang.String,
+     *      java.util.List, java.util.List, int)
+     */
+    @Override
+    public void add(String subscriber, List<Message<M>> messages, List<MessageAckRecord> recs,
+            int resendCount) throws MessageQueueException, LockTimeoutException {
+        Preconditions.checkArgument(!StringUtils.isEmpty(subscriber));
+        Preconditions.checkArgument(messages != null && !messages.isEmpty());
+        Preconditions.checkArgument(recs != null);
+        Preconditions.checkArgument(recs.size() >= messages.size());
+        SubscriberAcks sa = get(subscriber);
+        try {
+            sa.lock();
+            try {
+                long deadline = System.currentTimeMillis() + sa.config.ackTimeout;
+                MessageAckRange range = null;
+                Iterator<Message<M>> miter = messages.iterator();
+                int ii = 0;
+                for (MessageAckRecord rec : recs) {
+                    if (!miter.hasNext()) {
+                        // release the records that were not used.
+                        sa.free(rec);
+                        sa.config.usedSize--;
+                        continue;
+                    }
+                    if (rec.getAcked() != AckCacheStructs.AckState.FREE) {
+                        throw new MessageQueueException("Ack state is not free. Record: "
+                                + rec.toString());
+                    }
+                    Message<M> message = miter.next();
+                    String blockid = message.header().blockid();
+                    long index = message.header().blockindex();
+                    boolean inflight = false;
+                    boolean schedule = false;
+                    if (ii < resendCount) {
+                        // resent messages are already tracked, scheduled and
+                        // journaled as pending.
+                        inflight = sa.tracker.isPending(subscriber, blockid, index);
+                    } else if (sa.tracker.pending(subscriber, blockid, index)) {
+                        inflight = schedule = true;
+                    } else {
+                        // message read again while waiting for resend.
+                        inflight = schedule = sa.resends.ack(subscriber, blockid, index);
+                    }
+                    if (!inflight)
+                        sa.config.usedSize--;
+                    if (schedule) {
+                        if (range != null && range.blockId.equals(blockid)
+                                && range.toIndex + 1 == index) {
+                            range.toIndex++;
+                        } else {
+                            if (range != null) {
+                                journalPending(range);
+                                sa.timer.schedule(range, deadline);
+                            }
+                            range = new MessageAckRange(subscriber, blockid, index, index);
+                        }
+                    }
+                    sa.free(rec);
+                    ii++;
+                }
+                if (range != null) {
+                    journalPending(range);
+                    sa.timer.schedule(range, deadline);
+                }
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while adding.", e);
+        }
+        incrementCounter(Constants.MONITOR_COUNTER_ADDS, messages.size());
+        flushJournal();
+        delivered(subscriber);
+    }
+
+    /**
+     * Claim the messages waiting for resend and read them from the queue, the
+     * timeouts of the claimed messages are scheduled when they are claimed.
+     * The queue is read outside the subscriber lock.
+     *
+     * @see
+     * com.wookler.server.river.AckCache#getMessagesForResend(java.lang.String,
+     * int)
+     */
+    @Override
+    public List<Message<M>> getMessagesForResend(String subscriber, int batchSize)
+            throws MessageQueueException, LockTimeoutException {
+        SubscriberAcks sa = get(subscriber);
+        if (sa.resend.isEmpty())
+            return null;
+        List<MessageAckRange> claimed = new ArrayList<>();
+        try {
+            sa.lock();
+            try {
+                claim(sa.resends, sa.resend, batchSize, claimed);
+                long deadline = System.currentTimeMillis() + sa.config.ackTimeout;
+                for (MessageAckRange range : claimed) {
+                    sa.timer.schedule(range, deadline);
+                }
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while getting messages for resend.", e);
+        }
+        return resend(claimed);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.wookler.server.river.AckCache#hasMessagesForResend(java.lang.String)
+     */
+    @Override
+    public boolean hasMessagesForResend(String subscriber) throws MessageQueueException {
+        return !get(subscriber).resend.isEmpty();
+    }
+
+    /**
+     * Check the ack trackers of all the subscribers, does not take any lock.
+     *
+     * @see com.wookler.server.river.AckCache#hasPendingAcks(java.lang.String)
+     */
+    @Override
+    public boolean hasPendingAcks(String blockid) {
+        for (SubscriberAcks sa : acks.values()) {
+            if (sa.tracker.hasPendingAcks(blockid))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.wookler.server.river.AckCache#unacked(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    public List<AckTracker.Range> unacked(String subscriber, String blockid)
+            throws MessageQueueException, LockTimeoutException {
+        SubscriberAcks sa = get(subscriber);
+        try {
+            sa.lock();
+            try {
+                return sa.tracker.unacked(subscriber, blockid);
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while getting unacked messages.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.wookler.server.river.AckCache#lowWatermark(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    public long lowWatermark(String subscriber, String blockid) throws MessageQueueException,
+            LockTimeoutException {
+        SubscriberAcks sa = get(subscriber);
+        try {
+            sa.lock();
+            try {
+                return sa.tracker.lowWatermark(subscriber, blockid);
+            } finally {
+                sa.lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            throw new MessageQueueException("Interrupted while getting the ack watermark.", e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.wookler.server.river.AckCache#canAllocateAckCache(java.lang.String,
+     * int)
+     */
+    @Override
+    public int canAllocateAckCache(String subscriber, int count) {
+        SubscriberAcks sa = acks.get(subscriber);
+        if (sa == null)
+            return 0;
+        sa.lock.lock();
+        try {
+            int rem = sa.config.maxSize - sa.config.usedSize;
+            return (rem > count ? count : rem);
+        } finally {
+            sa.lock.unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.wookler.server.river.AckCache#allocateAckCache(java.lang.String,
+     * int)
+     */
+    @Override
+    public List<MessageAckRecord> allocateAckCache(String subscriber, int count) {
+        SubscriberAcks sa = acks.get(subscriber);
+        if (sa == null)
+            return null;
+        sa.lock.lock();
+        try {
+            int rem = sa.config.maxSize - sa.config.usedSize;
+            if (rem > count)
+                rem = count;
+            if (rem <= 0)
+                return null;
+            sa.config.usedSize += rem;
+            List<MessageAckRecord> recs = new ArrayList<>(rem);
+            for (int ii = 0; ii < rem; ii++) {
+                MessageAckRecord rec = sa.free.poll();
+                recs.add(rec != null ? rec : new MessageAckRecord());
+            }
+            return recs;
+        } finally {
+            sa.lock.unlock();
+        }
+    }
+}
@@ -25,8 +25,8 @@ import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -100,6 +100,14 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
     /** subscriber ack timeout */
     @CParam(name = "subscriber.ack.timeout", required = false)
     private long acktimeout;
+    /**
+     * Record attribute filter, records that do not match are skipped by the
+     * store without being read.
+     */
+    @CParam(name = "subscriber.filter.attributes", required = false)
+    protected String attributeFilter = null;
+    /** compiled record attribute filter */
+    private FilterExpression attributes = null;
     /** message queue to which this subscriber is subscribed to */
     private Queue<M> queue;
     /** ack cache instance */
@@ -135,6 +143,53 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
         return queue;
     }
 
+    /**
+     * Replay the messages added at or after the specified timestamp, the next
+     * read returns the first message added at or after the timestamp.
+     *
+     * @param timestamp
+     *            - Timestamp (in milliseconds).
+     * @throws MessageQueueException
+     */
+    public void seek(long timestamp) throws MessageQueueException {
+        queue().seek(name, timestamp);
+    }
+
+    /**
+     * Replay the messages from the specified record, as recorded in the ack
+     * records (block ID and block index).
+     *
+     * @param blockId
+     *            - Block ID.
+     * @param index
+     *            - Record index in the block.
+     * @throws MessageQueueException
+     */
+    public void seek(String blockId, long index) throws MessageQueueException {
+        queue().seek(name, blockId, index);
+    }
+
+    /**
+     * Skip all the messages pending read, only messages added after the seek
+     * are read.
+     *
+     * @throws MessageQueueException
+     */
+    public void seekToEnd() throws MessageQueueException {
+        queue().seekToEnd(name);
+    }
+
+    /**
+     * Get the record attribute filter for this subscriber. The filter is
+     * evaluated on the record attributes (see {@link RecordAttributes}) by the
+     * store, records that do not match are not delivered to this subscriber.
+     *
+     * @return - Attribute filter, NULL if not defined.
+     */
+    public FilterExpression attributes() {
+        return attributes;
+    }
+
     /**
      * Set the ACK cache handle for this subscriber;
      *
@@ -278,6 +333,7 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
      *              <param name="subscriber.ack.async" value="[optional : default=false]" />
      *              <param name="subscriber.ack.cache.size" value="[required: if subscriber.ack.required=true]" />
      *              <param name="subscriber.ack.timeout" value="[required: if subscriber.ack.required=true]" />
+     *              <param name="subscriber.filter.attributes" value="[optional: record attribute filter, ex. type = 'ORDER' AND tags.urgent]" />
      *          </params>
      *       </subscriber>
      * }
@@ -303,6 +359,14 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
                 if (acktimeout <= 0)
                     throw new ConfigurationException("ACK timeout not specified.");
             }
+            if (attributeFilter != null && !attributeFilter.trim().isEmpty()) {
+                try {
+                    attributes = FilterExpression.compile(attributeFilter, true);
+                } catch (Filter.FilterException fe) {
+                    throw new ConfigurationException("Invalid attribute filter. [filter="
+                            + attributeFilter + "]", fe);
+                }
+            }
 
             registerCounters();
         } catch (ConfigurationException ce) {
@@ -365,6 +429,37 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
         }
     }
 
+    /**
+     * Ack the range of messages in a block for this subscriber.
+     *
+     * @param blockid
+     *            - Block ID.
+     * @param fromIndex
+     *            - First block index.
+     * @param toIndex
+     *            - Last block index (inclusive).
+     * @throws MessageQueueException
+     */
+    @Override
+    public void ack(String blockid, long fromIndex, long toIndex) throws MessageQueueException {
+        try {
+            ObjectState.check(state, EObjectState.Available, Subscriber.class);
+            if (ackrequired) {
+                lock.lock();
+                try {
+                    int acked = ackCache.ack(name, blockid, fromIndex, toIndex);
+                    incrementCounter(Constants.MONITOR_COUNTER_ACKS, acked);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (StateException oe) {
+            throw new MessageQueueException("Error performing ACK operation.", oe);
+        } catch (LockTimeoutException e) {
+            throw new MessageQueueException("Timeout while performing ACK operation.", e);
+        }
+    }
+
     /**
      * Perform cleanup tasks if any required. Called by the queue management
      * thread.
@@ -396,7 +491,7 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
             ObjectState.check(state, EObjectState.Available, Subscriber.class);
             if (lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
                 try {
-                    List<Message<M>> read = new LinkedList<>();
+                    List<Message<M>> read = new ArrayList<>(size);
                     // if ack is configured
                     if (ackrequired) {
                         int csize = ackCache.canAllocateAckCache(name, size);
@@ -780,4 +875,23 @@ public abstract class Subscriber<M> implements Configurable, AckHandler {
     public void setAcktimeout(long acktimeout) {
         this.acktimeout = acktimeout;
     }
+
+    /**
+     * Gets the record attribute filter.
+     *
+     * @return the attributeFilter
+     */
+    public String getAttributeFilter() {
+        return attributeFilter;
+    }
+
+    /**
+     * Sets the record attribute filter.
+     *
+     * @param attributeFilter
+     *            the attributeFilter to set
+     */
+    public void setAttributeFilter(String attributeFilter) {
+        this.attributeFilter = attributeFilter;
+    }
 }
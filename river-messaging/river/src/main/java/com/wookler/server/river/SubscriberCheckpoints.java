@@ -0,0 +1,235 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.wookler.server.common.utils.LogUtils;
+
+/**
+ * Durable subscriber read positions of a message store. The last read position
+ * (block id, index and sequence) of each subscriber is updated in memory on
+ * every read and committed to a checkpoint file per subscriber by
+ * {@link #commit()}. On restart the subscribers resume reading after the
+ * committed position, records read after the last commit are read again.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class SubscriberCheckpoints {
+    public static final class Constants {
+        /** checkpoint directory, within the store directory */
+        public static final String CHECKPOINT_DIR = "checkpoints";
+        private static final String CHECKPOINT_FILE_EXT = ".offset";
+        private static final String CHECKPOINT_TEMP_EXT = ".tmp";
+        private static final String KEY_BLOCK = "block";
+        private static final String KEY_INDEX = "index";
+        private static final String KEY_SEQUENCE = "sequence";
+        private static final String KEY_TIMESTAMP = "timestamp";
+    }
+
+    /**
+     * Subscriber read position.
+     */
+    public static final class Checkpoint {
+        /** subscriber name */
+        private String subscriber;
+        /** id of the block being read */
+        private String block;
+        /** index of the last record read in the block */
+        private long index;
+        /** sequence of the last record read in the block */
+        private long sequence;
+        /** checkpoint time */
+        private long timestamp;
+
+        private Checkpoint(String subscriber, String block, long index, long sequence,
+                long timestamp) {
+            this.subscriber = subscriber;
+            this.block = block;
+            this.index = index;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return the subscriber name
+         */
+        public String subscriber() {
+            return subscriber;
+        }
+
+        /**
+         * @return the id of the block being read
+         */
+        public String block() {
+            return block;
+        }
+
+        /**
+         * @return the index of the last record read
+         */
+        public long index() {
+            return index;
+        }
+
+        /**
+         * @return the sequence of the last record read
+         */
+        public long sequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the checkpoint time
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+    }
+
+    /** checkpoint directory */
+    private File directory;
+    /** latest positions not yet committed, by subscriber */
+    private ConcurrentHashMap<String, Checkpoint> pending = new ConcurrentHashMap<String, Checkpoint>();
+
+    /**
+     * Create the checkpoints for the specified store directory.
+     *
+     * @param storedir
+     *            - Message store directory.
+     * @throws IOException
+     */
+    public SubscriberCheckpoints(File storedir) throws IOException {
+        directory = new File(storedir, Constants.CHECKPOINT_DIR);
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Error creating checkpoint directory. [path="
+                    + directory.getAbsolutePath() + "]");
+    }
+
+    /**
+     * Read the committed checkpoint of the subscriber.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @return - Committed checkpoint, NULL if none.
+     * @throws IOException
+     */
+    public Checkpoint read(String subscriber) throws IOException {
+        File f = file(subscriber, false);
+        if (!f.exists())
+            return null;
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            return new Checkpoint(subscriber, p.getProperty(Constants.KEY_BLOCK),
+                    Long.parseLong(p.getProperty(Constants.KEY_INDEX)), Long.parseLong(p
+                            .getProperty(Constants.KEY_SEQUENCE)), Long.parseLong(p
+                            .getProperty(Constants.KEY_TIMESTAMP)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint file. [file=" + f.getAbsolutePath() + "]",
+                    e);
+        }
+    }
+
+    /**
+     * Update the read position of the subscriber. The position is committed
+     * by the next call to {@link #commit()}.
+     *
+     * @param subscriber
+     *            - Subscriber name.
+     * @param block
+     *            - Id of the block being read.
+     * @param index
+     *            - Index of the last record read.
+     * @param sequence
+     *            - Sequence of the last record read.
+     */
+    public void update(String subscriber, String block, long index, long sequence) {
+        pending.put(subscriber,
+                new Checkpoint(subscriber, block, index, sequence, System.currentTimeMillis()));
+    }
+
+    /**
+     * Commit the pending read positions. Each checkpoint file is replaced
+     * atomically, a crash during commit leaves the previous checkpoint.
+     *
+     * @return - Number of checkpoints committed.
+     */
+    public synchronized int commit() {
+        int count = 0;
+        for (String subscriber : pending.keySet()) {
+            Checkpoint c = pending.remove(subscriber);
+            if (c == null)
+                continue;
+            try {
+                write(c);
+                count++;
+            } catch (IOException e) {
+                LogUtils.warn(getClass(), String.format(
+                        "Error writing subscriber checkpoint. [subscriber=%s] : %s", subscriber,
+                        e.getLocalizedMessage()));
+                // Retry with the next commit, unless a newer position is
+                // pending.
+                pending.putIfAbsent(subscriber, c);
+            }
+        }
+        return count;
+    }
+
+    private void write(Checkpoint c) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(Constants.KEY_BLOCK, c.block);
+        p.setProperty(Constants.KEY_INDEX, String.valueOf(c.index));
+        p.setProperty(Constants.KEY_SEQUENCE, String.valueOf(c.sequence));
+        p.setProperty(Constants.KEY_TIMESTAMP, String.valueOf(c.timestamp));
+
+        File temp = file(c.subscriber, true);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            p.store(out, null);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file(c.subscriber, false).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File file(String subscriber, boolean temp) {
+        // Subscriber names are case insensitive.
+        String name = subscriber.toUpperCase() + Constants.CHECKPOINT_FILE_EXT;
+        if (temp)
+            name = name + Constants.CHECKPOINT_TEMP_EXT;
+        return new File(directory, name);
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import com.wookler.server.common.*;
+import com.wookler.server.common.config.CParam;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigPath;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.common.utils.Monitoring;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs each message batch as a separate task on a virtual
+ * thread. A single dispatcher thread reads the message batches and hands them
+ * off to the tasks, the number of batches being processed concurrently is
+ * bounded by the configured concurrency limit. Suited for processors that block
+ * (remote calls, DB writes), as idle tasks do not hold an OS thread.
+ * <p/>
+ * Batches are processed and acked with the same semantics as the
+ * {@link PooledExecutor}. Batches processed concurrently are not ordered with
+ * respect to each other.
+ * <p/>
+ * If the JVM does not support virtual threads, the tasks are run on a cached
+ * pool of platform threads.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @param <M>
+ *            the generic type
+ * @created 16/10/26
+ */
+public class VirtualThreadExecutor<M> extends AbstractExecutor<M> {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    public static final class Constants {
+        public static final String MONITOR_NAMESPACE = "river.counters.executor";
+        public static final String MONITOR_COUNTER_INFLIGHT = "tasks.inflight";
+        public static final String MONITOR_COUNTER_TASKS = "tasks";
+        public static final String MONITOR_COUNTER_TASKTIME = "time.task";
+
+        /** default max number of batches processed concurrently */
+        public static final int DEFAULT_CONCURRENCY = 64;
+        /** max time to wait for running tasks on dispose */
+        private static final long DISPOSE_TIMEOUT = 60 * 1000;
+    }
+
+    /** config param : max number of batches processed concurrently. */
+    @CParam(name = "executor.concurrency", required = false)
+    private int concurrency = Constants.DEFAULT_CONCURRENCY;
+
+    /** thread reading the message batches */
+    private MonitoredThread dispatcher = null;
+    /** task executor, virtual thread per task */
+    private ExecutorService tasks = null;
+    /** permits bounding the in-flight tasks */
+    private Semaphore permits = null;
+    /** number of in-flight tasks */
+    private AtomicInteger inflight = new AtomicInteger();
+    /** counters for this executor */
+    private HashMap<String, String[]> counters = new HashMap<String, String[]>();
+
+    /**
+     * Message batch processing task.
+     */
+    private final class BatchTask implements Runnable {
+        /** message batch */
+        private final List<Message<M>> messages;
+
+        private BatchTask(List<Message<M>> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public void run() {
+            long startt = Monitoring.timerstart();
+            try {
+                execute(messages);
+            } catch (NonFatalProcessorException nfe) {
+                LogUtils.stacktrace(getClass(), nfe, log);
+                log.error("Non Fatal Error in executing processor.", nfe.getMessage());
+            } catch (ProcessingException e) {
+                // Stop dispatching, same as the pooled executor terminating
+                // the processing thread.
+                exception(e);
+                LogUtils.stacktrace(getClass(), e, log);
+                log.error(String.format("Message executor terminated. [name=%s][error=%s]",
+                        name(), e.getLocalizedMessage()));
+            } catch (Throwable t) {
+                LogUtils.stacktrace(getClass(), t, log);
+                log.error(String.format("Error executing message batch. [name=%s][error=%s]",
+                        name(), t.getLocalizedMessage()));
+            } finally {
+                timerstop(Constants.MONITOR_COUNTER_TASKTIME, startt, messages.size());
+                setCounter(Constants.MONITOR_COUNTER_INFLIGHT, inflight.decrementAndGet());
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Start the dispatcher thread and create the task executor.
+     *
+     * @see com.wookler.server.river.AbstractExecutor#start()
+     */
+    @Override
+    public void start() throws ProcessingException {
+        tasks = createTaskExecutor();
+        permits = new Semaphore(concurrency);
+        dispatcher = new MonitoredThread(this, name + "_DISPATCHER");
+        dispatcher.start();
+        Monitoring.register(dispatcher);
+    }
+
+    /**
+     * Create the task executor. Virtual threads are looked up reflectively,
+     * so that the executor can run on JVMs without virtual thread support.
+     *
+     * @return - Task executor.
+     */
+    private ExecutorService createTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService service = (ExecutorService) m.invoke(null);
+            LogUtils.debug(getClass(), "Using virtual thread task executor. [name=" + name + "]");
+            return service;
+        } catch (Exception e) {
+            LogUtils.warn(getClass(), "Virtual threads not supported, using platform threads. [name="
+                    + name + "]");
+            return Executors.newCachedThreadPool(new PooledThreadFactory(name + "_EXECUTOR"));
+        }
+    }
+
+    /**
+     * Dispatcher loop -- Read the message batches for the subscriber associated
+     * with this executor and submit each batch as a task. A batch is only read
+     * once a task permit is available, so at most the configured number of
+     * batches are being processed at a time.
+     */
+    @Override
+    public void run() {
+        try {
+            while (subscriber().state().getState() == EObjectState.Initialized) {
+                try {
+                    Thread.sleep(sleeptime);
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                    continue;
+                }
+            }
+            ObjectState.check(subscriber().state(), EObjectState.Available, getClass());
+            log.info(String.format("Message subscriber running. [name=%s]", name()));
+            while (subscriber().state().getState() == EObjectState.Available
+                    && state.getState() == EProcessState.Running) {
+                try {
+                    if (!permits.tryAcquire(sleeptime, TimeUnit.MILLISECONDS))
+                        continue;
+                } catch (InterruptedException ie) {
+                    log.warn(String.format("Thread interrupt received. Thread ID=%s", Thread
+                            .currentThread().getName()));
+                    continue;
+                }
+                boolean submitted = false;
+                try {
+                    List<Message<M>> messages = null;
+                    long generation = subscriber().queue().generation();
+                    // read the message batch from the queue
+                    messages = read();
+                    if (messages != null && !messages.isEmpty()) {
+                        setCounter(Constants.MONITOR_COUNTER_INFLIGHT, inflight.incrementAndGet());
+                        incrementCounter(Constants.MONITOR_COUNTER_TASKS, 1);
+                        try {
+                            tasks.execute(new BatchTask(messages));
+                            submitted = true;
+                        } catch (RejectedExecutionException re) {
+                            setCounter(Constants.MONITOR_COUNTER_INFLIGHT, inflight.decrementAndGet());
+                            throw new ProcessingException("Task executor rejected message batch.",
+                                    re);
+                        }
+                    } else {
+                        try {
+                            subscriber().queue().await(generation, sleeptime);
+                        } catch (InterruptedException ie) {
+                            log.warn(String.format("Thread interrupt received. Thread ID=%s",
+                                    Thread.currentThread().getName()));
+                        }
+                    }
+                } finally {
+                    if (!submitted)
+                        permits.release();
+                }
+            }
+        } catch (MessageQueueException e) {
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber terminated. [name=%s][error=%s]", name(),
+                    e.getLocalizedMessage()));
+        } catch (ProcessingException e) {
+            exception(e);
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber terminated. [name=%s][error=%s]", name(),
+                    e.getLocalizedMessage()));
+        } catch (StateException e) {
+            LogUtils.stacktrace(getClass(), e, log);
+            log.error(String.format("Message subscriber in invalid setState. [name=%s][error=%s]",
+                    name(), e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Check if there are pending tasks status' that need to be handled.
+     *
+     * @throws ProcessingException
+     *             the processing exception
+     */
+    @Override
+    public void check() throws ProcessingException {
+        // Nothing to be done here.
+    }
+
+    /**
+     * Configure the executor instance. Sample:
+     * <p/>
+     *
+     * <pre>
+     * {@code
+     *      <executor class="com.wookler.server.river.VirtualThreadExecutor">
+     *          <params>
+     *              <param name="executor.concurrency" value="[optional: max batches in-flight, default=64]" />
+     *          </params>
+     *      </executor>
+     * }
+     * </pre>
+     *
+     * @param config
+     *            - Configuration node for this instance.
+     * @throws ConfigurationException
+     *             the configuration exception
+     */
+    @Override
+    public void configure(ConfigNode config) throws ConfigurationException {
+        try {
+            if (!(config instanceof ConfigPath))
+                throw new ConfigurationException(String.format(
+                        "Invalid config node type. [expected:%s][actual:%s]",
+                        ConfigPath.class.getCanonicalName(), config.getClass().getCanonicalName()));
+            LogUtils.debug(getClass(), ((ConfigPath) config).path());
+            ConfigUtils.parse(config, this);
+            if (concurrency <= 0)
+                throw new ConfigurationException("Invalid executor concurrency. [concurrency="
+                        + concurrency + "]");
+            registerCounters();
+            LogUtils.debug(getClass(), "Configured Virtual Thread Executor with concurrency = "
+                    + concurrency + ". [name=" + name + "]");
+            state.setState(EProcessState.Running);
+        } catch (ConfigurationException e) {
+            exception(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Dispose this executor instance. Waits for the in-flight tasks to
+     * complete.
+     */
+    @Override
+    public void dispose() {
+        lock.writeLock().lock();
+        try {
+            if (state.getState() != EProcessState.Exception)
+                state.setState(EProcessState.Stopped);
+            if (dispatcher != null) {
+                try {
+                    dispatcher.join();
+                } catch (InterruptedException e) {
+                    LogUtils.warn(getClass(), e.getLocalizedMessage());
+                }
+                Monitoring.unregister(dispatcher);
+            }
+            if (tasks != null) {
+                tasks.shutdown();
+                try {
+                    if (!tasks.awaitTermination(Constants.DISPOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                        LogUtils.warn(getClass(), "Timeout waiting for in-flight tasks. [name="
+                                + name + "]");
+                } catch (InterruptedException e) {
+                    LogUtils.warn(getClass(), e.getLocalizedMessage());
+                }
+            }
+            if (processors != null) {
+                for (Processor<M> p : processors) {
+                    p.dispose();
+                }
+                processors.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Register the executor counters (in-flight tasks, task count and task
+     * time).
+     */
+    private void registerCounters() {
+        AbstractCounter c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name,
+                Constants.MONITOR_COUNTER_INFLIGHT, Gauge.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_INFLIGHT,
+                    new String[] { c.namespace(), c.name() });
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name,
+                Constants.MONITOR_COUNTER_TASKS, Count.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_TASKS, new String[] { c.namespace(), c.name() });
+        }
+        c = Monitoring.create(Constants.MONITOR_NAMESPACE + "." + name,
+                Constants.MONITOR_COUNTER_TASKTIME, Average.class, AbstractCounter.Mode.PROD);
+        if (c != null) {
+            counters.put(Constants.MONITOR_COUNTER_TASKTIME,
+                    new String[] { c.namespace(), c.name() });
+        }
+    }
+
+    /**
+     * Set the value of the specified gauge.
+     *
+     * @param name
+     *            - Gauge key.
+     * @param value
+     *            - Gauge value.
+     */
+    private void setCounter(String name, long value) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.set(names[0], names[1], value);
+        }
+    }
+
+    /**
+     * Increment the specified counter.
+     *
+     * @param name
+     *            - Counter key.
+     * @param value
+     *            - Increment value.
+     */
+    private void incrementCounter(String name, long value) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.increment(names[0], names[1], value);
+        }
+    }
+
+    /**
+     * Stop the current timer and update the corresponding counter.
+     *
+     * @param name
+     *            - Counter Key
+     * @param starttime
+     *            - Start time for this timer.
+     * @param count
+     *            - Operation count.
+     */
+    private void timerstop(String name, long starttime, long count) {
+        if (counters.containsKey(name)) {
+            String[] names = counters.get(name);
+            Monitoring.timerstop(starttime, count, names[0], names[1]);
+        }
+    }
+
+    /**
+     * Gets the max number of batches processed concurrently.
+     *
+     * @return the concurrency
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Sets the max number of batches processed concurrently.
+     *
+     * @param concurrency
+     *            the concurrency to set
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+}
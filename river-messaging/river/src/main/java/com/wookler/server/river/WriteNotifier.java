@@ -0,0 +1,135 @@
+/*
+ * * Copyright 2014 Subhabrata Ghosh
+ * *
+ * * Licensed under the Apache License, Version 2.0 (the "License");
+ * * you may not use this file except in compliance with the License.
+ * * You may obtain a copy of the License at
+ * *
+ * * http://www.apache.org/licenses/LICENSE-2.0
+ * *
+ * * Unless required by applicable law or agreed to in writing, software
+ * * distributed under the License is distributed on an "AS IS" BASIS,
+ * * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * * See the License for the specific language governing permissions and
+ * * limitations under the License.
+ */
+
+package com.wookler.server.river;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write notification for readers of a message store. Every commit to the store
+ * bumps the write generation and wakes up the threads waiting for new records,
+ * so readers do not have to sleep/poll the store for data.
+ * <p/>
+ * Readers capture the generation before reading, and if the read returns no
+ * records wait for the generation to move ahead. Waiters first spin (yield) for
+ * a configurable number of iterations before parking, to avoid the park/unpark
+ * cost on bursty traffic.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class WriteNotifier {
+    public static final class Constants {
+        /** default number of yields before a waiting reader parks */
+        public static final int DEFAULT_SPIN_COUNT = 64;
+    }
+
+    /** write generation, incremented on every commit */
+    private AtomicLong generation = new AtomicLong();
+    /** threads parked waiting for a commit */
+    private ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+    /** number of yields before parking */
+    private int spinCount = Constants.DEFAULT_SPIN_COUNT;
+
+    /**
+     * Set the number of yields before a waiting reader parks, 0 disables the
+     * spin phase.
+     *
+     * @param spinCount
+     *            - Spin count.
+     * @return - Self.
+     */
+    public WriteNotifier spinCount(int spinCount) {
+        if (spinCount >= 0)
+            this.spinCount = spinCount;
+        return this;
+    }
+
+    /**
+     * Get the number of yields before a waiting reader parks.
+     *
+     * @return - Spin count.
+     */
+    public int spinCount() {
+        return spinCount;
+    }
+
+    /**
+     * Get the current write generation.
+     *
+     * @return - Write generation.
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Records have been committed, wake up all the waiting readers.
+     */
+    public void signal() {
+        generation.incrementAndGet();
+        if (!waiters.isEmpty()) {
+            for (Thread t : waiters) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Wait for records to be committed after the specified generation.
+     *
+     * @param generation
+     *            - Generation captured before the last (empty) read.
+     * @param timeout
+     *            - Max time to wait (in milliseconds).
+     * @return - Records committed? (false if timed out)
+     * @throws InterruptedException
+     */
+    public boolean await(long generation, long timeout) throws InterruptedException {
+        if (this.generation.get() != generation)
+            return true;
+        if (timeout <= 0)
+            return false;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int ii = 0; ii < spinCount; ii++) {
+            if (this.generation.get() != generation)
+                return true;
+            Thread.yield();
+        }
+
+        Thread t = Thread.currentThread();
+        // Register before checking the generation, a commit after the check
+        // is guaranteed to see this waiter.
+        waiters.add(t);
+        try {
+            while (this.generation.get() == generation) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            return true;
+        } finally {
+            waiters.remove(t);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.MonitoredThread;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.common.utils.LogUtils;
+import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
+
+/**
+ * Benchmark comparing the blocking (single lock) ack cache against the striped
+ * (lock per subscriber) ack cache for 1/4/16 subscribers adding and acking
+ * concurrently. Acks by block range (executors) and by message ID
+ * ({@link Subscriber#ack(List)}, message IDs resolved on the message ID
+ * indexes of a queue store) are measured.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_AckCacheContention extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-ackcache-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_BLOCKING = "configuration.river.blocking.ackCache";
+    private static final String CONFIG_PATH_STRIPED = "configuration.river.striped.ackCache";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-ackcache";
+    private static final String READER = "TEST-RIVER-READER";
+
+    private static final int[] SUBSCRIBERS = { 1, 4, 16 };
+    private static final int MESSAGES = 512 * 1024;
+    /** messages published to the queue for the ack by ID runs */
+    private static final int MESSAGES_ID = 64 * 1024;
+    private static final int BATCH_SIZE = 64;
+    private static final long ACK_TIMEOUT = 60 * 1000;
+
+    static {
+        System.setProperty("river.console.debug", "true");
+    }
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        // IMPORTANT : make sure this call is invoked at the beginning.
+        // Otherwise the test behavior is unpredictable while running through
+        // maven.
+        Env.reset();
+
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private AckCache<String> configCache(String path, int subscribers, MessageQueue<String> queue)
+            throws Exception {
+        ConfigNode node = Env.get().config().search(path);
+        if (node == null)
+            throw new Exception("Cannot find ack cache node. [path=" + path + "]");
+        AckCache<String> cache = (AckCache<String>) ConfigUtils.getImplementingClass(node)
+                .newInstance();
+        if (queue == null) {
+            queue = new MessageQueue<String>();
+            queue.setName("TEST-RIVER-ACKS");
+        }
+        cache.setQueue(queue);
+        cache.configure(node);
+
+        for (int ii = 0; ii < subscribers; ii++) {
+            MessagePullSubscriber<String> s = new MessagePullSubscriber<String>();
+            s.setName("TEST-RIVER-SUBSCRIBER-" + ii);
+            s.setBatchSize(BATCH_SIZE);
+            s.setCachesize(4);
+            s.setAcktimeout(ACK_TIMEOUT);
+            cache.addSubscriber(s);
+        }
+        return cache;
+    }
+
+    public void test() throws Exception {
+        for (int subscribers : SUBSCRIBERS) {
+            long bt = run(CONFIG_PATH_BLOCKING, subscribers);
+            long st = run(CONFIG_PATH_STRIPED, subscribers);
+            LogUtils.debug(getClass(), String.format(
+                    "[SUBSCRIBERS=%d][MESSAGES=%d] BLOCKING=%d ms (%d/sec), STRIPED=%d ms (%d/sec)",
+                    subscribers, MESSAGES, bt, rate(bt), st, rate(st)));
+        }
+    }
+
+    /**
+     * Ack by message ID : the IDs are resolved to their block positions on the
+     * message ID indexes of the queue store (sealed and hot blocks), compared
+     * to acking the same batches by block range.
+     */
+    @SuppressWarnings("unchecked")
+    public void testAckById() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertNotNull(node);
+        queue = new MessageQueue<String>();
+        queue.configure(node);
+        queue.start();
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES_ID; ii++) {
+            publisher.publish(String.format("ACK-MESSAGE-%08d", ii));
+        }
+        MessagePullSubscriber<String> reader = (MessagePullSubscriber<String>) queue
+                .subscriber(READER);
+        List<Message<String>> messages = new ArrayList<Message<String>>(MESSAGES_ID);
+        while (messages.size() < MESSAGES_ID) {
+            List<Message<String>> batch = reader.batch(MESSAGES_ID - messages.size(), 1000);
+            if (batch == null || batch.isEmpty())
+                break;
+            messages.addAll(batch);
+        }
+        assertEquals(MESSAGES_ID, messages.size());
+
+        for (int subscribers : SUBSCRIBERS) {
+            long br = run(CONFIG_PATH_BLOCKING, subscribers, messages, false);
+            long bi = run(CONFIG_PATH_BLOCKING, subscribers, messages, true);
+            long sr = run(CONFIG_PATH_STRIPED, subscribers, messages, false);
+            long si = run(CONFIG_PATH_STRIPED, subscribers, messages, true);
+            LogUtils.debug(getClass(), String.format(
+                    "[SUBSCRIBERS=%d][MESSAGES=%d] BLOCKING : RANGE=%d ms (%d/sec), ID=%d ms "
+                            + "(%d/sec), STRIPED : RANGE=%d ms (%d/sec), ID=%d ms (%d/sec)",
+                    subscribers, MESSAGES_ID, br, rate(br, MESSAGES_ID), bi,
+                    rate(bi, MESSAGES_ID), sr, rate(sr, MESSAGES_ID), si,
+                    rate(si, MESSAGES_ID)));
+        }
+    }
+
+    private long rate(long elapsed) {
+        return rate(elapsed, MESSAGES);
+    }
+
+    private long rate(long elapsed, int messages) {
+        return (elapsed > 0 ? (messages * 1000L) / elapsed : messages);
+    }
+
+    /**
+     * Add and ack the messages read from the queue, each subscriber thread
+     * processes a slice of the messages.
+     */
+    private long run(String path, int subscribers, final List<Message<String>> messages,
+            final boolean byId) throws Exception {
+        final AckCache<String> cache = configCache(path, subscribers, queue);
+        final int slice = messages.size() / subscribers;
+        final AtomicLong errors = new AtomicLong();
+        List<MonitoredThread> threads = new ArrayList<MonitoredThread>(subscribers);
+
+        for (int ii = 0; ii < subscribers; ii++) {
+            final String name = "TEST-RIVER-SUBSCRIBER-" + ii;
+            final int start = ii * slice;
+            threads.add(new MonitoredThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int jj = start; jj + BATCH_SIZE <= start + slice; jj += BATCH_SIZE) {
+                        try {
+                            List<MessageAckRecord> recs = cache.allocateAckCache(name,
+                                    BATCH_SIZE);
+                            List<Message<String>> batch = messages.subList(jj, jj + BATCH_SIZE);
+                            cache.add(name, batch, recs, 0);
+                            if (byId) {
+                                List<String> ids = new ArrayList<String>(BATCH_SIZE);
+                                for (Message<String> m : batch) {
+                                    ids.add(m.header().id());
+                                }
+                                cache.ack(name, ids);
+                            } else {
+                                ack(cache, name, batch);
+                            }
+                        } catch (Exception e) {
+                            LogUtils.stacktrace(getClass(), e);
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, name));
+        }
+        long ts = System.currentTimeMillis();
+        for (MonitoredThread t : threads) {
+            t.start();
+        }
+        for (MonitoredThread t : threads) {
+            t.join();
+        }
+        long elapsed = System.currentTimeMillis() - ts;
+        assertEquals(0, errors.get());
+        for (Message<String> m : messages) {
+            assertFalse(cache.hasPendingAcks(m.header().blockid()));
+        }
+        cache.dispose();
+
+        return elapsed;
+    }
+
+    /**
+     * Ack the batch by block ranges, the messages of a batch can span blocks.
+     */
+    private void ack(AckCache<String> cache, String name, List<Message<String>> batch)
+            throws Exception {
+        String blockid = null;
+        long from = -1;
+        long to = -1;
+        for (Message<String> m : batch) {
+            if (m.header().blockid().equals(blockid) && m.header().blockindex() == to + 1) {
+                to++;
+                continue;
+            }
+            if (blockid != null)
+                cache.ack(name, blockid, from, to);
+            blockid = m.header().blockid();
+            from = to = m.header().blockindex();
+        }
+        if (blockid != null)
+            cache.ack(name, blockid, from, to);
+    }
+
+    private long run(String path, int subscribers) throws Exception {
+        final AckCache<String> cache = configCache(path, subscribers, null);
+        final int batches = MESSAGES / (subscribers * BATCH_SIZE);
+        final AtomicLong errors = new AtomicLong();
+        List<MonitoredThread> threads = new ArrayList<MonitoredThread>(subscribers);
+
+        for (int ii = 0; ii < subscribers; ii++) {
+            final String name = "TEST-RIVER-SUBSCRIBER-" + ii;
+            threads.add(new MonitoredThread(new Runnable() {
+                @Override
+                public void run() {
+                    long index = 0;
+                    for (int jj = 0; jj < batches; jj++) {
+                        try {
+                            List<MessageAckRecord> recs = cache.allocateAckCache(name,
+                                    BATCH_SIZE);
+                            List<Message<String>> messages = new ArrayList<Message<String>>(
+                                    BATCH_SIZE);
+                            long first = index;
+                            for (int kk = 0; kk < BATCH_SIZE; kk++) {
+                                Message<String> m = new Message<String>();
+                                m.header().id(name + ":" + index).blockid("1").blockindex(index)
+                                        .sendtime(System.currentTimeMillis());
+                                messages.add(m);
+                                index++;
+                            }
+                            cache.add(name, messages, recs, 0);
+                            cache.ack(name, "1", first, index - 1);
+                        } catch (Exception e) {
+                            LogUtils.stacktrace(getClass(), e);
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, name));
+        }
+        long ts = System.currentTimeMillis();
+        for (MonitoredThread t : threads) {
+            t.start();
+        }
+        for (MonitoredThread t : threads) {
+            t.join();
+        }
+        long elapsed = System.currentTimeMillis() - ts;
+        assertEquals(0, errors.get());
+        assertFalse(cache.hasPendingAcks("1"));
+        cache.dispose();
+
+        return elapsed;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.river.AckCacheStructs.MessageAckRange;
+import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
+
+/**
+ * Replay and compaction tests of the ack journal : messages are marked pending
+ * and acked, the journal is reopened and the messages pending ack are
+ * restored.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_AckJournal extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-journal";
+    private static final String S1 = "SUBSCRIBER-1";
+    private static final String S2 = "SUBSCRIBER-2";
+    private static final String B1 = "1";
+    private static final int MESSAGES = 100;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(DIRECTORY);
+        if (directory.exists())
+            FileUtils.emptydir(directory, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.emptydir(directory, true);
+    }
+
+    public void testReplay() throws Exception {
+        AckJournal journal = new AckJournal(directory, 0, false);
+        assertTrue(journal.open().isEmpty());
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            journal.pending(record(S1, ii));
+        }
+        journal.pending(record(S2, 0));
+        journal.flush();
+        // Acked by record and by block position, in separate batches.
+        for (int ii = 0; ii < MESSAGES / 2; ii++) {
+            journal.acked(record(S1, ii));
+        }
+        journal.flush();
+        for (int ii = MESSAGES / 2; ii < MESSAGES; ii += 2) {
+            journal.acked(S1, B1, ii);
+        }
+        // Not pending : nothing is staged.
+        journal.acked(S1, B1, MESSAGES * 2);
+        journal.close();
+
+        Map<String, List<MessageAckRecord>> pending = reopen();
+        assertEquals(2, pending.size());
+        assertEquals(1, pending.get(S2).size());
+        List<MessageAckRecord> recs = pending.get(S1);
+        assertEquals(MESSAGES / 4, recs.size());
+        for (MessageAckRecord rec : recs) {
+            assertTrue(rec.getBlockIndex() >= MESSAGES / 2 && rec.getBlockIndex() % 2 == 1);
+            assertEquals(S1, rec.getSubscriber());
+            assertEquals(B1, rec.getBlockId());
+        }
+
+        // Only the messages not acked are restored for resend.
+        AckTracker tracker = new AckTracker();
+        AckTracker resends = new AckTracker();
+        ArrayDeque<MessageAckRange> queue = new ArrayDeque<MessageAckRange>();
+        assertEquals(MESSAGES / 4, AckCache.restore(tracker, resends, recs, queue));
+        Set<Long> resent = new HashSet<Long>();
+        for (MessageAckRange r : queue) {
+            for (long index = r.fromIndex; index <= r.toIndex; index++) {
+                resent.add(index);
+            }
+        }
+        assertEquals(MESSAGES / 4, resent.size());
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            assertEquals(ii >= MESSAGES / 2 && ii % 2 == 1, resent.contains((long) ii));
+        }
+        assertEquals(MESSAGES / 2 + 1, tracker.lowWatermark(S1, B1));
+    }
+
+    public void testRanges() throws Exception {
+        AckJournal journal = new AckJournal(directory, 0, false);
+        journal.open();
+        journal.pending(S1, B1, 0, MESSAGES - 1);
+        // Already pending : nothing is staged.
+        journal.pending(S1, B1, 10, 20);
+        journal.flush();
+        journal.acked(S1, B1, 0, MESSAGES / 2 - 1);
+        journal.acked(S1, B1, MESSAGES / 2 + 10, MESSAGES / 2 + 19);
+        journal.flush();
+        journal.close();
+
+        // One entry per range.
+        File file = new File(directory, AckJournal.Constants.JOURNAL_FILE);
+        assertEquals(3, entries(file));
+        List<MessageAckRecord> recs = reopen().get(S1);
+        assertEquals(MESSAGES / 2 - 10, recs.size());
+        for (MessageAckRecord rec : recs) {
+            long index = rec.getBlockIndex();
+            assertTrue(index >= MESSAGES / 2
+                    && (index < MESSAGES / 2 + 10 || index >= MESSAGES / 2 + 20));
+        }
+        // Compacted on open : one entry per pending range.
+        assertEquals(2, entries(file));
+    }
+
+    public void testCompaction() throws Exception {
+        // Small journal : compacted when full.
+        int size = 4096;
+        AckJournal journal = new AckJournal(directory, size, false);
+        journal.open();
+        File file = new File(directory, AckJournal.Constants.JOURNAL_FILE);
+        for (int ii = 0; ii < MESSAGES * 10; ii++) {
+            journal.pending(record(S1, ii));
+            if (ii % 50 != 0)
+                journal.acked(record(S1, ii));
+            journal.flush();
+        }
+        // The unacked entries fit in the journal, the file is not grown.
+        assertEquals(size, file.length());
+        journal.close();
+
+        List<MessageAckRecord> recs = reopen().get(S1);
+        assertEquals(MESSAGES / 5, recs.size());
+        for (int ii = 0; ii < recs.size(); ii++) {
+            assertEquals(ii * 50, recs.get(ii).getBlockIndex());
+        }
+
+        // Journal grown to fit the unacked entries (not contiguous, one entry
+        // each).
+        journal = new AckJournal(directory, size, false);
+        journal.open();
+        for (int ii = MESSAGES * 10; ii < MESSAGES * 20; ii++) {
+            journal.pending(record(S1, ii * 2));
+            journal.flush();
+        }
+        journal.close();
+        assertTrue(file.length() > size);
+        assertEquals(MESSAGES * 10 + MESSAGES / 5, reopen().get(S1).size());
+    }
+
+    public void testTornTail() throws Exception {
+        AckJournal journal = new AckJournal(directory, 0, false);
+        journal.open();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            journal.pending(record(S1, ii));
+        }
+        journal.flush();
+        journal.acked(record(S1, 0));
+        journal.flush();
+        journal.close();
+
+        // Partially written entry after the last batch.
+        File file = new File(directory, AckJournal.Constants.JOURNAL_FILE);
+        long end = end(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(end);
+            raf.writeInt(64);
+            raf.writeInt(0);
+            raf.write(new byte[] { 1, 2, 3 });
+        } finally {
+            raf.close();
+        }
+        assertEquals(MESSAGES - 1, reopen().get(S1).size());
+
+        // Journal file removed : nothing pending.
+        assertTrue(file.delete());
+        new FileOutputStream(file).close();
+        assertTrue(reopen().isEmpty());
+    }
+
+    private Map<String, List<MessageAckRecord>> reopen() throws Exception {
+        AckJournal journal = new AckJournal(directory, 0, false);
+        try {
+            return journal.open();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Get the end of the entries in the journal file.
+     */
+    private long end(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long position = 0;
+            while (position + 8 <= raf.length()) {
+                raf.seek(position);
+                int length = raf.readInt();
+                if (length <= 0)
+                    break;
+                position += 8 + length;
+            }
+            return position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the number of entries in the journal file.
+     */
+    private int entries(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int count = 0;
+            long position = 0;
+            while (position + 8 <= raf.length()) {
+                raf.seek(position);
+                int length = raf.readInt();
+                if (length <= 0)
+                    break;
+                position += 8 + length;
+                count++;
+            }
+            return count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private MessageAckRecord record(String subscriber, long index) {
+        MessageAckRecord rec = new MessageAckRecord();
+        rec.setSubscriber(subscriber);
+        rec.setMessageId(id(index));
+        rec.setBlockId(B1);
+        rec.setBlockIndex(index);
+        rec.setSendTimestamp(System.currentTimeMillis());
+        return rec;
+    }
+
+    private String id(long index) {
+        return "TEST-QUEUE-1000-" + index;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the ack timer wheel, the wheel is driven with explicit times.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_AckTimerWheel extends TestCase {
+    private static final long START = 1000000;
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    public void testExpire() throws Exception {
+        AckTimerWheel<String> timer = new AckTimerWheel<>(TICK, WHEEL_SIZE, START);
+        timer.schedule("A", START + 25);
+        timer.schedule("B", START + 30);
+        timer.schedule("C", START + 55);
+        assertEquals(3, timer.size());
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(0, timer.expire(START + 20, expired));
+        // Deadlines are rounded up to the tick.
+        assertEquals(2, timer.expire(START + 30, expired));
+        assertTrue(expired.contains("A") && expired.contains("B"));
+        expired.clear();
+        assertEquals(0, timer.expire(START + 50, expired));
+        assertEquals(1, timer.expire(START + 60, expired));
+        assertEquals("C", expired.get(0));
+        assertEquals(0, timer.size());
+    }
+
+    public void testCancel() throws Exception {
+        AckTimerWheel<String> timer = new AckTimerWheel<>(TICK, WHEEL_SIZE, START);
+        AckTimerWheel.Timeout<String> a = timer.schedule("A", START + 20);
+        AckTimerWheel.Timeout<String> b = timer.schedule("B", START + 20);
+        AckTimerWheel.Timeout<String> c = timer.schedule("C", START + 20);
+        assertTrue(timer.cancel(b));
+        assertFalse(timer.cancel(b));
+        assertFalse(timer.cancel(null));
+        assertFalse(b.isScheduled());
+        assertEquals(2, timer.size());
+
+        List<String> expired = new ArrayList<>();
+        assertEquals(2, timer.expire(START + 20, expired));
+        assertFalse(expired.contains("B"));
+        assertFalse(a.isScheduled() || c.isScheduled());
+        assertFalse(timer.cancel(a));
+    }
+
+    public void testRounds() throws Exception {
+        AckTimerWheel<String> timer = new AckTimerWheel<>(TICK, WHEEL_SIZE, START);
+        // Same bucket, one and three rotations later.
+        timer.schedule("A", START + 20);
+        timer.schedule("B", START + 20 + WHEEL_SIZE * TICK);
+        timer.schedule("C", START + 20 + 3 * WHEEL_SIZE * TICK);
+
+        List<String> expired = new ArrayList<>();
+        long now = START;
+        while (expired.size() < 3) {
+            timer.expire(now, expired);
+            if (expired.size() == 1)
+                assertTrue(now < START + 20 + WHEEL_SIZE * TICK);
+            if (expired.size() == 2)
+                assertTrue(now >= START + 20 + WHEEL_SIZE * TICK
+                        && now < START + 20 + 3 * WHEEL_SIZE * TICK);
+            now += TICK;
+        }
+        assertEquals("A", expired.get(0));
+        assertEquals("B", expired.get(1));
+        assertEquals("C", expired.get(2));
+        assertEquals(START + 20 + 3 * WHEEL_SIZE * TICK, now - TICK);
+    }
+
+    public void testLateAndIdle() throws Exception {
+        AckTimerWheel<String> timer = new AckTimerWheel<>(TICK, WHEEL_SIZE, START);
+        List<String> expired = new ArrayList<>();
+
+        // Idle wheel skips ahead.
+        assertEquals(0, timer.expire(START + 100 * TICK, expired));
+
+        // Deadline already passed expires at the next tick.
+        timer.schedule("A", START);
+        assertEquals(1, timer.expire(START + 101 * TICK, expired));
+        assertEquals("A", expired.get(0));
+
+        // Ticker running late : everything due is expired at once.
+        expired.clear();
+        for (int ii = 0; ii < 20; ii++) {
+            timer.schedule("T" + ii, START + (102 + ii) * TICK);
+        }
+        assertEquals(20, timer.expire(START + 200 * TICK, expired));
+        assertEquals(0, timer.size());
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.wookler.server.river.AckCacheStructs.MessageAckRange;
+import com.wookler.server.river.AckCacheStructs.MessageAckRecord;
+
+/**
+ * Tests of the ack tracker bitmaps and of the range based timeout/resend
+ * handling of the ack caches.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_AckTracker extends TestCase {
+    private static final String S1 = "SUBSCRIBER-1";
+    private static final String S2 = "SUBSCRIBER-2";
+    private static final String B1 = "1";
+    private static final String B2 = "2";
+
+    public void testSetClear() throws Exception {
+        AckTracker tracker = new AckTracker();
+        assertTrue(tracker.pending(S1, B1, 100));
+        assertFalse(tracker.pending(S1, B1, 100));
+        // Below the bitmap base.
+        assertTrue(tracker.pending(S1, B1, 3));
+        // Beyond the bitmap words.
+        assertTrue(tracker.pending(S1, B1, 1000));
+        assertTrue(tracker.isPending(S1, B1, 3));
+        assertTrue(tracker.isPending(S1, B1, 1000));
+        assertFalse(tracker.isPending(S1, B1, 4));
+        assertFalse(tracker.isPending(S2, B1, 100));
+        assertEquals(3, tracker.pendingCount(B1));
+
+        assertTrue(tracker.ack(S1, B1, 100));
+        assertFalse(tracker.ack(S1, B1, 100));
+        assertFalse(tracker.ack(S2, B1, 3));
+        assertFalse(tracker.isPending(S1, B1, 100));
+        assertEquals(2, tracker.pendingCount(B1));
+    }
+
+    public void testRangeAck() throws Exception {
+        AckTracker tracker = new AckTracker();
+        for (long ii = 10; ii < 300; ii++) {
+            tracker.pending(S1, B1, ii);
+        }
+        // Range across word boundaries.
+        assertEquals(100, tracker.ack(S1, B1, 50, 149));
+        // Partially pending range.
+        assertEquals(10, tracker.ack(S1, B1, 0, 19));
+        assertEquals(0, tracker.ack(S1, B1, 50, 149));
+
+        List<AckTracker.Range> ranges = tracker.unacked(S1, B1);
+        assertEquals(2, ranges.size());
+        check(ranges.get(0), 20, 49);
+        check(ranges.get(1), 150, 299);
+
+        // Bounded lookups.
+        ranges = tracker.unacked(S1, B1, 40, 160);
+        assertEquals(2, ranges.size());
+        check(ranges.get(0), 40, 49);
+        check(ranges.get(1), 150, 160);
+        ranges = tracker.unacked(S1, B1, 60, 140);
+        assertTrue(ranges.isEmpty());
+        ranges = tracker.unacked(S1, B1, 299, 5000);
+        assertEquals(1, ranges.size());
+        check(ranges.get(0), 299, 299);
+
+        // Single bits at word edges.
+        tracker = new AckTracker();
+        for (long ii : new long[] { 63, 64, 127, 129 }) {
+            tracker.pending(S1, B1, ii);
+        }
+        ranges = tracker.unacked(S1, B1);
+        assertEquals(3, ranges.size());
+        check(ranges.get(0), 63, 64);
+        check(ranges.get(1), 127, 127);
+        check(ranges.get(2), 129, 129);
+    }
+
+    public void testLowWatermark() throws Exception {
+        AckTracker tracker = new AckTracker();
+        assertEquals(-1, tracker.lowWatermark(S1, B1));
+        for (long ii = 0; ii < 1000; ii++) {
+            tracker.pending(S1, B1, ii);
+        }
+        assertEquals(0, tracker.lowWatermark(S1, B1));
+        tracker.ack(S1, B1, 0, 499);
+        assertEquals(500, tracker.lowWatermark(S1, B1));
+        // Out of order acks do not move the watermark.
+        tracker.ack(S1, B1, 600, 999);
+        assertEquals(500, tracker.lowWatermark(S1, B1));
+        tracker.ack(S1, B1, 500, 598);
+        assertEquals(599, tracker.lowWatermark(S1, B1));
+        tracker.ack(S1, B1, 599);
+        assertEquals(-1, tracker.lowWatermark(S1, B1));
+    }
+
+    public void testBlockRelease() throws Exception {
+        AckTracker tracker = new AckTracker();
+        tracker.pending(S1, B1, 1);
+        tracker.pending(S2, B1, 1);
+        tracker.pending(S1, B2, 5);
+        assertTrue(tracker.hasPendingAcks(B1));
+        assertEquals(2, tracker.pendingCount(B1));
+        assertEquals(2, tracker.pendingBlocks(S1).size());
+
+        tracker.ack(S1, B1, 0, 10);
+        assertTrue(tracker.hasPendingAcks(B1));
+        assertEquals(1, tracker.pendingBlocks(S1).size());
+        tracker.ack(S2, B1, 1);
+        assertFalse(tracker.hasPendingAcks(B1));
+        assertEquals(0, tracker.pendingCount(B1));
+        assertTrue(tracker.pendingBlocks(S2).isEmpty());
+        assertTrue(tracker.hasPendingAcks(B2));
+        tracker.ack(S1, B2, 5, 5);
+        assertFalse(tracker.hasPendingAcks(B2));
+    }
+
+    public void testExpireAndClaim() throws Exception {
+        AckTracker pending = new AckTracker();
+        AckTracker resends = new AckTracker();
+        ArrayDeque<MessageAckRange> queue = new ArrayDeque<MessageAckRange>();
+        for (long ii = 0; ii < 100; ii++) {
+            pending.pending(S1, B1, ii);
+        }
+        pending.ack(S1, B1, 10, 19);
+
+        // Timed out delivery [0, 49] : [0, 9] and [20, 49] are still pending.
+        assertEquals(40, AckCache.expired(pending, resends, new MessageAckRange(S1, B1, 0, 49),
+                queue));
+        assertEquals(2, queue.size());
+        // Overlapping delivery, only the messages not already queued.
+        assertEquals(10, AckCache.expired(pending, resends,
+                new MessageAckRange(S1, B1, 40, 59), queue));
+        assertEquals(3, queue.size());
+
+        // Acked while waiting for resend.
+        pending.ack(S1, B1, 0, 4);
+        resends.ack(S1, B1, 0, 4);
+
+        List<MessageAckRange> claimed = new ArrayList<MessageAckRange>();
+        assertEquals(15, AckCache.claim(resends, queue, 15, claimed));
+        assertEquals(2, claimed.size());
+        check(claimed.get(0), 5, 9);
+        check(claimed.get(1), 20, 29);
+        // Partially claimed range stays at the head of the queue.
+        assertEquals(30, queue.peek().fromIndex);
+
+        claimed.clear();
+        assertEquals(30, AckCache.claim(resends, queue, 100, claimed));
+        assertTrue(queue.isEmpty());
+        check(claimed.get(0), 30, 49);
+        check(claimed.get(1), 50, 59);
+        assertTrue(resends.unacked(S1, B1).isEmpty());
+
+        // Nothing left to claim.
+        claimed.clear();
+        assertEquals(0, AckCache.claim(resends, queue, 10, claimed));
+    }
+
+    public void testRestore() throws Exception {
+        AckTracker pending = new AckTracker();
+        AckTracker resends = new AckTracker();
+        ArrayDeque<MessageAckRange> queue = new ArrayDeque<MessageAckRange>();
+        List<MessageAckRecord> recs = new ArrayList<MessageAckRecord>();
+        for (long ii : new long[] { 1, 2, 3, 7, 8 }) {
+            recs.add(record(B1, ii));
+        }
+        recs.add(record(B2, 9));
+        recs.add(record(B2, 9));
+
+        assertEquals(6, AckCache.restore(pending, resends, recs, queue));
+        assertEquals(3, queue.size());
+        check(queue.poll(), 1, 3);
+        check(queue.poll(), 7, 8);
+        check(queue.poll(), 9, 9);
+        assertTrue(pending.hasPendingAcks(B1) && pending.hasPendingAcks(B2));
+        assertEquals(2, resends.unacked(S1, B1).size());
+    }
+
+    private MessageAckRecord record(String blockid, long index) {
+        MessageAckRecord rec = new MessageAckRecord();
+        rec.setSubscriber(S1);
+        rec.setBlockId(blockid);
+        rec.setBlockIndex(index);
+        return rec;
+    }
+
+    private void check(AckTracker.Range r, long from, long to) {
+        assertEquals(from, r.from());
+        assertEquals(to, r.to());
+    }
+
+    private void check(MessageAckRange r, long from, long to) {
+        assertEquals(from, r.fromIndex);
+        assertEquals(to, r.toIndex);
+    }
+}
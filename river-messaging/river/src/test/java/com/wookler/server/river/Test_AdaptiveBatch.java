@@ -0,0 +1,169 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.config.ConfigValueList;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.river.test.RecordingProcessor;
+
+/**
+ * Tests of the adaptive batch size and read timeout control : full batches
+ * grow the batch size, slow batches halve it, and empty reads back off the
+ * read timeout.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_AdaptiveBatch extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-executor-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-executors";
+    private static final String QUEUE = "TEST-RIVER-ADAPTIVE";
+    private static final String SUBSCRIBER = "TEST-ADAPTIVE-SUBSCRIBER";
+    private static final String PROCESSOR = "TEST-ADAPTIVE-PROCESSOR";
+    private static final int MESSAGES = 20000;
+    private static final int BATCH_SIZE = 16;
+    private static final long QUEUE_TIMEOUT = 200;
+    private static final long TIMEOUT = 60000;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        RecordingProcessor.reset();
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testControl() throws Exception {
+        AdaptiveBatchController c = new AdaptiveBatchController("TEST-ADAPTIVE-CONTROL", 16, 4,
+                64, 5, 400, 100);
+        assertEquals(16, c.batchSize());
+        assertEquals(400, c.timeout());
+
+        // Full batches : additive increase, min timeout.
+        c.read(16, 16);
+        assertEquals(20, c.batchSize());
+        assertEquals(5, c.timeout());
+        for (int ii = 0; ii < 20; ii++) {
+            c.read(c.batchSize(), c.batchSize());
+        }
+        assertEquals(64, c.batchSize());
+
+        // Partial batches change nothing.
+        c.read(64, 10);
+        assertEquals(64, c.batchSize());
+        assertEquals(5, c.timeout());
+
+        // Slow batches : multiplicative decrease, bounded by the min size.
+        c.processed(64, 101);
+        assertEquals(32, c.batchSize());
+        c.processed(32, 100);
+        assertEquals(32, c.batchSize());
+        for (int ii = 0; ii < 10; ii++) {
+            c.processed(c.batchSize(), 1000);
+        }
+        assertEquals(4, c.batchSize());
+
+        // Empty reads : timeout doubled up to the max.
+        c.read(4, 0);
+        assertEquals(10, c.timeout());
+        for (int ii = 0; ii < 10; ii++) {
+            c.read(4, 0);
+        }
+        assertEquals(400, c.timeout());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testExecutor() throws Exception {
+        queue = start(QUEUE);
+        MessageProcessor<String> subscriber = (MessageProcessor<String>) queue
+                .subscriber(SUBSCRIBER);
+        AdaptiveBatchController c = subscriber.executor.controller();
+        assertNotNull(c);
+        assertEquals(BATCH_SIZE, c.batchSize());
+
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            publisher.publish(String.format("ADAPTIVE-MESSAGE-%08d", ii));
+        }
+        // The batch size grows while there is a backlog.
+        int max = c.batchSize();
+        long start = System.currentTimeMillis();
+        List<String> processed = RecordingProcessor.processed(PROCESSOR);
+        while (processed.size() < MESSAGES && System.currentTimeMillis() - start < TIMEOUT) {
+            max = Math.max(max, c.batchSize());
+            Thread.sleep(5);
+            processed = RecordingProcessor.processed(PROCESSOR);
+        }
+        assertEquals(MESSAGES, processed.size());
+        assertTrue(max > BATCH_SIZE);
+        int batches = RecordingProcessor.threads(PROCESSOR).size();
+        assertTrue(batches < MESSAGES / BATCH_SIZE);
+
+        // Read timeout backs off to the queue timeout once idle.
+        start = System.currentTimeMillis();
+        while (c.timeout() < QUEUE_TIMEOUT && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(50);
+        }
+        assertEquals(QUEUE_TIMEOUT, c.timeout());
+    }
+
+    private MessageQueue<String> start(String name) throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        if (!(node instanceof ConfigValueList)) {
+            assertEquals(name, ConfigUtils.attributes(node).attribute("name"));
+            return start(node);
+        }
+        for (ConfigNode n : ((ConfigValueList) node).values()) {
+            if (name.equals(ConfigUtils.attributes(n).attribute("name")))
+                return start(n);
+        }
+        fail("Queue not found. [name=" + name + "]");
+        return null;
+    }
+
+    private MessageQueue<String> start(ConfigNode node) throws Exception {
+        MessageQueue<String> q = new MessageQueue<String>();
+        q.configure(node);
+        q.start();
+        return q;
+    }
+}
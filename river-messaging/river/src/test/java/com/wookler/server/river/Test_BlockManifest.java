@@ -0,0 +1,166 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Replay tests of the block manifest : blocks are written, the manifest tail
+ * is truncated or corrupted and the manifest is reopened.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_BlockManifest extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-manifest";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(DIRECTORY);
+        if (directory.exists())
+            FileUtils.emptydir(directory, true);
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.emptydir(directory, true);
+    }
+
+    public void testReplay() throws Exception {
+        write();
+
+        List<BlockManifest.Entry> entries = reopen();
+        assertEquals(3, entries.size());
+        check(entries.get(0), "2", true, 199, 1, 200);
+        check(entries.get(1), "3", true, 299, 1, 300);
+        check(entries.get(2), "4", false, -1, -1, -1);
+
+        // The compacted manifest replays to the same blocks.
+        entries = reopen();
+        assertEquals(3, entries.size());
+        check(entries.get(1), "3", true, 299, 1, 300);
+    }
+
+    public void testTruncatedTail() throws Exception {
+        write();
+        BlockManifest manifest = new BlockManifest(directory);
+        manifest.open();
+        manifest.sealed("4", 399, 1, 400);
+        manifest.close();
+
+        // Crash while appending the seal : "SEAL 4 [ts] 399 1 4" is a valid
+        // looking entry with the wrong sequence and must not be replayed.
+        File file = new File(directory, BlockManifest.Constants.MANIFEST_FILE);
+        truncate(file, 3);
+
+        List<BlockManifest.Entry> entries = reopen();
+        assertEquals(3, entries.size());
+        check(entries.get(1), "3", true, 299, 1, 300);
+        check(entries.get(2), "4", false, -1, -1, -1);
+
+        // Truncated up to the create of the last block.
+        manifest = new BlockManifest(directory);
+        manifest.open();
+        manifest.created("5", System.currentTimeMillis());
+        manifest.close();
+        truncate(file, 5);
+
+        entries = reopen();
+        assertEquals(3, entries.size());
+        assertEquals("4", entries.get(2).id());
+    }
+
+    public void testCorruptTail() throws Exception {
+        write();
+        File file = new File(directory, BlockManifest.Constants.MANIFEST_FILE);
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("SEAL 4 xx\n".getBytes(StandardCharsets.UTF_8));
+            out.write(new byte[] { 0, 0, 0, 0, '\n' });
+            out.write("GC 3\n".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+
+        List<BlockManifest.Entry> entries = reopen();
+        assertEquals(3, entries.size());
+        check(entries.get(1), "3", true, 299, 1, 300);
+        check(entries.get(2), "4", false, -1, -1, -1);
+    }
+
+    /**
+     * Blocks 1 - 4 are created, 1 - 3 are sealed and 1 is removed.
+     */
+    private void write() throws Exception {
+        BlockManifest manifest = new BlockManifest(directory);
+        assertFalse(manifest.exists());
+        assertTrue(manifest.open().isEmpty());
+        for (int ii = 1; ii <= 4; ii++) {
+            manifest.created(String.valueOf(ii), System.currentTimeMillis());
+            if (ii < 4)
+                manifest.sealed(String.valueOf(ii), ii * 100 - 1, 1, ii * 100);
+        }
+        manifest.unloaded("2");
+        manifest.backedup("1");
+        manifest.removed("1");
+        manifest.close();
+        assertTrue(manifest.exists());
+    }
+
+    private List<BlockManifest.Entry> reopen() throws Exception {
+        BlockManifest manifest = new BlockManifest(directory);
+        try {
+            return manifest.open();
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private void check(BlockManifest.Entry e, String id, boolean sealed, long lastIndex,
+            long firstSequence, long lastSequence) {
+        assertEquals(id, e.id());
+        assertEquals(sealed, e.sealed());
+        assertEquals(lastIndex, e.lastIndex());
+        assertEquals(firstSequence, e.firstSequence());
+        assertEquals(lastSequence, e.lastSequence());
+    }
+
+    private void truncate(File file, int bytes) throws Exception {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(f.length() - bytes);
+        } finally {
+            f.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.config.ConfigValueList;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Restart tests of the block recovery, with sequential and parallel recovery
+ * of the existing blocks : all the blocks are recovered in block order and
+ * are removed once read.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_BlockRecovery extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-recovery-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-recovery";
+    private static final String QUEUE_SEQUENTIAL = "TEST-RIVER-RECOVERY-SEQ";
+    private static final String QUEUE_PARALLEL = "TEST-RIVER-RECOVERY-PAR";
+    private static final String SUBSCRIBER = "TEST-RECOVERY-READER";
+    private static final int MESSAGES = 4000;
+    /** recycle size of the queues, in records */
+    private static final int BLOCK_SIZE = 500;
+    private static final long TIMEOUT = 1000;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testSequential() throws Exception {
+        restart(QUEUE_SEQUENTIAL);
+    }
+
+    public void testParallel() throws Exception {
+        restart(QUEUE_PARALLEL);
+    }
+
+    private void restart(String name) throws Exception {
+        queue = start(name);
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            publisher.publish(message(ii));
+        }
+        List<String> written = blockids(read(MESSAGES));
+        assertEquals(MESSAGES, written.size());
+        TreeSet<Long> blocks = new TreeSet<Long>();
+        for (String b : written) {
+            blocks.add(Long.parseLong(b));
+        }
+        assertEquals((MESSAGES + BLOCK_SIZE - 1) / BLOCK_SIZE, blocks.size());
+        queue.dispose();
+
+        // All the blocks are recovered, messages are read in block order
+        // from the same blocks.
+        queue = start(name);
+        assertTrue(blocks(name).containsAll(blocks));
+        List<Message<String>> read = read(MESSAGES);
+        assertEquals(MESSAGES, read.size());
+        for (int ii = 0; ii < read.size(); ii++) {
+            assertEquals(message(ii), read.get(ii).data());
+        }
+        assertEquals(written, blockids(read));
+        assertTrue(read(1).isEmpty());
+
+        // Recovered blocks are removed once read.
+        queue.storegc();
+        TreeSet<Long> remaining = blocks(name);
+        for (Long block : blocks) {
+            assertFalse(String.valueOf(block), remaining.contains(block));
+        }
+        assertFalse(remaining.isEmpty());
+    }
+
+    /**
+     * Get the block IDs of the messages, checking the blocks are in order.
+     */
+    private List<String> blockids(List<Message<String>> messages) {
+        List<String> blockids = new ArrayList<String>();
+        long last = 0;
+        for (Message<String> m : messages) {
+            long block = Long.parseLong(m.header().blockid());
+            assertTrue(block >= last);
+            last = block;
+            blockids.add(m.header().blockid());
+        }
+        return blockids;
+    }
+
+    /**
+     * Get the IDs of the block directories of the queue.
+     */
+    private TreeSet<Long> blocks(String name) {
+        TreeSet<Long> blocks = new TreeSet<Long>();
+        String[] files = new File(DIRECTORY, name).list();
+        assertNotNull(files);
+        for (String f : files) {
+            try {
+                long id = Long.parseLong(f);
+                if (new File(new File(DIRECTORY, name), f).isDirectory())
+                    blocks.add(id);
+            } catch (NumberFormatException e) {
+                // Not a block.
+            }
+        }
+        return blocks;
+    }
+
+    private MessageQueue<String> start(String name) throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertTrue(node instanceof ConfigValueList);
+        for (ConfigNode n : ((ConfigValueList) node).values()) {
+            if (!name.equals(ConfigUtils.attributes(n).attribute("name")))
+                continue;
+            MessageQueue<String> q = new MessageQueue<String>();
+            q.configure(n);
+            q.start();
+            return q;
+        }
+        fail("Queue not found. [name=" + name + "]");
+        return null;
+    }
+
+    /**
+     * Read messages till the count is reached or no more messages are
+     * available.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Message<String>> read(int count) throws Exception {
+        MessagePullSubscriber<String> s = (MessagePullSubscriber<String>) queue
+                .subscriber(SUBSCRIBER);
+        List<Message<String>> messages = new ArrayList<Message<String>>();
+        while (messages.size() < count) {
+            List<Message<String>> batch = s.batch(count - messages.size(), TIMEOUT);
+            if (batch == null || batch.isEmpty())
+                break;
+            messages.addAll(batch);
+        }
+        return messages;
+    }
+
+    private String message(int index) {
+        return String.format("RECOVERY-MESSAGE-%08d", index);
+    }
+}
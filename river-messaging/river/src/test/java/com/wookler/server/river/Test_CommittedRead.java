@@ -0,0 +1,166 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Tests of the block tail reads : subscribers read the records of a writable
+ * block up to the index committed by the writer, without any lock, while the
+ * writer keeps appending records.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_CommittedRead extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-committed";
+    private static final String NAME = "TEST-COMMITTED";
+    private static final String SUBSCRIBER = "TEST-COMMITTED-READER";
+    private static final String CONFIG_FILE = "src/test/resources/river-unit-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final int RECORDS = 20000;
+    private static final int BATCH = 256;
+    private static final long TIMEOUT = 100;
+    private static final long WAIT = 30000;
+
+    private MessageBlock block = null;
+
+    @Before
+    public void setUp() throws Exception {
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+        block = new MessageBlock("1", DIRECTORY, NAME, true, null).init(false);
+        block.openwriter();
+        block.subscribe(SUBSCRIBER);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (block != null)
+            block.close();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testTail() throws Exception {
+        assertEquals(-1, block.committedIndex());
+        ReadResponse response = block.read(SUBSCRIBER, BATCH, TIMEOUT);
+        assertEquals(ReadResponse.EReadResponseStatus.BlockEmpty, response.status());
+        assertNull(response.data());
+
+        for (int ii = 0; ii < 10; ii++) {
+            assertEquals(ii, block.write(payload(ii)));
+        }
+        assertEquals(9, block.committedIndex());
+
+        // Caught up with the writer : all the committed records are read and
+        // the block is still open for writes.
+        response = block.read(SUBSCRIBER, BATCH, TIMEOUT);
+        assertEquals(ReadResponse.EReadResponseStatus.BlockEmpty, response.status());
+        check(response.data(), 0);
+        assertEquals(10, response.data().size());
+
+        for (int ii = 10; ii < 15; ii++) {
+            block.write(payload(ii));
+        }
+        response = block.read(SUBSCRIBER, 2, TIMEOUT);
+        assertEquals(ReadResponse.EReadResponseStatus.OK, response.status());
+        check(response.data(), 10);
+        assertEquals(2, response.data().size());
+        response = block.read(SUBSCRIBER, BATCH, TIMEOUT);
+        check(response.data(), 12);
+        assertEquals(3, response.data().size());
+
+        // Once closed for writes, the block is done at the committed index.
+        block.closewriter();
+        response = block.read(SUBSCRIBER, BATCH, TIMEOUT);
+        assertEquals(ReadResponse.EReadResponseStatus.EndOfBlock, response.status());
+        assertNull(response.data());
+    }
+
+    public void testConcurrentWriter() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int ii = 0; ii < RECORDS; ii++) {
+                        block.write(payload(ii));
+                        if (ii % 1000 == 0)
+                            Thread.yield();
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+        writer.start();
+
+        // Every read returns the next committed records, in order and never
+        // past the committed index, while the writer is appending.
+        int read = 0;
+        long start = System.currentTimeMillis();
+        while (read < RECORDS && System.currentTimeMillis() - start < WAIT) {
+            ReadResponse response = block.read(SUBSCRIBER, BATCH, TIMEOUT);
+            assertTrue(response.status().name(),
+                    response.status() == ReadResponse.EReadResponseStatus.OK
+                            || response.status() == ReadResponse.EReadResponseStatus.BlockEmpty);
+            List<Record> records = response.data();
+            if (records == null)
+                continue;
+            assertTrue(records.get(records.size() - 1).index() <= block.committedIndex());
+            check(records, read);
+            read += records.size();
+        }
+        writer.join(WAIT);
+        assertNull(error.get());
+        assertEquals(RECORDS, read);
+        assertEquals(RECORDS - 1, block.committedIndex());
+        assertNull(block.read(SUBSCRIBER, BATCH, TIMEOUT).data());
+    }
+
+    /**
+     * Check the records are the next records in write order.
+     */
+    private void check(List<Record> records, int first) {
+        assertNotNull(records);
+        for (int ii = 0; ii < records.size(); ii++) {
+            Record r = records.get(ii);
+            assertEquals(first + ii, r.index());
+            assertEquals(first + ii + 1, r.sequence());
+            assertEquals(new String(payload(first + ii), StandardCharsets.UTF_8), new String(
+                    r.bytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private byte[] payload(int index) {
+        return String.format("COMMITTED-RECORD-%08d", index).getBytes(StandardCharsets.UTF_8);
+    }
+}
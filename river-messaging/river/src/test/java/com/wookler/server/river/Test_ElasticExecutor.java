@@ -0,0 +1,150 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.config.ConfigValueList;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.river.test.RecordingProcessor;
+
+/**
+ * Tests of the elastic executor : the worker pool is scaled up to the max pool
+ * size while the subscriber lags, and back down to the min pool size once the
+ * backlog has been processed.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_ElasticExecutor extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-executor-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-executors";
+    private static final String QUEUE = "TEST-RIVER-ELASTIC";
+    private static final String SUBSCRIBER = "TEST-ELASTIC-SUBSCRIBER";
+    private static final String PROCESSOR = "TEST-ELASTIC-PROCESSOR";
+    private static final int MESSAGES = 4000;
+    private static final int POOL_MIN = 1;
+    private static final int POOL_MAX = 3;
+    private static final long TIMEOUT = 60000;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        RecordingProcessor.reset();
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testScale() throws Exception {
+        queue = start(QUEUE);
+        MessageProcessor<String> subscriber = (MessageProcessor<String>) queue
+                .subscriber(SUBSCRIBER);
+        ElasticExecutor<String> executor = (ElasticExecutor<String>) subscriber.executor;
+        long start = System.currentTimeMillis();
+        while (executor.poolSize() < POOL_MIN && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(10);
+        }
+        assertEquals(POOL_MIN, executor.poolSize());
+
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            publisher.publish(String.format("ELASTIC-MESSAGE-%08d", ii));
+        }
+
+        // Scaled up while the backlog is processed.
+        int max = executor.poolSize();
+        start = System.currentTimeMillis();
+        while (max < POOL_MAX && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(20);
+            max = Math.max(max, executor.poolSize());
+        }
+        assertEquals(POOL_MAX, max);
+
+        List<String> processed = await(PROCESSOR, MESSAGES);
+        assertEquals(MESSAGES, processed.size());
+        assertEquals(MESSAGES, new HashSet<String>(processed).size());
+        HashSet<Thread> workers = new HashSet<Thread>(RecordingProcessor.threads(PROCESSOR));
+        assertTrue(workers.size() > POOL_MIN);
+
+        // Scaled down once idle, never below the min pool size.
+        start = System.currentTimeMillis();
+        while (executor.poolSize() > POOL_MIN && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(20);
+        }
+        assertEquals(POOL_MIN, executor.poolSize());
+        assertEquals(MESSAGES, RecordingProcessor.processed(PROCESSOR).size());
+    }
+
+    /**
+     * Wait till the processor has processed the count of messages.
+     */
+    private List<String> await(String processor, int count) throws Exception {
+        long start = System.currentTimeMillis();
+        List<String> processed = RecordingProcessor.processed(processor);
+        while (processed.size() < count && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(100);
+            processed = RecordingProcessor.processed(processor);
+        }
+        return processed;
+    }
+
+    private MessageQueue<String> start(String name) throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        if (!(node instanceof ConfigValueList)) {
+            assertEquals(name, ConfigUtils.attributes(node).attribute("name"));
+            return start(node);
+        }
+        for (ConfigNode n : ((ConfigValueList) node).values()) {
+            if (name.equals(ConfigUtils.attributes(n).attribute("name")))
+                return start(n);
+        }
+        fail("Queue not found. [name=" + name + "]");
+        return null;
+    }
+
+    private MessageQueue<String> start(ConfigNode node) throws Exception {
+        MessageQueue<String> q = new MessageQueue<String>();
+        q.configure(node);
+        q.start();
+        return q;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.wookler.server.river.Filter.FilterException;
+
+/**
+ * Parser and evaluation tests of the filter expressions, including concurrent
+ * evaluation of adaptive expressions.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_FilterExpression extends TestCase {
+    private static final int THREADS = 4;
+    private static final int EVALUATIONS = 50000;
+
+    public static enum EStatus {
+        OPEN, CLOSED
+    }
+
+    public static class Customer {
+        private String id;
+        private boolean premium;
+
+        public Customer(String id, boolean premium) {
+            this.id = id;
+            this.premium = premium;
+        }
+
+        public boolean isPremium() {
+            return premium;
+        }
+    }
+
+    public static class Order {
+        private long quantity;
+        private double price;
+        private EStatus status;
+        private Customer customer;
+        private String note = null;
+        private Map<String, Object> tags = new HashMap<String, Object>();
+
+        public Order(long quantity, double price, EStatus status, Customer customer) {
+            this.quantity = quantity;
+            this.price = price;
+            this.status = status;
+            this.customer = customer;
+        }
+
+        public String getRegion() {
+            return (customer.id.startsWith("EU") ? "EUROPE" : "OTHER");
+        }
+    }
+
+    public void testParse() throws Exception {
+        String[] valid = { "quantity = 10", "quantity == 10 && price < 2.5",
+                "NOT (status = 'OPEN' OR status = \"CLOSED\")", "customer.premium",
+                "! customer.premium || quantity >= 1e2", "region IN ('EUROPE', 'ASIA')",
+                "region not in ('EUROPE')", "customer.id MATCHES 'EU.*'", "note IS NULL",
+                "note is not null", "$ != NULL", "quantity <> 3" };
+        for (String e : valid) {
+            FilterExpression f = FilterExpression.compile(e, false);
+            assertEquals(e, f.expression());
+        }
+
+        String[] invalid = { "", "   ", "quantity =", "quantity = 10 AND",
+                "(quantity = 10", "quantity = 10)", "quantity = FOO", "region IN 'EUROPE'",
+                "region IN ()", "customer.id MATCHES 10", "customer.id MATCHES '('",
+                "note IS 10", "quantity = 'a", "quantity ~ 10" };
+        for (String e : invalid) {
+            try {
+                FilterExpression.compile(e, false);
+                fail("Invalid expression compiled. [expression=" + e + "]");
+            } catch (FilterException fe) {
+                // Expected.
+            }
+        }
+    }
+
+    public void testEvaluate() throws Exception {
+        Order eu = order(10, 2.0, EStatus.OPEN, "EU-1", true);
+        eu.tags.put("channel", "WEB");
+        Order us = order(150, 12.5, EStatus.CLOSED, "US-7", false);
+        us.note = "Urgent";
+
+        check("quantity = 10", eu, true, us, false);
+        check("quantity = 10.0", eu, true, us, false);
+        check("quantity != 10", eu, false, us, true);
+        check("quantity > 100 AND price >= 12.5", eu, false, us, true);
+        check("price < 2.5 OR quantity <= 10", eu, true, us, false);
+        check("status = 'OPEN'", eu, true, us, false);
+        check("status IN ('CLOSED', 'CANCELLED')", eu, false, us, true);
+        check("status NOT IN ('CLOSED')", eu, true, us, false);
+        check("customer.id MATCHES 'EU-[0-9]+'", eu, true, us, false);
+        check("customer.premium", eu, true, us, false);
+        check("NOT customer.premium", eu, false, us, true);
+        check("region = 'EUROPE'", eu, true, us, false);
+        check("tags.channel = 'WEB'", eu, true, us, false);
+        check("note IS NULL", eu, true, us, false);
+        check("note IS NOT NULL", eu, false, us, true);
+        check("note = 'Urgent'", eu, false, us, true);
+        // NULL values do not match comparisons, except !=.
+        check("note != 'Urgent'", eu, true, us, false);
+        check("note < 'Z'", eu, false, us, true);
+        // AND binds tighter than OR.
+        check("quantity = 150 OR quantity = 10 AND price > 5", eu, false, us, true);
+        check("(quantity = 150 OR quantity = 10) AND price > 5", eu, false, us, true);
+        check("(quantity = 150 OR quantity = 10) AND price < 5", eu, true, us, false);
+
+        assertTrue(FilterExpression.compile("$ MATCHES 'ERROR.*'", false).evaluate(
+                "ERROR: failed"));
+        assertFalse(FilterExpression.compile("$ MATCHES 'ERROR.*'", false).evaluate("INFO"));
+
+        try {
+            FilterExpression.compile("customer.unknown = 1", false).evaluate(eu);
+            fail("Unknown field resolved.");
+        } catch (FilterException fe) {
+            // Expected.
+        }
+    }
+
+    public void testAdaptive() throws Exception {
+        // The expensive, rarely failing term is first in config order.
+        final FilterExpression f = FilterExpression.compile(
+                "customer.id MATCHES '.*[0-9]+' AND status = 'OPEN' AND quantity < 100", true);
+        final List<Order> orders = new ArrayList<Order>();
+        for (int ii = 0; ii < 100; ii++) {
+            orders.add(order(ii * 2, 1.0, (ii % 10 == 0 ? EStatus.OPEN : EStatus.CLOSED), "EU-"
+                    + ii, false));
+        }
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int tt = 0; tt < THREADS; tt++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int ii = 0; ii < EVALUATIONS; ii++) {
+                            int index = ii % orders.size();
+                            boolean expected = (index % 10 == 0 && index * 2 < 100);
+                            if (f.evaluate(orders.get(index)) != expected)
+                                throw new AssertionError("Invalid result. [index=" + index + "]");
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (error.get() != null)
+            throw new AssertionError("Adaptive evaluation failed.", error.get());
+    }
+
+    public void testOrder() throws Exception {
+        PredicateStats cheap = new PredicateStats(10);
+        PredicateStats expensive = new PredicateStats(1000);
+        PredicateStats selective = new PredicateStats(10);
+        for (int ii = 0; ii < 1000; ii++) {
+            cheap.evaluated(ii % 10 == 0);
+            expensive.evaluated(ii % 2 == 0);
+            selective.evaluated(ii % 2 == 0);
+        }
+        int[] order = PredicateStats.order(new PredicateStats[] { expensive, cheap, selective });
+        assertNotNull(order);
+        assertEquals(2, order[0]);
+        assertEquals(1, order[1]);
+        assertEquals(0, order[2]);
+        // Statistics are halved, the order is unchanged.
+        assertNull(PredicateStats.order(new PredicateStats[] { selective, cheap, expensive }));
+        assertEquals(0.5, selective.selectivity(), 0.01);
+    }
+
+    private void check(String expression, Order o1, boolean r1, Order o2, boolean r2)
+            throws Exception {
+        for (boolean adaptive : new boolean[] { false, true }) {
+            FilterExpression f = FilterExpression.compile(expression, adaptive);
+            assertEquals(expression, r1, f.evaluate(o1));
+            assertEquals(expression, r2, f.evaluate(o2));
+        }
+    }
+
+    private Order order(long quantity, double price, EStatus status, String customer,
+            boolean premium) {
+        return new Order(quantity, price, status, new Customer(customer, premium));
+    }
+}
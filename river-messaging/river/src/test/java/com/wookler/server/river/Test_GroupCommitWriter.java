@@ -0,0 +1,191 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.LockTimeoutException;
+import com.wookler.server.common.MonitoredThread;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.common.utils.LogUtils;
+
+/**
+ * Benchmark comparing the direct (lock per record) write path against the
+ * group commit write path for 1/8/64 concurrent publishers. The records are
+ * read back to check that all the records have been written, in publish order
+ * for each publisher.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_GroupCommitWriter extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-groupcommit-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_DIRECT = "configuration.river.direct.queue";
+    private static final String CONFIG_PATH_GROUP = "configuration.river.group.queue";
+
+    private static final int[] PUBLISHERS = { 1, 8, 64 };
+    private static final int RECORDS = 256 * 1024;
+    private static final int RECORD_SIZE = 256;
+    private static final long LOCK_TIMEOUT = 1000;
+    private static final int READ_BATCH = 8192;
+    private static final String SUBSCRIBER = "TEST-GROUP-COMMIT-READER";
+
+    static {
+        System.setProperty("river.console.debug", "true");
+    }
+
+    private MessageStoreManager direct;
+    private MessageStoreManager group;
+
+    @Before
+    public void setUp() throws Exception {
+        // IMPORTANT : make sure this call is invoked at the beginning.
+        // Otherwise the test behavior is unpredictable while running through
+        // maven.
+        Env.reset();
+
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+
+        direct = configStore("TEST-RIVER-DIRECT", CONFIG_PATH_DIRECT);
+        group = configStore("TEST-RIVER-GROUP", CONFIG_PATH_GROUP);
+    }
+
+    private MessageStoreManager configStore(String name, String path) throws Exception {
+        ConfigNode node = Env.get().config().search(path);
+        if (node == null)
+            throw new Exception("Cannot find queue node. [path=" + path + "]");
+        MessageStoreManager store = new MessageStoreManager(name, true,
+                new BlockingAckCache<String>());
+        store.configure(node);
+
+        MessagePullSubscriber<String> reader = new MessagePullSubscriber<String>();
+        reader.name = SUBSCRIBER;
+        store.subscribe(reader);
+        store.start();
+
+        return store;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        direct.dispose();
+        group.dispose();
+        // cleanup after each test
+        FileUtils.emptydir(new File("/tmp/river"), true);
+    }
+
+    public void test() throws Exception {
+        for (int publishers : PUBLISHERS) {
+            long dt = run(direct, publishers);
+            long gt = run(group, publishers);
+            LogUtils.debug(getClass(), String.format(
+                    "[PUBLISHERS=%d][RECORDS=%d] DIRECT=%d ms (%d/sec), GROUP=%d ms (%d/sec)",
+                    publishers, RECORDS, dt, rate(dt), gt, rate(gt)));
+        }
+    }
+
+    private long rate(long elapsed) {
+        return (elapsed > 0 ? (RECORDS * 1000L) / elapsed : RECORDS);
+    }
+
+    private long run(final MessageStoreManager store, int publishers) throws Exception {
+        final int count = RECORDS / publishers;
+        final AtomicLong errors = new AtomicLong();
+        List<MonitoredThread> threads = new ArrayList<MonitoredThread>(publishers);
+
+        for (int ii = 0; ii < publishers; ii++) {
+            final int publisher = ii;
+            threads.add(new MonitoredThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int jj = 0; jj < count; jj++) {
+                        // staged records are written by the combiner, each
+                        // record needs its own buffer.
+                        byte[] data = new byte[RECORD_SIZE];
+                        ByteBuffer.wrap(data).putInt(publisher).putInt(jj);
+                        try {
+                            store.write(data, LOCK_TIMEOUT);
+                        } catch (LockTimeoutException e) {
+                            errors.incrementAndGet();
+                        } catch (MessageQueueException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "PUBLISHER-" + ii));
+        }
+        long ts = System.currentTimeMillis();
+        for (MonitoredThread t : threads) {
+            t.start();
+        }
+        for (MonitoredThread t : threads) {
+            t.join();
+        }
+        long elapsed = System.currentTimeMillis() - ts;
+        assertEquals(0, errors.get());
+        verify(store, publishers, count);
+
+        return elapsed;
+    }
+
+    /**
+     * Read back the records written by the run and check that each publisher's
+     * records have all been written, in order.
+     */
+    private void verify(MessageStoreManager store, int publishers, int count) throws Exception {
+        int[] next = new int[publishers];
+        long read = 0;
+        long expected = (long) publishers * count;
+        while (read < expected) {
+            MessageDataBlock.MessageDataBlockList data = store.read(SUBSCRIBER, READ_BATCH,
+                    LOCK_TIMEOUT);
+            assertNotNull("Records missing. [read=" + read + "][expected=" + expected + "]",
+                    data);
+            assertTrue(data.size() > 0);
+            for (MessageDataBlock mb : data.blocks()) {
+                for (Record r : mb.records()) {
+                    ByteBuffer b = ByteBuffer.wrap(r.bytes());
+                    int publisher = b.getInt();
+                    int sequence = b.getInt();
+                    assertTrue(publisher >= 0 && publisher < publishers);
+                    assertEquals(next[publisher], sequence);
+                    next[publisher]++;
+                    read++;
+                }
+            }
+        }
+        assertEquals(expected, read);
+        for (int ii = 0; ii < publishers; ii++) {
+            assertEquals(count, next[ii]);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.common.config.ConfigValueList;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.river.test.RecordingProcessor;
+
+/**
+ * Tests of the key affinity executor : messages with the same key are
+ * processed in read order, while the keys are spread over the lanes. All the
+ * messages are acked once processed.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_KeyAffinityExecutor extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-executor-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-executors";
+    private static final String QUEUE = "TEST-RIVER-KEYAFFINITY";
+    private static final String PROCESSOR = "TEST-KEYAFFINITY-PROCESSOR";
+    private static final int KEYS = 16;
+    private static final int MESSAGES = 200;
+    private static final long TIMEOUT = 30000;
+    /** wait past the ack timeout, to check no message is resent */
+    private static final long RESEND_WAIT = 2500;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        RecordingProcessor.reset();
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testKeyOrder() throws Exception {
+        queue = start(QUEUE);
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            for (int jj = 0; jj < KEYS; jj++) {
+                publisher.publish(String.format("KEY-%02d:%08d", jj, ii));
+            }
+        }
+        List<String> processed = await(PROCESSOR, KEYS * MESSAGES);
+        assertEquals(KEYS * MESSAGES, processed.size());
+
+        Map<String, Integer> next = new HashMap<String, Integer>();
+        for (String m : processed) {
+            String key = m.substring(0, m.indexOf(':'));
+            int sequence = Integer.parseInt(m.substring(key.length() + 1));
+            Integer expected = next.get(key);
+            assertEquals(m, (expected == null ? 0 : expected.intValue()), sequence);
+            next.put(key, sequence + 1);
+        }
+        assertEquals(KEYS, next.size());
+
+        // The keys are processed on more than one lane.
+        Set<String> lanes = new HashSet<String>();
+        for (Thread t : RecordingProcessor.threads(PROCESSOR)) {
+            lanes.add(t.getName());
+        }
+        assertTrue(lanes.size() > 1);
+
+        // Processed messages are acked, nothing is resent.
+        Thread.sleep(RESEND_WAIT);
+        assertEquals(KEYS * MESSAGES, RecordingProcessor.processed(PROCESSOR).size());
+    }
+
+    /**
+     * Wait till the processor has processed the count of messages.
+     */
+    private List<String> await(String processor, int count) throws Exception {
+        long start = System.currentTimeMillis();
+        List<String> processed = RecordingProcessor.processed(processor);
+        while (processed.size() < count && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(100);
+            processed = RecordingProcessor.processed(processor);
+        }
+        return processed;
+    }
+
+    private MessageQueue<String> start(String name) throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        if (!(node instanceof ConfigValueList)) {
+            assertEquals(name, ConfigUtils.attributes(node).attribute("name"));
+            return start(node);
+        }
+        for (ConfigNode n : ((ConfigValueList) node).values()) {
+            if (name.equals(ConfigUtils.attributes(n).attribute("name")))
+                return start(n);
+        }
+        fail("Queue not found. [name=" + name + "]");
+        return null;
+    }
+
+    private MessageQueue<String> start(ConfigNode node) throws Exception {
+        MessageQueue<String> q = new MessageQueue<String>();
+        q.configure(node);
+        q.start();
+        return q;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Before;
+
+import com.wookler.server.common.ConfigurationException;
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+
+/**
+ * Tests of the batch view passed along the processor chains : messages are
+ * dropped and replaced in place through the selection vector, without
+ * modifying the source list, and the view is reused across batches.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_MessageBatch extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-executor-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final int MESSAGES = 20;
+
+    /**
+     * Processor dropping the messages with an odd index, in place.
+     */
+    private static final class EvenProcessor extends Processor<String> {
+        @Override
+        protected EProcessResponse process(MessageBatch<String> batch)
+                throws ProcessingException, NonFatalProcessorException {
+            for (int ii = 0; ii < batch.size(); ii++) {
+                if (index(batch.get(ii)) % 2 != 0)
+                    batch.drop(ii);
+            }
+            return EProcessResponse.Success;
+        }
+
+        @Override
+        protected ProcessResponse<String> process(List<Message<String>> messages)
+                throws ProcessingException, NonFatalProcessorException {
+            throw new ProcessingException("List processing not expected.");
+        }
+
+        @Override
+        protected ProcessResponse<String> process(Message<String> message)
+                throws ProcessingException, NonFatalProcessorException {
+            throw new ProcessingException("Message processing not expected.");
+        }
+
+        @Override
+        public void configure(ConfigNode config) throws ConfigurationException {
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    /**
+     * List based processor, returning the messages with an index divisible by
+     * four as new messages.
+     */
+    private static final class QuarterProcessor extends Processor<String> {
+        @Override
+        protected ProcessResponse<String> process(List<Message<String>> messages)
+                throws ProcessingException, NonFatalProcessorException {
+            List<Message<String>> selected = new ArrayList<Message<String>>();
+            for (Message<String> m : messages) {
+                if (index(m) % 4 == 0)
+                    selected.add(message(index(m)).data(m.data() + "-Q"));
+            }
+            return new ProcessResponse<String>().messages(selected).response(
+                    EProcessResponse.Success);
+        }
+
+        @Override
+        protected ProcessResponse<String> process(Message<String> message)
+                throws ProcessingException, NonFatalProcessorException {
+            throw new ProcessingException("Message processing not expected.");
+        }
+
+        @Override
+        public void configure(ConfigNode config) throws ConfigurationException {
+        }
+
+        @Override
+        public void dispose() {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Processors register their counters with the environment monitor.
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    public void testDrop() throws Exception {
+        List<Message<String>> messages = messages(MESSAGES);
+        MessageBatch<String> batch = new MessageBatch<String>().reset(messages);
+        assertEquals(MESSAGES, batch.size());
+        assertEquals(0, batch.compact());
+
+        // Positions are stable till the batch is compacted.
+        for (int ii = 0; ii < batch.size(); ii++) {
+            if (ii % 3 == 0)
+                batch.drop(ii);
+        }
+        assertEquals(MESSAGES, batch.size());
+        for (int ii = 0; ii < batch.size(); ii++) {
+            assertEquals(ii % 3 == 0, batch.isDropped(ii));
+            assertEquals(ii, index(batch.get(ii)));
+        }
+        assertEquals(7, batch.compact());
+        assertEquals(MESSAGES - 7, batch.size());
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            if (ii % 3 != 0)
+                expected.add(ii);
+        }
+        assertEquals(expected, indexes(batch.toList()));
+
+        // Second stage, on the compacted selection.
+        batch.drop(0);
+        batch.drop(batch.size() - 1);
+        assertFalse(batch.isDropped(1));
+        assertEquals(2, batch.compact());
+        assertEquals(expected.subList(1, expected.size() - 1), indexes(batch.toList()));
+
+        // The source list is not modified.
+        assertEquals(MESSAGES, messages.size());
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            assertEquals(ii, index(messages.get(ii)));
+        }
+
+        // Drop all.
+        for (int ii = 0; ii < batch.size(); ii++) {
+            batch.drop(ii);
+        }
+        batch.compact();
+        assertTrue(batch.isEmpty());
+        assertTrue(batch.toList().isEmpty());
+    }
+
+    public void testReplace() throws Exception {
+        List<Message<String>> messages = messages(MESSAGES);
+        MessageBatch<String> batch = new MessageBatch<String>().reset(messages);
+        batch.drop(0);
+        batch.compact();
+        batch.set(0, message(100));
+        assertEquals(100, index(batch.get(0)));
+        assertEquals(2, index(batch.get(1)));
+        // Replacements are not written to the source list.
+        assertEquals(1, index(messages.get(1)));
+
+        batch.retain(messages(3));
+        assertEquals(3, batch.size());
+        assertEquals(0, index(batch.get(0)));
+        batch.retain(null);
+        assertTrue(batch.isEmpty());
+
+        // Lists without random access are copied.
+        LinkedList<Message<String>> linked = new LinkedList<Message<String>>(messages(5));
+        batch.reset(linked);
+        assertEquals(5, batch.size());
+        batch.set(4, message(40));
+        assertEquals(40, index(batch.get(4)));
+        assertEquals(4, index(linked.get(4)));
+    }
+
+    public void testReuse() throws Exception {
+        MessageBatch<String> batch = new MessageBatch<String>();
+        batch.reset(messages(MESSAGES));
+        batch.drop(1);
+        batch.set(2, message(200));
+        batch.clear();
+        assertTrue(batch.isEmpty());
+
+        // Smaller batch : no stale selection, drops or replacements.
+        batch.reset(messages(4));
+        assertEquals(4, batch.size());
+        for (int ii = 0; ii < 4; ii++) {
+            assertFalse(batch.isDropped(ii));
+            assertEquals(ii, index(batch.get(ii)));
+        }
+        assertEquals(0, batch.compact());
+
+        // Larger batch : selection grown.
+        batch.reset(messages(MESSAGES * 2));
+        assertEquals(MESSAGES * 2, batch.size());
+        assertEquals(MESSAGES * 2 - 1, index(batch.get(MESSAGES * 2 - 1)));
+
+        batch.reset(null);
+        assertTrue(batch.isEmpty());
+    }
+
+    public void testChain() throws Exception {
+        List<Message<String>> messages = messages(MESSAGES);
+        MessageBatch<String> batch = new MessageBatch<String>().reset(messages);
+
+        // In place filtering, compacted by the processor stage.
+        assertEquals(EProcessResponse.Success, new EvenProcessor().execute(batch));
+        assertEquals(MESSAGES / 2, batch.size());
+        for (int ii = 0; ii < batch.size(); ii++) {
+            assertEquals(ii * 2, index(batch.get(ii)));
+        }
+
+        // List based processor, adapted through the batch.
+        assertEquals(EProcessResponse.Success, new QuarterProcessor().execute(batch));
+        assertEquals(MESSAGES / 4, batch.size());
+        for (int ii = 0; ii < batch.size(); ii++) {
+            assertEquals(ii * 4, index(batch.get(ii)));
+            assertTrue(batch.get(ii).data().endsWith("-Q"));
+        }
+
+        // Empty batches are not passed to the processor.
+        batch.reset(new ArrayList<Message<String>>());
+        assertEquals(EProcessResponse.Failed, new EvenProcessor().execute(batch));
+        assertEquals(MESSAGES, messages.size());
+    }
+
+    private static List<Message<String>> messages(int count) {
+        List<Message<String>> messages = new ArrayList<Message<String>>(count);
+        for (int ii = 0; ii < count; ii++) {
+            messages.add(message(ii));
+        }
+        return messages;
+    }
+
+    private static Message<String> message(int index) {
+        Message<String> m = new Message<String>();
+        m.header().id(String.valueOf(index));
+        return m.data(String.format("BATCH-MESSAGE-%08d", index));
+    }
+
+    private static int index(Message<String> message) {
+        return Integer.parseInt(message.header().id());
+    }
+
+    private static List<Integer> indexes(List<Message<String>> messages) {
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (Message<String> m : messages) {
+            indexes.add(index(m));
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Tests of the message ID index : lookups on the hot index, sealing (with
+ * entries out of key order) and lookups on the reopened sealed index.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_MessageIdIndex extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-idindex";
+    private static final String BLOCK = "TEST-BLOCK";
+    private static final String QUEUE = "TEST-QUEUE";
+    private static final long TIMESTAMP = 1477000000000L;
+    private static final int MESSAGES = 1000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(DIRECTORY);
+        if (directory.exists())
+            FileUtils.emptydir(directory, true);
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.emptydir(directory, true);
+    }
+
+    public void testKey() throws Exception {
+        long[] key = MessageIdIndex.key(id(12, TIMESTAMP));
+        assertNotNull(key);
+        assertEquals(12, key[0]);
+        assertEquals(TIMESTAMP, key[1]);
+        assertNull(MessageIdIndex.key(null));
+        assertNull(MessageIdIndex.key("MESSAGE"));
+        assertNull(MessageIdIndex.key("MESSAGE-ABC-12"));
+    }
+
+    public void testPutGet() throws Exception {
+        MessageIdIndex index = new MessageIdIndex();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            index.put(ii, TIMESTAMP + ii / 10, ii * 2);
+        }
+        assertEquals(MESSAGES, index.size());
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            assertEquals(ii * 2, index.get(MessageIdIndex.key(id(ii, TIMESTAMP + ii / 10))));
+        }
+        // Out of range, and in range but not indexed.
+        assertEquals(-1, index.get(MessageIdIndex.key(id(MESSAGES, TIMESTAMP))));
+        assertEquals(-1, index.get(MessageIdIndex.key(id(5, TIMESTAMP + 1))));
+    }
+
+    public void testSealReopen() throws Exception {
+        MessageIdIndex index = new MessageIdIndex();
+        // Out of key order : publishers racing, then a queue restart (the
+        // sequence restarts at 0 with a later timestamp).
+        for (int ii = 0; ii < MESSAGES / 2; ii++) {
+            int sequence = (ii % 2 == 0 ? ii + 1 : ii - 1);
+            index.put(sequence, TIMESTAMP, ii);
+        }
+        for (int ii = 0; ii < MESSAGES / 2; ii++) {
+            index.put(ii, TIMESTAMP + 1000, MESSAGES / 2 + ii);
+        }
+        index.seal(DIRECTORY, BLOCK);
+        // Sealed : no more entries are added.
+        index.put(MESSAGES, TIMESTAMP, MESSAGES);
+        assertEquals(MESSAGES, index.size());
+        check(index);
+
+        String[] files = directory.list();
+        assertEquals(1, files.length);
+        assertFalse(files[0].endsWith(".tmp"));
+
+        MessageIdIndex sealed = MessageIdIndex.read(DIRECTORY, BLOCK);
+        assertNotNull(sealed);
+        assertEquals(MESSAGES, sealed.size());
+        check(sealed);
+        assertEquals(-1, sealed.get(MessageIdIndex.key(id(MESSAGES, TIMESTAMP))));
+        assertEquals(-1, sealed.get(MessageIdIndex.key(id(1, TIMESTAMP + 1))));
+
+        // No index file.
+        assertNull(MessageIdIndex.read(DIRECTORY, "UNKNOWN-BLOCK"));
+    }
+
+    private void check(MessageIdIndex index) throws Exception {
+        for (int ii = 0; ii < MESSAGES / 2; ii++) {
+            int sequence = (ii % 2 == 0 ? ii + 1 : ii - 1);
+            assertEquals(ii, index.get(MessageIdIndex.key(id(sequence, TIMESTAMP))));
+            assertEquals(MESSAGES / 2 + ii,
+                    index.get(MessageIdIndex.key(id(ii, TIMESTAMP + 1000))));
+        }
+    }
+
+    private String id(long sequence, long timestamp) {
+        return String.format("%s-%d-%d", QUEUE, timestamp, sequence);
+    }
+}
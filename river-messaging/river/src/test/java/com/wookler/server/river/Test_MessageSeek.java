@@ -0,0 +1,164 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Seek tests of the subscribers : by timestamp, by record position and to the
+ * end of the queue. The messages are written across several blocks.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_MessageSeek extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-seek-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-seek";
+    private static final String SUBSCRIBER = "TEST-SEEK";
+    private static final int MESSAGES = 1000;
+    private static final long TIMEOUT = 1000;
+
+    private MessageQueue<String> queue = null;
+    private MessagePullSubscriber<String> subscriber = null;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertNotNull(node);
+        queue = new MessageQueue<String>();
+        queue.configure(node);
+        queue.start();
+        subscriber = (MessagePullSubscriber<String>) queue.subscriber(SUBSCRIBER);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testSeekTimestamp() throws Exception {
+        publish(0, MESSAGES / 2);
+        Thread.sleep(50);
+        long timestamp = System.currentTimeMillis();
+        Thread.sleep(50);
+        publish(MESSAGES / 2, MESSAGES);
+        assertEquals(MESSAGES, read(MESSAGES).size());
+
+        subscriber.seek(timestamp);
+        check(read(MESSAGES), MESSAGES / 2, MESSAGES);
+
+        // Before the first message : everything is read again.
+        subscriber.seek(0);
+        check(read(MESSAGES), 0, MESSAGES);
+
+        // After the last message : only new messages are read.
+        subscriber.seek(System.currentTimeMillis() + 60000);
+        assertTrue(read(1).isEmpty());
+        publish(MESSAGES, MESSAGES + 1);
+        check(read(MESSAGES), MESSAGES, MESSAGES + 1);
+    }
+
+    public void testSeekPosition() throws Exception {
+        publish(0, MESSAGES);
+        List<Message<String>> read = read(MESSAGES);
+        assertEquals(MESSAGES, read.size());
+
+        for (int start : new int[] { MESSAGES - 1, MESSAGES / 3, 0 }) {
+            Message.Header h = read.get(start).header();
+            subscriber.seek(h.blockid(), h.blockindex());
+            check(read(MESSAGES), start, MESSAGES);
+        }
+
+        Message.Header h = read.get(0).header();
+        try {
+            subscriber.seek(h.blockid(), -1);
+            fail("Invalid record index accepted.");
+        } catch (MessageQueueException e) {
+            // Expected.
+        }
+        try {
+            subscriber.seek("UNKNOWN-BLOCK", 0);
+            fail("Unknown block accepted.");
+        } catch (MessageQueueException e) {
+            // Expected.
+        }
+    }
+
+    public void testSeekToEnd() throws Exception {
+        publish(0, MESSAGES);
+        subscriber.seekToEnd();
+        assertTrue(read(1).isEmpty());
+
+        publish(MESSAGES, MESSAGES + 10);
+        check(read(MESSAGES), MESSAGES, MESSAGES + 10);
+    }
+
+    private void publish(int from, int to) throws Exception {
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = from; ii < to; ii++) {
+            publisher.publish(message(ii));
+        }
+    }
+
+    /**
+     * Read messages till the count is reached or no more messages are
+     * available.
+     */
+    private List<Message<String>> read(int count) throws Exception {
+        List<Message<String>> messages = new ArrayList<Message<String>>();
+        while (messages.size() < count) {
+            List<Message<String>> batch = subscriber.batch(count - messages.size(), TIMEOUT);
+            if (batch == null || batch.isEmpty())
+                break;
+            messages.addAll(batch);
+        }
+        return messages;
+    }
+
+    private void check(List<Message<String>> messages, int from, int to) {
+        assertEquals(to - from, messages.size());
+        for (int ii = 0; ii < messages.size(); ii++) {
+            assertEquals(message(from + ii), messages.get(ii).data());
+        }
+    }
+
+    private String message(int index) {
+        return String.format("SEEK-MESSAGE-%08d", index);
+    }
+}
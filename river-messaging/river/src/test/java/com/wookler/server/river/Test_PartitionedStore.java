@@ -0,0 +1,199 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Tests of the partitioned store : messages are written to the partition
+ * selected by the message key, read in publish order within a key, and acked
+ * (by message ID and by block range) across the partitions.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_PartitionedStore extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-partition-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-partition";
+    private static final String SUBSCRIBER = "TEST-PARTITION-ACK";
+    private static final int PARTITIONS = 4;
+    private static final int KEYS = 16;
+    private static final int MESSAGES = 50;
+    private static final long TIMEOUT = 1000;
+    /** ack timeout of the subscriber and timer tick, with a margin */
+    private static final long RESEND_WAIT = 1500;
+
+    private MessageQueue<String> queue = null;
+    private MessagePullSubscriber<String> subscriber = null;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertNotNull(node);
+        queue = new MessageQueue<String>();
+        queue.configure(node);
+        queue.start();
+        subscriber = (MessagePullSubscriber<String>) queue.subscriber(SUBSCRIBER);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testSelect() throws Exception {
+        for (int ii = 0; ii < KEYS; ii++) {
+            int p = EPartitionStrategy.select(EPartitionStrategy.KEY, key(ii), PARTITIONS);
+            assertTrue(p >= 0 && p < PARTITIONS);
+            assertEquals(p, EPartitionStrategy.select(EPartitionStrategy.KEY, key(ii),
+                    PARTITIONS));
+        }
+        // Keyless and thread strategy : the partition of the thread.
+        int p = EPartitionStrategy.select(EPartitionStrategy.THREAD, key(0), PARTITIONS);
+        assertEquals(p, EPartitionStrategy.select(EPartitionStrategy.KEY, null, PARTITIONS));
+    }
+
+    public void testAssignmentOrdering() throws Exception {
+        publish();
+        List<Message<String>> read = read(KEYS * MESSAGES);
+        assertEquals(KEYS * MESSAGES, read.size());
+
+        Set<Integer> partitions = new HashSet<Integer>();
+        Map<String, Integer> next = new HashMap<String, Integer>();
+        for (Message<String> m : read) {
+            String key = m.data().substring(0, m.data().indexOf(':'));
+            int sequence = Integer.parseInt(m.data().substring(key.length() + 1));
+            // Block IDs of a partitioned store are [partition]:[block].
+            String blockid = m.header().blockid();
+            int partition = Integer.parseInt(blockid.substring(0, blockid.indexOf(':')));
+            assertEquals(EPartitionStrategy.select(EPartitionStrategy.KEY, key, PARTITIONS),
+                    partition);
+            partitions.add(partition);
+
+            Integer expected = next.get(key);
+            assertEquals((expected == null ? 0 : expected.intValue()), sequence);
+            next.put(key, sequence + 1);
+        }
+        assertTrue(partitions.size() > 1);
+        assertEquals(KEYS, next.size());
+        for (Integer n : next.values()) {
+            assertEquals(MESSAGES, n.intValue());
+        }
+        assertTrue(read(1).isEmpty());
+    }
+
+    public void testAcks() throws Exception {
+        publish();
+        List<Message<String>> read = read(KEYS * MESSAGES);
+        assertEquals(KEYS * MESSAGES, read.size());
+
+        // Even keys acked by message ID, odd keys by block range. The last
+        // message of the first key is not acked.
+        Message<String> unacked = null;
+        List<String> ids = new ArrayList<String>();
+        Map<String, long[]> ranges = new HashMap<String, long[]>();
+        for (Message<String> m : read) {
+            int key = Integer.parseInt(m.data().substring(4, m.data().indexOf(':')));
+            if (m.data().equals(message(0, MESSAGES - 1))) {
+                unacked = m;
+            } else if (key % 2 == 0) {
+                ids.add(m.header().id());
+            } else {
+                subscriber.ack(m.header().blockid(), m.header().blockindex(),
+                        m.header().blockindex());
+                ranges.put(m.header().blockid(), new long[] { m.header().blockindex() });
+            }
+        }
+        assertNotNull(unacked);
+        subscriber.ack(ids);
+        assertTrue(ranges.size() > 1);
+
+        // Only the message not acked is resent. Single batch reads, as the
+        // message keeps being resent till acked.
+        Thread.sleep(RESEND_WAIT);
+        List<Message<String>> resent = subscriber.batch(KEYS * MESSAGES, TIMEOUT);
+        assertEquals(1, resent.size());
+        assertEquals(unacked.data(), resent.get(0).data());
+        assertEquals(unacked.header().blockid(), resent.get(0).header().blockid());
+
+        subscriber.ack(resent.get(0).header().id());
+        Thread.sleep(RESEND_WAIT);
+        List<Message<String>> again = subscriber.batch(KEYS * MESSAGES, TIMEOUT);
+        assertTrue(again == null || again.isEmpty());
+    }
+
+    /**
+     * Publish the messages of all the keys, interleaved.
+     */
+    private void publish() throws Exception {
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            for (int jj = 0; jj < KEYS; jj++) {
+                publisher.publish(message(jj, ii), key(jj));
+            }
+        }
+    }
+
+    /**
+     * Read messages till the count is reached or no more messages are
+     * available.
+     */
+    private List<Message<String>> read(int count) throws Exception {
+        List<Message<String>> messages = new ArrayList<Message<String>>();
+        while (messages.size() < count) {
+            List<Message<String>> batch = subscriber.batch(count - messages.size(), TIMEOUT);
+            if (batch == null || batch.isEmpty())
+                break;
+            messages.addAll(batch);
+        }
+        return messages;
+    }
+
+    private String key(int key) {
+        return String.format("KEY-%02d", key);
+    }
+
+    private String message(int key, int sequence) {
+        return String.format("%s:%08d", key(key), sequence);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import net.openhft.lang.io.ByteBufferBytes;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+import com.wookler.server.river.ByteConvertor.ConversionException;
+import com.wookler.server.river.test.StringMessageConverter;
+
+/**
+ * Tests of the message record encoder : messages encoded directly into the
+ * excerpt must be byte-identical to the serialized message, and readable
+ * through the existing read paths.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_RecordEncoder extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-encoder";
+    private static final String NAME = "TEST-ENCODER";
+    private static final String CONFIG_FILE = "src/test/resources/river-unit-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+
+    /** IDs with 1, 2, 3 and 4 byte UTF-8 characters and an unpaired surrogate */
+    private static final String[] IDS = { "ID-0001", "5f0e7b2c-1d4a-4f6e-9c3b-7a8d9e0f1a2b",
+            "ID-\u00e9\u00e8", "ID-\u20ac", "ID-\ud83d\ude00-END", "ID-\ud800-END", "" };
+    /** payload sizes around the varint boundaries */
+    private static final int[] SIZES = { 0, 1, 127, 128, 16383, 16384, 70000 };
+    private static final long[] TIMESTAMPS = { 0, 1, 127, 128, System.currentTimeMillis(),
+            Long.MAX_VALUE, -1 };
+
+    private StringMessageConverter convertor = new StringMessageConverter();
+
+    @Before
+    public void setUp() throws Exception {
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testWireFormat() throws Exception {
+        for (String id : IDS) {
+            for (int size : SIZES) {
+                for (long timestamp : TIMESTAMPS) {
+                    Message<String> m = message(id, size, timestamp);
+                    byte[] expected = convertor.write(m);
+                    String s = String.format("[id=%s][size=%d][timestamp=%d]", id, size,
+                            timestamp);
+                    assertTrue(s, Arrays.equals(expected, encode(convertor.encoder(m))));
+                }
+            }
+        }
+    }
+
+    public void testBlock() throws Exception {
+        MessageBlock block = new MessageBlock("1", DIRECTORY, NAME, true, null).init(false);
+        block.openwriter();
+        int index = 0;
+        for (String id : IDS) {
+            for (int size : SIZES) {
+                Message<String> m = message(id, size, System.currentTimeMillis());
+                // Encoded and serialized messages result in the same record.
+                assertEquals(index, block.write(convertor.encoder(m)));
+                assertEquals(index + 1, block.write(convertor.write(m)));
+                Record encoded = block.read(index);
+                Record serialized = block.read(index + 1);
+                assertTrue(Arrays.equals(serialized.bytes(), encoded.bytes()));
+
+                Message<String> r = convertor.read(encoded.bytes());
+                assertEquals(convertor.read(convertor.write(m)).header().id(), r.header().id());
+                assertEquals(m.header().timestamp(), r.header().timestamp());
+                assertEquals(m.data(), r.data());
+                index += 2;
+            }
+        }
+        block.closewriter();
+        block.close();
+    }
+
+    public void testInvalid() throws Exception {
+        Message<String> m = message(IDS[0], 10, 0);
+        m.header().id(null);
+        try {
+            convertor.encoder(m);
+            fail("NULL message ID not detected.");
+        } catch (ConversionException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Encode the record, checking exactly the encoder size is written.
+     */
+    private byte[] encode(RecordEncoder encoder) {
+        ByteBuffer buffer = ByteBuffer.allocate(encoder.size() + 16);
+        ByteBufferBytes out = new ByteBufferBytes(buffer);
+        encoder.encode(out);
+        assertEquals(encoder.size(), out.position());
+        return Arrays.copyOf(buffer.array(), encoder.size());
+    }
+
+    private Message<String> message(String id, int size, long timestamp) {
+        StringBuilder b = new StringBuilder(size);
+        for (int ii = 0; ii < size; ii++) {
+            b.append((char) ('A' + ii % 26));
+        }
+        Message<String> m = new Message<String>().data(b.toString());
+        m.header().id(id).timestamp(timestamp);
+        return m;
+    }
+}
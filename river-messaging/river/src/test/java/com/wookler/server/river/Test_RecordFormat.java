@@ -0,0 +1,265 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import net.openhft.chronicle.ChronicleConfig;
+import net.openhft.chronicle.ExcerptAppender;
+import net.openhft.chronicle.IndexedChronicle;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Round trip tests of the block record formats (V1, V2 and V3) and detection
+ * of corrupt records by the CRC32C checksum.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_RecordFormat extends TestCase {
+    private static final String DIRECTORY = "/tmp/river/test-format";
+    private static final String NAME = "TEST-FORMAT";
+    private static final int RECORDS = 64;
+    private static final String CONFIG_FILE = "src/test/resources/river-unit-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+
+    @Before
+    public void setUp() throws Exception {
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testVarint() throws Exception {
+        long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1,
+                Long.MIN_VALUE };
+        for (long v : values) {
+            assertEquals(v, RecordFormat.unzigzag(RecordFormat.zigzag(v)));
+        }
+        assertEquals(1, RecordFormat.varintSize(RecordFormat.zigzag(-1)));
+        assertEquals(1, RecordFormat.varintSize(127));
+        assertEquals(2, RecordFormat.varintSize(128));
+        assertEquals(10, RecordFormat.varintSize(-1));
+    }
+
+    public void testCrc32c() throws Exception {
+        // Standard CRC32C check value.
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, RecordFormat.crc32c(check, 0, check.length));
+
+        // Slicing-by-8 must match the byte-wise computation at any alignment.
+        byte[] data = new byte[1031];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte) (ii * 31 + 7);
+        }
+        for (int offset = 0; offset < 9; offset++) {
+            int length = data.length - offset;
+            assertEquals(crc32c(data, offset, length), RecordFormat.crc32c(data, offset, length));
+        }
+    }
+
+    public void testV3() throws Exception {
+        MessageBlock block = new MessageBlock("1", DIRECTORY, NAME, true, null).init(false);
+        block.openwriter();
+        for (int ii = 0; ii < RECORDS; ii++) {
+            RecordAttributes attributes = null;
+            if (ii % 2 == 0)
+                attributes = new RecordAttributes().put("type", "EVEN").put("index", (long) ii)
+                        .tag("test");
+            block.write(new RecordEncoder.ByteArrayEncoder(payload(ii), attributes));
+        }
+        verify(block, 0);
+        block.closewriter();
+        block.close();
+
+        // Reopen as a recovered block.
+        block = new MessageBlock("1", DIRECTORY, NAME, false, null).init(true);
+        verify(block, 0);
+        block.close();
+    }
+
+    public void testV2() throws Exception {
+        long base = System.currentTimeMillis();
+        MessageBlock block = create(RecordFormat.Constants.V2, base);
+        IndexedChronicle chronicle = new IndexedChronicle(block.directory() + "/" + NAME,
+                ChronicleConfig.MEDIUM);
+        try {
+            ExcerptAppender writer = chronicle.createAppender();
+            for (int ii = 0; ii < RECORDS; ii++) {
+                byte[] data = payload(ii);
+                writer.startExcerpt(data.length + 32);
+                RecordFormat.writeVarint(writer, data.length);
+                RecordFormat.writeVarint(writer, RecordFormat.zigzag(ii - 1));
+                RecordFormat.writeVarint(writer, ii + 1);
+                writer.write(data);
+                writer.writeInt(RecordFormat.crc32c(data, 0, data.length));
+                writer.finish();
+            }
+            writer.close();
+        } finally {
+            chronicle.close();
+        }
+        block.init(true);
+        verify(block, base - 1);
+        block.close();
+    }
+
+    public void testV1() throws Exception {
+        MessageBlock block = create(RecordFormat.Constants.V1, 0);
+        IndexedChronicle chronicle = new IndexedChronicle(block.directory() + "/" + NAME,
+                ChronicleConfig.MEDIUM);
+        long base = System.currentTimeMillis();
+        try {
+            ExcerptAppender writer = chronicle.createAppender();
+            for (int ii = 0; ii < RECORDS; ii++) {
+                byte[] data = payload(ii);
+                writer.startExcerpt(data.length + 24);
+                writer.writeInt(data.length);
+                writer.writeLong(base + ii);
+                writer.writeLong(ii + 1);
+                writer.write(data);
+                writer.finish();
+            }
+            writer.close();
+        } finally {
+            chronicle.close();
+        }
+        block.init(true);
+        verify(block, base);
+        block.close();
+    }
+
+    public void testCorruptRecord() throws Exception {
+        MessageBlock block = new MessageBlock("1", DIRECTORY, NAME, true, null).init(false);
+        block.openwriter();
+        for (int ii = 0; ii < RECORDS; ii++) {
+            block.write(payload(ii));
+        }
+        block.closewriter();
+        block.close();
+
+        int corrupt = RECORDS / 2;
+        flip(new File(block.directory() + "/" + NAME + ".data"), payload(corrupt));
+
+        block = new MessageBlock("1", DIRECTORY, NAME, false, null).init(true);
+        for (int ii = 0; ii < RECORDS; ii++) {
+            if (ii == corrupt) {
+                try {
+                    block.read(ii);
+                    fail("Corrupt record not detected. [index=" + ii + "]");
+                } catch (MessageQueueException e) {
+                    assertTrue(e.getCause() instanceof MessageDataException);
+                }
+            } else {
+                assertEquals(new String(payload(ii), StandardCharsets.UTF_8), new String(block
+                        .read(ii).bytes(), StandardCharsets.UTF_8));
+            }
+        }
+        block.close();
+    }
+
+    /**
+     * Check the records read from the block, the record timestamps are checked
+     * to be at or after the base timestamp (if set).
+     */
+    private void verify(MessageBlock block, long base) throws Exception {
+        for (int ii = 0; ii < RECORDS; ii++) {
+            Record r = block.read(ii);
+            assertEquals(ii, r.index());
+            assertEquals(ii + 1, r.sequence());
+            assertEquals(new String(payload(ii), StandardCharsets.UTF_8), new String(r.bytes(),
+                    StandardCharsets.UTF_8));
+            if (base > 0)
+                assertTrue(r.timestamp() >= base);
+        }
+    }
+
+    private MessageBlock create(int version, long timestamp) throws Exception {
+        MessageBlock block = new MessageBlock("1", DIRECTORY, NAME, true, null);
+        if (version != RecordFormat.Constants.V1) {
+            Properties p = new Properties();
+            p.setProperty("version", String.valueOf(version));
+            p.setProperty("timestamp", String.valueOf(timestamp));
+            FileOutputStream out = new FileOutputStream(block.directory() + "/" + NAME
+                    + ".format");
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+        return block;
+    }
+
+    private byte[] payload(int index) {
+        return String.format("RECORD-%08d-PAYLOAD", index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Flip a bit in the first occurrence of the pattern in the file.
+     */
+    private void flip(File file, byte[] pattern) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            byte[] data = new byte[(int) Math.min(f.length(), 16 * 1024 * 1024)];
+            f.readFully(data);
+            for (int ii = 0; ii + pattern.length <= data.length; ii++) {
+                int jj = 0;
+                while (jj < pattern.length && data[ii + jj] == pattern[jj])
+                    jj++;
+                if (jj == pattern.length) {
+                    f.seek(ii + pattern.length - 1);
+                    f.write(data[ii + pattern.length - 1] ^ 0x01);
+                    return;
+                }
+            }
+            fail("Record payload not found in block data file.");
+        } finally {
+            f.close();
+        }
+    }
+
+    private int crc32c(byte[] data, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int ii = offset; ii < offset + length; ii++) {
+            crc ^= (data[ii] & 0xFF);
+            for (int jj = 0; jj < 8; jj++) {
+                crc = ((crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1);
+            }
+        }
+        return ~crc;
+    }
+}
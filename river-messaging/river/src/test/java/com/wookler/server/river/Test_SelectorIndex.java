@@ -0,0 +1,215 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.wookler.server.river.Filter.FilterException;
+
+/**
+ * Tests of the routing rule index : the rules selected through the index must
+ * be the rules selected by evaluating every rule, and rules that cannot be
+ * indexed must always be candidates.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_SelectorIndex extends TestCase {
+    private static final int MESSAGES = 20000;
+
+    public static enum EStatus {
+        OPEN, CLOSED, CANCELLED
+    }
+
+    public static class Order {
+        private long quantity;
+        private double price;
+        private EStatus status;
+        private String region;
+        private String code;
+        private String note;
+
+        public Order(long quantity, double price, EStatus status, String region, String code,
+                String note) {
+            this.quantity = quantity;
+            this.price = price;
+            this.status = status;
+            this.region = region;
+            this.code = code;
+            this.note = note;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[quantity=%d][price=%f][status=%s][region=%s][code=%s]"
+                    + "[note=%s]", quantity, price, status, region, code, note);
+        }
+    }
+
+    /**
+     * Rule that is not an expression filter.
+     */
+    private static final class PremiumFilter implements Filter<Order> {
+        @Override
+        public Filter<?> parse(String filter) throws FilterException {
+            return this;
+        }
+
+        @Override
+        public String filter() {
+            return "premium";
+        }
+
+        @Override
+        public boolean matches(Order message) throws FilterException {
+            return message.price * message.quantity > 1000;
+        }
+    }
+
+    private static final String[] INDEXED = { "status = 'OPEN'",
+            "region IN ('EUROPE', 'ASIA')", "quantity = 10",
+            "quantity >= 10 AND quantity < 50", "price > 2.5", "price <= -1",
+            "code MATCHES 'EU-.*'", "code MATCHES 'EU-1.*' AND price <= 5",
+            "status = 'CLOSED' AND quantity > 100", "region = 'OTHER' AND quantity IN (1, 2, 3)",
+            "quantity > 20 AND price < 7.5 AND quantity <= 80", "status = 'CANCELLED'" };
+
+    private static final String[] UNINDEXED = { "quantity = 10 OR status = 'OPEN'",
+            "NOT status = 'OPEN'", "code MATCHES '.*-7'", "note IS NULL", "quantity != 10",
+            "region NOT IN ('EUROPE')", "(quantity > 5) OR (price > 5)" };
+
+    private static final String[] REGIONS = { "EUROPE", "ASIA", "OTHER", "AMERICA" };
+    private static final String[] CODES = { "EU-", "EU-1", "US-", "AS-", "EU" };
+
+    public void testIndexed() throws Exception {
+        List<Filter<Order>> rules = rules(INDEXED);
+        SelectorIndex<Order> index = new SelectorIndex<Order>(rules);
+        assertEquals(INDEXED.length, index.size());
+        assertEquals(INDEXED.length, index.indexed());
+
+        check(rules, index, true);
+    }
+
+    public void testUnindexed() throws Exception {
+        List<Filter<Order>> rules = rules(UNINDEXED);
+        rules.add(new PremiumFilter());
+        SelectorIndex<Order> index = new SelectorIndex<Order>(rules);
+        assertEquals(UNINDEXED.length + 1, index.size());
+        assertEquals(0, index.indexed());
+
+        // Every rule is a candidate for every message.
+        Random random = new Random(7);
+        for (int ii = 0; ii < 1000; ii++) {
+            assertEquals(rules.size(), index.candidates(order(random)).cardinality());
+        }
+        check(rules, index, false);
+    }
+
+    public void testMixed() throws Exception {
+        List<Filter<Order>> rules = new ArrayList<Filter<Order>>();
+        for (int ii = 0; ii < Math.max(INDEXED.length, UNINDEXED.length); ii++) {
+            if (ii < INDEXED.length)
+                rules.add(rule(INDEXED[ii]));
+            if (ii < UNINDEXED.length)
+                rules.add(rule(UNINDEXED[ii]));
+        }
+        rules.add(new PremiumFilter());
+        SelectorIndex<Order> index = new SelectorIndex<Order>(rules);
+        assertEquals(INDEXED.length, index.indexed());
+
+        check(rules, index, true);
+
+        // Fall back rules are candidates, whatever the message.
+        BitSet c = index.candidates(new Order(0, 0, null, null, null, null));
+        for (int ii = 0; ii < rules.size(); ii++) {
+            boolean expression = (rules.get(ii) instanceof ExpressionFilter);
+            boolean unindexed = (!expression || isUnindexed(rules.get(ii).filter()));
+            if (unindexed)
+                assertTrue(rules.get(ii).filter(), c.get(ii));
+        }
+    }
+
+    /**
+     * Evaluate the candidates selected by the index and compare with the rules
+     * selected by the linear scan.
+     */
+    private void check(List<Filter<Order>> rules, SelectorIndex<Order> index, boolean pruned)
+            throws Exception {
+        Random random = new Random(31);
+        long candidates = 0;
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            Order o = order(random);
+            BitSet scan = new BitSet();
+            for (int jj = 0; jj < rules.size(); jj++) {
+                if (rules.get(jj).matches(o))
+                    scan.set(jj);
+            }
+            BitSet c = index.candidates(o);
+            candidates += c.cardinality();
+            BitSet selected = new BitSet();
+            for (int jj = c.nextSetBit(0); jj >= 0; jj = c.nextSetBit(jj + 1)) {
+                if (rules.get(jj).matches(o))
+                    selected.set(jj);
+            }
+            assertEquals(o.toString(), scan, selected);
+        }
+        if (pruned)
+            assertTrue(candidates < (long) MESSAGES * rules.size());
+    }
+
+    private boolean isUnindexed(String expression) {
+        for (String e : UNINDEXED) {
+            if (e.equals(expression))
+                return true;
+        }
+        return false;
+    }
+
+    private List<Filter<Order>> rules(String[] expressions) throws FilterException {
+        List<Filter<Order>> rules = new ArrayList<Filter<Order>>();
+        for (String e : expressions) {
+            rules.add(rule(e));
+        }
+        return rules;
+    }
+
+    private Filter<Order> rule(String expression) throws FilterException {
+        ExpressionFilter<Order> f = new ExpressionFilter<Order>();
+        f.parse(expression);
+        return f;
+    }
+
+    /**
+     * Random order, with values on and around the rule bounds.
+     */
+    private Order order(Random random) {
+        long quantity = random.nextInt(130);
+        double price = (random.nextInt(40) - 5) / 4.0;
+        EStatus status = (random.nextInt(8) == 0 ? null : EStatus.values()[random
+                .nextInt(EStatus.values().length)]);
+        String region = (random.nextInt(8) == 0 ? null : REGIONS[random.nextInt(REGIONS.length)]);
+        String code = CODES[random.nextInt(CODES.length)] + random.nextInt(20);
+        String note = (random.nextBoolean() ? null : "NOTE");
+        return new Order(quantity, price, status, region, code, note);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Restart tests of the subscriber checkpoints : subscribers that require acks
+ * resume from the last acked message, other subscribers from the last message
+ * read. Messages are acked by ID after the restart, including after a crash
+ * (blocks recovered without a message ID index).
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_SubscriberCheckpoint extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-checkpoint-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-checkpoint";
+    private static final String SUBSCRIBER_ACK = "TEST-CHECKPOINT-ACK";
+    private static final String SUBSCRIBER_NOACK = "TEST-CHECKPOINT-NOACK";
+    private static final int MESSAGES = 100;
+    private static final int ACKED = 40;
+    private static final long TIMEOUT = 1000;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testRestart() throws Exception {
+        queue = start();
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            publisher.publish(message(ii));
+        }
+
+        List<Message<String>> read = read(SUBSCRIBER_ACK, MESSAGES);
+        assertEquals(MESSAGES, read.size());
+        List<String> ids = new ArrayList<String>();
+        for (int ii = 0; ii < ACKED; ii++) {
+            ids.add(read.get(ii).header().id());
+        }
+        queue.subscriber(SUBSCRIBER_ACK).ack(ids);
+        assertEquals(MESSAGES, read(SUBSCRIBER_NOACK, MESSAGES).size());
+        queue.dispose();
+
+        // Read but not acked messages are delivered again.
+        queue = start();
+        read = read(SUBSCRIBER_ACK, MESSAGES - ACKED);
+        assertEquals(MESSAGES - ACKED, read.size());
+        for (int ii = 0; ii < read.size(); ii++) {
+            assertEquals(message(ACKED + ii), read.get(ii).data());
+        }
+        assertTrue(read(SUBSCRIBER_NOACK, 1).isEmpty());
+
+        // Messages read again after the restart are checkpointed on ack.
+        ids.clear();
+        for (Message<String> m : read) {
+            ids.add(m.header().id());
+        }
+        queue.subscriber(SUBSCRIBER_ACK).ack(ids);
+        queue.dispose();
+
+        queue = start();
+        assertTrue(read(SUBSCRIBER_ACK, 1).isEmpty());
+    }
+
+    public void testAckAfterCrash() throws Exception {
+        queue = start();
+        Publisher<String> publisher = queue.publisher();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            publisher.publish(message(ii));
+        }
+        List<Message<String>> read = read(SUBSCRIBER_ACK, MESSAGES);
+        assertEquals(MESSAGES, read.size());
+        queue.dispose();
+
+        // The write block was not sealed : no message ID index and no
+        // manifest, the index is rebuilt from the records on recovery.
+        assertTrue(remove(new File(DIRECTORY)) > 0);
+        queue = start();
+        read = read(SUBSCRIBER_ACK, MESSAGES);
+        assertEquals(MESSAGES, read.size());
+        List<String> ids = new ArrayList<String>();
+        for (int ii = 0; ii < ACKED; ii++) {
+            ids.add(read.get(ii).header().id());
+        }
+        queue.subscriber(SUBSCRIBER_ACK).ack(ids);
+        queue.dispose();
+
+        queue = start();
+        read = read(SUBSCRIBER_ACK, MESSAGES);
+        assertEquals(MESSAGES - ACKED, read.size());
+        assertEquals(message(ACKED), read.get(0).data());
+    }
+
+    /**
+     * Remove the message ID index and block manifest files under the
+     * directory.
+     */
+    private int remove(File directory) {
+        int count = 0;
+        File[] files = directory.listFiles();
+        if (files == null)
+            return count;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                count += remove(f);
+            } else if (f.getName().endsWith(".idindex")
+                    || f.getName().equals(BlockManifest.Constants.MANIFEST_FILE)) {
+                assertTrue(f.delete());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private MessageQueue<String> start() throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertNotNull(node);
+        MessageQueue<String> q = new MessageQueue<String>();
+        q.configure(node);
+        q.start();
+        return q;
+    }
+
+    /**
+     * Read messages till the count is reached or no more messages are
+     * available.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Message<String>> read(String subscriber, int count) throws Exception {
+        MessagePullSubscriber<String> s = (MessagePullSubscriber<String>) queue
+                .subscriber(subscriber);
+        List<Message<String>> messages = new ArrayList<Message<String>>();
+        while (messages.size() < count) {
+            List<Message<String>> batch = s.batch(count - messages.size(), TIMEOUT);
+            if (batch == null || batch.isEmpty())
+                break;
+            messages.addAll(batch);
+        }
+        return messages;
+    }
+
+    private String message(int index) {
+        return String.format("CHECKPOINT-MESSAGE-%08d", index);
+    }
+}
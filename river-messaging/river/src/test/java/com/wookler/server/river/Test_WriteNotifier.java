@@ -0,0 +1,223 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.wookler.server.common.Env;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.XMLConfigParser;
+import com.wookler.server.common.utils.FileUtils;
+
+/**
+ * Tests of the reader wake up on commit : waiting readers are woken up as soon
+ * as records are committed, instead of waiting for the read timeout.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Test_WriteNotifier extends TestCase {
+    private static final String CONFIG_FILE = "src/test/resources/river-wakeup-config.xml";
+    private static final String CONFIG_PATH = "/configuration";
+    private static final String CONFIG_PATH_QUEUE = "configuration.river.queue";
+    private static final String DIRECTORY = "/tmp/river/test-wakeup";
+    private static final String SUBSCRIBER = "TEST-WAKEUP-READER";
+    private static final int WAITERS = 4;
+    private static final int MESSAGES = 10;
+    /** read/wait timeout, much larger than the expected wake up time */
+    private static final long TIMEOUT = 10000;
+    /** max time for a waiting reader to be woken up */
+    private static final long WAKEUP = 2000;
+    private static final long DELAY = 200;
+
+    private MessageQueue<String> queue = null;
+
+    @Before
+    public void setUp() throws Exception {
+        FileUtils.emptydir(new File(DIRECTORY), true);
+        Env.reset();
+        Env.create(CONFIG_FILE, CONFIG_PATH, new XMLConfigParser());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null)
+            queue.dispose();
+        FileUtils.emptydir(new File(DIRECTORY), true);
+    }
+
+    public void testGeneration() throws Exception {
+        WriteNotifier notifier = new WriteNotifier();
+        long generation = notifier.generation();
+        notifier.signal();
+        assertEquals(generation + 1, notifier.generation());
+        // Commits after the captured generation are not missed.
+        assertTrue(notifier.await(generation, 0));
+        assertTrue(notifier.await(generation, TIMEOUT));
+
+        long start = System.currentTimeMillis();
+        assertFalse(notifier.await(notifier.generation(), DELAY));
+        assertTrue(System.currentTimeMillis() - start >= DELAY - 10);
+        assertFalse(notifier.await(notifier.generation(), 0));
+    }
+
+    public void testWakeup() throws Exception {
+        wakeup(new WriteNotifier());
+        wakeup(new WriteNotifier().spinCount(0));
+    }
+
+    public void testInterrupt() throws Exception {
+        final WriteNotifier notifier = new WriteNotifier().spinCount(0);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    notifier.await(notifier.generation(), TIMEOUT);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        t.start();
+        Thread.sleep(DELAY);
+        t.interrupt();
+        t.join(WAKEUP);
+        assertFalse(t.isAlive());
+        assertTrue(error.get() instanceof InterruptedException);
+    }
+
+    public void testQueueWakeup() throws Exception {
+        queue = start();
+        final MessagePullSubscriber<String> subscriber = subscriber();
+
+        // Empty queue : the read waits for the whole timeout.
+        long start = System.currentTimeMillis();
+        List<Message<String>> messages = subscriber.batch(MESSAGES, DELAY);
+        assertTrue(messages == null || messages.isEmpty());
+        assertTrue(System.currentTimeMillis() - start >= DELAY - 10);
+
+        // The waiting reader returns the partial batch as soon as the
+        // messages are published.
+        final AtomicReference<List<Message<String>>> read =
+                new AtomicReference<List<Message<String>>>();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long[] elapsed = new long[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    read.set(subscriber.batch(MESSAGES * 100, TIMEOUT));
+                    elapsed[0] = System.currentTimeMillis() - start;
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(DELAY);
+        Publisher<String> publisher = queue.publisher();
+        List<String> published = new ArrayList<String>();
+        for (int ii = 0; ii < MESSAGES; ii++) {
+            published.add(message(ii));
+        }
+        publisher.publish(published);
+        reader.join(TIMEOUT * 2);
+        assertNull(error.get());
+        assertNotNull(read.get());
+        assertFalse(read.get().isEmpty());
+        assertTrue(String.valueOf(elapsed[0]), elapsed[0] < DELAY + WAKEUP);
+
+        List<String> data = new ArrayList<String>();
+        for (Message<String> m : read.get()) {
+            data.add(m.data());
+        }
+        List<Message<String>> rest = subscriber.batch(MESSAGES, DELAY);
+        if (rest != null) {
+            for (Message<String> m : rest) {
+                data.add(m.data());
+            }
+        }
+        assertEquals(published, data);
+    }
+
+    /**
+     * Park the waiters and check they are all woken up by a single commit.
+     */
+    private void wakeup(final WriteNotifier notifier) throws Exception {
+        final long generation = notifier.generation();
+        final CountDownLatch started = new CountDownLatch(WAITERS);
+        final CountDownLatch woken = new CountDownLatch(WAITERS);
+        final AtomicInteger signalled = new AtomicInteger();
+        for (int ii = 0; ii < WAITERS; ii++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        if (notifier.await(generation, TIMEOUT))
+                            signalled.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        // Counted as not signalled.
+                    }
+                    woken.countDown();
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        assertTrue(started.await(WAKEUP, TimeUnit.MILLISECONDS));
+        Thread.sleep(DELAY);
+        assertEquals(WAITERS, woken.getCount());
+
+        notifier.signal();
+        assertTrue(woken.await(WAKEUP, TimeUnit.MILLISECONDS));
+        assertEquals(WAITERS, signalled.get());
+    }
+
+    private MessageQueue<String> start() throws Exception {
+        ConfigNode node = Env.get().config().search(CONFIG_PATH_QUEUE);
+        assertNotNull(node);
+        MessageQueue<String> q = new MessageQueue<String>();
+        q.configure(node);
+        q.start();
+        return q;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MessagePullSubscriber<String> subscriber() throws Exception {
+        return (MessagePullSubscriber<String>) queue.subscriber(SUBSCRIBER);
+    }
+
+    private String message(int index) {
+        return String.format("WAKEUP-MESSAGE-%08d", index);
+    }
+}
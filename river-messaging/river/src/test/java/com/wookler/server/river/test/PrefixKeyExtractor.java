@@ -0,0 +1,40 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river.test;
+
+import com.wookler.server.river.KeyExtractor;
+import com.wookler.server.river.Message;
+
+/**
+ * Key extractor for string messages of the form "key:data", messages without
+ * a key separator have no ordering key.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class PrefixKeyExtractor implements KeyExtractor<String> {
+    @Override
+    public Object key(Message<String> message) {
+        String data = message.data();
+        int indx = (data != null ? data.indexOf(':') : -1);
+        if (indx <= 0)
+            return null;
+        return data.substring(0, indx);
+    }
+}
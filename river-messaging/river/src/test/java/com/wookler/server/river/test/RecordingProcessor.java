@@ -0,0 +1,174 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.river.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wookler.server.common.ConfigurationException;
+import com.wookler.server.common.config.CParam;
+import com.wookler.server.common.config.ConfigNode;
+import com.wookler.server.common.config.ConfigUtils;
+import com.wookler.server.river.EProcessResponse;
+import com.wookler.server.river.Message;
+import com.wookler.server.river.NonFatalProcessorException;
+import com.wookler.server.river.ProcessResponse;
+import com.wookler.server.river.ProcessingException;
+import com.wookler.server.river.Processor;
+
+/**
+ * Test processor that records the processed messages (in processing order),
+ * the processing threads and the max number of concurrent batches, by
+ * processor name.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class RecordingProcessor extends Processor<String> {
+    /** processed messages, by processor name */
+    private static final ConcurrentHashMap<String, List<String>> processed = new ConcurrentHashMap<String, List<String>>();
+    /** processing threads, by processor name */
+    private static final ConcurrentHashMap<String, List<Thread>> threads = new ConcurrentHashMap<String, List<Thread>>();
+    /** batches being processed and max concurrent batches, by processor name */
+    private static final ConcurrentHashMap<String, AtomicInteger[]> active = new ConcurrentHashMap<String, AtomicInteger[]>();
+
+    /** time to sleep per batch (in milliseconds) */
+    @CParam(name = "processor.sleep", required = false)
+    private long sleept = 0;
+
+    public long getSleept() {
+        return sleept;
+    }
+
+    public void setSleept(long sleept) {
+        this.sleept = sleept;
+    }
+
+    /**
+     * Get the messages processed by the named processor.
+     *
+     * @param name
+     *            - Processor name.
+     * @return - Processed messages, in processing order.
+     */
+    public static List<String> processed(String name) {
+        List<String> p = processed.get(name);
+        if (p == null)
+            return new ArrayList<String>();
+        synchronized (p) {
+            return new ArrayList<String>(p);
+        }
+    }
+
+    /**
+     * Get the threads the named processor was executed on.
+     *
+     * @param name
+     *            - Processor name.
+     * @return - Processing threads, one entry per batch.
+     */
+    public static List<Thread> threads(String name) {
+        List<Thread> t = threads.get(name);
+        if (t == null)
+            return new ArrayList<Thread>();
+        synchronized (t) {
+            return new ArrayList<Thread>(t);
+        }
+    }
+
+    /**
+     * Get the max number of batches processed concurrently by the named
+     * processor.
+     *
+     * @param name
+     *            - Processor name.
+     * @return - Max concurrent batches.
+     */
+    public static int concurrency(String name) {
+        AtomicInteger[] a = active.get(name);
+        return (a != null ? a[1].get() : 0);
+    }
+
+    /**
+     * Clear the recorded messages and threads of all the processors.
+     */
+    public static void reset() {
+        processed.clear();
+        threads.clear();
+        active.clear();
+    }
+
+    @Override
+    public void configure(ConfigNode config) throws ConfigurationException {
+        super.configure(config);
+        ConfigUtils.parse(config, this);
+        processed.putIfAbsent(name(), Collections.synchronizedList(new ArrayList<String>()));
+        threads.putIfAbsent(name(), Collections.synchronizedList(new ArrayList<Thread>()));
+        active.putIfAbsent(name(),
+                new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() });
+    }
+
+    @Override
+    protected ProcessResponse<String> process(List<Message<String>> messages)
+            throws ProcessingException, NonFatalProcessorException {
+        ProcessResponse<String> resp = new ProcessResponse<String>();
+        if (messages == null || messages.isEmpty())
+            return resp.response(EProcessResponse.Failed);
+        AtomicInteger[] a = active.get(name());
+        int count = a[0].incrementAndGet();
+        while (true) {
+            int max = a[1].get();
+            if (count <= max || a[1].compareAndSet(max, count))
+                break;
+        }
+        try {
+            threads.get(name()).add(Thread.currentThread());
+            List<String> p = processed.get(name());
+            for (Message<String> m : messages) {
+                p.add(m.data());
+            }
+            if (sleept > 0) {
+                try {
+                    Thread.sleep(sleept);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        } finally {
+            a[0].decrementAndGet();
+        }
+        return resp.messages(messages).response(EProcessResponse.Success);
+    }
+
+    @Override
+    protected ProcessResponse<String> process(Message<String> message)
+            throws ProcessingException, NonFatalProcessorException {
+        List<Message<String>> messages = new ArrayList<Message<String>>(1);
+        messages.add(message);
+        return process(messages);
+    }
+
+    @Override
+    public void dispose() {
+        // Nothing to be done here.
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *
+ *  * Copyright 2014 Subhabrata Ghosh
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *     http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.wookler.server.common;
+
+import org.joda.time.DateTime;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauge measure implementation of {@link AbstractMeasure}. Holds the last value
+ * set (for example a current size or limit) instead of a cumulative count,
+ * merged measures take the value of the most recently set measure.
+ *
+ * @author Subho Ghosh (subho dot ghosh at outlook.com)
+ * @created 16/10/26
+ */
+public class Gauge extends AbstractMeasure {
+    /** gauge value */
+    private AtomicLong value = new AtomicLong(0);
+    /** has the value been set since the last clear? */
+    private volatile boolean set = false;
+
+    /**
+     * Get the current gauge value.
+     *
+     * @return - Gauge value.
+     */
+    public long value() {
+        return value.get();
+    }
+
+    /**
+     * Check if the value has been set since the measure was last cleared.
+     *
+     * @return - Value set?
+     */
+    public boolean isSet() {
+        return set;
+    }
+
+    /**
+     * Set the gauge value.
+     *
+     * @param value
+     *            - Gauge value.
+     * @return - self.
+     */
+    public Gauge value(long value) {
+        this.value.set(value);
+        this.set = true;
+        return this;
+    }
+
+    /**
+     * Take the value of the specified gauge measure, if it has been set.
+     *
+     * @param measure
+     *            - Target measure to add.
+     * @return - self.
+     */
+    @Override
+    public AbstractMeasure add(AbstractMeasure measure) {
+        if (measure instanceof Gauge && ((Gauge) measure).isSet()) {
+            value(((Gauge) measure).value());
+        }
+        return this;
+    }
+
+    /**
+     * Clear the gauge value (set to 0, not set).
+     *
+     * @return - self.
+     */
+    @Override
+    public AbstractMeasure clear() {
+        this.value.set(0);
+        this.set = false;
+        return this;
+    }
+
+    /**
+     * Default to string representation of this gauge measure. Consists of
+     * Gauge class name, window and value
+     *
+     * @return - String representation.
+     */
+    @Override
+    public String toString() {
+        return String.format("{%s: WINDOW=%s, VALUE=%d}", getClass().getSimpleName(), new DateTime(
+                window).toString(_WINDOW_DATE_FORMAT_), value.get());
+    }
+
+    /**
+     * Create a copy/clone of this instance of the Gauge measure.
+     *
+     * @return - Gauge copy.
+     */
+    @Override
+    public AbstractMeasure copy() {
+        Gauge m = new Gauge();
+        m.window = window;
+        m.value = new AtomicLong(value());
+        m.set = set;
+
+        return m;
+    }
+}
@@ -165,6 +165,35 @@ public class Monitoring {
         return c;
     }
 
+    /**
+     * Set the value of the specified Global counter. Counter must be of type
+     * Gauge.
+     *
+     * @param namespace
+     *            - Counter namespace
+     * @param name
+     *            - Counter name
+     * @param value
+     *            - Value to set
+     * @return - Counter that was set.
+     */
+    public static AbstractCounter set(String namespace, String name, long value) {
+        AbstractCounter c = null;
+        try {
+            Monitor m = Monitor.get();
+            if (m != null) {
+                c = m.getGlobalCounter(namespace, name);
+                if (c != null && c.type().equals(Gauge.class)) {
+                    Gauge g = (Gauge) c.delta(false);
+                    g.value(value);
+                }
+            }
+        } catch (Throwable t) {
+            debug(Monitoring.class, t);
+        }
+        return c;
+    }
+
     /**
      * Utility function. Just returned the current time in milliseconds.
      *